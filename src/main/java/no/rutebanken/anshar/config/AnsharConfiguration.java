@@ -108,6 +108,12 @@ public class AnsharConfiguration {
     @Value("${anshar.tracking.data.buffer.commit.frequency.seconds:2}")
     private int changeBufferCommitFrequency;
 
+    @Value("${anshar.dataset.size.publish.interval.seconds:10}")
+    private int datasetSizePublishInterval;
+
+    @Value("${anshar.dataset.size.reconcile.interval.minutes:15}")
+    private int datasetSizeReconcileInterval;
+
     @Value("${anshar.message.queue.camel.route.prefix}")
     private String messageQueueCamelRoutePrefix;
 
@@ -118,6 +124,27 @@ public class AnsharConfiguration {
     @Value("${anshar.admin.blocked.clients:}")
     private List<String> blockedEtClientNames;
 
+    @Value("${anshar.checksum.ignored.fields:EstimatedVehicleJourney.recordedAtTime,VehicleActivityStructure.validUntilTime}")
+    private List<String> checksumIgnoredFields;
+
+    @Value("${anshar.async.executor.threads:10}")
+    private int asyncExecutorThreads;
+
+    @Value("${anshar.async.executor.queue.size:1000}")
+    private int asyncExecutorQueueSize;
+
+    @Value("${anshar.ingest.streaming.enabled:false}")
+    private boolean streamingIngestEnabled;
+
+    @Value("${anshar.ingest.streaming.batch.size:500}")
+    private int streamingIngestBatchSize;
+
+    @Value("${anshar.ingest.transform.inplace.enabled:true}")
+    private boolean inPlaceIngestTransformEnabled;
+
+    @Value("${anshar.ingest.transform.inplace.verify:false}")
+    private boolean inPlaceIngestTransformVerified;
+
     public String getHazelcastManagementUrl() {
         return hazelcastManagementUrl;
     }
@@ -226,6 +253,14 @@ public class AnsharConfiguration {
         return changeBufferCommitFrequency;
     }
 
+    public int getDatasetSizePublishInterval() {
+        return datasetSizePublishInterval;
+    }
+
+    public int getDatasetSizeReconcileInterval() {
+        return datasetSizeReconcileInterval;
+    }
+
     public String getMessageQueueCamelRoutePrefix() {
         return messageQueueCamelRoutePrefix;
     }
@@ -240,4 +275,32 @@ public class AnsharConfiguration {
     public List<String> getBlockedEtClientNames() {
         return blockedEtClientNames;
     }
+
+    public List<String> getChecksumIgnoredFields() {
+        return checksumIgnoredFields;
+    }
+
+    public int getAsyncExecutorThreads() {
+        return asyncExecutorThreads;
+    }
+
+    public int getAsyncExecutorQueueSize() {
+        return asyncExecutorQueueSize;
+    }
+
+    public boolean isStreamingIngestEnabled() {
+        return streamingIngestEnabled;
+    }
+
+    public int getStreamingIngestBatchSize() {
+        return streamingIngestBatchSize;
+    }
+
+    public boolean isInPlaceIngestTransformEnabled() {
+        return inPlaceIngestTransformEnabled;
+    }
+
+    public boolean isInPlaceIngestTransformVerified() {
+        return inPlaceIngestTransformVerified;
+    }
 }
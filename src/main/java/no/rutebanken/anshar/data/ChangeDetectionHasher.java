@@ -0,0 +1,30 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+/**
+ * Calculates a checksum used to detect whether an incoming SIRI-object differs from the version already stored.
+ *
+ * Implementations are only required to be stable within the cluster - checksums are never persisted.
+ */
+public interface ChangeDetectionHasher {
+
+    /**
+     * @param object SIRI-object to calculate checksum for
+     * @return checksum - equal objects must produce equal checksums
+     */
+    long hash(Object object);
+}
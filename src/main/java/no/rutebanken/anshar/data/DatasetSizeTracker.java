@@ -0,0 +1,268 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.MapEvent;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.MapClearedListener;
+import com.hazelcast.map.listener.MapEvictedListener;
+import com.hazelcast.partition.MigrationListener;
+import com.hazelcast.partition.MigrationState;
+import com.hazelcast.partition.ReplicaMigrationEvent;
+import com.hazelcast.query.Predicates;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps number of objects per codespace owned by this member, updated from local entry-listeners instead of scanning
+ * all keys.
+ *
+ * Local counts are recalculated from localKeySet when partitions have migrated, and periodically to correct any drift.
+ * Events received while recounting are buffered, and applied only if the scanned keys do not already reflect them.
+ * Each member publishes its local counts to a shared map, so that cluster-wide counts are the sum of a few entries.
+ */
+class DatasetSizeTracker implements EntryAddedListener<SiriObjectStorageKey, Object>,
+        EntryRemovedListener<SiriObjectStorageKey, Object>, EntryEvictedListener<SiriObjectStorageKey, Object>,
+        EntryExpiredListener<SiriObjectStorageKey, Object>, MapClearedListener, MapEvictedListener, MigrationListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatasetSizeTracker.class);
+
+    private final SiriDataType dataType;
+
+    private final IMap<SiriObjectStorageKey, ?> map;
+
+    private final IMap<String, Map<String, Integer>> datasetSizes;
+
+    private final String memberKey;
+
+    private final int publishIntervalSeconds;
+
+    private final long reconcileIntervalMillis;
+
+    private volatile ConcurrentMap<String, AtomicInteger> localCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Latest event per key received while recounting - true if added, false if removed. Null when not recounting.
+     */
+    private Map<SiriObjectStorageKey, Boolean> eventsDuringRecount;
+
+    private final Object eventLock = new Object();
+
+    private volatile boolean recountRequired = true;
+
+    private long lastRecount;
+
+    DatasetSizeTracker(SiriDataType dataType, IMap<SiriObjectStorageKey, ?> map, IMap<String, Map<String, Integer>> datasetSizes,
+                       HazelcastInstance hazelcastInstance, int publishIntervalSeconds, int reconcileIntervalMinutes) {
+        this.dataType = dataType;
+        this.map = map;
+        this.datasetSizes = datasetSizes;
+        this.memberKey = dataType.name() + ":" + hazelcastInstance.getCluster().getLocalMember().getUuid();
+        this.publishIntervalSeconds = publishIntervalSeconds;
+        this.reconcileIntervalMillis = TimeUnit.MINUTES.toMillis(reconcileIntervalMinutes);
+
+        map.addLocalEntryListener(this, Predicates.alwaysTrue(), false);
+        hazelcastInstance.getPartitionService().addMigrationListener(this);
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("dataset-size-" + dataType.name().toLowerCase()).setDaemon(true).build());
+        executor.scheduleWithFixedDelay(this::update, 0, publishIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void update() {
+        try {
+            if (recountRequired || System.currentTimeMillis() - lastRecount > reconcileIntervalMillis) {
+                recount();
+            }
+            publish();
+        } catch (Exception e) {
+            //Catch everything to avoid executor being killed
+            logger.warn("Updating dataset sizes ({}) caused exception", dataType, e);
+        }
+    }
+
+    private synchronized void recount() {
+        recountRequired = false;
+        long t1 = System.currentTimeMillis();
+
+        synchronized (eventLock) {
+            eventsDuringRecount = new HashMap<>();
+        }
+
+        Set<SiriObjectStorageKey> keys;
+        ConcurrentMap<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+        try {
+            keys = map.localKeySet();
+            keys.forEach(key -> increment(counts, key.getCodespaceId()));
+        } catch (RuntimeException e) {
+            // Buffered events are lost - counts are corrected by the next recount
+            synchronized (eventLock) {
+                eventsDuringRecount = null;
+            }
+            recountRequired = true;
+            throw e;
+        }
+
+        synchronized (eventLock) {
+            if (!eventsDuringRecount.isEmpty()) {
+                // Only events not already reflected by the scanned keys are applied
+                Set<SiriObjectStorageKey> scannedKeys = new HashSet<>(keys);
+                eventsDuringRecount.forEach((key, added) -> {
+                    if (added && !scannedKeys.contains(key)) {
+                        increment(counts, key.getCodespaceId());
+                    } else if (!added && scannedKeys.contains(key)) {
+                        decrement(counts, key.getCodespaceId());
+                    }
+                });
+            }
+            eventsDuringRecount = null;
+            localCounts = counts;
+        }
+
+        lastRecount = System.currentTimeMillis();
+        logger.debug("Recounting dataset sizes ({}) took {} ms: {}", dataType, (lastRecount - t1), counts);
+    }
+
+    private void publish() {
+        // Expires if this member leaves the cluster
+        datasetSizes.set(memberKey, getLocalDatasetSize(), 3L * publishIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return Number of objects per codespace owned by this member
+     */
+    Map<String, Integer> getLocalDatasetSize() {
+        Map<String, Integer> sizeMap = new HashMap<>();
+        localCounts.forEach((datasetId, count) -> {
+            if (count.get() > 0) {
+                sizeMap.put(datasetId, count.get());
+            }
+        });
+        return sizeMap;
+    }
+
+    int getLocalDatasetSize(String datasetId) {
+        AtomicInteger count = localCounts.get(datasetId);
+        return count != null ? Math.max(count.get(), 0) : 0;
+    }
+
+    /**
+     * @return Number of objects per codespace in the cluster - summed from the counts published by all members
+     */
+    Map<String, Integer> getDatasetSize() {
+        // Counts of this member are read directly - counts of other members are published periodically
+        Map<String, Integer> sizeMap = getLocalDatasetSize();
+        String keyPrefix = dataType.name() + ":";
+        datasetSizes.forEach((key, memberSizes) -> {
+            if (key.startsWith(keyPrefix) && !key.equals(memberKey)) {
+                memberSizes.forEach((datasetId, count) -> sizeMap.merge(datasetId, count, Integer::sum));
+            }
+        });
+        return sizeMap;
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicInteger> counts, String datasetId) {
+        counts.computeIfAbsent(datasetId, d -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private static void decrement(ConcurrentMap<String, AtomicInteger> counts, String datasetId) {
+        AtomicInteger count = counts.get(datasetId);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    private void entryChanged(SiriObjectStorageKey key, boolean added) {
+        synchronized (eventLock) {
+            if (eventsDuringRecount != null) {
+                eventsDuringRecount.put(key, added);
+            } else if (added) {
+                increment(localCounts, key.getCodespaceId());
+            } else {
+                decrement(localCounts, key.getCodespaceId());
+            }
+        }
+    }
+
+    @Override
+    public void entryAdded(EntryEvent<SiriObjectStorageKey, Object> event) {
+        entryChanged(event.getKey(), true);
+    }
+
+    @Override
+    public void entryRemoved(EntryEvent<SiriObjectStorageKey, Object> event) {
+        entryChanged(event.getKey(), false);
+    }
+
+    @Override
+    public void entryEvicted(EntryEvent<SiriObjectStorageKey, Object> event) {
+        entryChanged(event.getKey(), false);
+    }
+
+    @Override
+    public void entryExpired(EntryEvent<SiriObjectStorageKey, Object> event) {
+        entryChanged(event.getKey(), false);
+    }
+
+    @Override
+    public void mapCleared(MapEvent event) {
+        synchronized (eventLock) {
+            localCounts = new ConcurrentHashMap<>();
+        }
+        recountRequired = true;
+    }
+
+    @Override
+    public void mapEvicted(MapEvent event) {
+        recountRequired = true;
+    }
+
+    @Override
+    public void migrationStarted(MigrationState state) {
+    }
+
+    @Override
+    public void migrationFinished(MigrationState state) {
+        // Owned partitions have changed
+        recountRequired = true;
+    }
+
+    @Override
+    public void replicaMigrationCompleted(ReplicaMigrationEvent event) {
+    }
+
+    @Override
+    public void replicaMigrationFailed(ReplicaMigrationEvent event) {
+    }
+}
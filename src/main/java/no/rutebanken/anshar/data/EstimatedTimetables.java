@@ -44,6 +44,7 @@ import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -53,9 +54,7 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 import static no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter.getOriginalId;
 
@@ -68,7 +67,7 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
     @Autowired
     @Qualifier("getEtChecksumMap")
-    private ReplicatedMap<SiriObjectStorageKey,String> checksumCache;
+    private ReplicatedMap<SiriObjectStorageKey,Long> checksumCache;
 
     @Autowired
     @Qualifier("getIdForPatternChangesMap")
@@ -79,8 +78,16 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
     private ReplicatedMap<SiriObjectStorageKey, ZonedDateTime> idStartTimeMap;
 
     @Autowired
-    @Qualifier("getEstimatedTimetableChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> changesMap;
+    @Qualifier("getEstimatedTimetableChangeCursorMap")
+    private IMap<String, Long> changeCursors;
+
+    @Autowired
+    @Qualifier("getEstimatedTimetableRecordedAtTimeMap")
+    private IMap<SiriObjectStorageKey, Long> recordedAtTimes;
+
+    @Autowired
+    @Qualifier("getEstimatedTimetableChangeLogMap")
+    private IMap<SiriObjectStorageKey, Long> changeLog;
 
     @Autowired
     @Qualifier("getLastEtUpdateRequest")
@@ -100,7 +107,8 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
     @PostConstruct
     private void initializeUpdateCommitter() {
-        super.initBufferCommitter(hazelcastService, lastUpdateRequested, changesMap, configuration.getChangeBufferCommitFrequency());
+        super.initBufferCommitter(hazelcastService, SiriDataType.ESTIMATED_TIMETABLE, lastUpdateRequested, changeCursors, changeLog, configuration.getChangeBufferCommitFrequency());
+        super.initDatasetSizeTracker(hazelcastService, timetableDeliveries, configuration);
     }
 
     /**
@@ -127,40 +135,7 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
     }
 
     public int getSize() {
-        return timetableDeliveries.keySet().size();
-    }
-
-
-    public Map<String, Integer> getDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        timetableDeliveries.keySet().forEach(key -> {
-                        String datasetId = key.getCodespaceId();
-
-                        Integer count = sizeMap.getOrDefault(datasetId, 0);
-                        sizeMap.put(datasetId, count+1);
-                    });
-        logger.debug("Calculating data-distribution (ET) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
-    }
-
-    public Map<String, Integer> getLocalDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        timetableDeliveries.localKeySet().forEach(key -> {
-                        String datasetId = key.getCodespaceId();
-
-                        Integer count = sizeMap.getOrDefault(datasetId, 0);
-                        sizeMap.put(datasetId, count+1);
-                    });
-        logger.debug("Calculating local data-distribution (ET) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
-    }
-
-    public Integer getDatasetSize(String datasetId) {
-        return Math.toIntExact(timetableDeliveries.keySet().stream()
-                .filter(key -> datasetId.equals(key.getCodespaceId()))
-                .count());
+        return timetableDeliveries.size();
     }
 
     @Override
@@ -172,21 +147,23 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
         for (SiriObjectStorageKey id : idsToRemove) {
             timetableDeliveries.delete(id);
+            recordedAtTimes.delete(id);
 
             checksumCache.remove(id);
             idStartTimeMap.remove(id);
             idForPatternChanges.remove(id);
+            removeFromChangeLog(id);
         }
     }
 
     public void clearAll() {
         logger.error("Deleting all data - should only be used in test!!!");
         timetableDeliveries.clear();
+        recordedAtTimes.clear();
         checksumCache.clear();
         idStartTimeMap.clear();
         idForPatternChanges.clear();
-        changesMap.clear();
-        lastUpdateRequested.clear();
+        clearChangeTracking();
     }
 
     public Siri createServiceDelivery(final String lineRef) {
@@ -227,66 +204,83 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
             isAdHocRequest = true;
         }
 
-        // Get all relevant ids
-        Set<SiriObjectStorageKey> allIds = new HashSet<>();
-        Set<SiriObjectStorageKey> idSet = changesMap.getOrDefault(requestorId, allIds);
-
-        if (idSet == allIds) {
-            idSet.addAll(timetableDeliveries
-                    .keySet(entry -> datasetId == null || ((SiriObjectStorageKey) entry.getKey()).getCodespaceId().equals(datasetId))
-            );
+        Long cursor = isAdHocRequest ? null : getChangeCursor(requestorId);
+        if (cursor == null) {
+            cursor = initChangeCursor(requestorId);
         }
 
-        //Filter by datasetId
-        Set<SiriObjectStorageKey> requestedIds = filterIdsByDataset(idSet, excludedDatasetIds, datasetId);
-
         final ZonedDateTime previewExpiry = ZonedDateTime.now().plusSeconds(previewInterval / 1000);
 
         Set<SiriObjectStorageKey> startTimes = new HashSet<>();
 
+        // Journeys that have entered the previewInterval since previous request - these have already been skipped
+        Set<SiriObjectStorageKey> enteredPreviewInterval = new HashSet<>();
+
+        // Set when not all journeys that have entered the previewInterval fit in this delivery
+        boolean previewRemaining = false;
+        Instant previewRequested = Instant.now();
+
         if (previewInterval >= 0) {
             long t1 = System.currentTimeMillis();
-            startTimes.addAll(idStartTimeMap
-                        .entrySet().stream()
-                        .filter(entry -> entry.getValue().isBefore(previewExpiry))
-                        .map(Map.Entry::getKey)
-                        .collect(Collectors.toSet()));
 
-            logger.info("Found {} ids starting within {} ms in {} ms", startTimes.size(), previewInterval, (System.currentTimeMillis()-t1));
-        }
+            Instant lastRequest = isAdHocRequest ? null : getLastUpdateRequested(requestorId);
+            final ZonedDateTime previousPreviewExpiry = lastRequest != null ?
+                    lastRequest.atZone(previewExpiry.getZone()).plusSeconds(previewInterval / 1000) : null;
+
+            idStartTimeMap.entrySet().forEach(entry -> {
+                if (entry.getValue().isBefore(previewExpiry)) {
+                    startTimes.add(entry.getKey());
+                    if (previousPreviewExpiry != null && !entry.getValue().isBefore(previousPreviewExpiry)) {
+                        enteredPreviewInterval.add(entry.getKey());
+                    }
+                }
+            });
+
+            if (!enteredPreviewInterval.isEmpty()) {
+                final long skippedCursor = cursor;
+                final Set<SiriObjectStorageKey> datasetIds = filterIdsByDataset(enteredPreviewInterval, excludedDatasetIds, datasetId);
+                enteredPreviewInterval.clear();
+                getChangeSequences(datasetIds).forEach((id, sequence) -> {
+                    // Journeys with pattern-changes have already been returned
+                    if (sequence <= skippedCursor && !idForPatternChanges.containsKey(id)) {
+                        enteredPreviewInterval.add(id);
+                    }
+                });
+            }
 
-        final AtomicInteger previewIntervalInclusionCounter = new AtomicInteger();
-        final AtomicInteger previewIntervalExclusionCounter = new AtomicInteger();
-        Predicate<SiriObjectStorageKey> previewIntervalFilter =  id -> {
+            if (enteredPreviewInterval.size() > maxSize) {
+                // Return the earliest journeys, the rest are returned in the following requests
+                List<SiriObjectStorageKey> byStartTime = new ArrayList<>(enteredPreviewInterval);
+                byStartTime.sort(Comparator.comparing(id -> idStartTimeMap.getOrDefault(id, previewExpiry)));
 
-            if (idForPatternChanges.containsKey(id) || startTimes.contains(id)) {
-                // Is valid in requested previewInterval
-                previewIntervalInclusionCounter.incrementAndGet();
-                return true;
+                enteredPreviewInterval.retainAll(byStartTime.subList(0, maxSize));
+                previewRemaining = true;
+
+                // Next request continues from the first journey not returned
+                ZonedDateTime nextPreviewStart = idStartTimeMap.getOrDefault(byStartTime.get(maxSize), previewExpiry);
+                previewRequested = nextPreviewStart.minusSeconds(previewInterval / 1000).toInstant();
             }
 
-            previewIntervalExclusionCounter.incrementAndGet();
-            return false;
-        };
+            logger.info("Found {} ids starting within {} ms, {} entered since previous request, in {} ms", startTimes.size(),
+                    previewInterval, enteredPreviewInterval.size(), (System.currentTimeMillis()-t1));
+        }
 
-        long t1 = System.currentTimeMillis();
-        Set<SiriObjectStorageKey> sizeLimitedIds = requestedIds
-                .stream()
-                .filter(id -> previewInterval < 0 || previewIntervalFilter.test(id))
-                .limit(maxSize)
-                .collect(Collectors.toSet());
+        Predicate<SiriObjectStorageKey> previewIntervalFilter =  id ->
+            // Is valid in requested previewInterval
+            previewInterval < 0 || idForPatternChanges.containsKey(id) || startTimes.contains(id);
 
-        long t2 = System.currentTimeMillis();
-        //Remove collected objects
-        sizeLimitedIds.forEach(idSet::remove);
+        long t1 = System.currentTimeMillis();
+        ChangeLogPage changes = getChanges(cursor, createDatasetPredicate(datasetId, excludedDatasetIds), previewIntervalFilter,
+                Math.max(0, maxSize - enteredPreviewInterval.size()));
 
-        long t3 = System.currentTimeMillis();
+        Set<SiriObjectStorageKey> sizeLimitedIds = new HashSet<>(enteredPreviewInterval);
+        sizeLimitedIds.addAll(changes.keys);
 
-        logger.info("Filter by startTime: {}, limiting size: {} ms", (t2 - t1), (t3 - t2));
+        logger.info("Reading changes: {} ms", (System.currentTimeMillis()-t1));
 
         t1 = System.currentTimeMillis();
 
-        Boolean isMoreData = (previewIntervalExclusionCounter.get() + sizeLimitedIds.size()) < requestedIds.size();
+        Boolean isMoreData = changes.moreData || previewRemaining;
 
         Collection<EstimatedVehicleJourney> values = timetableDeliveries.getAll(sizeLimitedIds).values();
         logger.info("Fetching data: {} ms", (System.currentTimeMillis()-t1));
@@ -305,15 +299,10 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
             msgRef.setValue(requestorId);
             siri.getServiceDelivery().setRequestMessageRef(msgRef);
 
-            if (idSet.size() > timetableDeliveries.size()) {
-                //Remove outdated ids
-                idSet.removeIf(id -> !timetableDeliveries.containsKey(id));
-            }
-
             //Update change-tracker
-            updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, idSet, trackingPeriodMinutes, TimeUnit.MINUTES);
+            updateChangeTracker(requestorId, changes.cursor, previewRequested, trackingPeriodMinutes, TimeUnit.MINUTES);
 
-            logger.info("Returning {}, {} left for requestorRef {}", sizeLimitedIds.size(), idSet.size(), requestorId);
+            logger.info("Returning {}, moreData: {} for requestorRef {}", sizeLimitedIds.size(), isMoreData, requestorId);
         }
 
         return siri;
@@ -380,39 +369,16 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
     public Collection<EstimatedVehicleJourney> getAllUpdates(String requestorId, String datasetId) {
         if (requestorId != null) {
 
-            Set<SiriObjectStorageKey> idSet = changesMap.get(requestorId);
-            lastUpdateRequested.put(requestorId, Instant.now(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+            Set<SiriObjectStorageKey> idSet = getAllChanges(requestorId, datasetId, configuration.getTrackingPeriodMinutes());
 
             if (idSet != null) {
-                Set<SiriObjectStorageKey> datasetFilteredIdSet = new HashSet<>();
-
-                if (datasetId != null) {
-                    idSet.stream().filter(key -> key.getCodespaceId().equals(datasetId)).forEach(datasetFilteredIdSet::add);
-                } else {
-                    datasetFilteredIdSet.addAll(idSet);
-                }
-
-                Collection<EstimatedVehicleJourney> changes = timetableDeliveries.getAll(datasetFilteredIdSet).values();
-
-                Set<SiriObjectStorageKey> existingSet = changesMap.get(requestorId);
-                if (existingSet == null) {
-                    existingSet = new HashSet<>();
-                }
-                //Remove returned ids
-                existingSet.removeAll(idSet);
-
-                //Remove outdated ids
-                existingSet.removeIf(id -> !timetableDeliveries.containsKey(id));
-
-                updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, existingSet, configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
-
+                Collection<EstimatedVehicleJourney> changes = timetableDeliveries.getAll(idSet).values();
 
                 logger.info("Returning {} changes to requestorRef {}", changes.size(), requestorId);
                 return changes;
             } else {
 
                 logger.info("Returning all to requestorRef {}", requestorId);
-                updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
             }
         }
 
@@ -513,33 +479,37 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
     public Collection<EstimatedVehicleJourney> addAll(String datasetId, List<EstimatedVehicleJourney> etList) {
 
-        Set<SiriObjectStorageKey> changes = new HashSet<>();
+        Map<SiriObjectStorageKey, Long> changes = new HashMap<>();
         Set<EstimatedVehicleJourney> addedData = new HashSet<>();
 
+        List<SiriObjectStorageKey> keys = new ArrayList<>(etList.size());
+        for (EstimatedVehicleJourney et : etList) {
+            keys.add(createKey(datasetId, et));
+        }
+
+        // RecordedAtTime of all existing objects in one round-trip per partition
+        Map<SiriObjectStorageKey, Long> existingRecordedAtTimes = keys.isEmpty() ?
+                new HashMap<>() :
+                new HashMap<>(recordedAtTimes.getAll(new HashSet<>(keys)));
+
+        List<ConditionalWrite<EstimatedVehicleJourney>> writes = new ArrayList<>();
+
         Counter outdatedCounter = new CounterImpl(0);
         Counter notUpdatedCounter = new CounterImpl(0);
         List<String> unchangedIds = new ArrayList<>();
-        etList.forEach(et -> {
-            SiriObjectStorageKey key = createKey(datasetId, et);
-
-            String currentChecksum = null;
-            ZonedDateTime recordedAtTime = et.getRecordedAtTime();
-            try {
-                // Calculate checksum without "RecordedTime" - thus ignoring "fake" updates
-                et.setRecordedAtTime(null);
-                currentChecksum = getChecksum(et);
-            } catch (Exception e) {
-                //Ignore - data will be updated
-            } finally {
-                //Set original RecordedTime back
-                et.setRecordedAtTime(recordedAtTime);
-            }
+        for (int i = 0; i < etList.size(); i++) {
+            EstimatedVehicleJourney et = etList.get(i);
+            SiriObjectStorageKey key = keys.get(i);
 
-            String existingChecksum = checksumCache.get(key);
+            // "RecordedAtTime" is ignored by the checksum - thus ignoring "fake" updates
+            long currentChecksum = getChecksum(et);
+
+            Long existingChecksum = checksumCache.get(key);
+            Long existingRecordedAtTime = existingRecordedAtTimes.get(key);
             boolean updated;
-            if (existingChecksum != null && timetableDeliveries.containsKey(key)) {
+            if (existingChecksum != null && existingRecordedAtTime != null) {
                 //Exists - compare values
-                updated =  !(currentChecksum.equals(existingChecksum));
+                updated = currentChecksum != existingChecksum;
                 if (updated && et.isMonitored() == null) {
                     et.setMonitored(true);
                 }
@@ -550,15 +520,12 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
             boolean keep = false;
 
-            EstimatedVehicleJourney existing = null;
             if (updated) {
 
-                existing = timetableDeliveries.get(key);
-
-                if (existing != null &&
-                        (et.getRecordedAtTime() != null && existing.getRecordedAtTime() != null)) {
+                if (existingRecordedAtTime != null && existingRecordedAtTime != RecordedAtTimeUpsert.NO_RECORDED_AT_TIME &&
+                        et.getRecordedAtTime() != null) {
 
-                    if (et.getRecordedAtTime().isAfter(existing.getRecordedAtTime()) || et.getRecordedAtTime().equals(existing.getRecordedAtTime()) ) {
+                    if (et.getRecordedAtTime().toInstant().toEpochMilli() >= existingRecordedAtTime) {
                         keep = true;
                     } else {
                         logger.info("Newer data has already been processed - ignoring ET-element");
@@ -582,26 +549,45 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
                 long expiration = getExpiration(et);
                 if (expiration > 0) {
 
-                    if (hasPatternChanges(et)) {
-                        // Keep track of all valid ET with pattern-changes
-                        idForPatternChanges.put(key, key.getKey(), expiration, TimeUnit.MILLISECONDS);
-                        if (et.isMonitored() == null) {
-                            et.setMonitored(true);
-                        }
+                    if (hasPatternChanges(et) && et.isMonitored() == null) {
+                        et.setMonitored(true);
                     }
 
-                    changes.add(key);
-                    addedData.add(et);
-                    timetableDeliveries.set(key, et, expiration, TimeUnit.MILLISECONDS);
-                    checksumCache.put(key, currentChecksum, expiration, TimeUnit.MILLISECONDS);
+                    // Newer data may still have been stored by another member - final check is done on the key owner
+                    writes.add(submitIfNewer(recordedAtTimes, timetableDeliveries, key, et, expiration, currentChecksum, true, true));
 
-                    idStartTimeMap.put(key, getFirstAimedTime(et), expiration, TimeUnit.MILLISECONDS);
+                    // Later elements with the same key in this delivery are compared with this one
+                    existingRecordedAtTimes.put(key, et.getRecordedAtTime() != null ?
+                            et.getRecordedAtTime().toInstant().toEpochMilli() : RecordedAtTimeUpsert.NO_RECORDED_AT_TIME);
                 } else {
                     outdatedCounter.increment();
                 }
 
             }
-        });
+        }
+
+        awaitWrites(writes);
+
+        for (ConditionalWrite<EstimatedVehicleJourney> write : writes) {
+            if (write.isStored()) {
+                SiriObjectStorageKey key = write.key;
+                EstimatedVehicleJourney et = write.element;
+                long expiration = write.expiration;
+
+                if (hasPatternChanges(et)) {
+                    // Keep track of all valid ET with pattern-changes
+                    idForPatternChanges.put(key, key.getKey(), expiration, TimeUnit.MILLISECONDS);
+                }
+
+                changes.put(key, expiration);
+                addedData.add(et);
+                checksumCache.put(key, write.checksum, expiration, TimeUnit.MILLISECONDS);
+
+                idStartTimeMap.put(key, getFirstAimedTime(et), expiration, TimeUnit.MILLISECONDS);
+            } else {
+                logger.info("Newer data has already been processed - ignoring ET-element");
+            }
+        }
 
         logger.info("Updated {} (of {}), {} outdated, {} without changes", changes.size(), etList.size(), outdatedCounter.getValue(), notUpdatedCounter.getValue());
 
@@ -626,7 +612,7 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
         return timetableDeliveries.get(createKey(datasetId, delivery));
     }
 
-    private static SiriObjectStorageKey createKey(String datasetId, EstimatedVehicleJourney element) {
+    public static SiriObjectStorageKey createKey(String datasetId, EstimatedVehicleJourney element) {
 
         StringBuilder key = new StringBuilder();
         if (element.getFramedVehicleJourneyRef() != null) {
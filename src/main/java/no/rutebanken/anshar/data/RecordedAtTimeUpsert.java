@@ -0,0 +1,180 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.VehicleActivityStructure;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores an object unless newer data has already been stored for the same key.
+ *
+ * Executed on the map holding the objects, so the comparison and the write are done atomically on the partition
+ * owner. Concurrent updates of the same key from different members are resolved by RecordedAtTime regardless of
+ * arrival order. Only the primary compares - the backup processor copies the stored object, and none is sent when
+ * the update is rejected.
+ *
+ * The existing object is only read here for updates that are newer than the RecordedAtTime prefetched by the caller,
+ * stale updates are normally discarded before being submitted.
+ *
+ * If either object has no RecordedAtTime, the update is stored only if existing objects without RecordedAtTime may be
+ * replaced.
+ *
+ * Returns true if the object was stored.
+ */
+public class RecordedAtTimeUpsert<V> implements EntryProcessor<SiriObjectStorageKey, V, Boolean>, DataSerializable {
+
+    static final long NO_RECORDED_AT_TIME = Long.MIN_VALUE;
+
+    private V value;
+
+    private long recordedAtTime;
+
+    private long expirationMillis;
+
+    private boolean replaceEqual;
+
+    private boolean replaceUnknown;
+
+    private transient boolean stored;
+
+    public RecordedAtTimeUpsert() {
+        // Required for deserialization
+    }
+
+    /**
+     * @param value object to store
+     * @param expirationMillis time to live for the stored object
+     * @param replaceEqual whether objects with the same RecordedAtTime are replaced
+     * @param replaceUnknown whether existing objects are replaced when RecordedAtTime is missing on either object
+     */
+    RecordedAtTimeUpsert(V value, long expirationMillis, boolean replaceEqual, boolean replaceUnknown) {
+        this.value = value;
+        this.recordedAtTime = getRecordedAtTime(value);
+        this.expirationMillis = expirationMillis;
+        this.replaceEqual = replaceEqual;
+        this.replaceUnknown = replaceUnknown;
+    }
+
+    @Override
+    public Boolean process(Map.Entry<SiriObjectStorageKey, V> entry) {
+        V existing = entry.getValue();
+        if (existing != null && !isNewer(recordedAtTime, getRecordedAtTime(existing))) {
+            return false;
+        }
+
+        ((ExtendedMapEntry<SiriObjectStorageKey, V>) entry).setValue(value, expirationMillis, TimeUnit.MILLISECONDS);
+        stored = true;
+        return true;
+    }
+
+    /**
+     * Called after process - backups store the object accepted by the primary without comparing
+     */
+    @Override
+    public EntryProcessor<SiriObjectStorageKey, V, Boolean> getBackupProcessor() {
+        return stored ? new UpsertBackup<>(value, expirationMillis) : null;
+    }
+
+    private boolean isNewer(long recordedAtTime, long existingRecordedAtTime) {
+        if (recordedAtTime == NO_RECORDED_AT_TIME || existingRecordedAtTime == NO_RECORDED_AT_TIME) {
+            return replaceUnknown;
+        }
+        return replaceEqual ? recordedAtTime >= existingRecordedAtTime : recordedAtTime > existingRecordedAtTime;
+    }
+
+    /**
+     * @return RecordedAtTime of ET or VM as epoch millis, or NO_RECORDED_AT_TIME
+     */
+    static long getRecordedAtTime(Object value) {
+        ZonedDateTime recordedAtTime = null;
+        if (value instanceof EstimatedVehicleJourney) {
+            recordedAtTime = ((EstimatedVehicleJourney) value).getRecordedAtTime();
+        } else if (value instanceof VehicleActivityStructure) {
+            recordedAtTime = ((VehicleActivityStructure) value).getRecordedAtTime();
+        }
+        return recordedAtTime != null ? recordedAtTime.toInstant().toEpochMilli() : NO_RECORDED_AT_TIME;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeObject(value);
+        out.writeLong(recordedAtTime);
+        out.writeLong(expirationMillis);
+        out.writeBoolean(replaceEqual);
+        out.writeBoolean(replaceUnknown);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        value = in.readObject();
+        recordedAtTime = in.readLong();
+        expirationMillis = in.readLong();
+        replaceEqual = in.readBoolean();
+        replaceUnknown = in.readBoolean();
+    }
+
+    /**
+     * Stores the object accepted by the primary
+     */
+    public static class UpsertBackup<V> implements EntryProcessor<SiriObjectStorageKey, V, Boolean>, DataSerializable {
+
+        private V value;
+
+        private long expirationMillis;
+
+        public UpsertBackup() {
+            // Required for deserialization
+        }
+
+        UpsertBackup(V value, long expirationMillis) {
+            this.value = value;
+            this.expirationMillis = expirationMillis;
+        }
+
+        @Override
+        public Boolean process(Map.Entry<SiriObjectStorageKey, V> entry) {
+            ((ExtendedMapEntry<SiriObjectStorageKey, V>) entry).setValue(value, expirationMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        @Override
+        public EntryProcessor<SiriObjectStorageKey, V, Boolean> getBackupProcessor() {
+            return null;
+        }
+
+        @Override
+        public void writeData(ObjectDataOutput out) throws IOException {
+            out.writeObject(value);
+            out.writeLong(expirationMillis);
+        }
+
+        @Override
+        public void readData(ObjectDataInput in) throws IOException {
+            value = in.readObject();
+            expirationMillis = in.readLong();
+        }
+    }
+}
@@ -5,8 +5,17 @@ import com.google.common.base.Objects;
 import java.io.Serializable;
 import java.util.StringJoiner;
 
+import static no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer.SEPARATOR;
+
 public class SiriObjectStorageKey implements Serializable {
 
+    /*
+     * Key-attributes used for indexed lookups in the distributed maps
+     */
+    public static final String CODESPACE_ID_ATTRIBUTE = "__key.codespaceId";
+    public static final String ORIGINAL_LINE_REF_ATTRIBUTE = "__key.originalLineRef";
+    public static final String MAPPED_LINE_REF_ATTRIBUTE = "__key.mappedLineRef";
+
     private final String codespaceId;
     private final String lineRef;
 
@@ -18,14 +27,36 @@ public class SiriObjectStorageKey implements Serializable {
         this.key = key;
     }
 
-    String getCodespaceId() {
+    public String getCodespaceId() {
         return codespaceId;
     }
 
-    String getLineRef() {
+    public String getLineRef() {
         return lineRef;
     }
 
+    /**
+     * @return Lower-cased lineRef as received, i.e. the part before SEPARATOR when the id has been mapped
+     */
+    public String getOriginalLineRef() {
+        if (lineRef == null) {
+            return null;
+        }
+        final int separatorIndex = lineRef.indexOf(SEPARATOR);
+        return (separatorIndex < 0 ? lineRef : lineRef.substring(0, separatorIndex)).toLowerCase();
+    }
+
+    /**
+     * @return Lower-cased mapped lineRef, i.e. the part after SEPARATOR when the id has been mapped
+     */
+    public String getMappedLineRef() {
+        if (lineRef == null) {
+            return null;
+        }
+        final int separatorIndex = lineRef.lastIndexOf(SEPARATOR);
+        return lineRef.substring(separatorIndex + SEPARATOR.length()).toLowerCase();
+    }
+
     String getKey() {
         return key;
     }
@@ -16,42 +16,45 @@
 package no.rutebanken.anshar.data;
 
 import com.hazelcast.map.IMap;
+import com.hazelcast.aggregation.Aggregators;
 import com.hazelcast.query.Predicate;
+import com.hazelcast.query.Predicates;
+import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
 import no.rutebanken.anshar.metrics.PrometheusMetricsService;
 import no.rutebanken.anshar.routes.siri.transformer.ApplicationContextHolder;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
-
-import javax.xml.bind.DatatypeConverter;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import static no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer.SEPARATOR;
+import static no.rutebanken.anshar.data.SiriObjectStorageKey.CODESPACE_ID_ATTRIBUTE;
+import static no.rutebanken.anshar.data.SiriObjectStorageKey.MAPPED_LINE_REF_ATTRIBUTE;
+import static no.rutebanken.anshar.data.SiriObjectStorageKey.ORIGINAL_LINE_REF_ATTRIBUTE;
 
 abstract class SiriRepository<T> {
 
     private IMap<String, Instant> lastUpdateRequested;
-    private IMap<String, Set<SiriObjectStorageKey>> changesMap;
+    private IMap<String, Long> changeCursors;
+    private IMap<SiriObjectStorageKey, Long> changeLog;
+    private SiriDataType dataType;
 
     abstract Collection<T> getAll();
 
@@ -71,13 +74,32 @@ abstract class SiriRepository<T> {
 
     private PrometheusMetricsService metrics;
 
-    final Set<SiriObjectStorageKey> dirtyChanges = Collections.synchronizedSet(new HashSet<>());
+    @Autowired
+    private ChangeDetectionHasher changeDetectionHasher;
+
+    @Autowired
+    @Qualifier("getChangeLogSequenceMap")
+    private IMap<String, Long> changeLogSequences;
+
+    @Autowired
+    @Qualifier("getDatasetSizeMap")
+    private IMap<String, Map<String, Integer>> datasetSizes;
+
+    private DatasetSizeTracker datasetSizeTracker;
+
+    /**
+     * Local change-buffer - key and the timestamp (epoch millis) when the change expires
+     */
+    final Map<SiriObjectStorageKey, Long> dirtyChanges = new ConcurrentHashMap<>();
 
     private ScheduledExecutorService singleThreadScheduledExecutor;
 
-    void initBufferCommitter(ExtendedHazelcastService hazelcastService, IMap<String, Instant> lastUpdateRequested, IMap<String, Set<SiriObjectStorageKey>> changesMap, int commitFrequency) {
+    void initBufferCommitter(ExtendedHazelcastService hazelcastService, SiriDataType dataType, IMap<String, Instant> lastUpdateRequested,
+                             IMap<String, Long> changeCursors, IMap<SiriObjectStorageKey, Long> changeLog, int commitFrequency) {
+        this.dataType = dataType;
         this.lastUpdateRequested = lastUpdateRequested;
-        this.changesMap = changesMap;
+        this.changeCursors = changeCursors;
+        this.changeLog = changeLog;
 
         if (singleThreadScheduledExecutor == null) {
             singleThreadScheduledExecutor = Executors.newSingleThreadScheduledExecutor();
@@ -94,30 +116,52 @@ abstract class SiriRepository<T> {
         });
     }
 
+    void initDatasetSizeTracker(ExtendedHazelcastService hazelcastService, IMap<SiriObjectStorageKey, T> collection,
+                                AnsharConfiguration configuration) {
+        datasetSizeTracker = new DatasetSizeTracker(dataType, collection, datasetSizes, hazelcastService.getHazelcastInstance(),
+                configuration.getDatasetSizePublishInterval(), configuration.getDatasetSizeReconcileInterval());
+    }
+
+    /**
+     * @return Number of objects per codespace in the cluster
+     */
+    public Map<String, Integer> getDatasetSize() {
+        return datasetSizeTracker.getDatasetSize();
+    }
+
+    /**
+     * @return Number of objects per codespace owned by this member
+     */
+    public Map<String, Integer> getLocalDatasetSize() {
+        return datasetSizeTracker.getLocalDatasetSize();
+    }
+
+    public int getLocalDatasetSize(String datasetId) {
+        return datasetSizeTracker.getLocalDatasetSize(datasetId);
+    }
+
+    public Integer getDatasetSize(String datasetId) {
+        return getDatasetSize().getOrDefault(datasetId, 0);
+    }
+
     /**
-     * Commits local change-buffer to cluster
+     * Commits local change-buffer to cluster by appending all changes to the change-log
      */
-    void commitChanges() {
+    synchronized void commitChanges() {
 
         try {
             if (!dirtyChanges.isEmpty()) {
 
                 long t1 = System.currentTimeMillis();
 
-                final Set<SiriObjectStorageKey> bufferedChanges = new HashSet<>(dirtyChanges);
-                dirtyChanges.clear();
+                final Map<SiriObjectStorageKey, Long> bufferedChanges = new HashMap<>(dirtyChanges);
+                // Only remove the copied values - changes added in the meantime are kept for the next commit
+                bufferedChanges.forEach(dirtyChanges::remove);
 
-                changesMap.keySet().forEach(key -> {
-                    if (!lastUpdateRequested.containsKey(key)) {
-                        changesMap.delete(key);
-                    }
-                });
+                long sequence = appendToChangeLog(bufferedChanges);
 
-                if (!changesMap.isEmpty()) {
-                    changesMap.executeOnEntries(new AppendChangesToSetEntryProcessor(bufferedChanges));
-                    logger.info("Updating changes for {} requestors ({}), committed {} changes, update took {} ms",
-                            changesMap.size(), this.getClass().getSimpleName(), bufferedChanges.size(), (System.currentTimeMillis() - t1));
-                }
+                logger.info("Committed {} changes ({}), sequence is now {}, commit took {} ms",
+                        bufferedChanges.size(), this.getClass().getSimpleName(), sequence, (System.currentTimeMillis() - t1));
             } else {
                 logger.debug("No changes - ignoring commit ({})", this.getClass().getSimpleName());
             }
@@ -127,14 +171,115 @@ abstract class SiriRepository<T> {
         }
     }
 
+    /**
+     * Assigns the next sequence-numbers to the changes, and writes them to the change-log. The sequence is locked
+     * cluster-wide while writing, and is not published until all changes are written - readers will never see
+     * gaps below the published sequence.
+     *
+     * @param changes
+     * @return the new published sequence
+     */
+    private long appendToChangeLog(Map<SiriObjectStorageKey, Long> changes) {
+        final String sequenceKey = dataType.name();
+
+        changeLogSequences.lock(sequenceKey);
+        try {
+            long sequence = changeLogSequences.getOrDefault(sequenceKey, 0L);
+            try {
+                final long now = System.currentTimeMillis();
+
+                List<CompletableFuture<Void>> pendingWrites = new ArrayList<>();
+                for (Map.Entry<SiriObjectStorageKey, Long> change : changes.entrySet()) {
+                    long ttl = change.getValue() - now;
+                    if (ttl > 0) {
+                        pendingWrites.add(changeLog.setAsync(change.getKey(), ++sequence, ttl, TimeUnit.MILLISECONDS).toCompletableFuture());
+                    }
+                }
+                CompletableFuture.allOf(pendingWrites.toArray(new CompletableFuture[0])).join();
+            } finally {
+                // Always publish to avoid reusing sequence-numbers that may already have been written
+                changeLogSequences.set(sequenceKey, sequence);
+            }
+            return sequence;
+        } finally {
+            changeLogSequences.unlock(sequenceKey);
+        }
+    }
+
+    /**
+     * @return the latest sequence-number that has been completely written to the change-log
+     */
+    long getCommittedSequence() {
+        return changeLogSequences.getOrDefault(dataType.name(), 0L);
+    }
+
+    /**
+     * Stores element on the partition owner unless newer data has already been stored for the key. When stored,
+     * RecordedAtTime is copied to recordedAtTimes - that map is only used to discard stale updates before they are
+     * submitted, the final comparison is done against the stored element. The write is pipelined, and the result must
+     * be awaited with awaitWrites
+     */
+    ConditionalWrite<T> submitIfNewer(IMap<SiriObjectStorageKey, Long> recordedAtTimes, IMap<SiriObjectStorageKey, T> map,
+                                      SiriObjectStorageKey key, T element, long expiration, long checksum,
+                                      boolean replaceEqual, boolean replaceUnknown) {
+        long recordedAtTime = RecordedAtTimeUpsert.getRecordedAtTime(element);
+        CompletableFuture<Boolean> stored = map.submitToKey(key,
+                new RecordedAtTimeUpsert<>(element, expiration, replaceEqual, replaceUnknown))
+                .toCompletableFuture()
+                .thenCompose(isStored -> isStored ?
+                        recordedAtTimes.setAsync(key, recordedAtTime, expiration, TimeUnit.MILLISECONDS)
+                                .toCompletableFuture().thenApply(ignored -> true) :
+                        CompletableFuture.completedFuture(false));
+        return new ConditionalWrite<>(key, element, expiration, checksum, stored);
+    }
+
+    /**
+     * Waits for pipelined conditional writes to complete, so that written objects are visible when returning
+     * @param writes pending writes
+     */
+    void awaitWrites(List<ConditionalWrite<T>> writes) {
+        if (!writes.isEmpty()) {
+            CompletableFuture.allOf(writes.stream()
+                    .map(write -> write.stored)
+                    .toArray(CompletableFuture[]::new))
+                    .join();
+        }
+    }
+
+    /**
+     * Pending conditional write, and the values needed to update the related caches if the element was stored
+     */
+    static final class ConditionalWrite<T> {
+        final SiriObjectStorageKey key;
+        final T element;
+        final long expiration;
+        final long checksum;
+        private final CompletableFuture<Boolean> stored;
+
+        private ConditionalWrite(SiriObjectStorageKey key, T element, long expiration, long checksum, CompletableFuture<Boolean> stored) {
+            this.key = key;
+            this.element = element;
+            this.expiration = expiration;
+            this.checksum = checksum;
+            this.stored = stored;
+        }
+
+        /**
+         * @return true if element was stored, false if newer data had already been stored
+         */
+        boolean isStored() {
+            return stored.join();
+        }
+    }
 
     /**
      * Adds ids to local change-buffer
-     * @param changes
+     * @param changes ids with expiration in milliseconds
      */
-    void markIdsAsUpdated(Set<SiriObjectStorageKey> changes) {
+    void markIdsAsUpdated(Map<SiriObjectStorageKey, Long> changes) {
         if (!changes.isEmpty()) {
-            dirtyChanges.addAll(changes);
+            final long now = System.currentTimeMillis();
+            changes.forEach((key, expiration) -> dirtyChanges.put(key, now + expiration));
             logger.info("Added {} updates to {} dirty-buffer, now has {} pending updates", changes.size(), this.getClass().getSimpleName(), dirtyChanges.size());
         }
     }
@@ -146,29 +291,165 @@ abstract class SiriRepository<T> {
         metrics.registerIncomingData(dataType, datasetId, totalSize, updatedSize, expiredSize, ignoredSize);
     }
 
-    void updateChangeTrackers(IMap<String, Instant> lastUpdateRequested, IMap<String, Set<SiriObjectStorageKey>> changesMap,
-                              String key, Set<SiriObjectStorageKey> changes, int trackingPeriodMinutes, TimeUnit timeUnit) {
-        final String breadcrumbId = MDC.get("camel.breadcrumbId");
+    /**
+     * @param requestorId
+     * @return the position in the change-log for the requestor, null if requestor is new or has expired
+     */
+    Long getChangeCursor(String requestorId) {
+        return changeCursors.get(requestorId);
+    }
 
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        executorService.execute(() -> {
-            try {
-                MDC.put("camel.breadcrumbId", breadcrumbId);
+    /**
+     * Initializes the change-cursor for a new requestor. The local change-buffer is flushed first, so that all data
+     * stored on this node is returned - the cluster-wide lock is only taken if there are buffered changes.
+     * @param requestorId
+     * @return the initial cursor - 0 means that all changes up to the committed sequence will be returned
+     */
+    long initChangeCursor(String requestorId) {
+        commitChanges();
+        logger.info("Initializing change-tracker for requestor {} at committed sequence {} ({})", requestorId,
+                getCommittedSequence(), this.getClass().getSimpleName());
+        return 0;
+    }
 
-                long t1 = System.currentTimeMillis();
+    /**
+     * @param requestorId
+     * @return timestamp of previous request, null if requestor is new or has expired
+     */
+    Instant getLastUpdateRequested(String requestorId) {
+        return lastUpdateRequested.get(requestorId);
+    }
 
-                changesMap.executeOnKey(key, new ReplaceSetEntryProcessor(changes));
-                changesMap.setTtl(key, trackingPeriodMinutes, timeUnit);
+    void updateChangeTracker(String requestorId, long cursor, int trackingPeriodMinutes, TimeUnit timeUnit) {
+        updateChangeTracker(requestorId, cursor, Instant.now(), trackingPeriodMinutes, timeUnit);
+    }
 
-                lastUpdateRequested.set(key, Instant.now(), trackingPeriodMinutes, timeUnit);
+    /**
+     * @param lastRequested time used as previous request for the next request - may be earlier than now if not all
+     *                      data could be returned
+     */
+    void updateChangeTracker(String requestorId, long cursor, Instant lastRequested, int trackingPeriodMinutes, TimeUnit timeUnit) {
+        long t1 = System.currentTimeMillis();
 
-                logger.info("Replacing changes for requestor async {} took {} ms. ({})",
-                    key,(System.currentTimeMillis() - t1),this.getClass().getSimpleName());
-            } finally {
-                MDC.remove("camel.breadcrumbId");
+        changeCursors.set(requestorId, cursor, trackingPeriodMinutes, timeUnit);
+        lastUpdateRequested.set(requestorId, lastRequested, trackingPeriodMinutes, timeUnit);
+
+        logger.info("Updating change-tracker for requestor {} to {} took {} ms. ({})",
+                requestorId, cursor, (System.currentTimeMillis() - t1), this.getClass().getSimpleName());
+    }
+
+    /**
+     * Returns all changes since previous request, and moves the requestor's cursor past all returned changes
+     *
+     * @param requestorId
+     * @param datasetId
+     * @param trackingPeriodMinutes
+     * @return changed ids, null if requestor is new - all data should then be returned
+     */
+    Set<SiriObjectStorageKey> getAllChanges(String requestorId, String datasetId, int trackingPeriodMinutes) {
+        Long cursor = getChangeCursor(requestorId);
+        if (cursor == null) {
+            commitChanges();
+            updateChangeTracker(requestorId, getCommittedSequence(), trackingPeriodMinutes, TimeUnit.MINUTES);
+            return null;
+        }
+
+        // All changes are consumed - also changes for other datasets
+        ChangeLogPage page = getChanges(cursor, Predicates.alwaysTrue(),
+                key -> datasetId == null || datasetId.equals(key.getCodespaceId()), Integer.MAX_VALUE);
+
+        updateChangeTracker(requestorId, page.cursor, trackingPeriodMinutes, TimeUnit.MINUTES);
+
+        return page.keys;
+    }
+
+    /**
+     * Reads the changes committed after the provided cursor in the order they were committed.
+     *
+     * @param cursor position in the change-log
+     * @param datasetPredicate index-backed filter on dataset
+     * @param filter additional filter - rejected changes are skipped, i.e. the cursor is moved past them
+     * @param maxSize max number of changes to return
+     * @return page with matching changes and the new cursor
+     */
+    ChangeLogPage getChanges(long cursor, Predicate<SiriObjectStorageKey, Long> datasetPredicate,
+                             java.util.function.Predicate<SiriObjectStorageKey> filter, int maxSize) {
+        ChangeLogPage page = new ChangeLogPage(cursor);
+
+        final long committedSequence = getCommittedSequence();
+        if (committedSequence <= cursor) {
+            return page;
+        }
+
+        long t1 = System.currentTimeMillis();
+        List<Map.Entry<SiriObjectStorageKey, Long>> changes = new ArrayList<>(changeLog.entrySet(
+                Predicates.and(Predicates.between("this", cursor + 1, committedSequence), datasetPredicate)
+        ));
+        changes.sort(Map.Entry.comparingByValue());
+
+        for (Map.Entry<SiriObjectStorageKey, Long> change : changes) {
+            if (filter.test(change.getKey())) {
+                if (page.keys.size() >= maxSize) {
+                    page.moreData = true;
+                    break;
+                }
+                page.keys.add(change.getKey());
             }
-        });
-        logger.info("Changetracker-update submitted");
+            page.cursor = change.getValue();
+        }
+
+        logger.info("Read {} of {} changes after {} in {} ms ({})", page.keys.size(), changes.size(), cursor,
+                (System.currentTimeMillis() - t1), this.getClass().getSimpleName());
+        return page;
+    }
+
+    /**
+     * Looks up the change-log sequence for the provided ids
+     * @param ids
+     * @return sequence per id - expired ids are not included
+     */
+    Map<SiriObjectStorageKey, Long> getChangeSequences(Set<SiriObjectStorageKey> ids) {
+        return changeLog.getAll(ids);
+    }
+
+    /**
+     * @return number of pending changes per requestor
+     */
+    public Map<String, Long> getChangeTrackerBacklog() {
+        final long committedSequence = getCommittedSequence();
+
+        Map<String, Long> backlog = new HashMap<>();
+        for (Map.Entry<String, Long> cursor : changeCursors.entrySet()) {
+            long pending = 0;
+            if (cursor.getValue() < committedSequence) {
+                pending = changeLog.aggregate(Aggregators.count(), Predicates.greaterThan("this", cursor.getValue()));
+            }
+            backlog.put(cursor.getKey(), pending);
+        }
+        return backlog;
+    }
+
+    void removeFromChangeLog(SiriObjectStorageKey id) {
+        dirtyChanges.remove(id);
+        changeLog.delete(id);
+    }
+
+    void clearChangeTracking() {
+        dirtyChanges.clear();
+        changeLog.clear();
+        changeCursors.clear();
+        lastUpdateRequested.clear();
+        changeLogSequences.delete(dataType.name());
+    }
+
+    static class ChangeLogPage {
+        final Set<SiriObjectStorageKey> keys = new LinkedHashSet<>();
+        long cursor;
+        boolean moreData;
+
+        private ChangeLogPage(long cursor) {
+            this.cursor = cursor;
+        }
     }
 
     /**
@@ -231,56 +512,49 @@ abstract class SiriRepository<T> {
     abstract void clearAllByDatasetId(String datasetId);
 
 
-    Predicate<SiriObjectStorageKey, T> createCodespacePredicate(String datasetId) {
-        return entry -> {
-            if (entry.getKey().getCodespaceId() != null) {
-                final String codespaceId = entry.getKey().getCodespaceId();
-                return codespaceId.equals(datasetId);
-            }
-            return false;
-        };
+    /**
+     * Index-backed predicate matching all keys for the provided codespace
+     * @param datasetId
+     * @return
+     */
+    <V> Predicate<SiriObjectStorageKey, V> createCodespacePredicate(String datasetId) {
+        return Predicates.equal(CODESPACE_ID_ATTRIBUTE, datasetId);
     }
 
-    Predicate<SiriObjectStorageKey, T> createLineRefPredicate(String lineRef) {
-        return entry -> {
-            if (entry.getKey().getLineRef() != null) {
-                final String ref = entry.getKey().getLineRef();
-
-                return ref.startsWith(lineRef + SEPARATOR) ||
-                        ref.endsWith(SEPARATOR + lineRef) ||
-                        ref.equalsIgnoreCase(lineRef);
-            }
-            return false;
-        };
+    /**
+     * Index-backed predicate matching the same keys as filterIdsByDataset
+     * @param datasetId
+     * @param excludedDatasetIds
+     * @return
+     */
+    <V> Predicate<SiriObjectStorageKey, V> createDatasetPredicate(String datasetId, List<String> excludedDatasetIds) {
+        if (excludedDatasetIds != null && !excludedDatasetIds.isEmpty()) {
+            return Predicates.not(Predicates.in(CODESPACE_ID_ATTRIBUTE, excludedDatasetIds.toArray(new String[0])));
+        } else if (datasetId != null && !datasetId.isEmpty()) {
+            return createCodespacePredicate(datasetId);
+        }
+        return Predicates.alwaysTrue();
     }
 
     /**
-     * Compares object-equality by calculating and comparing MD5-checksum
-     * @param existing
-     * @param updated
+     * Index-backed predicate matching lineRef - case-insensitive - with either the original or the mapped id
+     * @param lineRef
      * @return
      */
-    static boolean isEqual(Serializable existing, Serializable updated) {
-        try {
-            String checksumExisting = getChecksum(existing);
-            String checksumUpdated = getChecksum(updated);
-
-            return checksumExisting.equals(checksumUpdated);
-
-        } catch (Exception e) {
-            //ignore - data will be updated
-        }
-        return false;
+    Predicate<SiriObjectStorageKey, T> createLineRefPredicate(String lineRef) {
+        final String lowerCaseLineRef = lineRef.toLowerCase();
+        return Predicates.or(
+                Predicates.equal(ORIGINAL_LINE_REF_ATTRIBUTE, lowerCaseLineRef),
+                Predicates.equal(MAPPED_LINE_REF_ATTRIBUTE, lowerCaseLineRef)
+        );
     }
 
-    static String getChecksum(Serializable object) throws IOException, NoSuchAlgorithmException {
-        try (  ByteArrayOutputStream baos = new ByteArrayOutputStream();
-               ObjectOutputStream oos = new ObjectOutputStream(baos); )
-        {
-            oos.writeObject(object);
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] thedigest = md.digest(baos.toByteArray());
-            return DatatypeConverter.printHexBinary(thedigest);
-        }
+    /**
+     * Calculates checksum used to detect changes in incoming data
+     * @param object
+     * @return
+     */
+    long getChecksum(T object) {
+        return changeDetectionHasher.hash(object);
     }
 }
@@ -60,11 +60,15 @@ public class Situations extends SiriRepository<PtSituationElement> {
 
     @Autowired
     @Qualifier("getSxChecksumMap")
-    private ReplicatedMap<SiriObjectStorageKey,String> checksumCache;
+    private ReplicatedMap<SiriObjectStorageKey,Long> checksumCache;
 
     @Autowired
-    @Qualifier("getSituationChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> changesMap;
+    @Qualifier("getSituationChangeCursorMap")
+    private IMap<String, Long> changeCursors;
+
+    @Autowired
+    @Qualifier("getSituationChangeLogMap")
+    private IMap<SiriObjectStorageKey, Long> changeLog;
 
 
     @Autowired
@@ -85,7 +89,8 @@ public class Situations extends SiriRepository<PtSituationElement> {
 
     @PostConstruct
     private void initializeUpdateCommitter() {
-        super.initBufferCommitter(hazelcastService, lastUpdateRequested, changesMap, configuration.getChangeBufferCommitFrequency());
+        super.initBufferCommitter(hazelcastService, SiriDataType.SITUATION_EXCHANGE, lastUpdateRequested, changeCursors, changeLog, configuration.getChangeBufferCommitFrequency());
+        super.initDatasetSizeTracker(hazelcastService, situationElements, configuration);
 
         situationElements.addEntryListener(new MapEntryListener<SiriObjectStorageKey, PtSituationElement>() {
             @Override
@@ -133,42 +138,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
     }
 
     public int getSize() {
-        return situationElements.keySet().size();
-    }
-
-
-    public Map<String, Integer> getDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        situationElements.keySet().forEach(key -> {
-            String datasetId = key.getCodespaceId();
-
-            Integer count = sizeMap.getOrDefault(datasetId, 0);
-            sizeMap.put(datasetId, count+1);
-        });
-        logger.debug("Calculating data-distribution (SX) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
-    }
-
-
-    public Map<String, Integer> getLocalDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        situationElements.localKeySet().forEach(key -> {
-            String datasetId = key.getCodespaceId();
-
-            Integer count = sizeMap.getOrDefault(datasetId, 0);
-            sizeMap.put(datasetId, count+1);
-        });
-        logger.debug("Calculating data-distribution (SX) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
-    }
-
-
-    public Integer getDatasetSize(String datasetId) {
-        return Math.toIntExact(situationElements.keySet().stream()
-                .filter(key -> datasetId.equals(key.getCodespaceId()))
-                .count());
+        return situationElements.size();
     }
 
     @Override
@@ -181,6 +151,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
         for (SiriObjectStorageKey id : idsToRemove) {
             situationElements.remove(id);
             checksumCache.remove(id);
+            removeFromChangeLog(id);
         }
     }
 
@@ -188,6 +159,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
         logger.error("Deleting all data - should only be used in test!!!");
         situationElements.clear();
         checksumCache.clear();
+        clearChangeTracking();
     }
 
     public Siri createServiceDelivery(String requestorId, String datasetId, String clientName, int maxSize) {
@@ -203,58 +175,35 @@ public class Situations extends SiriRepository<PtSituationElement> {
             isAdHocRequest = true;
         }
 
-        // Get all relevant ids
-        Set<SiriObjectStorageKey> allIds = new HashSet<>();
-        Set<SiriObjectStorageKey> idSet = changesMap.getOrDefault(requestorId, allIds);
-
-        if (idSet == allIds) {
-            idSet.addAll(situationElements.keySet());
+        Long cursor = isAdHocRequest ? null : getChangeCursor(requestorId);
+        if (cursor == null) {
+            cursor = initChangeCursor(requestorId);
         }
 
-        //Filter by datasetId
-        Set<SiriObjectStorageKey> requestedIds = idSet.stream()
-                .filter(key -> datasetId == null || key.getCodespaceId().equals(datasetId))
-                .collect(Collectors.toSet());
-        long t1 = System.currentTimeMillis();
+        ChangeLogPage changes = getChanges(cursor, createDatasetPredicate(datasetId, null), id -> true, maxSize);
 
-        Set<SiriObjectStorageKey> sizeLimitedIds = requestedIds.stream().limit(maxSize).collect(Collectors.toSet());
-        logger.info("Limiting size: {} ms", (System.currentTimeMillis()-t1));
-        t1 = System.currentTimeMillis();
+        Set<SiriObjectStorageKey> sizeLimitedIds = changes.keys;
 
-        Boolean isMoreData = sizeLimitedIds.size() < requestedIds.size();
-
-        //Remove collected objects
-        sizeLimitedIds.forEach(idSet::remove);
-        logger.info("Limiting size: {} ms", (System.currentTimeMillis()-t1));
-        t1 = System.currentTimeMillis();
+        Boolean isMoreData = changes.moreData;
 
         Collection<PtSituationElement> values = situationElements.getAll(sizeLimitedIds).values();
-        logger.info("Fetching data: {} ms", (System.currentTimeMillis()-t1));
-        t1 = System.currentTimeMillis();
 
         Siri siri = siriObjectFactory.createSXServiceDelivery(values);
+
         siri.getServiceDelivery().setMoreData(isMoreData);
-        logger.info("Creating SIRI-delivery: {} ms", (System.currentTimeMillis()-t1));
 
         if (isAdHocRequest) {
             logger.info("Returning {}, no requestorRef is set", sizeLimitedIds.size());
         } else {
 
+            //Update change-tracker
+            updateChangeTracker(requestorId, changes.cursor, trackingPeriodMinutes, TimeUnit.MINUTES);
 
             MessageRefStructure msgRef = new MessageRefStructure();
             msgRef.setValue(requestorId);
             siri.getServiceDelivery().setRequestMessageRef(msgRef);
 
-
-            if (idSet.size() > situationElements.size()) {
-                //Remove outdated ids
-                idSet.removeIf(id -> !situationElements.containsKey(id));
-            }
-
-            //Update change-tracker
-            updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, idSet, trackingPeriodMinutes, TimeUnit.MINUTES);
-
-            logger.info("Returning {}, {} left for requestorRef {}", sizeLimitedIds.size(), idSet.size(), requestorId);
+            logger.info("Returning {}, moreData: {} for requestorRef {}", sizeLimitedIds.size(), isMoreData, requestorId);
         }
 
         return siri;
@@ -277,40 +226,16 @@ public class Situations extends SiriRepository<PtSituationElement> {
     public Collection<PtSituationElement> getAllUpdates(String requestorId, String datasetId) {
         if (requestorId != null) {
 
-            Set<SiriObjectStorageKey> idSet = changesMap.get(requestorId);
-            lastUpdateRequested.set(requestorId, Instant.now(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+            Set<SiriObjectStorageKey> idSet = getAllChanges(requestorId, datasetId, configuration.getTrackingPeriodMinutes());
             if (idSet != null) {
-                Set<SiriObjectStorageKey> datasetFilteredIdSet = new HashSet<>();
-
-                if (datasetId != null) {
-                    idSet.stream().filter(key -> key.getCodespaceId().equals(datasetId)).forEach(datasetFilteredIdSet::add);
-                } else {
-                    datasetFilteredIdSet.addAll(idSet);
-                }
-                Collection<PtSituationElement> changes = situationElements.getAll(datasetFilteredIdSet).values();
-
-                // Data may have been updated
-                Set<SiriObjectStorageKey> existingSet = changesMap.get(requestorId);
-                if (existingSet == null) {
-                    existingSet = new HashSet<>();
-                }
-                //Remove returned ids
-                existingSet.removeAll(idSet);
-
-                //Remove outdated ids
-                existingSet.removeIf(id -> !situationElements.containsKey(id));
-
-                updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, existingSet, configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
-
+                Collection<PtSituationElement> changes = situationElements.getAll(idSet).values();
 
                 logger.info("Returning {} changes to requestorRef {}", changes.size(), requestorId);
                 return changes;
             } else {
+
                 logger.info("Returning all to requestorRef {}", requestorId);
             }
-
-            updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
-
         }
 
         return getAll(datasetId);
@@ -342,7 +267,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
     }
 
     public Collection<PtSituationElement> addAll(String datasetId, List<PtSituationElement> sxList) {
-        Set<SiriObjectStorageKey> changes = new HashSet<>();
+        Map<SiriObjectStorageKey, Long> changes = new HashMap<>();
         Set<PtSituationElement> addedData = new HashSet<>();
 
         Counter alreadyExpiredCounter = new CounterImpl(0);
@@ -350,18 +275,13 @@ public class Situations extends SiriRepository<PtSituationElement> {
         sxList.forEach(situation -> {
             SiriObjectStorageKey key = createKey(datasetId, situation);
 
-            String currentChecksum = null;
-            try {
-                currentChecksum = getChecksum(situation);
-            } catch (Exception e) {
-                //Ignore - data will be updated
-            }
+            long currentChecksum = getChecksum(situation);
 
-            String existingChecksum = checksumCache.get(key);
+            Long existingChecksum = checksumCache.get(key);
             boolean updated;
             if (existingChecksum != null && situationElements.containsKey(key)) { // Checksum not compared if actual situation does not exist
                 //Exists - compare values
-                updated =  !(currentChecksum.equals(existingChecksum));
+                updated = currentChecksum != existingChecksum;
             } else {
                 //Does not exist
                 updated = true;
@@ -372,7 +292,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
                 if (expiration > 0) { //expiration < 0 => already expired
                     situationElements.set(key, situation, expiration, TimeUnit.MILLISECONDS);
                     checksumCache.put(key, currentChecksum, expiration, TimeUnit.MILLISECONDS);
-                    changes.add(key);
+                    changes.put(key, expiration);
                     addedData.add(situation);
                 } else if (situationElements.containsKey(key)) {
                     // Situation is no longer valid
@@ -423,7 +343,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
         return situationElements.get(createKey(datasetId, situation));
     }
 
-    private static SiriObjectStorageKey createKey(String datasetId, PtSituationElement element) {
+    public static SiriObjectStorageKey createKey(String datasetId, PtSituationElement element) {
         StringBuilder key = new StringBuilder();
 
         key.append(datasetId).append(":")
@@ -0,0 +1,202 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import no.rutebanken.anshar.config.AnsharConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.w3c.dom.Node;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.annotation.XmlType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks the JAXB object graph and feeds every value directly into a 128-bit Murmur3-hash - the lower 64 bits are used
+ * as checksum. No intermediate serialization of the object is performed.
+ *
+ * Fields listed in 'anshar.checksum.ignored.fields' (formatted as SimpleClassName.fieldName) are skipped, thus
+ * ignoring "fake" updates where e.g. only RecordedAtTime has changed.
+ */
+@Component
+public class StructuralChangeDetectionHasher implements ChangeDetectionHasher {
+
+    private static final Logger logger = LoggerFactory.getLogger(StructuralChangeDetectionHasher.class);
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    // Type-markers - prevents e.g. an empty list and a null-value from producing the same hash
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte NUMBER = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte ENUM = 4;
+    private static final byte TIME = 5;
+    private static final byte COLLECTION = 6;
+    private static final byte OBJECT = 7;
+    private static final byte OTHER = 8;
+
+    private final Set<String> ignoredFields;
+
+    private final ClassValue<Field[]> fieldCache = new ClassValue<>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            return resolveFields(type);
+        }
+    };
+
+    @Autowired
+    public StructuralChangeDetectionHasher(AnsharConfiguration configuration) {
+        this(configuration.getChecksumIgnoredFields());
+    }
+
+    public StructuralChangeDetectionHasher(Collection<String> ignoredFields) {
+        this.ignoredFields = ignoredFields != null ? new HashSet<>(ignoredFields) : new HashSet<>();
+        logger.info("Ignoring fields {} when calculating checksums", this.ignoredFields);
+    }
+
+    @Override
+    public long hash(Object object) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        putValue(hasher, object);
+        return hasher.hash().asLong();
+    }
+
+    private void putValue(Hasher hasher, Object value) {
+        if (value == null) {
+            hasher.putByte(NULL);
+        } else if (value instanceof String) {
+            String s = (String) value;
+            hasher.putByte(STRING)
+                    .putInt(s.length())
+                    .putUnencodedChars(s);
+        } else if (value instanceof Boolean) {
+            hasher.putByte(BOOLEAN)
+                    .putBoolean((Boolean) value);
+        } else if (value instanceof Enum) {
+            hasher.putByte(ENUM)
+                    .putInt(((Enum<?>) value).ordinal());
+        } else if (value instanceof ZonedDateTime) {
+            ZonedDateTime time = (ZonedDateTime) value;
+            hasher.putByte(TIME)
+                    .putLong(time.toEpochSecond())
+                    .putInt(time.getNano())
+                    .putInt(time.getOffset().getTotalSeconds());
+        } else if (value instanceof Duration) {
+            Duration duration = (Duration) value;
+            hasher.putByte(TIME)
+                    .putLong(duration.getSeconds())
+                    .putInt(duration.getNano());
+        } else if (value instanceof Number) {
+            putNumber(hasher, (Number) value);
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            hasher.putByte(COLLECTION)
+                    .putInt(collection.size());
+            for (Object element : collection) {
+                putValue(hasher, element);
+            }
+        } else if (value instanceof JAXBElement) {
+            JAXBElement<?> element = (JAXBElement<?>) value;
+            hasher.putByte(OBJECT)
+                    .putUnencodedChars(element.getName().getLocalPart());
+            putValue(hasher, element.getValue());
+        } else if (value instanceof Node) {
+            // Extensions are unmarshalled as DOM-elements
+            Node node = (Node) value;
+            hasher.putByte(OTHER)
+                    .putUnencodedChars(node.getNodeName());
+            putValue(hasher, node.getTextContent());
+        } else if (value.getClass().isAnnotationPresent(XmlType.class)) {
+            putObject(hasher, value);
+        } else {
+            // Unknown value-type - rely on the value-based hashCode of the JDK-types
+            hasher.putByte(OTHER)
+                    .putInt(value.hashCode());
+        }
+    }
+
+    private void putNumber(Hasher hasher, Number number) {
+        hasher.putByte(NUMBER);
+        if (number instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) number;
+            hasher.putInt(decimal.scale());
+            putNumber(hasher, decimal.unscaledValue());
+        } else if (number instanceof BigInteger) {
+            BigInteger integer = (BigInteger) number;
+            if (integer.bitLength() < Long.SIZE) {
+                hasher.putLong(integer.longValue());
+            } else {
+                hasher.putBytes(integer.toByteArray());
+            }
+        } else if (number instanceof Double || number instanceof Float) {
+            hasher.putDouble(number.doubleValue());
+        } else {
+            hasher.putLong(number.longValue());
+        }
+    }
+
+    private void putObject(Hasher hasher, Object object) {
+        hasher.putByte(OBJECT);
+        for (Field field : fieldCache.get(object.getClass())) {
+            try {
+                putValue(hasher, field.get(object));
+            } catch (IllegalAccessException e) {
+                // Should not happen - all fields are made accessible when resolved
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Resolves all non-static fields for the class and its superclasses, sorted to guarantee the same order on all
+     * nodes in the cluster.
+     */
+    private Field[] resolveFields(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        Class<?> current = type;
+        while (current != null && current != Object.class) {
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) ||
+                        ignoredFields.contains(current.getSimpleName() + "." + field.getName())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+            current = current.getSuperclass();
+        }
+        fields.sort(Comparator.comparing((Field f) -> f.getDeclaringClass().getName())
+                .thenComparing(Field::getName));
+        return fields.toArray(new Field[0]);
+    }
+}
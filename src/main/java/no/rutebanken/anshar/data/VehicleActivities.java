@@ -66,12 +66,20 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     private IMap<SiriObjectStorageKey, VehicleActivityStructure> monitoredVehicles;
 
     @Autowired
-    @Qualifier("getVehicleChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> changesMap;
+    @Qualifier("getVehicleChangeCursorMap")
+    private IMap<String, Long> changeCursors;
+
+    @Autowired
+    @Qualifier("getVehicleRecordedAtTimeMap")
+    private IMap<SiriObjectStorageKey, Long> recordedAtTimes;
+
+    @Autowired
+    @Qualifier("getVehicleChangeLogMap")
+    private IMap<SiriObjectStorageKey, Long> changeLog;
 
     @Autowired
     @Qualifier("getVmChecksumMap")
-    private ReplicatedMap<SiriObjectStorageKey,String> checksumCache;
+    private ReplicatedMap<SiriObjectStorageKey,Long> checksumCache;
 
     @Autowired
     @Qualifier("getLastVmUpdateRequest")
@@ -94,7 +102,8 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
 
     @PostConstruct
     private void initializeUpdateCommitter() {
-        super.initBufferCommitter(hazelcastService, lastUpdateRequested, changesMap, configuration.getChangeBufferCommitFrequency());
+        super.initBufferCommitter(hazelcastService, SiriDataType.VEHICLE_MONITORING, lastUpdateRequested, changeCursors, changeLog, configuration.getChangeBufferCommitFrequency());
+        super.initDatasetSizeTracker(hazelcastService, monitoredVehicles, configuration);
     }
 
     /**
@@ -105,40 +114,7 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     }
 
     public int getSize() {
-        return monitoredVehicles.keySet().size();
-    }
-
-    public Map<String, Integer> getDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        monitoredVehicles.keySet().forEach(key -> {
-            String datasetId = key.getCodespaceId();
-
-            Integer count = sizeMap.getOrDefault(datasetId, 0);
-            sizeMap.put(datasetId, count+1);
-        });
-        logger.debug("Calculating data-distribution (VM) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
-    }
-
-    public Map<String, Integer> getLocalDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        monitoredVehicles.localKeySet().forEach(key -> {
-            String datasetId = key.getCodespaceId();
-
-            Integer count = sizeMap.getOrDefault(datasetId, 0);
-            sizeMap.put(datasetId, count+1);
-        });
-        logger.debug("Calculating data-distribution (VM) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
-    }
-
-
-    public Integer getDatasetSize(String datasetId) {
-        return Math.toIntExact(monitoredVehicles.keySet().stream()
-                .filter(key -> datasetId.equals(key.getCodespaceId()))
-                .count());
+        return monitoredVehicles.size();
     }
 
     @Override
@@ -150,13 +126,17 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
 
         for (SiriObjectStorageKey id : idsToRemove) {
             monitoredVehicles.delete(id);
+            recordedAtTimes.delete(id);
             checksumCache.remove(id);
+            removeFromChangeLog(id);
         }
     }
 
     public void clearAll() {
         logger.error("Deleting all data - should only be used in test!!!");
         monitoredVehicles.clear();
+        recordedAtTimes.clear();
+        clearChangeTracking();
     }
 
     /**
@@ -176,41 +156,15 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     public Collection<VehicleActivityStructure> getAllUpdates(String requestorId, String datasetId) {
         if (requestorId != null) {
 
-            Set<SiriObjectStorageKey> idSet = changesMap.get(requestorId);
-            lastUpdateRequested.set(requestorId, Instant.now(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+            Set<SiriObjectStorageKey> idSet = getAllChanges(requestorId, datasetId, configuration.getTrackingPeriodMinutes());
             if (idSet != null) {
-                Set<SiriObjectStorageKey> datasetFilteredIdSet = new HashSet<>();
-
-                if (datasetId != null) {
-                    idSet.stream().filter(key -> key.getCodespaceId().equals(datasetId)).forEach(datasetFilteredIdSet::add);
-                } else {
-                    datasetFilteredIdSet.addAll(idSet);
-                }
-
-                Collection<VehicleActivityStructure> changes = monitoredVehicles.getAll(datasetFilteredIdSet).values();
-
-                Set<SiriObjectStorageKey> existingSet = changesMap.get(requestorId);
-                if (existingSet == null) {
-                    existingSet = new HashSet<>();
-                }
-
-                //Remove returned ids
-                existingSet.removeAll(idSet);
-
-                if (idSet.size() > monitoredVehicles.size()) {
-                    //Remove outdated ids
-                    existingSet.removeIf(id -> !monitoredVehicles.containsKey(id));
-                }
-
-                updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, existingSet, configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+                Collection<VehicleActivityStructure> changes = monitoredVehicles.getAll(idSet).values();
 
                 logger.info("Returning {} changes to requestorRef {}", changes.size(), requestorId);
                 return changes;
             } else {
 
                 logger.info("Returning all to requestorRef {}", requestorId);
-                updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
-
             }
         }
 
@@ -242,22 +196,16 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
             isAdHocRequest = true;
         }
 
-        // Get all relevant ids
-        Set<SiriObjectStorageKey> allIds = new HashSet<>();
-        Set<SiriObjectStorageKey> idSet = changesMap.getOrDefault(requestorId, allIds);
-
-        if (idSet == allIds) {
-            idSet.addAll(monitoredVehicles.keySet());
+        Long cursor = isAdHocRequest ? null : getChangeCursor(requestorId);
+        if (cursor == null) {
+            cursor = initChangeCursor(requestorId);
         }
 
-        Set<SiriObjectStorageKey> requestedIds = filterIdsByDataset(idSet, excludedDatasetIds, datasetId);
-
-        Set<SiriObjectStorageKey> sizeLimitedIds = requestedIds.stream().limit(maxSize).collect(Collectors.toSet());
+        ChangeLogPage changes = getChanges(cursor, createDatasetPredicate(datasetId, excludedDatasetIds), id -> true, maxSize);
 
-        Boolean isMoreData = sizeLimitedIds.size() < requestedIds.size();
+        Set<SiriObjectStorageKey> sizeLimitedIds = changes.keys;
 
-        //Remove collected objects
-        sizeLimitedIds.forEach(idSet::remove);
+        Boolean isMoreData = changes.moreData;
 
         Collection<VehicleActivityStructure> values = monitoredVehicles.getAll(sizeLimitedIds).values();
 
@@ -269,19 +217,14 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
             logger.info("Returning {}, no requestorRef is set", sizeLimitedIds.size());
         } else {
 
-
-            //Remove outdated ids
-            idSet.removeIf(id -> !monitoredVehicles.containsKey(id));
-
             //Update change-tracker
-            updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, idSet, trackingPeriodMinutes, TimeUnit.MINUTES);
-
+            updateChangeTracker(requestorId, changes.cursor, trackingPeriodMinutes, TimeUnit.MINUTES);
 
             MessageRefStructure msgRef = new MessageRefStructure();
             msgRef.setValue(requestorId);
             siri.getServiceDelivery().setRequestMessageRef(msgRef);
 
-            logger.info("Returning {}, {} left for requestorRef {}", sizeLimitedIds.size(), idSet.size(), requestorId);
+            logger.info("Returning {}, moreData: {} for requestorRef {}", sizeLimitedIds.size(), isMoreData, requestorId);
         }
 
         return siri;
@@ -298,7 +241,7 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     }
 
     public Collection<VehicleActivityStructure> addAll(String datasetId, List<VehicleActivityStructure> vmList) {
-        Set<SiriObjectStorageKey> changes = new HashSet<>();
+        Map<SiriObjectStorageKey, Long> changes = new HashMap<>();
         Set<VehicleActivityStructure> addedData = new HashSet<>();
 
         Counter invalidLocationCounter = new CounterImpl(0);
@@ -306,71 +249,86 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
         Counter outdatedCounter = new CounterImpl(0);
         Counter notUpdatedCounter = new CounterImpl(0);
 
-        vmList.stream()
-                .filter(activity -> activity.getMonitoredVehicleJourney() != null)
-                .filter(activity -> activity.getMonitoredVehicleJourney().getVehicleRef() != null)
-                .forEach(activity -> {
+        List<VehicleActivityStructure> activities = new ArrayList<>(vmList.size());
+        List<SiriObjectStorageKey> keys = new ArrayList<>(vmList.size());
+        for (VehicleActivityStructure activity : vmList) {
+            if (activity.getMonitoredVehicleJourney() != null &&
+                    activity.getMonitoredVehicleJourney().getVehicleRef() != null) {
+                activities.add(activity);
+                keys.add(createKey(datasetId, activity.getMonitoredVehicleJourney()));
+            }
+        }
 
-                    SiriObjectStorageKey key = createKey(datasetId, activity.getMonitoredVehicleJourney());
+        // RecordedAtTime of all existing objects in one round-trip per partition
+        Map<SiriObjectStorageKey, Long> existingRecordedAtTimes = keys.isEmpty() ?
+                new HashMap<>() :
+                new HashMap<>(recordedAtTimes.getAll(new HashSet<>(keys)));
 
-                    String currentChecksum = null;
-                    ZonedDateTime validUntilTime = activity.getValidUntilTime();
-                    try {
-                        // Calculate checksum without "ValidUntilTime" - thus ignoring "fake" updates where only validity is updated
-                        activity.setValidUntilTime(null);
-                        currentChecksum = getChecksum(activity);
-                    } catch (Exception e) {
-                        //Ignore - data will be updated
-                    } finally {
-                        //Set original ValidUntilTime back
-                        activity.setValidUntilTime(validUntilTime);
-                    }
+        List<ConditionalWrite<VehicleActivityStructure>> writes = new ArrayList<>();
 
-                    String existingChecksum = checksumCache.get(key);
+        for (int i = 0; i < activities.size(); i++) {
+            VehicleActivityStructure activity = activities.get(i);
+            SiriObjectStorageKey key = keys.get(i);
 
-                    boolean updated;
-                    if (existingChecksum != null && monitoredVehicles.containsKey(key)) {
-                        //Exists - compare values
-                        updated =  !(currentChecksum.equals(existingChecksum));
-                    } else {
-                        //Does not exist
-                        updated = true;
-                    }
+            // "ValidUntilTime" is ignored by the checksum - thus ignoring "fake" updates where only validity is updated
+            long currentChecksum = getChecksum(activity);
 
-                    if (updated) {
-                        checksumCache.put(key, currentChecksum, 5, TimeUnit.MINUTES); //Keeping all checksums for at least 5 minutes to avoid stale data
+            Long existingChecksum = checksumCache.get(key);
+            Long existingRecordedAtTime = existingRecordedAtTimes.get(key);
 
-                        VehicleActivityStructure existing = monitoredVehicles.get(key);
+            boolean updated;
+            if (existingChecksum != null && existingRecordedAtTime != null) {
+                //Exists - compare values
+                updated = currentChecksum != existingChecksum;
+            } else {
+                //Does not exist
+                updated = true;
+            }
 
-                        boolean keep = (existing == null); //No existing data i.e. keep
+            if (updated) {
+                checksumCache.put(key, currentChecksum, 5, TimeUnit.MINUTES); //Keeping all checksums for at least 5 minutes to avoid stale data
 
-                        if (existing != null &&
-                                (activity.getRecordedAtTime() != null && existing.getRecordedAtTime() != null)) {
-                            //Newer data has already been processed
-                            keep = activity.getRecordedAtTime().isAfter(existing.getRecordedAtTime());
-                        }
+                boolean keep = (existingRecordedAtTime == null); //No existing data i.e. keep
 
-                        long expiration = getExpiration(activity);
+                if (existingRecordedAtTime != null && existingRecordedAtTime != RecordedAtTimeUpsert.NO_RECORDED_AT_TIME &&
+                        activity.getRecordedAtTime() != null) {
+                    //Newer data has already been processed
+                    keep = activity.getRecordedAtTime().toInstant().toEpochMilli() > existingRecordedAtTime;
+                }
 
-                        if (expiration > 0 && keep) {
-                            changes.add(key);
-                            addedData.add(activity);
-                            monitoredVehicles.set(key, activity, expiration, TimeUnit.MILLISECONDS);
-                            checksumCache.put(key, currentChecksum, expiration, TimeUnit.MILLISECONDS);
-                            siriVmMqttHandler.pushToMqttAsync(datasetId, activity);
+                long expiration = getExpiration(activity);
 
-                        } else {
-                            outdatedCounter.increment();
-                        }
+                if (expiration > 0 && keep) {
+                    // Newer data may still have been stored by another member - final check is done on the key owner
+                    writes.add(submitIfNewer(recordedAtTimes, monitoredVehicles, key, activity, expiration, currentChecksum, false, false));
 
-                        if (!isLocationValid(activity)) {invalidLocationCounter.increment();}
-                        if (!isActivityMeaningful(activity)) {notMeaningfulCounter.increment();}
+                    // Later elements with the same key in this delivery are compared with this one
+                    existingRecordedAtTimes.put(key, activity.getRecordedAtTime() != null ?
+                            activity.getRecordedAtTime().toInstant().toEpochMilli() : RecordedAtTimeUpsert.NO_RECORDED_AT_TIME);
+                } else {
+                    outdatedCounter.increment();
+                }
+
+                if (!isLocationValid(activity)) {invalidLocationCounter.increment();}
+                if (!isActivityMeaningful(activity)) {notMeaningfulCounter.increment();}
+
+            } else {
+                notUpdatedCounter.increment();
+            }
+        }
 
-                    } else {
-                        notUpdatedCounter.increment();
-                    }
+        awaitWrites(writes);
 
-                });
+        for (ConditionalWrite<VehicleActivityStructure> write : writes) {
+            if (write.isStored()) {
+                changes.put(write.key, write.expiration);
+                addedData.add(write.element);
+                checksumCache.put(write.key, write.checksum, write.expiration, TimeUnit.MILLISECONDS);
+                siriVmMqttHandler.pushToMqttAsync(datasetId, write.element);
+            } else {
+                outdatedCounter.increment();
+            }
+        }
 
         logger.info("Updated {} (of {}) :: Ignored elements - Missing location:{}, Missing values: {}, Skipped: {}, Not updated: {}", changes.size(), vmList.size(), invalidLocationCounter.getValue(), notMeaningfulCounter.getValue(), outdatedCounter.getValue(), notUpdatedCounter.getValue());
 
@@ -471,7 +429,7 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
      * @param monitoredVehicleJourney
      * @return
      */
-    private SiriObjectStorageKey createKey(String datasetId, VehicleActivityStructure.MonitoredVehicleJourney monitoredVehicleJourney) {
+    public static SiriObjectStorageKey createKey(String datasetId, VehicleActivityStructure.MonitoredVehicleJourney monitoredVehicleJourney) {
         StringBuilder key = new StringBuilder();
 
 
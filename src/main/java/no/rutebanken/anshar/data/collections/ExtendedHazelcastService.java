@@ -16,6 +16,7 @@
 package no.rutebanken.anshar.data.collections;
 
 import com.hazelcast.collection.ISet;
+import com.hazelcast.config.IndexType;
 import com.hazelcast.config.SerializerConfig;
 import com.hazelcast.core.DistributedObject;
 import com.hazelcast.core.HazelcastInstance;
@@ -92,24 +93,67 @@ public class ExtendedHazelcastService extends HazelCastService {
         );
     }
 
+    /**
+     * Adds HASH-indexes on the key-attributes used when looking up data by codespace and lineRef
+     * @param name
+     * @param indexLineRef - VM and SX are stored without lineRef
+     * @return
+     */
+    private <T> IMap<SiriObjectStorageKey, T> getIndexedMap(String name, boolean indexLineRef) {
+        final IMap<SiriObjectStorageKey, T> map = hazelcast.getMap(name);
+        map.addIndex(IndexType.HASH, SiriObjectStorageKey.CODESPACE_ID_ATTRIBUTE);
+        if (indexLineRef) {
+            map.addIndex(IndexType.HASH, SiriObjectStorageKey.ORIGINAL_LINE_REF_ATTRIBUTE);
+            map.addIndex(IndexType.HASH, SiriObjectStorageKey.MAPPED_LINE_REF_ATTRIBUTE);
+        }
+        return map;
+    }
+
+    /**
+     * Change-log with the latest sequence-number per key - SORTED-index on the sequence for range-queries
+     * @param name
+     * @return
+     */
+    private IMap<SiriObjectStorageKey, Long> getChangeLogMap(String name) {
+        final IMap<SiriObjectStorageKey, Long> map = hazelcast.getMap(name);
+        map.addIndex(IndexType.SORTED, "this");
+        map.addIndex(IndexType.HASH, SiriObjectStorageKey.CODESPACE_ID_ATTRIBUTE);
+        return map;
+    }
+
     @Bean
     public IMap<SiriObjectStorageKey, PtSituationElement> getSituationsMap(){
-        return hazelcast.getMap("anshar.sx");
+        return getIndexedMap("anshar.sx", false);
+    }
+
+    @Bean
+    public IMap<String, Long> getSituationChangeCursorMap() {
+        return hazelcast.getMap("anshar.sx.changes.cursor");
     }
 
     @Bean
-    public IMap<String, Set<SiriObjectStorageKey>> getSituationChangesMap() {
-        return hazelcast.getMap("anshar.sx.changes");
+    public IMap<SiriObjectStorageKey, Long> getSituationChangeLogMap() {
+        return getChangeLogMap("anshar.sx.changes.log");
     }
 
     @Bean
     public IMap<SiriObjectStorageKey, EstimatedVehicleJourney> getEstimatedTimetablesMap(){
-        return hazelcast.getMap("anshar.et");
+        return getIndexedMap("anshar.et", true);
+    }
+
+    @Bean
+    public IMap<String, Long> getEstimatedTimetableChangeCursorMap() {
+        return hazelcast.getMap("anshar.et.changes.cursor");
+    }
+
+    @Bean
+    public IMap<SiriObjectStorageKey, Long> getEstimatedTimetableChangeLogMap() {
+        return getChangeLogMap("anshar.et.changes.log");
     }
 
     @Bean
-    public IMap<String, Set<SiriObjectStorageKey>> getEstimatedTimetableChangesMap() {
-        return hazelcast.getMap("anshar.et.changes");
+    public IMap<SiriObjectStorageKey, Long> getEstimatedTimetableRecordedAtTimeMap() {
+        return hazelcast.getMap("anshar.et.recordedAtTime");
     }
 
     @Bean
@@ -118,18 +162,21 @@ public class ExtendedHazelcastService extends HazelCastService {
     }
 
     @Bean
-    public ReplicatedMap<SiriObjectStorageKey, String> getSxChecksumMap() {
-        return hazelcast.getReplicatedMap("anshar.sx.checksum.cache");
+    public ReplicatedMap<SiriObjectStorageKey, Long> getSxChecksumMap() {
+        // Values changed from MD5-string to structural hash - renamed to avoid conflicts with old members
+        return hazelcast.getReplicatedMap("anshar.sx.checksum.cache.v2");
     }
 
     @Bean
-    public ReplicatedMap<SiriObjectStorageKey, String> getEtChecksumMap() {
-        return hazelcast.getReplicatedMap("anshar.et.checksum.cache");
+    public ReplicatedMap<SiriObjectStorageKey, Long> getEtChecksumMap() {
+        // Values changed from MD5-string to structural hash - renamed to avoid conflicts with old members
+        return hazelcast.getReplicatedMap("anshar.et.checksum.cache.v2");
     }
 
     @Bean
-    public ReplicatedMap<SiriObjectStorageKey, String> getVmChecksumMap() {
-        return hazelcast.getReplicatedMap("anshar.vm.checksum.cache");
+    public ReplicatedMap<SiriObjectStorageKey, Long> getVmChecksumMap() {
+        // Values changed from MD5-string to structural hash - renamed to avoid conflicts with old members
+        return hazelcast.getReplicatedMap("anshar.vm.checksum.cache.v2");
     }
 
     @Bean
@@ -139,12 +186,27 @@ public class ExtendedHazelcastService extends HazelCastService {
 
     @Bean
     public IMap<SiriObjectStorageKey, VehicleActivityStructure> getVehiclesMap(){
-        return hazelcast.getMap("anshar.vm");
+        return getIndexedMap("anshar.vm", false);
     }
 
     @Bean
-    public IMap<String, Set<SiriObjectStorageKey>> getVehicleChangesMap() {
-        return hazelcast.getMap("anshar.vm.changes");
+    public IMap<String, Long> getVehicleChangeCursorMap() {
+        return hazelcast.getMap("anshar.vm.changes.cursor");
+    }
+
+    @Bean
+    public IMap<SiriObjectStorageKey, Long> getVehicleChangeLogMap() {
+        return getChangeLogMap("anshar.vm.changes.log");
+    }
+
+    @Bean
+    public IMap<SiriObjectStorageKey, Long> getVehicleRecordedAtTimeMap() {
+        return hazelcast.getMap("anshar.vm.recordedAtTime");
+    }
+
+    @Bean
+    public IMap<String, Long> getChangeLogSequenceMap() {
+        return hazelcast.getMap("anshar.changes.sequence");
     }
 
     @Bean
@@ -168,6 +230,11 @@ public class ExtendedHazelcastService extends HazelCastService {
     }
 
 
+    @Bean
+    public IMap<String, Map<String, Integer>> getDatasetSizeMap() {
+        return hazelcast.getMap("anshar.data.dataset.size");
+    }
+
     @Bean
     public IMap<String, Long> getReceivedBytesMap() {
         return hazelcast.getMap("anshar.subscriptions.data.received.bytes");
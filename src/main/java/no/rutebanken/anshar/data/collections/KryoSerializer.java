@@ -41,7 +41,8 @@ public class KryoSerializer implements ByteArraySerializer {
             return kryo;
         };
 
-        kryoPool = new KryoPool.Builder(factory).softReferences().build();
+        // SIRI-classes are not registered, so the stored format stays readable by all members
+        kryoPool = SiriKryoRegistry.createPool(factory);
     }
 
     @Override
@@ -0,0 +1,192 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data.collections;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.pool.KryoFactory;
+import com.esotericsoftware.kryo.pool.KryoPool;
+import uk.org.siri.siri20.Siri;
+
+import javax.xml.bind.annotation.XmlSeeAlso;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Kryo class registrations for the SIRI model, and pools of pre-built Kryo instances.
+ *
+ * Registrations are only used in memory (e.g. when deep-copying), and are never written to stored data - ids are
+ * therefore assigned in class-name order, and may change when the model is upgraded.
+ *
+ * Serializers for registered classes are built when the Kryo instance is created, so pools are filled up front to
+ * avoid building them while serving requests.
+ */
+public final class SiriKryoRegistry {
+
+    private static final int FIRST_MODEL_ID = 100;
+
+    private static final String MODEL_PACKAGE_PREFIX = "uk.org.";
+
+    private static final List<Class<?>> modelClasses = findModelClasses(Siri.class);
+
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private SiriKryoRegistry() {
+    }
+
+    /**
+     * Registers commonly used JDK-classes and all SIRI model classes. Unregistered classes are still allowed unless
+     * registration is set as required on the Kryo instance.
+     *
+     * The default serializer must be set before registering, as serializers are created when registering.
+     */
+    public static void register(Kryo kryo) {
+        kryo.register(ArrayList.class, 20);
+        kryo.register(BigInteger.class, 21);
+        kryo.register(BigDecimal.class, 22);
+        kryo.register(Duration.class, new DurationSerializer(), 23);
+        kryo.register(ZonedDateTime.class, 24);
+
+        int id = FIRST_MODEL_ID;
+        for (Class<?> type : modelClasses) {
+            kryo.register(type, id++);
+        }
+    }
+
+    /**
+     * Creates a pool holding at most one Kryo instance per processor, filled before returning. If more instances are
+     * borrowed concurrently, additional instances are created and discarded when released.
+     */
+    public static KryoPool createPool(KryoFactory factory) {
+        KryoPool pool = new KryoPool.Builder(factory)
+                .queue(new ArrayBlockingQueue<>(POOL_SIZE))
+                .build();
+
+        List<Kryo> instances = new ArrayList<>(POOL_SIZE);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            instances.add(pool.borrow());
+        }
+        instances.forEach(pool::release);
+        return pool;
+    }
+
+    static List<Class<?>> getModelClasses() {
+        return modelClasses;
+    }
+
+    /**
+     * Finds all concrete model classes reachable from root through fields, type parameters, superclasses and
+     * XmlSeeAlso-annotations, sorted by name
+     */
+    static List<Class<?>> findModelClasses(Class<?> root) {
+        Set<Class<?>> visited = new HashSet<>();
+        Deque<Class<?>> pending = new ArrayDeque<>();
+        pending.add(root);
+
+        while (!pending.isEmpty()) {
+            Class<?> type = pending.poll();
+            if (!isModelClass(type) || !visited.add(type)) {
+                continue;
+            }
+
+            if (type.getSuperclass() != null) {
+                pending.add(type.getSuperclass());
+            }
+            XmlSeeAlso seeAlso = type.getAnnotation(XmlSeeAlso.class);
+            if (seeAlso != null) {
+                for (Class<?> subType : seeAlso.value()) {
+                    pending.add(subType);
+                }
+            }
+            for (Field field : type.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    addClasses(field.getGenericType(), pending);
+                }
+            }
+        }
+
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> type : visited) {
+            if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+                classes.add(type);
+            }
+        }
+        classes.sort(Comparator.comparing(Class::getName));
+        return Collections.unmodifiableList(classes);
+    }
+
+    private static void addClasses(Type type, Deque<Class<?>> pending) {
+        if (type instanceof Class) {
+            Class<?> clazz = (Class<?>) type;
+            pending.add(clazz.isArray() ? clazz.getComponentType() : clazz);
+        } else if (type instanceof ParameterizedType) {
+            addClasses(((ParameterizedType) type).getRawType(), pending);
+            for (Type argument : ((ParameterizedType) type).getActualTypeArguments()) {
+                addClasses(argument, pending);
+            }
+        } else if (type instanceof WildcardType) {
+            for (Type bound : ((WildcardType) type).getUpperBounds()) {
+                addClasses(bound, pending);
+            }
+        } else if (type instanceof GenericArrayType) {
+            addClasses(((GenericArrayType) type).getGenericComponentType(), pending);
+        }
+    }
+
+    private static boolean isModelClass(Class<?> type) {
+        return !type.isPrimitive() && type.getName().startsWith(MODEL_PACKAGE_PREFIX);
+    }
+
+    /**
+     * Writes Duration as varint seconds and nanos
+     */
+    static class DurationSerializer extends Serializer<Duration> {
+
+        DurationSerializer() {
+            setImmutable(true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, Duration value) {
+            output.writeVarLong(value.getSeconds(), false);
+            output.writeVarInt(value.getNano(), true);
+        }
+
+        @Override
+        public Duration read(Kryo kryo, Input input, Class<Duration> type) {
+            return Duration.ofSeconds(input.readVarLong(false), input.readVarInt(true));
+        }
+    }
+}
@@ -16,6 +16,9 @@
 package no.rutebanken.anshar.metrics;
 
 import com.hazelcast.replicatedmap.ReplicatedMap;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.ImmutableTag;
 import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.Tag;
@@ -40,9 +43,19 @@ import uk.org.siri.siri20.VehicleMonitoringDeliveryStructure;
 
 import javax.annotation.PreDestroy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 
 @Component
 public class PrometheusMetricsService extends PrometheusMeterRegistry {
@@ -73,8 +86,47 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
     private static final String DATA_VALIDATION_COUNTER = METRICS_PREFIX + "data.validation";
     private static final String DATA_VALIDATION_RESULT_COUNTER = METRICS_PREFIX + "data.validation.result";
 
+    private static final String EXECUTOR_TAG_NAME = "executor";
+    private static final String TASK_TAG_NAME = "task";
+    private static final String EXECUTOR_QUEUE_SIZE_GAUGE = METRICS_PREFIX + "executor.queue.size";
+    private static final String EXECUTOR_ACTIVE_GAUGE = METRICS_PREFIX + "executor.active";
+    private static final String EXECUTOR_REJECTED_COUNTER = METRICS_PREFIX + "executor.rejected";
+    private static final String EXECUTOR_TASK_WAIT_TIMER = METRICS_PREFIX + "executor.task.wait";
+    private static final String EXECUTOR_TASK_EXECUTION_TIMER = METRICS_PREFIX + "executor.task.execution";
+
+    private static final String SUBSCRIPTION_ID_TAG_NAME = "subscriptionId";
+    private static final String OUTBOUND_QUEUE_SIZE_GAUGE = METRICS_PREFIX + "outbound.queue.size";
+    private static final String OUTBOUND_QUEUE_BYTES_GAUGE = METRICS_PREFIX + "outbound.queue.bytes";
+    private static final String OUTBOUND_QUEUE_LAG_GAUGE = METRICS_PREFIX + "outbound.queue.lag.millis";
+    private static final String OUTBOUND_QUEUE_DROPPED_COUNTER = METRICS_PREFIX + "outbound.queue.dropped";
+
+    private static final String MQTT_QUEUE_SIZE_GAUGE = METRICS_PREFIX + "mqtt.queue.size";
+    private static final String MQTT_PUBLISHED_COUNTER = METRICS_PREFIX + "mqtt.published";
+    private static final String MQTT_COALESCED_COUNTER = METRICS_PREFIX + "mqtt.coalesced";
+    private static final String MQTT_DROPPED_COUNTER = METRICS_PREFIX + "mqtt.dropped";
+
+    private static final String[] INCOMING_DATA_TAG_NAMES = {DATATYPE_TAG_NAME, AGENCY_TAG_NAME};
+    private static final String[] OUTGOING_DATA_TAG_NAMES = {DATATYPE_TAG_NAME, "mode"};
+    private static final String[] VALIDATION_TAG_NAMES = {DATATYPE_TAG_NAME, CODESPACE_TAG_NAME, VALIDATION_TYPE_TAG_NAME, VALIDATION_RULE_TAG_NAME};
+    private static final String[] VALIDATION_RESULT_TAG_NAMES = {DATATYPE_TAG_NAME, CODESPACE_TAG_NAME, SCHEMA_VALID_TAG_NAME, PROFILE_VALID_TAG_NAME};
+
+    private static final MappingNames[] MAPPING_NAMES = MappingNames.values();
+
+    /**
+     * Counters resolved once, and reused - avoids building tags and looking up the counter in the registry per call
+     */
+    private final ConcurrentMap<CounterKey, Counter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Mapping counts per dataType and agency, indexed by MappingNames - read by the registry when scraped
+     */
+    private final Map<SiriDataType, ConcurrentMap<String, AtomicReferenceArray<LongAdder>>> dataMappingCounts = new EnumMap<>(SiriDataType.class);
+
     public PrometheusMetricsService() {
         super(PrometheusConfig.DEFAULT);
+        for (SiriDataType dataType : SiriDataType.values()) {
+            dataMappingCounts.put(dataType, new ConcurrentHashMap<>());
+        }
     }
 
     @PreDestroy
@@ -84,24 +136,43 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
 
     public void registerIncomingData(SiriDataType dataType, String agencyId, long total, long updated, long expired, long ignored) {
 
-        List<Tag> counterTags = new ArrayList<>();
-        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
-        counterTags.add(new ImmutableTag(AGENCY_TAG_NAME, agencyId));
+        String dataTypeName = dataType.name();
 
-        counter(DATA_TOTAL_COUNTER_NAME,   counterTags).increment(total);
-        counter(DATA_SUCCESS_COUNTER_NAME, counterTags).increment(updated);
-        counter(DATA_EXPIRED_COUNTER_NAME, counterTags).increment(expired);
-        counter(DATA_IGNORED_COUNTER_NAME, counterTags).increment(ignored);
+        cachedCounter(DATA_TOTAL_COUNTER_NAME,   INCOMING_DATA_TAG_NAMES, dataTypeName, agencyId).increment(total);
+        cachedCounter(DATA_SUCCESS_COUNTER_NAME, INCOMING_DATA_TAG_NAMES, dataTypeName, agencyId).increment(updated);
+        cachedCounter(DATA_EXPIRED_COUNTER_NAME, INCOMING_DATA_TAG_NAMES, dataTypeName, agencyId).increment(expired);
+        cachedCounter(DATA_IGNORED_COUNTER_NAME, INCOMING_DATA_TAG_NAMES, dataTypeName, agencyId).increment(ignored);
     }
 
+    /**
+     * Called per mapped element - only adds to a LongAdder, which is read when metrics are scraped
+     */
     public void registerDataMapping(SiriDataType dataType, String agencyId, MappingNames mappingName, int mappedCount) {
 
-        List<Tag> counterTags = new ArrayList<>();
-        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
-        counterTags.add(new ImmutableTag(AGENCY_TAG_NAME, agencyId));
-        counterTags.add(new ImmutableTag(MAPPING_NAME_TAG, mappingName.toString()));
+        AtomicReferenceArray<LongAdder> mappingCounts = dataMappingCounts.get(dataType)
+                .computeIfAbsent(agencyId, agency -> new AtomicReferenceArray<>(MAPPING_NAMES.length));
 
-        counter(DATA_MAPPING_COUNTER_NAME, counterTags).increment(mappedCount);
+        LongAdder mappingCount = mappingCounts.get(mappingName.ordinal());
+        if (mappingCount == null) {
+            mappingCount = registerDataMappingCount(mappingCounts, dataType, agencyId, mappingName);
+        }
+        mappingCount.add(mappedCount);
+    }
+
+    private LongAdder registerDataMappingCount(AtomicReferenceArray<LongAdder> mappingCounts, SiriDataType dataType,
+                                               String agencyId, MappingNames mappingName) {
+        LongAdder mappingCount = new LongAdder();
+        if (!mappingCounts.compareAndSet(mappingName.ordinal(), null, mappingCount)) {
+            return mappingCounts.get(mappingName.ordinal());
+        }
+
+        // The counter only keeps a weak reference to the LongAdder - strong reference is kept in dataMappingCounts
+        FunctionCounter.builder(DATA_MAPPING_COUNTER_NAME, mappingCount, LongAdder::doubleValue)
+                .tag(DATATYPE_TAG_NAME, dataType.name())
+                .tag(AGENCY_TAG_NAME, agencyId)
+                .tag(MAPPING_NAME_TAG, mappingName.toString())
+                .register(this);
+        return mappingCount;
     }
 
     public void countOutgoingData(Siri siri, SubscriptionSetup.SubscriptionMode mode) {
@@ -143,49 +214,100 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
     public void addValidationMetrics(
         SiriDataType dataType, String codespaceId, ValidationType validationType, String message, Integer count
     ) {
-        List<Tag> counterTags = new ArrayList<>();
-        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
-        counterTags.add(new ImmutableTag(CODESPACE_TAG_NAME, codespaceId));
-        counterTags.add(new ImmutableTag(VALIDATION_TYPE_TAG_NAME, validationType.name()));
-        counterTags.add(new ImmutableTag(VALIDATION_RULE_TAG_NAME, message));
-
-        counter(DATA_VALIDATION_COUNTER, counterTags).increment(count);
+        cachedCounter(DATA_VALIDATION_COUNTER, VALIDATION_TAG_NAMES,
+                dataType.name(), codespaceId, validationType.name(), message).increment(count);
     }
 
     public void addValidationResult(
         SiriDataType dataType, String codespaceId, boolean schemaValid, boolean profileValid
     ) {
-        List<Tag> counterTags = new ArrayList<>();
-        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
-        counterTags.add(new ImmutableTag(CODESPACE_TAG_NAME, codespaceId));
-        counterTags.add(new ImmutableTag(SCHEMA_VALID_TAG_NAME, ""+schemaValid));
-        counterTags.add(new ImmutableTag(PROFILE_VALID_TAG_NAME, ""+profileValid));
+        cachedCounter(DATA_VALIDATION_RESULT_COUNTER, VALIDATION_RESULT_TAG_NAMES,
+                dataType.name(), codespaceId, String.valueOf(schemaValid), String.valueOf(profileValid)).increment();
+    }
+
+    public void registerAsyncExecutor(String executorName, ThreadPoolExecutor executor) {
+        List<Tag> tags = List.of(new ImmutableTag(EXECUTOR_TAG_NAME, executorName));
+
+        gauge(EXECUTOR_QUEUE_SIZE_GAUGE, tags, executor, e -> e.getQueue().size());
+        gauge(EXECUTOR_ACTIVE_GAUGE, tags, executor, ThreadPoolExecutor::getActiveCount);
+    }
+
+    public void registerAsyncTaskRejected(String executorName) {
+        counter(EXECUTOR_REJECTED_COUNTER, List.of(new ImmutableTag(EXECUTOR_TAG_NAME, executorName))).increment();
+    }
+
+    public void registerAsyncTask(String executorName, String taskName, long waitNanos, long executionNanos) {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new ImmutableTag(EXECUTOR_TAG_NAME, executorName));
+        tags.add(new ImmutableTag(TASK_TAG_NAME, taskName));
+
+        timer(EXECUTOR_TASK_WAIT_TIMER, tags).record(waitNanos, TimeUnit.NANOSECONDS);
+        timer(EXECUTOR_TASK_EXECUTION_TIMER, tags).record(executionNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void registerOutboundQueue(String subscriptionId, Supplier<Number> queueSize, Supplier<Number> queueBytes,
+                                      Supplier<Number> lagMillis, Supplier<Number> droppedCount) {
+        List<Tag> tags = List.of(new ImmutableTag(SUBSCRIPTION_ID_TAG_NAME, subscriptionId));
 
-        counter(DATA_VALIDATION_RESULT_COUNTER, counterTags).increment();
+        Gauge.builder(OUTBOUND_QUEUE_SIZE_GAUGE, queueSize).tags(tags).register(this);
+        Gauge.builder(OUTBOUND_QUEUE_BYTES_GAUGE, queueBytes).tags(tags).register(this);
+        Gauge.builder(OUTBOUND_QUEUE_LAG_GAUGE, lagMillis).tags(tags).register(this);
+        registerFunctionCounter(OUTBOUND_QUEUE_DROPPED_COUNTER, tags, droppedCount);
+    }
+
+    public void removeOutboundQueue(String subscriptionId) {
+        for (String name : List.of(OUTBOUND_QUEUE_SIZE_GAUGE, OUTBOUND_QUEUE_BYTES_GAUGE, OUTBOUND_QUEUE_LAG_GAUGE, OUTBOUND_QUEUE_DROPPED_COUNTER)) {
+            find(name).tag(SUBSCRIPTION_ID_TAG_NAME, subscriptionId).meters().forEach(this::remove);
+        }
+    }
+
+    public void registerMqttPublisher(Supplier<Number> queueSize, Supplier<Number> publishedCount,
+                                      Supplier<Number> coalescedCount, Supplier<Number> droppedCount) {
+        Gauge.builder(MQTT_QUEUE_SIZE_GAUGE, queueSize).register(this);
+        registerFunctionCounter(MQTT_PUBLISHED_COUNTER, List.of(), publishedCount);
+        registerFunctionCounter(MQTT_COALESCED_COUNTER, List.of(), coalescedCount);
+        registerFunctionCounter(MQTT_DROPPED_COUNTER, List.of(), droppedCount);
+    }
+
+    /**
+     * FunctionCounter only keeps a weak reference to its object - the registry itself is used as object so that the
+     * supplier is strongly referenced by the function
+     */
+    private void registerFunctionCounter(String name, List<Tag> tags, Supplier<Number> count) {
+        FunctionCounter.builder(name, this, registry -> count.get().doubleValue()).tags(tags).register(this);
     }
 
     private void countOutgoingData(SiriDataType dataType, SubscriptionSetup.SubscriptionMode mode, long objectCount) {
         if (dataType != null && objectCount > 0) {
-            List<Tag> counterTags = new ArrayList<>();
-            counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
-            counterTags.add(new ImmutableTag("mode", mode.name()));
-
-            counter(DATA_OUTBOUND_COUNTER_NAME, counterTags).increment(objectCount);
+            cachedCounter(DATA_OUTBOUND_COUNTER_NAME, OUTGOING_DATA_TAG_NAMES, dataType.name(), mode.name()).increment(objectCount);
         }
     }
 
-    final Map<String, Integer> gaugeValues = new HashMap<>();
+    private Counter cachedCounter(String name, String[] tagNames, String... tagValues) {
+        CounterKey key = new CounterKey(name, tagValues);
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> {
+                List<Tag> counterTags = new ArrayList<>();
+                for (int i = 0; i < tagNames.length; i++) {
+                    counterTags.add(new ImmutableTag(tagNames[i], tagValues[i]));
+                }
+                return counter(name, counterTags);
+            });
+        }
+        return counter;
+    }
 
-    public void gaugeDataset(SiriDataType subscriptionType, String agencyId, Integer count) {
+    /**
+     * Registered once per dataset - the gauge reads the current count from the repository
+     */
+    private <T> void gaugeDataset(SiriDataType subscriptionType, String agencyId, T repository, ToDoubleFunction<T> datasetSize) {
 
         List<Tag> counterTags = new ArrayList<>();
         counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, subscriptionType.name()));
         counterTags.add(new ImmutableTag(AGENCY_TAG_NAME, agencyId));
 
-        String key = "" + subscriptionType + agencyId;
-        gaugeValues.put(key, count);
-
-        gauge(DATA_COUNTER_NAME, counterTags, key, value -> gaugeValues.get(key));
+        gauge(DATA_COUNTER_NAME, counterTags, repository, datasetSize);
     }
 
     @Override
@@ -196,28 +318,20 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
 
     public void update() {
 
-        for (Meter meter : getMeters()) {
-            if (DATA_COUNTER_NAME.equals(meter.getId().getName())) {
-                this.remove(meter);
-            }
-        }
-
+        // Only datasets not seen before are registered
         EstimatedTimetables estimatedTimetables = ApplicationContextHolder.getContext().getBean(EstimatedTimetables.class);
-        Map<String, Integer> datasetSize = estimatedTimetables.getLocalDatasetSize();
-        for (Map.Entry<String, Integer> entry : datasetSize.entrySet()) {
-            gaugeDataset(SiriDataType.ESTIMATED_TIMETABLE, entry.getKey(), entry.getValue());
+        for (String agencyId : estimatedTimetables.getLocalDatasetSize().keySet()) {
+            gaugeDataset(SiriDataType.ESTIMATED_TIMETABLE, agencyId, estimatedTimetables, et -> et.getLocalDatasetSize(agencyId));
         }
 
         Situations situations = ApplicationContextHolder.getContext().getBean(Situations.class);
-        datasetSize = situations.getLocalDatasetSize();
-        for (Map.Entry<String, Integer> entry : datasetSize.entrySet()) {
-            gaugeDataset(SiriDataType.SITUATION_EXCHANGE, entry.getKey(), entry.getValue());
+        for (String agencyId : situations.getLocalDatasetSize().keySet()) {
+            gaugeDataset(SiriDataType.SITUATION_EXCHANGE, agencyId, situations, sx -> sx.getLocalDatasetSize(agencyId));
         }
 
         VehicleActivities vehicleActivities = ApplicationContextHolder.getContext().getBean(VehicleActivities.class);
-        datasetSize = vehicleActivities.getLocalDatasetSize();
-        for (Map.Entry<String, Integer> entry : datasetSize.entrySet()) {
-            gaugeDataset(SiriDataType.VEHICLE_MONITORING, entry.getKey(), entry.getValue());
+        for (String agencyId : vehicleActivities.getLocalDatasetSize().keySet()) {
+            gaugeDataset(SiriDataType.VEHICLE_MONITORING, agencyId, vehicleActivities, vm -> vm.getLocalDatasetSize(agencyId));
         }
 
         ReplicatedMap<String, SubscriptionSetup> subscriptions = manager.subscriptions;
@@ -268,4 +382,29 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         }
         return 0;
     }
+
+    private static final class CounterKey {
+        private final String name;
+        private final String[] tagValues;
+        private final int hashCode;
+
+        private CounterKey(String name, String[] tagValues) {
+            this.name = name;
+            this.tagValues = tagValues;
+            this.hashCode = 31 * name.hashCode() + Arrays.hashCode(tagValues);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CounterKey)) return false;
+            CounterKey that = (CounterKey) o;
+            return name.equals(that.name) && Arrays.equals(tagValues, that.tagValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
 }
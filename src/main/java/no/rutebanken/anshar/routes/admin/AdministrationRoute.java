@@ -19,6 +19,7 @@ import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
 import no.rutebanken.anshar.routes.RestRouteBuilder;
 import no.rutebanken.anshar.routes.health.HealthManager;
 import no.rutebanken.anshar.routes.outbound.ServerSubscriptionManager;
+import no.rutebanken.anshar.routes.policy.LeadershipCoordinator;
 import no.rutebanken.anshar.subscription.SubscriptionManager;
 import org.apache.commons.lang3.StringUtils;
 import org.json.simple.JSONObject;
@@ -62,6 +63,9 @@ public class AdministrationRoute extends RestRouteBuilder {
     @Autowired
     private AdminRouteHelper helper;
 
+    @Autowired
+    private LeadershipCoordinator leadershipCoordinator;
+
     @Value("${anshar.route.singleton.policy.automatic.verification:false}")
     private boolean autoLockVerificationEnabled;
 
@@ -74,6 +78,7 @@ public class AdministrationRoute extends RestRouteBuilder {
                 .get("").produces(MediaType.TEXT_HTML).to(STATS_ROUTE)
                 .put("").to(OPERATION_ROUTE)
                 .get("/locks").to("direct:locks")
+                .get("/leadership").to("direct:leadership")
         ;
 
         rest("/anshar").tag("internal.admin")
@@ -145,6 +150,39 @@ public class AdministrationRoute extends RestRouteBuilder {
             .routeId("admin")
         ;
 
+        from("direct:leadership")
+            .process(p -> {
+                final Map<String, String> assignments = leadershipCoordinator.getAssignments();
+                final Map<String, String> locksMap = helper.getAllLocks();
+
+                final Map<String, Long> assignedCount = assignments.values()
+                    .stream()
+                    .collect(Collectors.groupingBy(member -> member, Collectors.counting()));
+
+                String body = "member | assigned\n";
+                for (Map.Entry<String, Boolean> member : leadershipCoordinator.getMembers().entrySet()) {
+                    body += member.getKey() + (member.getValue() ? " (this)" : "") + " | "
+                        + assignedCount.getOrDefault(member.getKey(), 0L) + "\n";
+                }
+
+                int maxlength = 0;
+                int maxAssignedLength = 0;
+                for (Map.Entry<String, String> e : assignments.entrySet()) {
+                    maxlength = Math.max(maxlength, e.getKey().length());
+                    maxAssignedLength = Math.max(maxAssignedLength, e.getValue().length());
+                }
+
+                body += "\n" + StringUtils.rightPad("key", maxlength) + " | " + StringUtils.rightPad("assigned", maxAssignedLength) + " | lock\n";
+                for (Map.Entry<String, String> e : assignments.entrySet()) {
+                    final String lockValue = locksMap.get(e.getKey());
+                    body += StringUtils.rightPad(e.getKey(), maxlength) + " | " + StringUtils.rightPad(e.getValue(), maxAssignedLength)
+                        + " | " + (lockValue != null ? lockValue : "") + "\n";
+                }
+                p.getOut().setBody(body);
+            })
+            .routeId("admin.leadership")
+        ;
+
         //Return subscription status
         from(STATS_ROUTE)
                 .process(p -> {
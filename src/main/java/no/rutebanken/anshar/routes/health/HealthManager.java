@@ -15,6 +15,7 @@
 
 package no.rutebanken.anshar.routes.health;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.hazelcast.core.HazelcastInstanceNotActiveException;
 import com.hazelcast.map.IMap;
 import no.rutebanken.anshar.data.collections.HealthCheckKey;
@@ -30,11 +31,20 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.Instant;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("unchecked")
 @Service
@@ -57,6 +67,31 @@ public class HealthManager {
     @Value("${anshar.healthcheck.interval.seconds}")
     private int healthCheckInterval = 30;
 
+    @Value("${anshar.mapping.unmapped.flush.interval.seconds:10}")
+    private int unmappedIdsFlushInterval = 10;
+
+    /**
+     * Unmapped ids tracked locally until flushed - true if id is unmapped, false if it has since been mapped
+     */
+    private final ConcurrentMap<UnmappedId, Boolean> unmappedIdChanges = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService unmappedIdsFlushExecutor;
+
+    @PostConstruct
+    void initialize() {
+        unmappedIdsFlushExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("unmapped-ids-flush").setDaemon(true).build());
+
+        unmappedIdsFlushExecutor.scheduleWithFixedDelay(this::flushUnmappedIds,
+                unmappedIdsFlushInterval, unmappedIdsFlushInterval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        unmappedIdsFlushExecutor.shutdown();
+        flushUnmappedIds();
+    }
+
     public boolean isHazelcastAlive() {
         try {
             healthCheckMap.set(HealthCheckKey.NODE_LIVENESS_CHECK, Instant.now());
@@ -105,6 +140,8 @@ public class HealthManager {
     }
 
     public Map<SiriDataType, Set<String>> getUnmappedIds(String datasetId) {
+        // Include changes tracked by this node
+        flushUnmappedIds();
         return unmappedIds.getOrDefault(datasetId, new HashMap<>());
     }
 
@@ -136,23 +173,91 @@ public class HealthManager {
         return result;
     }
 
+    /**
+     * Tracked locally, and merged into the shared map when flushed
+     */
     public void addUnmappedId(SiriDataType type, String datasetId, String id) {
-        Map<SiriDataType, Set<String>> unmappedIds = getUnmappedIds(datasetId);
+        unmappedIdChanges.put(new UnmappedId(datasetId, type, id), Boolean.TRUE);
+    }
 
-        Set<String> ids = unmappedIds.getOrDefault(type, new HashSet<>());
-        ids.add(id);
-        unmappedIds.put(type, ids);
+    /**
+     * Tracked locally, and merged into the shared map when flushed
+     */
+    public void removeUnmappedId(SiriDataType type, String datasetId, String id) {
+        unmappedIdChanges.put(new UnmappedId(datasetId, type, id), Boolean.FALSE);
+    }
 
-        this.unmappedIds.set(datasetId, unmappedIds);
+    /**
+     * Merges changes tracked since last flush into the shared map - one EntryProcessor per dataset
+     */
+    void flushUnmappedIds() {
+        if (unmappedIdChanges.isEmpty()) {
+            return;
+        }
+
+        Map<String, Map<SiriDataType, Map<String, Boolean>>> changesByDataset = new HashMap<>();
+        for (Map.Entry<UnmappedId, Boolean> change : unmappedIdChanges.entrySet()) {
+            final UnmappedId unmappedId = change.getKey();
+            final Boolean unmapped = change.getValue();
+
+            // Changed again after being read is kept until next flush
+            if (unmappedIdChanges.remove(unmappedId, unmapped)) {
+                changesByDataset.computeIfAbsent(unmappedId.datasetId, d -> new EnumMap<>(SiriDataType.class))
+                        .computeIfAbsent(unmappedId.type, t -> new HashMap<>())
+                        .put(unmappedId.id, unmapped);
+            }
+        }
+
+        Map<String, CompletableFuture<?>> merges = new HashMap<>();
+        for (Map.Entry<String, Map<SiriDataType, Map<String, Boolean>>> changes : changesByDataset.entrySet()) {
+            try {
+                merges.put(changes.getKey(), unmappedIds.submitToKey(changes.getKey(),
+                        new UnmappedIdMerger(changes.getValue())).toCompletableFuture());
+            } catch (Exception e) {
+                merges.put(changes.getKey(), CompletableFuture.failedFuture(e));
+            }
+        }
+
+        for (Map.Entry<String, CompletableFuture<?>> merge : merges.entrySet()) {
+            try {
+                merge.getValue().join();
+            } catch (Exception e) {
+                logger.warn("Flushing unmapped ids for {} caused exception - retrying on next flush", merge.getKey(), e);
+                restoreUnmappedIdChanges(merge.getKey(), changesByDataset.get(merge.getKey()));
+            }
+        }
     }
 
-    public void removeUnmappedId(SiriDataType type, String datasetId, String id) {
-        Map<SiriDataType, Set<String>> unmappedIds = getUnmappedIds(datasetId);
+    /**
+     * Puts changes that could not be flushed back - unless changed again in the meantime, as the newer change wins
+     */
+    private void restoreUnmappedIdChanges(String datasetId, Map<SiriDataType, Map<String, Boolean>> changes) {
+        changes.forEach((type, ids) -> ids.forEach((id, unmapped) ->
+                unmappedIdChanges.putIfAbsent(new UnmappedId(datasetId, type, id), unmapped)));
+    }
 
-        Set<String> ids = unmappedIds.getOrDefault(type, new HashSet<>());
-        ids.remove(id);
-        unmappedIds.put(type, ids);
+    private static final class UnmappedId {
+        private final String datasetId;
+        private final SiriDataType type;
+        private final String id;
+
+        private UnmappedId(String datasetId, SiriDataType type, String id) {
+            this.datasetId = datasetId;
+            this.type = type;
+            this.id = id;
+        }
 
-        this.unmappedIds.set(datasetId, unmappedIds);
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof UnmappedId)) return false;
+            UnmappedId that = (UnmappedId) o;
+            return datasetId.equals(that.datasetId) && type == that.type && id.equals(that.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(datasetId, type, id);
+        }
     }
 }
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.health;
+
+import com.hazelcast.map.EntryProcessor;
+import no.rutebanken.anshar.subscription.SiriDataType;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges locally tracked changes into the unmapped ids of a dataset on the partition owner, so that changes from
+ * different nodes are not overwritten by each other.
+ */
+class UnmappedIdMerger implements EntryProcessor<String, Map<SiriDataType, Set<String>>, Void> {
+
+    /**
+     * Per type, id mapped to true if it is unmapped, false if it has since been mapped
+     */
+    private final Map<SiriDataType, Map<String, Boolean>> changes;
+
+    UnmappedIdMerger(Map<SiriDataType, Map<String, Boolean>> changes) {
+        this.changes = changes;
+    }
+
+    @Override
+    public Void process(Map.Entry<String, Map<SiriDataType, Set<String>>> entry) {
+        Map<SiriDataType, Set<String>> unmappedIds = entry.getValue() != null ? entry.getValue() : new HashMap<>();
+
+        changes.forEach((type, ids) -> {
+            Set<String> unmappedIdsForType = unmappedIds.computeIfAbsent(type, t -> new HashSet<>());
+            ids.forEach((id, unmapped) -> {
+                if (unmapped) {
+                    unmappedIdsForType.add(id);
+                } else {
+                    unmappedIdsForType.remove(id);
+                }
+            });
+        });
+
+        entry.setValue(unmappedIds);
+        return null;
+    }
+}
@@ -24,9 +24,8 @@ import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -38,7 +37,10 @@ public class BaneNorIdPlatformUpdaterService {
 
     private static final Object LOCK = new Object();
 
-    private final ConcurrentMap<String, String> jbvCodeStopPlaceMappings = new ConcurrentHashMap<>();
+    /**
+     * Replaced as a whole when updated
+     */
+    private volatile StopPlaceMappings jbvCodeStopPlaceMappings = StopPlaceMappings.EMPTY;
 
     @Value("${anshar.mapping.jbvCode.gcs.path}")
     private String jbvCodeStopPlaceMappingPath;
@@ -89,7 +91,13 @@ public class BaneNorIdPlatformUpdaterService {
     private void updateStopPlaceMapping() throws IOException {
         if (jbvCodeStopPlaceMappingPath != null && !jbvCodeStopPlaceMappingPath.isEmpty()) {
             logger.info("Fetching mapping-data from {}", jbvCodeStopPlaceMappingPath);
-            jbvCodeStopPlaceMappings.putAll(stopPlaceRegisterMappingFetcher.fetchStopPlaceMapping(jbvCodeStopPlaceMappingPath));
+            final Map<String, String> fetchedMappings = stopPlaceRegisterMappingFetcher.fetchStopPlaceMapping(jbvCodeStopPlaceMappingPath);
+            if (fetchedMappings.isEmpty()) {
+                logger.warn("No mappings fetched - keeping current {} mappings", jbvCodeStopPlaceMappings.size());
+                return;
+            }
+            // Mappings no longer in the mapping-data are removed
+            jbvCodeStopPlaceMappings = StopPlaceMappings.of(fetchedMappings);
         }
     }
 }
@@ -0,0 +1,263 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.mapping;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable id-mapping, built once from the fetched mapping-data and replaced as a whole on updates.
+ *
+ * Keys and values are stored as ISO-8859-1 bytes in a single array, indexed by an open-addressing hashtable - a few
+ * arrays in total instead of three objects per mapping. Prefixed ids are hashed and compared part by part, so that
+ * lookups do not build the complete id. Mappings with characters outside ISO-8859-1 are kept in a regular map.
+ */
+public final class StopPlaceMappings {
+
+    public static final StopPlaceMappings EMPTY = of(Collections.emptyMap());
+
+    private static final char SEPARATOR = ':';
+
+    private static final int MAX_ENCODED_CHAR = 0xFF;
+
+    /**
+     * Key of entry i is stored in [offsets[2i], offsets[2i+1]), value in [offsets[2i+1], offsets[2i+2])
+     */
+    private final byte[] data;
+    private final int[] offsets;
+    private final int[] hashes;
+
+    /**
+     * Entry index + 1, 0 if slot is empty
+     */
+    private final int[] table;
+    private final int mask;
+
+    private final Map<String, String> unencodedMappings;
+
+    private StopPlaceMappings(byte[] data, int[] offsets, int[] hashes, int[] table, Map<String, String> unencodedMappings) {
+        this.data = data;
+        this.offsets = offsets;
+        this.hashes = hashes;
+        this.table = table;
+        this.mask = table.length - 1;
+        this.unencodedMappings = unencodedMappings;
+    }
+
+    public static StopPlaceMappings of(Map<String, String> mappings) {
+        List<Map.Entry<String, String>> entries = new ArrayList<>(mappings.size());
+        Map<String, String> unencodedMappings = new HashMap<>();
+        int dataLength = 0;
+        for (Map.Entry<String, String> entry : mappings.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                continue;
+            }
+            if (isEncodable(entry.getKey()) && isEncodable(entry.getValue())) {
+                entries.add(entry);
+                dataLength += entry.getKey().length() + entry.getValue().length();
+            } else {
+                unencodedMappings.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        final int size = entries.size();
+        byte[] data = new byte[dataLength];
+        int[] offsets = new int[2 * size + 1];
+        int[] hashes = new int[size];
+        // Power of two, at most half full
+        int[] table = new int[Integer.highestOneBit(Math.max(2, 2 * size) - 1) << 1];
+        int mask = table.length - 1;
+
+        int position = 0;
+        for (int i = 0; i < size; i++) {
+            String key = entries.get(i).getKey();
+            String value = entries.get(i).getValue();
+
+            offsets[2 * i] = position;
+            position = encode(key, data, position);
+            offsets[2 * i + 1] = position;
+            position = encode(value, data, position);
+
+            int hash = mix(hash(0, key));
+            hashes[i] = hash;
+
+            int slot = hash & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        offsets[2 * size] = position;
+
+        return new StopPlaceMappings(data, offsets, hashes, table,
+                unencodedMappings.isEmpty() ? Collections.emptyMap() : unencodedMappings);
+    }
+
+    /**
+     * @return mapped value, or null if id is not mapped
+     */
+    public String get(String id) {
+        if (id == null) {
+            return null;
+        }
+        final int hash = mix(hash(0, id));
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int entry = table[slot] - 1;
+            if (hashes[entry] == hash && keyLength(entry) == id.length() && regionMatches(offsets[2 * entry], id)) {
+                return getValue(entry);
+            }
+        }
+        return unencodedMappings.isEmpty() ? null : unencodedMappings.get(id);
+    }
+
+    /**
+     * Looks up the id qualified as prefix:datatype:id - ids that are already qualified with the prefix and datatype
+     * are looked up as-is.
+     *
+     * @return mapped value, or null if the qualified id is not mapped
+     */
+    public String get(String prefix, String datatype, String id) {
+        if (id == null) {
+            return null;
+        }
+        if (isQualified(prefix, datatype, id)) {
+            return get(id);
+        }
+
+        final int hash = mix(hash(hash(hash(hash(hash(0, prefix), SEPARATOR), datatype), SEPARATOR), id));
+        final int length = prefix.length() + datatype.length() + id.length() + 2;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            final int entry = table[slot] - 1;
+            if (hashes[entry] == hash && keyLength(entry) == length && qualifiedKeyMatches(entry, prefix, datatype, id)) {
+                return getValue(entry);
+            }
+        }
+        return unencodedMappings.isEmpty() ? null : unencodedMappings.get(prefix + SEPARATOR + datatype + SEPARATOR + id);
+    }
+
+    public int size() {
+        return hashes.length + unencodedMappings.size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return approximate memory used by the encoded mappings, in bytes
+     */
+    public long getEncodedSize() {
+        final int arrayHeader = 16;
+        return 4L * arrayHeader + data.length + 4L * (offsets.length + hashes.length + table.length);
+    }
+
+    public void forEach(BiConsumer<String, String> action) {
+        for (int i = 0; i < hashes.length; i++) {
+            action.accept(decode(offsets[2 * i], offsets[2 * i + 1]), getValue(i));
+        }
+        unencodedMappings.forEach(action);
+    }
+
+    private static boolean isQualified(String prefix, String datatype, String id) {
+        final int datatypeStart = prefix.length() + 1;
+        final int idStart = datatypeStart + datatype.length() + 1;
+        return id.length() >= idStart &&
+                id.startsWith(prefix) &&
+                id.charAt(datatypeStart - 1) == SEPARATOR &&
+                id.startsWith(datatype, datatypeStart) &&
+                id.charAt(idStart - 1) == SEPARATOR;
+    }
+
+    private boolean qualifiedKeyMatches(int entry, String prefix, String datatype, String id) {
+        int position = offsets[2 * entry];
+        if (!regionMatches(position, prefix)) {
+            return false;
+        }
+        position += prefix.length();
+        if (data[position++] != SEPARATOR || !regionMatches(position, datatype)) {
+            return false;
+        }
+        position += datatype.length();
+        return data[position++] == SEPARATOR && regionMatches(position, id);
+    }
+
+    private boolean regionMatches(int position, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if ((data[position + i] & 0xFF) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int keyLength(int entry) {
+        return offsets[2 * entry + 1] - offsets[2 * entry];
+    }
+
+    private String getValue(int entry) {
+        return decode(offsets[2 * entry + 1], offsets[2 * entry + 2]);
+    }
+
+    private String decode(int start, int end) {
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isEncodable(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > MAX_ENCODED_CHAR) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int encode(String s, byte[] data, int position) {
+        for (int i = 0; i < s.length(); i++) {
+            data[position++] = (byte) s.charAt(i);
+        }
+        return position;
+    }
+
+    /**
+     * Same as String.hashCode of the concatenated parts
+     */
+    private static int hash(int hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            hash = 31 * hash + s.charAt(i);
+        }
+        return hash;
+    }
+
+    private static int hash(int hash, char c) {
+        return 31 * hash + c;
+    }
+
+    /**
+     * Spreads the bits of the hash, as ids often differ in the last characters only
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -23,9 +23,8 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -38,7 +37,10 @@ public class StopPlaceUpdaterService {
 
     private static final Object LOCK = new Object();
 
-    private final ConcurrentMap<String, String> stopPlaceMappings = new ConcurrentHashMap<>();
+    /**
+     * Replaced as a whole when updated
+     */
+    private volatile StopPlaceMappings stopPlaceMappings = StopPlaceMappings.EMPTY;
 
     @Autowired
     private StopPlaceRegisterMappingFetcher stopPlaceRegisterMappingFetcher;
@@ -53,6 +55,19 @@ public class StopPlaceUpdaterService {
     private int updateFrequency = 60;
 
     public String get(String id) {
+        initializeIfEmpty();
+        return stopPlaceMappings.get(id);
+    }
+
+    /**
+     * Looks up the id qualified as prefix:datatype:id, without building the qualified id
+     */
+    public String get(String prefix, String datatype, String id) {
+        initializeIfEmpty();
+        return stopPlaceMappings.get(prefix, datatype, id);
+    }
+
+    private void initializeIfEmpty() {
         if (stopPlaceMappings.isEmpty()) {
             // Avoid multiple calls at the same time.
             // Could have used a timed lock here.
@@ -63,7 +78,6 @@ public class StopPlaceUpdaterService {
                 }
             }
         }
-        return stopPlaceMappings.get(id);
     }
 
     @PostConstruct
@@ -77,22 +91,38 @@ public class StopPlaceUpdaterService {
     }
 
     private void updateIdMapping() {
-        // re-entrant
-        synchronized (LOCK) {
-            updateStopPlaceMapping(quayMappingPath);
-            updateStopPlaceMapping(stopPlaceMappingPath);
-        }
-    }
-
-    private void updateStopPlaceMapping(String mappingUrl) {
-        logger.info("Fetching mapping data - start. Fetching mapping-data from {}", mappingUrl);
+        try {
+            // re-entrant
+            synchronized (LOCK) {
+                Map<String, String> mappings = new HashMap<>();
+                for (String mappingUrl : new String[]{quayMappingPath, stopPlaceMappingPath}) {
+                    logger.info("Fetching mapping data - start. Fetching mapping-data from {}", mappingUrl);
+
+                    final Map<String, String> fetchedMappings = stopPlaceRegisterMappingFetcher.fetchStopPlaceMapping(mappingUrl);
+                    if (fetchedMappings.isEmpty()) {
+                        logger.warn("No mappings fetched from {} - keeping current {} mappings", mappingUrl, stopPlaceMappings.size());
+                        return;
+                    }
+                    mappings.putAll(fetchedMappings);
+                }
 
-        stopPlaceMappings.putAll(stopPlaceRegisterMappingFetcher.fetchStopPlaceMapping(mappingUrl));
+                // Mappings no longer in the mapping-data are removed
+                stopPlaceMappings = StopPlaceMappings.of(mappings);
+                logger.info("Updated id_mapping - {} mappings", stopPlaceMappings.size());
+            }
+        } catch (Exception e) {
+            logger.warn("Fetching data - caused exception", e);
+        }
     }
 
 
     //Called from tests
     public void addStopPlaceMappings(Map<String, String> stopPlaceMap) {
-        this.stopPlaceMappings.putAll(stopPlaceMap);
+        synchronized (LOCK) {
+            Map<String, String> mappings = new HashMap<>();
+            stopPlaceMappings.forEach(mappings::put);
+            mappings.putAll(stopPlaceMap);
+            stopPlaceMappings = StopPlaceMappings.of(mappings);
+        }
     }
 }
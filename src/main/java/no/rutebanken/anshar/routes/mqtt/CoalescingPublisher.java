@@ -0,0 +1,252 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.mqtt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Publishes the latest value per key, from a fixed number of publisher threads.
+ *
+ * Each key has a single slot - a value offered while the previous one is still waiting replaces it, so a publisher
+ * that falls behind skips intermediate values instead of publishing stale ones. Values older than the one waiting or
+ * already published are dropped. Each key is published by at most one thread at a time, at most once per
+ * minimum interval.
+ */
+class CoalescingPublisher<T> {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingPublisher.class);
+
+    /**
+     * Slots without new values for this long are removed
+     */
+    private static final long IDLE_SLOT_NANOS = TimeUnit.MINUTES.toNanos(30);
+
+    private final ConcurrentMap<String, Slot<T>> slots = new ConcurrentHashMap<>();
+
+    private final DelayQueue<Slot<T>> readyQueue = new DelayQueue<>();
+
+    private final Consumer<T> publisher;
+
+    private final long minIntervalNanos;
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    private final AtomicLong nextPurge = new AtomicLong(System.nanoTime() + IDLE_SLOT_NANOS);
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param name prefix of thread names
+     * @param threadCount number of publisher threads
+     * @param minIntervalMillis minimum time between publishing values with the same key
+     * @param publisher publishes a single value - called from publisher threads
+     */
+    CoalescingPublisher(String name, int threadCount, long minIntervalMillis, Consumer<T> publisher) {
+        this.publisher = publisher;
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat(name + "-%d")
+                .setDaemon(true)
+                .build();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = threadFactory.newThread(this::publishLoop);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * @param key values with the same key replace each other
+     * @param timestamp values with a timestamp older than the latest offered value are dropped
+     * @param value
+     * @return false if the value was dropped as outdated
+     */
+    boolean offer(String key, long timestamp, T value) {
+        while (true) {
+            Slot<T> slot = slots.computeIfAbsent(key, Slot::new);
+            boolean schedule;
+            synchronized (slot) {
+                if (slot.removed) {
+                    // Removed as idle after lookup - retry with new slot
+                    continue;
+                }
+                if (timestamp < slot.latestTimestamp) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                if (slot.pending != null) {
+                    coalesced.incrementAndGet();
+                }
+                slot.pending = value;
+                slot.latestTimestamp = timestamp;
+                slot.lastOffered = System.nanoTime();
+
+                schedule = !slot.scheduled;
+                if (schedule) {
+                    slot.scheduled = true;
+                    slot.readyAt = Math.max(slot.lastOffered, slot.lastPublished + minIntervalNanos);
+                }
+            }
+            if (schedule) {
+                queued.incrementAndGet();
+                readyQueue.add(slot);
+            }
+            return true;
+        }
+    }
+
+    private void publishLoop() {
+        while (running) {
+            try {
+                Slot<T> slot = readyQueue.poll(1, TimeUnit.SECONDS);
+                if (slot != null) {
+                    publish(slot);
+                }
+                purgeIdleSlots();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void publish(Slot<T> slot) {
+        T value;
+        synchronized (slot) {
+            value = slot.pending;
+            slot.pending = null;
+        }
+
+        try {
+            publisher.accept(value);
+            published.incrementAndGet();
+        } catch (Exception e) {
+            dropped.incrementAndGet();
+            logger.warn("Publishing {} failed", slot.key, e);
+        }
+
+        // Slot stays scheduled while publishing, so that values with the same key are published in order
+        boolean reschedule;
+        synchronized (slot) {
+            slot.lastPublished = System.nanoTime();
+            reschedule = slot.pending != null;
+            if (reschedule) {
+                slot.readyAt = slot.lastPublished + minIntervalNanos;
+            } else {
+                slot.scheduled = false;
+            }
+        }
+        if (reschedule) {
+            readyQueue.add(slot);
+        } else {
+            queued.decrementAndGet();
+        }
+    }
+
+    private void purgeIdleSlots() {
+        final long now = System.nanoTime();
+        final long purgeAt = nextPurge.get();
+        if (now - purgeAt < 0 || !nextPurge.compareAndSet(purgeAt, now + IDLE_SLOT_NANOS)) {
+            return;
+        }
+        slots.values().removeIf(slot -> {
+            synchronized (slot) {
+                slot.removed = !slot.scheduled && now - slot.lastOffered > IDLE_SLOT_NANOS;
+                return slot.removed;
+            }
+        });
+    }
+
+    void shutdown() {
+        running = false;
+        threads.forEach(Thread::interrupt);
+    }
+
+    /**
+     * @return number of keys waiting to be, or being, published
+     */
+    int getQueueSize() {
+        return queued.get();
+    }
+
+    long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return number of values replaced by a newer value before being published
+     */
+    long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return number of values dropped as outdated, or because publishing failed
+     */
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static class Slot<T> implements Delayed {
+
+        private final String key;
+
+        private T pending;
+        private long latestTimestamp = Long.MIN_VALUE;
+
+        private long lastOffered;
+        private long lastPublished = System.nanoTime() - TimeUnit.DAYS.toNanos(1);
+
+        // Not changed while slot is in readyQueue
+        private long readyAt;
+
+        private boolean scheduled;
+        private boolean removed;
+
+        Slot(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(readyAt, ((Slot<?>) o).readyAt);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.mqtt;
+
+/**
+ * Writes HFP topics and vehicle position messages into reusable buffers, without building intermediate JSON-objects.
+ *
+ * Not thread-safe - each publishing thread uses its own instance.
+ */
+class HfpMessageEncoder {
+
+    private static final String TOPIC_PREFIX = "/hfp/journey/";
+
+    private static final char SLASH = '/';
+
+    private final StringBuilder topic = new StringBuilder(256);
+
+    private final StringBuilder message = new StringBuilder(512);
+
+    private boolean firstField;
+
+    /**
+     * Formats topic to string
+     * - hfp/journey/<mode>/<vehicleId>/<route>/<trip_id>/<direction>/<headsign>/<start_time>/<next_stop>/<geohash>;
+     */
+    String encodeTopic(String mode, String vehicleId, String route, String tripId, String direction, String headSign,
+                       String startTime, String nextStop, double lat, double lng) {
+        topic.setLength(0);
+        topic.append(TOPIC_PREFIX)
+                .append(mode).append(SLASH)
+                .append(vehicleId).append(SLASH)
+                .append(route).append(SLASH)
+                .append(tripId).append(SLASH)
+                .append(direction).append(SLASH)
+                .append(headSign).append(SLASH)
+                .append(startTime).append(SLASH)
+                .append(nextStop).append(SLASH);
+        appendGeoHash(lat, lng);
+        return topic.toString();
+    }
+
+    private void appendGeoHash(double latitude, double longitude) {
+        topic.append((int) latitude).append(';').append((int) longitude).append(SLASH);
+        for (int i = 1; i <= 3; i++) {
+            topic.append(digit(latitude, i)).append(digit(longitude, i)).append(SLASH);
+        }
+    }
+
+    private static int digit(double x, int i) {
+        return (int) (Math.floor(x * Math.pow(10, i)) % 10);
+    }
+
+    /**
+     * Starts message - {"VP":{...}}
+     */
+    HfpMessageEncoder beginMessage() {
+        message.setLength(0);
+        message.append("{\"").append(VehiclePosition.ROOT).append("\":{");
+        firstField = true;
+        return this;
+    }
+
+    HfpMessageEncoder field(String key, String value) {
+        if (value != null) {
+            appendKey(key);
+            appendString(value);
+        }
+        return this;
+    }
+
+    HfpMessageEncoder field(String key, long value) {
+        appendKey(key);
+        message.append(value);
+        return this;
+    }
+
+    /**
+     * Written as by org.json - without trailing zeros
+     */
+    HfpMessageEncoder field(String key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Non-finite value for " + key);
+        }
+        appendKey(key);
+        final int start = message.length();
+        message.append(value);
+
+        int decimalPoint = -1;
+        for (int i = start; i < message.length(); i++) {
+            final char c = message.charAt(i);
+            if (c == 'E') {
+                return this;
+            }
+            if (c == '.') {
+                decimalPoint = i;
+            }
+        }
+        if (decimalPoint >= 0) {
+            int end = message.length();
+            while (message.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (end - 1 == decimalPoint) {
+                end--;
+            }
+            message.setLength(end);
+        }
+        return this;
+    }
+
+    String endMessage() {
+        return message.append("}}").toString();
+    }
+
+    private void appendKey(String key) {
+        if (!firstField) {
+            message.append(',');
+        }
+        firstField = false;
+        appendString(key);
+        message.append(':');
+    }
+
+    private void appendString(String value) {
+        message.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    message.append("\\\"");
+                    break;
+                case '\\':
+                    message.append("\\\\");
+                    break;
+                case '\n':
+                    message.append("\\n");
+                    break;
+                case '\r':
+                    message.append("\\r");
+                    break;
+                case '\t':
+                    message.append("\\t");
+                    break;
+                case '\b':
+                    message.append("\\b");
+                    break;
+                case '\f':
+                    message.append("\\f");
+                    break;
+                default:
+                    if (c < ' ') {
+                        message.append("\\u00");
+                        message.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        message.append(c);
+                    }
+            }
+        }
+        message.append('"');
+    }
+}
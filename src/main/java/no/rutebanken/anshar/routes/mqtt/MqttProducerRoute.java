@@ -2,10 +2,7 @@ package no.rutebanken.anshar.routes.mqtt;
 
 
 import org.apache.camel.builder.RouteBuilder;
-import org.apache.camel.builder.ThreadPoolProfileBuilder;
 import org.apache.camel.component.paho.PahoConstants;
-import org.apache.camel.spi.ThreadPoolProfile;
-import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -54,21 +51,11 @@ public class MqttProducerRoute extends RouteBuilder {
 
         if (mqttEnabled) {
 
-            ThreadPoolProfile mqttThreadPool = new ThreadPoolProfileBuilder("mqtt-tp-profile")
-                    .maxPoolSize(1000)
-                    .maxQueueSize(2000)
-                    .poolSize(50)
-                    .rejectedPolicy(ThreadPoolRejectedPolicy.DiscardOldest)
-                    .build();
-
-            getContext().getExecutorServiceManager().registerThreadPoolProfile(mqttThreadPool);
-
-
-
+            // Called from the publisher threads of SiriVmMqttHandler - positions are coalesced per vehicle while waiting
             from("direct:send.to.mqtt")
                     .routeId("send.to.mqtt")
                     .setHeader(PahoConstants.CAMEL_PAHO_OVERRIDE_TOPIC, simple("${header.topic}"))
-                    .wireTap("direct:post.to.paho.client").executorServiceRef("mqtt-tp-profile");
+                    .to("direct:post.to.paho.client");
 
             from("direct:post.to.paho.client")
                     .routeId("post.to.paho.client")
@@ -15,13 +15,12 @@
 
 package no.rutebanken.anshar.routes.mqtt;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import no.rutebanken.anshar.routes.siri.transformer.ApplicationContextHolder;
 import no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter;
 import org.apache.camel.Produce;
 import org.apache.camel.ProducerTemplate;
 import org.apache.commons.lang3.tuple.Pair;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -41,6 +40,7 @@ import uk.org.siri.siri20.VehicleActivityStructure.MonitoredVehicleJourney;
 import uk.org.siri.siri20.VehicleModesEnumeration;
 import uk.org.siri.siri20.VehicleRef;
 
+import javax.annotation.PreDestroy;
 import javax.xml.datatype.Duration;
 import java.math.BigInteger;
 import java.time.DateTimeException;
@@ -49,21 +49,16 @@ import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicInteger;
 
 @Configuration
 @Component
 public class SiriVmMqttHandler {
     private final Logger logger = LoggerFactory.getLogger(SiriVmMqttHandler.class);
 
-    private static final String TOPIC_PREFIX = "/hfp/journey/";
-
-    private static final String SLASH = "/";
     private static final String DATE_FORMAT = "yyyy-MM-dd";
     private static final String ODAY_FORMAT = "hhmm";
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern(DATE_FORMAT);
+    private static final DateTimeFormatter ODAY_FORMATTER = DateTimeFormatter.ofPattern(ODAY_FORMAT);
 
     private static final String ENTUR = "entur";
     private static final String DIR_GO = "1";
@@ -71,73 +66,107 @@ public class SiriVmMqttHandler {
     private static final String GO = "go";
     private static final String BACK = "back";
 
-    private int pushCounter = 0;
     @Value("${anshar.mqtt.enabled:false}")
     private boolean mqttEnabled;
 
-    private static AtomicInteger processCounter = new AtomicInteger(0);
-
     @Value("${anshar.mqtt.destination.id.fallback:false}")
     private boolean destinationIdFallback;
 
     @Value("${anshar.mqtt.empty.headsign.allowed:false}")
     private boolean allowEmptyHeadsign;
 
-    @Value("${anshar.mqtt.threadpool.size:20}")
-    private int threadpoolSize = 20;
+    @Value("${anshar.mqtt.publisher.threads:4}")
+    private int publisherThreads = 4;
+
+    /**
+     * Max publish rate per vehicle - newer positions received within the interval replace the waiting one
+     */
+    @Value("${anshar.mqtt.vehicle.publish.interval.min.millis:1000}")
+    private long minPublishIntervalMillis = 1000;
 
     @Produce(uri = "direct:send.to.mqtt")
     ProducerTemplate mqttProducer;
 
-    ExecutorService executorService;
+    /**
+     * Encoders are reused by the publisher threads
+     */
+    private static final ThreadLocal<HfpMessageEncoder> encoder = ThreadLocal.withInitial(HfpMessageEncoder::new);
+
+    private volatile CoalescingPublisher<VehicleUpdate> publisher;
+
+    private CoalescingPublisher<VehicleUpdate> getPublisher() {
+        if (publisher == null) {
+            synchronized (this) {
+                if (publisher == null) {
+                    CoalescingPublisher<VehicleUpdate> vehiclePublisher = new CoalescingPublisher<>("mqtt-publisher",
+                            publisherThreads, minPublishIntervalMillis, this::pushToMqtt);
+
+                    PrometheusMetricsService metrics = ApplicationContextHolder.getContext().getBean(PrometheusMetricsService.class);
+                    metrics.registerMqttPublisher(vehiclePublisher::getQueueSize, vehiclePublisher::getPublishedCount,
+                            vehiclePublisher::getCoalescedCount, vehiclePublisher::getDroppedCount);
 
-    public SiriVmMqttHandler() {
-        logger.info("Creating ExecutorService with fixed Threadpool of size {}", threadpoolSize);
-        final ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("mqtt-push").build();
-        executorService = Executors.newFixedThreadPool(threadpoolSize, threadFactory);
+                    logger.info("Publishing MQTT-messages from {} threads, at most every {} ms per vehicle", publisherThreads, minPublishIntervalMillis);
+                    publisher = vehiclePublisher;
+                }
+            }
+        }
+        return publisher;
     }
 
-    public void pushToMqttAsync(String datasetId, VehicleActivityStructure activity) {
-        if (mqttEnabled) {
-            executorService.submit(() -> pushToMqtt(datasetId, activity));
+    @PreDestroy
+    void shutdown() {
+        if (publisher != null) {
+            publisher.shutdown();
         }
     }
 
-    private void pushToMqtt(String datasetId, VehicleActivityStructure activity) {
+    /**
+     * Queues position for publishing - only the latest position of each vehicle is published
+     */
+    public void pushToMqttAsync(String datasetId, VehicleActivityStructure activity) {
         if (!mqttEnabled) {
             return;
         }
 
         // If monitored == false, ignore update
-        if (activity != null && activity.getMonitoredVehicleJourney() != null &&
+        if (activity == null || activity.getMonitoredVehicleJourney() == null ||
                 Boolean.FALSE.equals(activity.getMonitoredVehicleJourney().isMonitored())) {
             return;
         }
 
-        try {
-            processCounter.incrementAndGet();
-            Pair<String, String> message = getMessage(datasetId, activity);
+        String vehicleId = getVehicleId(datasetId, activity.getMonitoredVehicleJourney());
+        if (vehicleId == null) {
+            trackError(datasetId, "VehicleActivityStructure.MonitoredVehicleJourney.VehicleRef is null");
+            return;
+        }
 
-            if (pushCounter % 500 == 0) {
-                logger.info("Pushed {} MQTT-messages. Current queue length: {}", pushCounter, processCounter.get());
-                logger.info("Errors since start: {}", errorCounter);
+        ZonedDateTime recordedAtTime = activity.getRecordedAtTime();
+        long timestamp = recordedAtTime != null ? recordedAtTime.toInstant().toEpochMilli() : System.currentTimeMillis();
+
+        getPublisher().offer(vehicleId, timestamp, new VehicleUpdate(datasetId, activity));
+    }
+
+    private void pushToMqtt(VehicleUpdate update) {
+        try {
+            Pair<String, String> message = getMessage(update.datasetId, update.activity);
+            if (message.getValue() == null) {
+                return;
             }
-            pushCounter++;
 
             mqttProducer.sendBodyAndHeader(message.getValue(), "topic", message.getKey());
 
+            if (publisher.getPublishedCount() % 500 == 0) {
+                logger.info("Pushed {} MQTT-messages. Current queue length: {}", publisher.getPublishedCount(), publisher.getQueueSize());
+                logger.info("Errors since start: {}", errorCounter);
+            }
         } catch (NullPointerException e) {
             logger.debug("Incomplete Siri data", e);
-            trackError(datasetId, e.getMessage());
-        } catch (Exception e) {
-            logger.warn("Could not parse", e);
-        } finally {
-            processCounter.decrementAndGet();
+            trackError(update.datasetId, e.getMessage());
         }
     }
 
-    private Map<String, Map<String, Integer>> errorCounter = new HashMap<>();
-    private void trackError(String datasetId, String message) {
+    private final Map<String, Map<String, Integer>> errorCounter = new HashMap<>();
+    private synchronized void trackError(String datasetId, String message) {
         final Map<String, Integer> datasetCounterMap = errorCounter.getOrDefault(message, new HashMap<>());
 
         int occurrences = datasetCounterMap.getOrDefault(datasetId, 0);
@@ -168,58 +197,41 @@ public class SiriVmMqttHandler {
         String timestamp = getTimestamp(activity);
         long tsi = getTsi(activity);
 
-        String topic = getTopic(mode, vehicleId, route, tripId, direction, headSign, startTime, nextStop, lat, lng);
+        HfpMessageEncoder hfpEncoder = encoder.get();
+
+        String topic = hfpEncoder.encodeTopic(mode, vehicleId, route, tripId, direction, headSign, startTime, nextStop, lat, lng);
         String message = null;
         try {
-            message = getMessage(monitoredVehicleJourney, vehicleId, timestamp, tsi, route, tripId, direction, headSign, startTime, lat, lng, mode);
-        } catch (JSONException e) {
+            message = getMessage(hfpEncoder, monitoredVehicleJourney, vehicleId, timestamp, tsi, route, tripId, direction, headSign, startTime, lat, lng, mode);
+        } catch (IllegalArgumentException e) {
            logger.info("Caught exception when generating MQTT-messsage - will be ignored", e);
         }
 
         return Pair.of(topic, message);
     }
 
-    /**
-     * Formats topic to string
-     * - hfp/journey/<mode>/<vehicleId>/<route>/<trip_id>/<direction>/<headsign>/<start_time>/<next_stop>/<geohash>;
-     */
-    private String getTopic(String mode, String vehicleId, String route, String tripId, String direction, String headSign,
-                            String startTime, String nextStop, double lat, double lng) {
-        return new StringBuilder(TOPIC_PREFIX)
-                    .append(mode).append(SLASH)
-                    .append(vehicleId).append(SLASH)
-                    .append(route).append(SLASH)
-                    .append(tripId).append(SLASH)
-                    .append(direction).append(SLASH)
-                    .append(headSign).append(SLASH)
-                    .append(startTime).append(SLASH)
-                    .append(nextStop).append(SLASH)
-                    .append(getGeoHash(lat, lng)).toString();
-    }
-
-    private String getMessage(MonitoredVehicleJourney monitoredVehicleJourney, String vehicleId, String timeStamp,
+    private String getMessage(HfpMessageEncoder hfpEncoder, MonitoredVehicleJourney monitoredVehicleJourney, String vehicleId, String timeStamp,
                               long tsi, String route, String tripId, String direction, String headSign, String startTime, double lat,
                               double lng, String mode) {
-        JSONObject vehiclePosition = new JSONObject();
-        vehiclePosition.put(VehiclePosition.DESIGNATION, getDesignation(monitoredVehicleJourney));
-        vehiclePosition.put(VehiclePosition.DIRECTION, direction);
-        vehiclePosition.put(VehiclePosition.OPERATOR, getDataSource(monitoredVehicleJourney));
-        vehiclePosition.put(VehiclePosition.VEHICLE_ID, vehicleId);
-        vehiclePosition.put(VehiclePosition.TIMESTAMP, timeStamp);
-        vehiclePosition.put(VehiclePosition.TSI, tsi);
-        vehiclePosition.put(VehiclePosition.LATITUDE, lat);
-        vehiclePosition.put(VehiclePosition.LONGITUDE, lng);
-        vehiclePosition.put(VehiclePosition.DELAY, getDelay(monitoredVehicleJourney));
-        vehiclePosition.put(VehiclePosition.ODAY, getDepartureDay(monitoredVehicleJourney));
-        vehiclePosition.put(VehiclePosition.JOURNEY, getJourney(headSign));
-        vehiclePosition.put(VehiclePosition.LINE, route);
-        vehiclePosition.put(VehiclePosition.TRIP_ID, tripId);
-        vehiclePosition.put(VehiclePosition.STARTTIME, startTime);
-        vehiclePosition.put(VehiclePosition.STOP_INDEX, getStopIndex(monitoredVehicleJourney));
-        vehiclePosition.put(VehiclePosition.SOURCE, ENTUR);
-        vehiclePosition.put(VehiclePosition.MODE, mode);
-
-        return new JSONObject().put(VehiclePosition.ROOT, vehiclePosition).toString();
+        return hfpEncoder.beginMessage()
+                .field(VehiclePosition.DESIGNATION, getDesignation(monitoredVehicleJourney))
+                .field(VehiclePosition.DIRECTION, direction)
+                .field(VehiclePosition.OPERATOR, getDataSource(monitoredVehicleJourney))
+                .field(VehiclePosition.VEHICLE_ID, vehicleId)
+                .field(VehiclePosition.TIMESTAMP, timeStamp)
+                .field(VehiclePosition.TSI, tsi)
+                .field(VehiclePosition.LATITUDE, lat)
+                .field(VehiclePosition.LONGITUDE, lng)
+                .field(VehiclePosition.DELAY, getDelay(monitoredVehicleJourney))
+                .field(VehiclePosition.ODAY, getDepartureDay(monitoredVehicleJourney))
+                .field(VehiclePosition.JOURNEY, getJourney(headSign))
+                .field(VehiclePosition.LINE, route)
+                .field(VehiclePosition.TRIP_ID, tripId)
+                .field(VehiclePosition.STARTTIME, startTime)
+                .field(VehiclePosition.STOP_INDEX, getStopIndex(monitoredVehicleJourney))
+                .field(VehiclePosition.SOURCE, ENTUR)
+                .field(VehiclePosition.MODE, mode)
+                .endMessage();
     }
 
     /*
@@ -316,7 +328,7 @@ public class SiriVmMqttHandler {
         String date = VehiclePosition.UNKNOWN;
         if (originAimedDepartureTime != null) {
             try {
-                date = originAimedDepartureTime.format(DateTimeFormatter.ofPattern(ODAY_FORMAT));
+                date = originAimedDepartureTime.format(ODAY_FORMATTER);
             } catch (DateTimeException exception) {
                 logger.warn("Could not format " + originAimedDepartureTime + " to " + ODAY_FORMAT, exception);
             }
@@ -351,15 +363,6 @@ public class SiriVmMqttHandler {
         throw new NullPointerException("VehicleActivityStructure.MonitoredVehicleJourney.VehicleLocation.Longitude not set");
     }
 
-    private String getGeoHash(double latitude, double longitude) {
-        StringBuilder geohash = new StringBuilder();
-        geohash.append((int)latitude);
-        geohash.append(";");
-        geohash.append((int)longitude);
-        geohash.append(digits(latitude, longitude));
-        return geohash.toString();
-    }
-
     /*
      * MQTT Message helper methods
      */
@@ -436,7 +439,7 @@ public class SiriVmMqttHandler {
         String date = VehiclePosition.UNKNOWN;
         if (originAimedDepartureTime != null) {
             try {
-                date = originAimedDepartureTime.format(DateTimeFormatter.ofPattern(DATE_FORMAT));
+                date = originAimedDepartureTime.format(DATE_FORMATTER);
             } catch (DateTimeException exception) {
                 logger.warn("Could not format " + originAimedDepartureTime + " to " + DATE_FORMAT, exception);
             }
@@ -466,20 +469,13 @@ public class SiriVmMqttHandler {
         return 0;
     }
 
-    /*
-     * GeoHash Helper methods
-     */
-
-    private String digit(double x, int i) {
-        return "" + (int) (Math.floor(x * Math.pow(10, i)) % 10);
-    }
+    private static class VehicleUpdate {
+        private final String datasetId;
+        private final VehicleActivityStructure activity;
 
-    private String digits(double latitude, double longitude) {
-        int j;
-        StringBuilder results = new StringBuilder(SLASH);
-        for (int i = j = 1; j <= 3; i = ++j) {
-            results.append(digit(latitude, i)).append(digit(longitude, i)).append(SLASH);
+        private VehicleUpdate(String datasetId, VehicleActivityStructure activity) {
+            this.datasetId = datasetId;
+            this.activity = activity;
         }
-        return results.toString();
     }
 }
@@ -16,6 +16,9 @@
 package no.rutebanken.anshar.routes.outbound;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.subscription.SubscriptionSetup;
 import org.apache.camel.Produce;
 import org.apache.camel.ProducerTemplate;
 import org.slf4j.Logger;
@@ -32,11 +35,18 @@ import uk.org.siri.siri20.VehicleMonitoringDeliveryStructure;
 
 import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 
 import static no.rutebanken.anshar.routes.siri.transformer.SiriOutputTransformerRoute.OUTPUT_ADAPTERS_HEADER_NAME;
@@ -54,8 +64,26 @@ public class CamelRouteManager {
     @Value("${anshar.default.max.threads.per.outbound.subscription:20}")
     private int maximumThreadsPerOutboundSubscription;
 
-    @Produce(uri = "direct:send.to.external.subscription")
-    protected ProducerTemplate siriSubscriptionProcessor;
+    @Value("${anshar.outbound.max.inflight.per.subscription:1}")
+    private int maximumInFlightPerSubscription;
+
+    @Value("${anshar.outbound.queue.max.lag.millis:300000}")
+    private long maximumQueueLagMillis;
+
+    @Value("${anshar.outbound.queue.max.bytes:20971520}")
+    private long maximumQueueBytes;
+
+    @Autowired
+    private PrometheusMetricsService metrics;
+
+    @Autowired
+    private OutboundHttpClient httpClient;
+
+    @Autowired
+    private SiriObjectFactory siriObjectFactory;
+
+    @Produce(uri = "direct:siri.marshal.outbound.delivery")
+    protected ProducerTemplate siriMarshaller;
 
     /**
      * Splits SIRI-data if applicable, and pushes data to external subscription
@@ -63,11 +91,52 @@ public class CamelRouteManager {
      * @param subscriptionRequest
      */
     void pushSiriData(Siri payload, OutboundSubscriptionSetup subscriptionRequest, ServerSubscriptionManager subscriptionManager) {
-        String consumerAddress = subscriptionRequest.getAddress();
-        if (consumerAddress == null) {
+        if (subscriptionRequest.getAddress() == null) {
             logger.info("ConsumerAddress is null - ignoring data.");
             return;
         }
+        executeForSubscription(subscriptionRequest, subscriptionManager, () -> createDeliveries(payload, subscriptionRequest, false));
+    }
+
+    /**
+     * Pushes the same SIRI-data to multiple subscriptions. Subscriptions that will receive identical data are grouped,
+     * and filtering, transformation and serialization is performed once per group.
+     * @param payload
+     * @param subscriptionRequests
+     */
+    void pushSiriData(Siri payload, Collection<OutboundSubscriptionSetup> subscriptionRequests, ServerSubscriptionManager subscriptionManager) {
+        Map<OutboundDeliveryGroupKey, List<OutboundSubscriptionSetup>> groups = new LinkedHashMap<>();
+        for (OutboundSubscriptionSetup subscriptionRequest : subscriptionRequests) {
+            if (subscriptionRequest.getAddress() == null) {
+                logger.info("ConsumerAddress is null - ignoring data.");
+                continue;
+            }
+            groups.computeIfAbsent(new OutboundDeliveryGroupKey(subscriptionRequest), key -> new ArrayList<>())
+                    .add(subscriptionRequest);
+        }
+
+        for (List<OutboundSubscriptionSetup> group : groups.values()) {
+            final List<OutboundDelivery> deliveries;
+            try {
+                // Payload is shared between groups - and is also sent to topic
+                deliveries = createDeliveries(payload, group.get(0), true);
+            } catch (Exception e) {
+                logger.warn("Failed to create delivery for subscriptions {}", group, e);
+                continue;
+            }
+
+            if (group.size() > 1) {
+                logger.info("Created {} deliveries once for {} subscriptions", deliveries.size(), group.size());
+            }
+
+            for (OutboundSubscriptionSetup subscriptionRequest : group) {
+                executeForSubscription(subscriptionRequest, subscriptionManager, () -> deliveries);
+            }
+        }
+    }
+
+    private void executeForSubscription(OutboundSubscriptionSetup subscriptionRequest, ServerSubscriptionManager subscriptionManager,
+                                        Callable<List<OutboundDelivery>> deliveryProvider) {
         final String breadcrumbId = MDC.get("camel.breadcrumbId");
         ExecutorService executorService = getOrCreateExecutorService(subscriptionRequest);
         executorService.submit(() -> {
@@ -78,92 +147,194 @@ public class CamelRouteManager {
                     return;
                 }
 
-                Siri filteredPayload = SiriHelper.filterSiriPayload(payload, subscriptionRequest.getFilterMap());
+                List<OutboundDelivery> deliveries = deliveryProvider.call();
 
-                int deliverySize = this.maximumSizePerDelivery;
-                if (subscriptionRequest.getDatasetId() != null) {
-                    deliverySize = Integer.MAX_VALUE;
+                if (deliveries.size() > 1) {
+                    logger.info("Object split into {} deliveries for subscription {}.", deliveries.size(), subscriptionRequest);
                 }
 
-                List<Siri> splitSiri = siriHelper.splitDeliveries(filteredPayload, deliverySize);
-
-                if (splitSiri.size() > 1) {
-                    logger.info("Object split into {} deliveries for subscription {}.", splitSiri.size(), subscriptionRequest);
-                }
-
-                for (Siri siri : splitSiri) {
-                    postDataToSubscription(siri, subscriptionRequest);
-                }
-            } catch (Exception e) {
-                logger.info("Failed to push data for subscription {}: {}", subscriptionRequest, e);
-
-                if (e.getCause() instanceof SocketException) {
-                    logger.info("Recipient is unreachable - ignoring");
-                } else {
-                    String msg = e.getMessage();
-                    if (e.getCause() != null) {
-                        msg = e.getCause().getMessage();
+                OutboundPushQueue pushQueue = getOrCreatePushQueue(subscriptionRequest);
+                long now = System.currentTimeMillis();
+                for (OutboundDelivery delivery : deliveries) {
+                    if (pushQueue.offer(delivery, now)) {
+                        postDataToSubscription(delivery, subscriptionRequest, subscriptionManager, pushQueue);
                     }
-                    logger.info("Exception caught when pushing SIRI-data: {}", msg);
                 }
-                subscriptionManager.pushFailedForSubscription(subscriptionRequest.getSubscriptionId());
-
-                removeDeadSubscriptionExecutors(subscriptionManager);
+            } catch (Exception e) {
+                handlePushFailure(e, subscriptionRequest, subscriptionManager);
             } finally {
                 MDC.remove("camel.breadcrumbId");
             }
         });
     }
 
-    Map<String, ExecutorService> threadFactoryMap = new HashMap<>();
-    private ExecutorService getOrCreateExecutorService(OutboundSubscriptionSetup subscriptionRequest) {
+    /**
+     * Pushes pending deliveries for the subscription as long as there is room in its in-flight window
+     */
+    private void drainPushQueue(OutboundSubscriptionSetup subscriptionRequest, ServerSubscriptionManager subscriptionManager,
+                                OutboundPushQueue pushQueue) {
+        final String breadcrumbId = MDC.get("camel.breadcrumbId");
+        try {
+            getOrCreateExecutorService(subscriptionRequest).submit(() -> {
+                try {
+                    MDC.put("camel.breadcrumbId", breadcrumbId);
+                    if (!subscriptionManager.subscriptions.containsKey(subscriptionRequest.getSubscriptionId())) {
+                        return;
+                    }
+                    OutboundDelivery delivery;
+                    while ((delivery = pushQueue.poll(getMaximumSizePerDelivery(subscriptionRequest), System.currentTimeMillis())) != null) {
+                        postDataToSubscription(delivery, subscriptionRequest, subscriptionManager, pushQueue);
+                    }
+                } catch (Exception e) {
+                    handlePushFailure(e, subscriptionRequest, subscriptionManager);
+                } finally {
+                    MDC.remove("camel.breadcrumbId");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Executor has been shut down since subscription has been terminated
+        }
+    }
+
+    private void handlePushFailure(Throwable e, OutboundSubscriptionSetup subscriptionRequest, ServerSubscriptionManager subscriptionManager) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        logger.info("Failed to push data for subscription {}: {}", subscriptionRequest, e);
+
+        if (e instanceof SocketException || e.getCause() instanceof SocketException) {
+            logger.info("Recipient is unreachable - ignoring");
+        } else {
+            String msg = e.getMessage();
+            if (e.getCause() != null) {
+                msg = e.getCause().getMessage();
+            }
+            logger.info("Exception caught when pushing SIRI-data: {}", msg);
+        }
+        subscriptionManager.pushFailedForSubscription(subscriptionRequest.getSubscriptionId());
+
+        removeDeadSubscriptionExecutors(subscriptionManager);
+    }
+
+    /**
+     * Filters, splits, transforms and serializes payload for the subscription
+     *
+     * @param payload
+     * @param subscriptionRequest
+     * @param isSharedPayload transformation alters the object - shared payloads are copied first
+     * @return serialized deliveries - empty deliveries are skipped
+     */
+    private List<OutboundDelivery> createDeliveries(Siri payload, OutboundSubscriptionSetup subscriptionRequest, boolean isSharedPayload) {
+
+        Siri filteredPayload = SiriHelper.filterSiriPayload(payload, subscriptionRequest.getFilterMap());
+        if (isSharedPayload && filteredPayload == payload) {
+            filteredPayload = SiriObjectFactory.deepCopy(payload);
+        }
+
+        List<OutboundDelivery> deliveries = new ArrayList<>();
+        for (Siri siri : siriHelper.splitDeliveries(filteredPayload, getMaximumSizePerDelivery(subscriptionRequest))) {
+            if (serviceDeliveryContainsData(siri)) {
+                byte[] xml = (byte[]) siriMarshaller.requestBodyAndHeader(siri, OUTPUT_ADAPTERS_HEADER_NAME,
+                        subscriptionRequest.getValueAdapters());
 
-        final String subscriptionId = subscriptionRequest.getSubscriptionId();
-        if (!threadFactoryMap.containsKey(subscriptionId)) {
-            ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("outbound"+subscriptionId).build();
+                deliveries.add(new OutboundDelivery(siri, xml));
+            }
+        }
+        return deliveries;
+    }
 
-            threadFactoryMap.put(subscriptionId, Executors.newSingleThreadExecutor(factory));
+    private int getMaximumSizePerDelivery(OutboundSubscriptionSetup subscriptionRequest) {
+        if (subscriptionRequest.getDatasetId() != null) {
+            return Integer.MAX_VALUE;
         }
+        return maximumSizePerDelivery;
+    }
+
+    private final Map<String, OutboundPushQueue> pushQueues = new ConcurrentHashMap<>();
+
+    private OutboundPushQueue getOrCreatePushQueue(OutboundSubscriptionSetup subscriptionRequest) {
+        return pushQueues.computeIfAbsent(subscriptionRequest.getSubscriptionId(), subscriptionId -> {
+            OutboundPushQueue pushQueue = new OutboundPushQueue(siriObjectFactory, maximumInFlightPerSubscription,
+                    maximumQueueLagMillis, maximumQueueBytes);
+            metrics.registerOutboundQueue(subscriptionId, pushQueue::size, pushQueue::getPendingBytes,
+                    () -> pushQueue.getLagMillis(System.currentTimeMillis()), pushQueue::getDroppedCount);
+            return pushQueue;
+        });
+    }
 
-        return threadFactoryMap.get(subscriptionId);
+    // Accessed from the callers' threads, the subscription executors and the HTTP client's completion threads
+    private final Map<String, ExecutorService> subscriptionExecutors = new ConcurrentHashMap<>();
+
+    private ExecutorService getOrCreateExecutorService(OutboundSubscriptionSetup subscriptionRequest) {
+        return subscriptionExecutors.computeIfAbsent(subscriptionRequest.getSubscriptionId(), subscriptionId -> {
+            ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("outbound" + subscriptionId).build();
+            return Executors.newSingleThreadExecutor(factory);
+        });
     }
 
 
     /**
-     * Clean up dead ExecutorServices
+     * Clean up dead ExecutorServices and push queues
      * @param subscriptionManager
      */
     private void removeDeadSubscriptionExecutors(ServerSubscriptionManager subscriptionManager) {
-        List<String> idsToRemove = new ArrayList<>();
-        for (String id : threadFactoryMap.keySet()) {
-            if (!subscriptionManager.subscriptions.containsKey(id)) {
-                final ExecutorService service = threadFactoryMap.get(id);
-                idsToRemove.add(id);
+        for (Map.Entry<String, ExecutorService> entry : subscriptionExecutors.entrySet()) {
+            final String id = entry.getKey();
+            if (!subscriptionManager.subscriptions.containsKey(id) && subscriptionExecutors.remove(id, entry.getValue())) {
+                logger.info("Remove executor for subscription {}", id);
                 // Force shutdown since outbound subscription has been stopped
-                service.shutdownNow();
+                entry.getValue().shutdownNow();
             }
         }
-        if (!idsToRemove.isEmpty()) {
-            for (String id : idsToRemove) {
-                logger.info("Remove executor for subscription {}", id);
-                threadFactoryMap.remove(id);
+        for (String id : pushQueues.keySet()) {
+            if (!subscriptionManager.subscriptions.containsKey(id) && pushQueues.remove(id) != null) {
+                metrics.removeOutboundQueue(id);
             }
         }
     }
 
-    private void postDataToSubscription(Siri payload, OutboundSubscriptionSetup subscription) {
-
-        if (serviceDeliveryContainsData(payload)) {
-            String remoteEndPoint = subscription.getAddress();
+    /**
+     * Pushes delivery asynchronously - the place held in the in-flight window is released when the push completes,
+     * and pending deliveries are then pushed
+     */
+    private void postDataToSubscription(OutboundDelivery delivery, OutboundSubscriptionSetup subscription,
+                                        ServerSubscriptionManager subscriptionManager, OutboundPushQueue pushQueue) {
+        final String breadcrumbId = MDC.get("camel.breadcrumbId");
+        final CompletableFuture<Integer> response;
+        try {
+            // Coalesced deliveries consist of already transformed elements - serialize without transforming again
+            final byte[] xml = delivery.xml != null ? delivery.xml :
+                    (byte[]) siriMarshaller.requestBodyAndHeader(delivery.siri, OUTPUT_ADAPTERS_HEADER_NAME, Collections.emptyList());
 
-            Map<String, Object> headers = new HashMap<>();
-            headers.put("breadcrumbId", MDC.get("camel.breadcrumbId"));
-            headers.put("endpoint", remoteEndPoint);
-            headers.put("SubscriptionId", subscription.getSubscriptionId());
-            headers.put(OUTPUT_ADAPTERS_HEADER_NAME, subscription.getValueAdapters());
+            metrics.countOutgoingData(delivery.siri, SubscriptionSetup.SubscriptionMode.SUBSCRIBE);
 
-            siriSubscriptionProcessor.sendBodyAndHeaders(payload, headers);
+            response = httpClient.post(subscription.getAddress(), subscription.getSubscriptionId(), xml);
+        } catch (RuntimeException e) {
+            // Push was never started - release the place in the in-flight window
+            pushQueue.release();
+            handlePushFailure(e, subscription, subscriptionManager);
+            if (!pushQueue.isEmpty()) {
+                drainPushQueue(subscription, subscriptionManager, pushQueue);
+            }
+            return;
         }
+
+        response.whenComplete((status, e) -> {
+                    pushQueue.release();
+                    try {
+                        MDC.put("camel.breadcrumbId", breadcrumbId);
+                        if (e == null) {
+                            subscriptionManager.clearFailTracker(subscription.getSubscriptionId());
+                        } else {
+                            handlePushFailure(e, subscription, subscriptionManager);
+                        }
+                    } finally {
+                        MDC.remove("camel.breadcrumbId");
+                    }
+                    if (!pushQueue.isEmpty()) {
+                        drainPushQueue(subscription, subscriptionManager, pushQueue);
+                    }
+                });
     }
 
     /**
@@ -196,4 +367,5 @@ public class CamelRouteManager {
         }
         return true;
     }
+
 }
@@ -15,7 +15,13 @@
 
 package no.rutebanken.anshar.routes.outbound;
 
+import com.hazelcast.core.EntryEvent;
 import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.routes.BaseRouteBuilder;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
@@ -25,16 +31,27 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import uk.org.siri.siri20.Siri;
 
+import javax.annotation.PostConstruct;
 import java.time.Instant;
-import java.time.LocalDateTime;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Sends heartbeats to, and terminates expired, outbound subscriptions.
+ *
+ * Each subscription's next deadline - heartbeat or termination, whichever comes first - is kept in a local timing
+ * wheel, so that each tick only handles the subscriptions that are due. Local state is kept in sync by an entry
+ * listener on the subscription map, and is rebuilt from the map when this node (re)gains leadership.
+ */
 @Service
 public class HeartbeatRoute extends BaseRouteBuilder {
 
     private static final int HEARTBEAT_INTERVAL_MILLIS = 2000;
 
+    // Wheel covers ~17 minutes per revolution - longer deadlines wait in their bucket until due
+    private static final int WHEEL_BUCKETS = 512;
 
     @Autowired
     @Qualifier("getHeartbeatTimestampMap")
@@ -49,30 +66,38 @@ public class HeartbeatRoute extends BaseRouteBuilder {
     @Autowired
     private SiriObjectFactory siriObjectFactory;
 
+    private final HeartbeatTimingWheel timingWheel = new HeartbeatTimingWheel(HEARTBEAT_INTERVAL_MILLIS, WHEEL_BUCKETS);
+
+    private final Map<String, OutboundSubscriptionSetup> localSubscriptions = new ConcurrentHashMap<>();
+
+    private long lastTick;
+
     protected HeartbeatRoute(@Autowired  AnsharConfiguration config, @Autowired SubscriptionManager subscriptionManager) {
         super(config, subscriptionManager);
     }
 
+    @PostConstruct
+    private void addSubscriptionListener() {
+        serverSubscriptionManager.subscriptions.addEntryListener(new SubscriptionListener(), true);
+    }
+
     @Override
     public void configure() throws Exception {
         singletonFrom("quartz://anshar.outbound.subscription.manager?fireNow=true&trigger.repeatInterval=" + HEARTBEAT_INTERVAL_MILLIS,
                 "anshar.outbound.subscription.manager.route")
             .process(p -> {
-                final Set<String> subscriptionIds = serverSubscriptionManager.subscriptions.keySet();
-                for (String subscriptionId : subscriptionIds) {
-                    final OutboundSubscriptionSetup outboundSubscriptionSetup = serverSubscriptionManager.subscriptions.get(subscriptionId);
-
-                    if (outboundSubscriptionSetup != null) {
-                        if (LocalDateTime.now().isAfter(outboundSubscriptionSetup.getInitialTerminationTime().toLocalDateTime())) {
-                            serverSubscriptionManager.terminateSubscription(outboundSubscriptionSetup.getSubscriptionId());
-                        } else if (!heartbeatTimestampMap.containsKey(subscriptionId)) {
-                            final long heartbeatInterval = outboundSubscriptionSetup.getHeartbeatInterval();
+                long now = System.currentTimeMillis();
+                if (now - lastTick > 3 * HEARTBEAT_INTERVAL_MILLIS) {
+                    // Ticks have not been running - i.e. leadership has just been acquired
+                    rebuild(now);
+                }
+                lastTick = now;
 
-                            Siri heartbeatNotification = siriObjectFactory.createHeartbeatNotification(outboundSubscriptionSetup.getSubscriptionId());
-                            camelRouteManager.pushSiriData(heartbeatNotification, outboundSubscriptionSetup, serverSubscriptionManager);
+                for (String subscriptionId : timingWheel.advance(now)) {
+                    final OutboundSubscriptionSetup outboundSubscriptionSetup = localSubscriptions.get(subscriptionId);
 
-                            heartbeatTimestampMap.put(subscriptionId, Instant.now(), heartbeatInterval, TimeUnit.MILLISECONDS);
-                        }
+                    if (outboundSubscriptionSetup != null) {
+                        process(outboundSubscriptionSetup, now);
                     } else {
                         log.info("Outbound subscription {} not found.", subscriptionId);
                     }
@@ -80,4 +105,99 @@ public class HeartbeatRoute extends BaseRouteBuilder {
             })
         ;
     }
+
+    /**
+     * Sends heartbeat to, or terminates, a subscription that is due. The subscription has been removed from the wheel,
+     * so it is always rescheduled unless it was terminated - a failing subscription must not stop the others, or be
+     * dropped from the schedule.
+     */
+    private void process(OutboundSubscriptionSetup outboundSubscriptionSetup, long now) {
+        final String subscriptionId = outboundSubscriptionSetup.getSubscriptionId();
+        final long heartbeatInterval = outboundSubscriptionSetup.getHeartbeatInterval();
+        final boolean terminate = now >= outboundSubscriptionSetup.getInitialTerminationTime().toInstant().toEpochMilli();
+
+        boolean terminated = false;
+        try {
+            if (terminate) {
+                serverSubscriptionManager.terminateSubscription(subscriptionId);
+                terminated = true;
+            } else {
+                Siri heartbeatNotification = siriObjectFactory.createHeartbeatNotification(subscriptionId);
+                camelRouteManager.pushSiriData(heartbeatNotification, outboundSubscriptionSetup, serverSubscriptionManager);
+
+                heartbeatTimestampMap.put(subscriptionId, Instant.ofEpochMilli(now), heartbeatInterval, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            log.warn("Failed to {} outbound subscription {}", terminate ? "terminate" : "send heartbeat to", subscriptionId, e);
+        } finally {
+            if (terminate) {
+                if (!terminated) {
+                    // Retry termination on next tick
+                    timingWheel.schedule(subscriptionId, now + HEARTBEAT_INTERVAL_MILLIS);
+                }
+            } else {
+                schedule(outboundSubscriptionSetup, now + heartbeatInterval);
+            }
+        }
+    }
+
+    /**
+     * Reloads all subscriptions from the cluster, and respects heartbeats recently sent by the previous leader
+     */
+    private void rebuild(long now) {
+        timingWheel.clear();
+        localSubscriptions.clear();
+
+        Map<String, OutboundSubscriptionSetup> subscriptions = serverSubscriptionManager.subscriptions.getAll(serverSubscriptionManager.subscriptions.keySet());
+        Map<String, Instant> lastHeartbeats = heartbeatTimestampMap.getAll(subscriptions.keySet());
+
+        for (OutboundSubscriptionSetup subscription : subscriptions.values()) {
+            localSubscriptions.put(subscription.getSubscriptionId(), subscription);
+            Instant lastHeartbeat = lastHeartbeats.get(subscription.getSubscriptionId());
+            schedule(subscription, lastHeartbeat != null ? lastHeartbeat.toEpochMilli() + subscription.getHeartbeatInterval() : now);
+        }
+        log.info("Heartbeat scheduler rebuilt with {} outbound subscriptions", subscriptions.size());
+    }
+
+    private void schedule(OutboundSubscriptionSetup subscription, long nextHeartbeat) {
+        long terminationTime = subscription.getInitialTerminationTime().toInstant().toEpochMilli();
+        timingWheel.schedule(subscription.getSubscriptionId(), Math.min(nextHeartbeat, terminationTime));
+    }
+
+    private void remove(String subscriptionId) {
+        localSubscriptions.remove(subscriptionId);
+        timingWheel.cancel(subscriptionId);
+    }
+
+    private class SubscriptionListener implements EntryAddedListener<String, OutboundSubscriptionSetup>,
+            EntryUpdatedListener<String, OutboundSubscriptionSetup>, EntryRemovedListener<String, OutboundSubscriptionSetup>,
+            EntryEvictedListener<String, OutboundSubscriptionSetup>, EntryExpiredListener<String, OutboundSubscriptionSetup> {
+
+        @Override
+        public void entryAdded(EntryEvent<String, OutboundSubscriptionSetup> event) {
+            localSubscriptions.put(event.getKey(), event.getValue());
+            schedule(event.getValue(), System.currentTimeMillis());
+        }
+
+        @Override
+        public void entryUpdated(EntryEvent<String, OutboundSubscriptionSetup> event) {
+            localSubscriptions.put(event.getKey(), event.getValue());
+            schedule(event.getValue(), System.currentTimeMillis() + event.getValue().getHeartbeatInterval());
+        }
+
+        @Override
+        public void entryRemoved(EntryEvent<String, OutboundSubscriptionSetup> event) {
+            remove(event.getKey());
+        }
+
+        @Override
+        public void entryEvicted(EntryEvent<String, OutboundSubscriptionSetup> event) {
+            remove(event.getKey());
+        }
+
+        @Override
+        public void entryExpired(EntryEvent<String, OutboundSubscriptionSetup> event) {
+            remove(event.getKey());
+        }
+    }
 }
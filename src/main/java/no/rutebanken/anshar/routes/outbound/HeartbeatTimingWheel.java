@@ -0,0 +1,122 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hashed timing wheel keeping one deadline per key.
+ *
+ * Deadlines are rounded up to whole ticks, and placed in the bucket for that tick modulo the number of buckets.
+ * Advancing the wheel only visits the buckets for the elapsed ticks, so the cost is proportional to the number of keys
+ * sharing those buckets - not to the total number of keys.
+ */
+class HeartbeatTimingWheel {
+
+    private final long tickMillis;
+
+    private final List<Set<String>> buckets;
+
+    private final Map<String, Long> deadlineTicks = new HashMap<>();
+
+    private long currentTick = -1;
+
+    HeartbeatTimingWheel(long tickMillis, int bucketCount) {
+        this.tickMillis = tickMillis;
+        this.buckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            buckets.add(new LinkedHashSet<>());
+        }
+    }
+
+    /**
+     * Schedules key at deadline - replacing any existing deadline for the same key
+     */
+    synchronized void schedule(String key, long deadlineMillis) {
+        cancel(key);
+        long tick = Math.max(toTick(deadlineMillis), currentTick + 1);
+        deadlineTicks.put(key, tick);
+        bucket(tick).add(key);
+    }
+
+    synchronized void cancel(String key) {
+        Long tick = deadlineTicks.remove(key);
+        if (tick != null) {
+            bucket(tick).remove(key);
+        }
+    }
+
+    synchronized boolean contains(String key) {
+        return deadlineTicks.containsKey(key);
+    }
+
+    synchronized int size() {
+        return deadlineTicks.size();
+    }
+
+    synchronized void clear() {
+        deadlineTicks.clear();
+        buckets.forEach(Set::clear);
+        currentTick = -1;
+    }
+
+    /**
+     * Advances the wheel to the given time, and removes all keys with deadline up to and including that time
+     *
+     * @return keys that are due, in no particular order
+     */
+    synchronized List<String> advance(long nowMillis) {
+        List<String> due = new ArrayList<>();
+        long targetTick = nowMillis / tickMillis;
+        if (currentTick < 0) {
+            // First advance - visit all buckets to include deadlines scheduled in the past
+            currentTick = targetTick - buckets.size();
+        }
+        if (targetTick <= currentTick) {
+            return due;
+        }
+
+        // Never visit the same bucket twice when catching up after a pause
+        long fromTick = Math.max(currentTick + 1, targetTick - buckets.size() + 1);
+        for (long tick = fromTick; tick <= targetTick; tick++) {
+            Iterator<String> keys = bucket(tick).iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (deadlineTicks.get(key) <= targetTick) {
+                    keys.remove();
+                    deadlineTicks.remove(key);
+                    due.add(key);
+                }
+            }
+        }
+        currentTick = targetTick;
+        return due;
+    }
+
+    private long toTick(long millis) {
+        return (millis + tickMillis - 1) / tickMillis;
+    }
+
+    private Set<String> bucket(long tick) {
+        return buckets.get((int) Math.floorMod(tick, (long) buckets.size()));
+    }
+}
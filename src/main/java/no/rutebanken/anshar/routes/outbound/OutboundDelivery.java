@@ -0,0 +1,35 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import uk.org.siri.siri20.Siri;
+
+/**
+ * Delivery to push to a subscription. Serialized deliveries may be shared by all subscriptions in the same group.
+ */
+class OutboundDelivery {
+    final Siri siri;
+
+    /**
+     * Serialized siri - null if not yet serialized
+     */
+    final byte[] xml;
+
+    OutboundDelivery(Siri siri, byte[] xml) {
+        this.siri = siri;
+        this.xml = xml;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.subscription.SiriDataType;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Outbound subscriptions with equal keys receive byte-identical deliveries, and can share filtering, transformation
+ * and serialization.
+ *
+ * SIRI version is not part of the key - all outbound deliveries are created as SIRI 2.0 by SiriObjectFactory,
+ * regardless of the version of the subscription request.
+ */
+class OutboundDeliveryGroupKey {
+
+    private final SiriDataType subscriptionType;
+    private final String datasetId;
+    private final Map<Class, Set<String>> filterMap;
+    private final OutboundIdMappingPolicy outboundIdMappingPolicy;
+
+    /**
+     * Only set when the mapping-policy is unknown - the subscription is then not grouped with others
+     */
+    private final String subscriptionId;
+
+    OutboundDeliveryGroupKey(OutboundSubscriptionSetup subscription) {
+        this.subscriptionType = subscription.getSubscriptionType();
+        this.datasetId = subscription.getDatasetId();
+        this.filterMap = subscription.getFilterMap();
+        this.outboundIdMappingPolicy = subscription.getOutboundIdMappingPolicy();
+        this.subscriptionId = outboundIdMappingPolicy == null ? subscription.getSubscriptionId() : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        OutboundDeliveryGroupKey that = (OutboundDeliveryGroupKey) o;
+        return subscriptionType == that.subscriptionType &&
+                Objects.equals(datasetId, that.datasetId) &&
+                Objects.equals(filterMap, that.filterMap) &&
+                outboundIdMappingPolicy == that.outboundIdMappingPolicy &&
+                Objects.equals(subscriptionId, that.subscriptionId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(subscriptionType, datasetId, filterMap, outboundIdMappingPolicy, subscriptionId);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Asynchronous HTTP client pushing serialized SIRI-data to subscribers.
+ *
+ * A single client is shared by all subscriptions, keeping connections to each subscriber alive between pushes.
+ */
+@Service
+public class OutboundHttpClient {
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${anshar.outbound.http.timeout.millis:15000}")
+    private long timeoutMillis;
+
+    @Value("${anshar.outbound.http2.enabled:false}")
+    private boolean http2Enabled;
+
+    @Value("${anshar.outbound.gzip.enabled:false}")
+    private boolean gzipEnabled;
+
+    private HttpClient httpClient;
+
+    @PostConstruct
+    void init() {
+        httpClient = HttpClient.newBuilder()
+                .version(http2Enabled ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(timeoutMillis))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+        logger.info("Outbound HTTP client using {}, gzip {}", httpClient.version(), gzipEnabled ? "enabled" : "disabled");
+    }
+
+    /**
+     * POSTs xml to address
+     *
+     * @return future completed when the response is received - completed exceptionally if the request failed, or
+     * the subscriber did not respond with a 2xx status
+     */
+    CompletableFuture<Integer> post(String address, String subscriptionId, byte[] xml) {
+        logger.info("POST data to {}", subscriptionId);
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(address))
+                .timeout(Duration.ofMillis(timeoutMillis))
+                .header("Content-Type", MediaType.APPLICATION_XML);
+
+        byte[] body = xml;
+        if (gzipEnabled) {
+            body = gzip(xml);
+            request.header("Content-Encoding", "gzip");
+        }
+
+        return httpClient.sendAsync(request.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(),
+                HttpResponse.BodyHandlers.discarding())
+                .thenApply(response -> {
+                    if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                        throw new CompletionException(new IOException("Subscriber responded with HTTP " + response.statusCode()));
+                    }
+                    logger.info("POST complete {}", subscriptionId);
+                    return response.statusCode();
+                });
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
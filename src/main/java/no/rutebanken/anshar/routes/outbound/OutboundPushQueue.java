@@ -0,0 +1,316 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import no.rutebanken.anshar.data.EstimatedTimetables;
+import no.rutebanken.anshar.data.Situations;
+import no.rutebanken.anshar.data.VehicleActivities;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import uk.org.siri.siri20.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.EstimatedVersionFrameStructure;
+import uk.org.siri.siri20.PtSituationElement;
+import uk.org.siri.siri20.ServiceDelivery;
+import uk.org.siri.siri20.SituationExchangeDeliveryStructure;
+import uk.org.siri.siri20.VehicleActivityStructure;
+import uk.org.siri.siri20.VehicleMonitoringDeliveryStructure;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Updates waiting to be pushed to one subscription, and the number of pushes currently in flight.
+ *
+ * Deliveries are pushed directly as long as the in-flight window is not full. When it is full, deliveries are split
+ * into journeys, vehicles and situations keyed by SiriObjectStorageKey, so that a newer version replaces any older
+ * version still waiting. Other deliveries are queued as they are, keeping only the latest heartbeat. Memory used by a
+ * slow subscriber is thus bounded by the number of distinct objects rather than by the number of updates.
+ *
+ * In addition, updates older than the max lag are dropped, as are the oldest updates when the estimated size of all
+ * pending updates exceeds the max bytes.
+ */
+class OutboundPushQueue {
+
+    // Used when the serialized size of a delivery is unknown
+    private static final int DEFAULT_ESTIMATED_BYTES = 1024;
+
+    private static final Object HEARTBEAT_KEY = new Object();
+
+    private final SiriObjectFactory siriObjectFactory;
+
+    private final int maxInFlight;
+
+    private final long maxLagMillis;
+
+    private final long maxBytes;
+
+    private int inFlight;
+
+    private long droppedCount;
+
+    private final PendingUpdates<OutboundDelivery> pendingDeliveries = new PendingUpdates<>();
+
+    private final PendingUpdates<EstimatedVehicleJourney> pendingJourneys = new PendingUpdates<>();
+
+    private final PendingUpdates<VehicleActivityStructure> pendingVehicles = new PendingUpdates<>();
+
+    private final PendingUpdates<PtSituationElement> pendingSituations = new PendingUpdates<>();
+
+    private final List<PendingUpdates<?>> allPending = List.of(pendingDeliveries, pendingJourneys, pendingVehicles, pendingSituations);
+
+    OutboundPushQueue(SiriObjectFactory siriObjectFactory, int maxInFlight, long maxLagMillis, long maxBytes) {
+        this.siriObjectFactory = siriObjectFactory;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxLagMillis = maxLagMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reserves a place in the in-flight window for the delivery if there is room, and nothing is already waiting.
+     * Otherwise the delivery is queued.
+     *
+     * @return true if the delivery should be pushed now
+     */
+    synchronized boolean offer(OutboundDelivery delivery, long now) {
+        dropExpired(now);
+        if (inFlight < maxInFlight && isEmpty()) {
+            inFlight++;
+            return true;
+        }
+        enqueue(delivery, now);
+        while (getPendingBytes() > maxBytes && !isEmpty()) {
+            oldest().removeOldest();
+            droppedCount++;
+        }
+        return false;
+    }
+
+    /**
+     * Reserves a place in the in-flight window for the next pending delivery. Updates are sent oldest first.
+     *
+     * @param maxElements maximum number of journeys/vehicles/situations per delivery
+     * @return next delivery to push, or null if nothing is pending or the window is full
+     */
+    synchronized OutboundDelivery poll(int maxElements, long now) {
+        dropExpired(now);
+        if (inFlight >= maxInFlight || isEmpty()) {
+            return null;
+        }
+        PendingUpdates<?> oldest = oldest();
+        OutboundDelivery next;
+        if (oldest == pendingDeliveries) {
+            next = pendingDeliveries.take(1).get(0);
+        } else if (oldest == pendingJourneys) {
+            next = new OutboundDelivery(siriObjectFactory.createETServiceDelivery(pendingJourneys.take(maxElements)), null);
+        } else if (oldest == pendingVehicles) {
+            next = new OutboundDelivery(siriObjectFactory.createVMServiceDelivery(pendingVehicles.take(maxElements)), null);
+        } else {
+            next = new OutboundDelivery(siriObjectFactory.createSXServiceDelivery(pendingSituations.take(maxElements)), null);
+        }
+        inFlight++;
+        return next;
+    }
+
+    /**
+     * Frees the place in the in-flight window held by a completed push
+     */
+    synchronized void release() {
+        if (inFlight > 0) {
+            inFlight--;
+        }
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return number of pending deliveries, journeys, vehicles and situations
+     */
+    synchronized int size() {
+        int size = 0;
+        for (PendingUpdates<?> pending : allPending) {
+            size += pending.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return estimated serialized size of all pending updates
+     */
+    synchronized long getPendingBytes() {
+        long bytes = 0;
+        for (PendingUpdates<?> pending : allPending) {
+            bytes += pending.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return number of updates dropped due to max lag or max bytes
+     */
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return milliseconds since the oldest pending update was queued - 0 if nothing is pending
+     */
+    synchronized long getLagMillis(long now) {
+        return isEmpty() ? 0 : now - oldest().getOldestQueuedMillis();
+    }
+
+    synchronized boolean isEmpty() {
+        for (PendingUpdates<?> pending : allPending) {
+            if (!pending.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void enqueue(OutboundDelivery delivery, long now) {
+        List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+        List<VehicleActivityStructure> activities = new ArrayList<>();
+        List<PtSituationElement> situations = new ArrayList<>();
+
+        ServiceDelivery serviceDelivery = delivery.siri.getServiceDelivery();
+        if (serviceDelivery != null) {
+            for (EstimatedTimetableDeliveryStructure etDelivery : serviceDelivery.getEstimatedTimetableDeliveries()) {
+                for (EstimatedVersionFrameStructure frame : etDelivery.getEstimatedJourneyVersionFrames()) {
+                    journeys.addAll(frame.getEstimatedVehicleJourneies());
+                }
+            }
+            for (VehicleMonitoringDeliveryStructure vmDelivery : serviceDelivery.getVehicleMonitoringDeliveries()) {
+                activities.addAll(vmDelivery.getVehicleActivities());
+            }
+            for (SituationExchangeDeliveryStructure sxDelivery : serviceDelivery.getSituationExchangeDeliveries()) {
+                if (sxDelivery.getSituations() != null) {
+                    situations.addAll(sxDelivery.getSituations().getPtSituationElements());
+                }
+            }
+        }
+
+        int elementCount = journeys.size() + activities.size() + situations.size();
+        if (elementCount == 0) {
+            Object key = delivery.siri.getHeartbeatNotification() != null ? HEARTBEAT_KEY : new Object();
+            pendingDeliveries.put(key, delivery, now, estimateBytesPerElement(delivery, 1));
+            return;
+        }
+
+        int estimatedBytes = estimateBytesPerElement(delivery, elementCount);
+        for (EstimatedVehicleJourney journey : journeys) {
+            pendingJourneys.put(EstimatedTimetables.createKey(journey.getDataSource(), journey), journey, now, estimatedBytes);
+        }
+        for (VehicleActivityStructure activity : activities) {
+            VehicleActivityStructure.MonitoredVehicleJourney journey = activity.getMonitoredVehicleJourney();
+            // Activities without journey cannot be keyed - these are never coalesced
+            Object key = journey != null ? VehicleActivities.createKey(journey.getDataSource(), journey) : new Object();
+            pendingVehicles.put(key, activity, now, estimatedBytes);
+        }
+        for (PtSituationElement situation : situations) {
+            pendingSituations.put(Situations.createKey(null, situation), situation, now, estimatedBytes);
+        }
+    }
+
+    private void dropExpired(long now) {
+        while (!isEmpty() && now - oldest().getOldestQueuedMillis() > maxLagMillis) {
+            oldest().removeOldest();
+            droppedCount++;
+        }
+    }
+
+    /**
+     * @return the pending updates holding the oldest update
+     */
+    private PendingUpdates<?> oldest() {
+        PendingUpdates<?> oldest = pendingDeliveries;
+        for (PendingUpdates<?> pending : allPending) {
+            if (pending.getOldestQueuedMillis() < oldest.getOldestQueuedMillis()) {
+                oldest = pending;
+            }
+        }
+        return oldest;
+    }
+
+    private static int estimateBytesPerElement(OutboundDelivery delivery, int elementCount) {
+        if (delivery.xml == null || elementCount == 0) {
+            return DEFAULT_ESTIMATED_BYTES;
+        }
+        return Math.max(1, delivery.xml.length / elementCount);
+    }
+
+    /**
+     * Pending updates by key, ordered by when the latest version was queued
+     */
+    private static class PendingUpdates<T> {
+        private final Map<Object, Pending<T>> updates = new LinkedHashMap<>();
+        private long bytes;
+
+        void put(Object key, T value, long now, int estimatedBytes) {
+            // Removed first to move the newest version to the end
+            Pending<T> previous = updates.remove(key);
+            if (previous != null) {
+                bytes -= previous.estimatedBytes;
+            }
+            updates.put(key, new Pending<>(value, now, estimatedBytes));
+            bytes += estimatedBytes;
+        }
+
+        List<T> take(int maxElements) {
+            List<T> elements = new ArrayList<>(Math.min(updates.size(), maxElements));
+            Iterator<Pending<T>> iterator = updates.values().iterator();
+            while (iterator.hasNext() && elements.size() < maxElements) {
+                Pending<T> pending = iterator.next();
+                elements.add(pending.value);
+                bytes -= pending.estimatedBytes;
+                iterator.remove();
+            }
+            return elements;
+        }
+
+        void removeOldest() {
+            take(1);
+        }
+
+        long getOldestQueuedMillis() {
+            return updates.isEmpty() ? Long.MAX_VALUE : updates.values().iterator().next().queuedMillis;
+        }
+
+        boolean isEmpty() {
+            return updates.isEmpty();
+        }
+
+        int size() {
+            return updates.size();
+        }
+    }
+
+    private static class Pending<T> {
+        private final T value;
+        private final long queuedMillis;
+        private final int estimatedBytes;
+
+        private Pending(T value, long queuedMillis, int estimatedBytes) {
+            this.value = value;
+            this.queuedMillis = queuedMillis;
+            this.estimatedBytes = estimatedBytes;
+        }
+    }
+}
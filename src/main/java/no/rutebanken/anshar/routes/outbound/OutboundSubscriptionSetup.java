@@ -15,6 +15,7 @@
 
 package no.rutebanken.anshar.routes.outbound;
 
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
 import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
 import no.rutebanken.anshar.subscription.SiriDataType;
 
@@ -34,6 +35,7 @@ public class OutboundSubscriptionSetup implements Serializable {
     private int timeToLive;
     private Map<Class, Set<String>> filterMap;
     private final List<ValueAdapter> valueAdapters;
+    private OutboundIdMappingPolicy outboundIdMappingPolicy;
     private final String subscriptionId;
     private String requestorRef;
     private ZonedDateTime initialTerminationTime;
@@ -42,7 +44,7 @@ public class OutboundSubscriptionSetup implements Serializable {
     private long changeBeforeUpdates;
 
     public OutboundSubscriptionSetup(ZonedDateTime requestTimestamp, SiriDataType subscriptionType, String address, long heartbeatInterval,
-                                     long changeBeforeUpdates, Map<Class, Set<String>> filterMap, List<ValueAdapter> valueAdapters,
+                                     long changeBeforeUpdates, Map<Class, Set<String>> filterMap, List<ValueAdapter> valueAdapters, OutboundIdMappingPolicy outboundIdMappingPolicy,
                                      String subscriptionId, String requestorRef, ZonedDateTime initialTerminationTime, String datasetId, String clientTrackingName) {
         this.requestTimestamp = requestTimestamp;
         this.subscriptionType = subscriptionType;
@@ -51,6 +53,7 @@ public class OutboundSubscriptionSetup implements Serializable {
         this.changeBeforeUpdates = changeBeforeUpdates;
         this.filterMap = filterMap;
         this.valueAdapters = valueAdapters;
+        this.outboundIdMappingPolicy = outboundIdMappingPolicy;
         this.subscriptionId = subscriptionId;
         this.requestorRef = requestorRef;
         this.initialTerminationTime = initialTerminationTime;
@@ -118,6 +121,10 @@ public class OutboundSubscriptionSetup implements Serializable {
         return valueAdapters;
     }
 
+    public OutboundIdMappingPolicy getOutboundIdMappingPolicy() {
+        return outboundIdMappingPolicy;
+    }
+
     public String getClientTrackingName() {
         return clientTrackingName;
     }
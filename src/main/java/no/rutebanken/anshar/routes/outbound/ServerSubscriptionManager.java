@@ -20,13 +20,13 @@ import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import no.rutebanken.anshar.subscription.helpers.MappingAdapterPresets;
+import no.rutebanken.anshar.util.AsyncTaskExecutor;
 import org.apache.camel.Produce;
 import org.apache.camel.ProducerTemplate;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -52,8 +52,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import static java.time.temporal.ChronoUnit.MILLIS;
 
@@ -108,6 +107,9 @@ public class ServerSubscriptionManager {
     @Autowired
     private SiriHelper siriHelper;
 
+    @Autowired
+    private AsyncTaskExecutor asyncTaskExecutor;
+
 
     public Collection getSubscriptions() {
         return Collections.unmodifiableCollection(subscriptions.values());
@@ -195,6 +197,7 @@ public class ServerSubscriptionManager {
                 getChangeBeforeUpdates(subscriptionRequest),
                 siriHelper.getFilter(subscriptionRequest),
                 MappingAdapterPresets.getOutboundAdapters(outboundIdMappingPolicy),
+                outboundIdMappingPolicy,
                 findSubscriptionIdentifier(subscriptionRequest),
                 subscriptionRequest.getRequestorRef().getValue(),
                 findInitialTerminationTime(subscriptionRequest),
@@ -321,18 +324,15 @@ public class ServerSubscriptionManager {
 
     public void pushUpdatesAsync(SiriDataType datatype, List updates, String datasetId) {
 
-        final String breadcrumbId = MDC.get("camel.breadcrumbId");
-
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
         switch (datatype) {
             case ESTIMATED_TIMETABLE:
-                executorService.submit(() -> pushUpdatedEstimatedTimetables(updates, datasetId, breadcrumbId));
+                asyncTaskExecutor.execute("pushUpdatedEstimatedTimetables", () -> pushUpdatedEstimatedTimetables(updates, datasetId));
                 break;
             case SITUATION_EXCHANGE:
-                executorService.submit(() -> pushUpdatedSituations(updates, datasetId, breadcrumbId));
+                asyncTaskExecutor.execute("pushUpdatedSituations", () -> pushUpdatedSituations(updates, datasetId));
                 break;
             case VEHICLE_MONITORING:
-                executorService.submit(() -> pushUpdatedVehicleActivities(updates, datasetId, breadcrumbId));
+                asyncTaskExecutor.execute("pushUpdatedVehicleActivities", () -> pushUpdatedVehicleActivities(updates, datasetId));
                 break;
             default:
                 // Ignore
@@ -340,10 +340,7 @@ public class ServerSubscriptionManager {
         }
     }
 
-    private void pushUpdatedVehicleActivities(
-        List<VehicleActivityStructure> addedOrUpdated, String datasetId, String breadcrumbId
-    ) {
-        MDC.put("camel.breadcrumbId", breadcrumbId);
+    private void pushUpdatedVehicleActivities(List<VehicleActivityStructure> addedOrUpdated, String datasetId) {
 
         if (addedOrUpdated == null || addedOrUpdated.isEmpty()) {
             return;
@@ -354,22 +351,17 @@ public class ServerSubscriptionManager {
             siriVmTopicProducer.asyncSendBody(siriVmTopicProducer.getDefaultEndpoint(), delivery);
         }
 
-        subscriptions.values().stream().filter(subscriptionRequest ->
+        List<OutboundSubscriptionSetup> recipients = subscriptions.values().stream().filter(subscriptionRequest ->
                         ( subscriptionRequest.getSubscriptionType().equals(SiriDataType.VEHICLE_MONITORING) &&
                                 (subscriptionRequest.getDatasetId() == null || (subscriptionRequest.getDatasetId().equals(datasetId))))
 
-        ).forEach(subscription ->
+        ).collect(Collectors.toList());
 
-                camelRouteManager.pushSiriData(delivery, subscription, this)
-        );
-        MDC.remove("camel.breadcrumbId");
+        camelRouteManager.pushSiriData(delivery, recipients, this);
     }
 
 
-    private void pushUpdatedSituations(
-        List<PtSituationElement> addedOrUpdated, String datasetId, String breadcrumbId
-    ) {
-        MDC.put("camel.breadcrumbId", breadcrumbId);
+    private void pushUpdatedSituations(List<PtSituationElement> addedOrUpdated, String datasetId) {
 
         if (addedOrUpdated == null || addedOrUpdated.isEmpty()) {
             return;
@@ -380,25 +372,21 @@ public class ServerSubscriptionManager {
             siriSxTopicProducer.asyncSendBody(siriSxTopicProducer.getDefaultEndpoint(), delivery);
         }
 
-        subscriptions.values().stream().filter(subscriptionRequest ->
+        List<OutboundSubscriptionSetup> recipients = subscriptions.values().stream().filter(subscriptionRequest ->
                         (subscriptionRequest.getSubscriptionType().equals(SiriDataType.SITUATION_EXCHANGE) &&
                                 (subscriptionRequest.getDatasetId() == null || (subscriptionRequest.getDatasetId().equals(datasetId))))
 
-        ).forEach(subscription ->
+        ).collect(Collectors.toList());
 
-                camelRouteManager.pushSiriData(delivery, subscription, this)
-        );
-
-        MDC.remove("camel.breadcrumbId");
+        camelRouteManager.pushSiriData(delivery, recipients, this);
     }
 
-    private void pushUpdatedEstimatedTimetables(List<EstimatedVehicleJourney> addedOrUpdated, String datasetId, String breadcrumbId) {
+    private void pushUpdatedEstimatedTimetables(List<EstimatedVehicleJourney> addedOrUpdated, String datasetId) {
 
         if (addedOrUpdated == null || addedOrUpdated.isEmpty()) {
             return;
         }
 
-        MDC.put("camel.breadcrumbId", breadcrumbId);
         logger.info("Pushing {} ET updates to outbound subscriptions", addedOrUpdated.size());
 
         Siri delivery = siriObjectFactory.createETServiceDelivery(addedOrUpdated);
@@ -407,14 +395,13 @@ public class ServerSubscriptionManager {
             siriEtTopicProducer.asyncSendBody(siriEtTopicProducer.getDefaultEndpoint(), delivery);
         }
 
-        subscriptions.values().stream().filter(subscriptionRequest ->
+        List<OutboundSubscriptionSetup> recipients = subscriptions.values().stream().filter(subscriptionRequest ->
                         (subscriptionRequest.getSubscriptionType().equals(SiriDataType.ESTIMATED_TIMETABLE) &&
                                 (subscriptionRequest.getDatasetId() == null || (subscriptionRequest.getDatasetId().equals(datasetId))))
 
-        ).forEach(subscription ->
-                camelRouteManager.pushSiriData(delivery, subscription, this)
-        );
-        MDC.remove("camel.breadcrumbId");
+        ).collect(Collectors.toList());
+
+        camelRouteManager.pushSiriData(delivery, recipients, this);
     }
 
     public void pushFailedForSubscription(String subscriptionId) {
@@ -23,23 +23,42 @@ import org.apache.camel.util.StringHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-
+/**
+ * Route policy holding leadership while holding the Hazelcast lock for its key.
+ *
+ * Locks are acquired and released by the {@link LeadershipCoordinator}, which calls {@link #evaluate(boolean, long)}
+ * periodically - always from the same thread for the same key.
+ */
 public class InterruptibleHazelcastRoutePolicy extends HazelcastRoutePolicy {
     private static final Logger LOGGER = LoggerFactory.getLogger(InterruptibleHazelcastRoutePolicy.class);
 
+    // Number of evaluations a key must be observed unlocked before a member not owning it takes over
+    private static final int FALLBACK_EVALUATIONS = 3;
+
+    // Number of evaluations an owner waits before retrying after releasing leadership
+    private static final int YIELD_EVALUATIONS = 6;
+
+    // Number of evaluations a member not owning a key keeps leadership before handing it back
+    private static final int HANDOVER_EVALUATIONS = 12;
+
     private final HazelcastInstance instance;
 
+    private final LeadershipCoordinator coordinator;
+
     private IMap<String, String> locks;
 
-    private final Object syncObject = new Object();
-    private ExecutorService executorService;
-    private Future<Void> future;
+    private boolean locked;
+
+    private long lockedSince;
+
+    private long unlockedSince;
 
-    public InterruptibleHazelcastRoutePolicy(HazelcastInstance instance) {
+    private long yieldUntil;
+
+    public InterruptibleHazelcastRoutePolicy(HazelcastInstance instance, LeadershipCoordinator coordinator) {
         super(instance, false);
         this.instance = instance;
+        this.coordinator = coordinator;
     }
 
     @Override
@@ -49,103 +68,98 @@ public class InterruptibleHazelcastRoutePolicy extends HazelcastRoutePolicy {
         StringHelper.notEmpty(getLockKey(), "lockKey", this);
         StringHelper.notEmpty(getLockValue(), "lockValue", this);
 
-        executorService = getCamelContext().getExecutorServiceManager().newSingleThreadExecutor(this, this.getClass().getSimpleName());
-
         locks = instance.getMap(getLockMapName());
-        future = executorService.submit(this::acquireLeadership);
-
+        coordinator.register(this);
     }
 
     @Override
     protected void doStop() throws Exception {
-        if (future != null) {
-            future.cancel(true);
-            future = null;
-        }
+        coordinator.unregister(this);
 
         instance.shutdown();
 
-        getCamelContext().getExecutorServiceManager().shutdownGraceful(executorService);
-
         super.doStop();
     }
 
     public void releaseLeadership() {
-        synchronized(syncObject) {
-            syncObject.notifyAll();
-        }
+        coordinator.yieldLeadership(this);
     }
 
-    private Void acquireLeadership() {
-
-        String lockKey = getLockKey();
+    /**
+     * Acquires or releases leadership based on ownership of the lock key, and on the current state of the lock
+     *
+     * @param owner true if the lock key is assigned to this member
+     */
+    void evaluate(boolean owner, long now) {
+        if (!isRunAllowed()) {
+            return;
+        }
+        long interval = coordinator.getEvaluationIntervalMillis();
+        try {
+            if (locked) {
+                if (!locks.isLocked(getLockKey())) {
+                    // Lock has been forcibly released, e.g. from the admin pages
+                    LOGGER.info("Lost lock (map={}, key={})", getLockMapName(), getLockKey());
+                    locked = false;
+                    setLeader(false);
+                } else if (!owner && now - lockedSince >= HANDOVER_EVALUATIONS * interval) {
+                    LOGGER.info("Handing over lock (map={}, key={}) to assigned member", getLockMapName(), getLockKey());
+                    releaseLock();
+                }
+            } else if (owner) {
+                if (now >= yieldUntil) {
+                    tryAcquire(now);
+                }
+            } else if (locks.isLocked(getLockKey())) {
+                unlockedSince = 0;
+            } else if (unlockedSince == 0) {
+                unlockedSince = now;
+            } else if (now - unlockedSince >= FALLBACK_EVALUATIONS * interval) {
+                // Assigned member has not taken the lock - take over until it is ready
+                tryAcquire(now);
+            }
+        } catch (HazelcastInstanceNotActiveException e) {
+            if (!isStoppingOrStopped()) {
+                throw e;
+            }
+        }
+    }
 
-        LOGGER.info("Starting to acquire lock (map={}, key={}, val={}) timeout {} {}",
-                getLockMapName(),
-                lockKey,
-                getLockValue(),
-                getTryLockTimeout(),
-                getTryLockTimeoutUnit().name()
-        );
+    /**
+     * Releases leadership, and waits before trying to acquire it again - letting other members take over
+     */
+    void yieldLeadership(long now) {
+        if (locked) {
+            yieldUntil = now + YIELD_EVALUATIONS * coordinator.getEvaluationIntervalMillis();
+            releaseLock();
+        }
+    }
 
-        boolean locked = false;
-        while (isRunAllowed()) {
+    void releaseLock() {
+        if (locked) {
+            locked = false;
+            setLeader(false);
             try {
-                locked = locks.tryLock(lockKey, getTryLockTimeout(), getTryLockTimeoutUnit());
-                if (locked) {
-                    locks.put(getLockKey(), getLockValue());
-                    setLeader(true);
-
-                    synchronized(syncObject) {
-                        // Calling wait() will block this thread until another thread
-                        // calls notify() on the object.
-                        syncObject.wait();
-                    }
-                } else {
-                    LOGGER.debug("Failed to acquire lock (map={}, key={}, val={}) after {} {}",
-                        getLockMapName(),
-                            lockKey,
-                        getLockValue(),
-                        getTryLockTimeout(),
-                        getTryLockTimeoutUnit().name()
-                    );
-                }
-            } catch (InterruptedException e) {
-                // ignore
+                locks.remove(getLockKey());
+                locks.unlock(getLockKey());
             } catch (HazelcastInstanceNotActiveException e) {
-                if (isStoppingOrStopped()) {
-                    //ignore
-                } else {
-                    throw e;
-                }
-            } catch (Exception e) {
-                getExceptionHandler().handleException(e);
-            } finally {
-                if (locked) {
-                    locks.remove(lockKey);
-                    locks.unlock(lockKey);
-                    releaseLeadership();
-                    locked = false;
-
-                    LOGGER.info("Released lock(map={}, key={}, val={}) timeout {} {}",
-                            getLockMapName(),
-                            lockKey,
-                            getLockValue(),
-                            getTryLockTimeout(),
-                            getTryLockTimeoutUnit().name()
-                    );
-                }
-                setLeader(false);
+                // Locks held by this member are released by the cluster
+            } catch (IllegalMonitorStateException e) {
+                LOGGER.info("Lock (map={}, key={}) was no longer held", getLockMapName(), getLockKey());
             }
+            LOGGER.info("Released lock(map={}, key={}, val={})", getLockMapName(), getLockKey(), getLockValue());
+        }
+    }
+
+    private void tryAcquire(long now) {
+        if (locks.tryLock(getLockKey())) {
+            locks.put(getLockKey(), getLockValue());
+            locked = true;
+            lockedSince = now;
+            unlockedSince = 0;
+            setLeader(true);
+        } else {
+            LOGGER.debug("Failed to acquire lock (map={}, key={}, val={})", getLockMapName(), getLockKey(), getLockValue());
         }
-        LOGGER.info("Finished trying to acquire lock(map={}, key={}, val={}) timeout {} {}",
-                getLockMapName(),
-                lockKey,
-                getLockValue(),
-                getTryLockTimeout(),
-                getTryLockTimeoutUnit().name()
-        );
-
-        return null;
     }
 }
@@ -0,0 +1,241 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.policy;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.cluster.Cluster;
+import com.hazelcast.cluster.Member;
+import com.hazelcast.cluster.MembershipEvent;
+import com.hazelcast.cluster.MembershipListener;
+import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Assigns leadership of singleton routes across the cluster by consistent hashing of the lock keys over the current
+ * cluster members, and rebalances when members join or leave.
+ *
+ * Leadership is still fenced by the Hazelcast lock for each key, but locks are acquired and released by a small shared
+ * pool instead of one dedicated thread per route. Hazelcast locks are owned by the locking thread, so every key is
+ * always handled by the same worker thread in the pool.
+ *
+ * A member only acquires keys it owns. Keys left unlocked by their owner for a while may be taken by any member, and
+ * are handed back to the owner after being held for a minimum period.
+ */
+@Service
+public class LeadershipCoordinator {
+
+    private static final Logger log = LoggerFactory.getLogger(LeadershipCoordinator.class);
+
+    private static final int VIRTUAL_NODES_PER_MEMBER = 100;
+
+    private static final long UNREGISTER_TIMEOUT_SECONDS = 10;
+
+    private final ExtendedHazelcastService hazelcastService;
+
+    private final long evaluationIntervalMillis;
+
+    private final int poolSize;
+
+    private final Map<String, InterruptibleHazelcastRoutePolicy> policies = new ConcurrentHashMap<>();
+
+    private volatile ConsistentHashRing ring = new ConsistentHashRing(Collections.emptyList(), VIRTUAL_NODES_PER_MEMBER);
+
+    private volatile Map<String, String> memberNames = Collections.emptyMap();
+
+    private volatile String localMember;
+
+    private List<ScheduledExecutorService> workers;
+
+    public LeadershipCoordinator(
+        @Autowired
+            ExtendedHazelcastService hazelcastService,
+        @Value("${anshar.route.singleton.policy.evaluation.interval.millis:5000}")
+            long evaluationIntervalMillis,
+        @Value("${anshar.route.singleton.policy.pool.size:2}")
+            int poolSize
+    ) {
+        this.hazelcastService = hazelcastService;
+        this.evaluationIntervalMillis = evaluationIntervalMillis;
+        this.poolSize = Math.max(1, poolSize);
+    }
+
+    /**
+     * Starts evaluating leadership for the policy's lock key
+     */
+    void register(InterruptibleHazelcastRoutePolicy policy) {
+        start();
+        policies.put(policy.getLockKey(), policy);
+        worker(policy.getLockKey()).execute(() -> evaluate(policy, System.currentTimeMillis()));
+    }
+
+    /**
+     * Stops evaluating leadership for the policy, and waits for any lock held to be released
+     */
+    void unregister(InterruptibleHazelcastRoutePolicy policy) {
+        if (!policies.remove(policy.getLockKey(), policy)) {
+            return;
+        }
+        try {
+            Future<?> release = worker(policy.getLockKey()).submit(policy::releaseLock);
+            release.get(UNREGISTER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down - locks are released by Hazelcast when this member leaves the cluster
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Failed to release lock {}", policy.getLockKey(), e);
+        }
+    }
+
+    /**
+     * Releases leadership held by the policy, and lets other members take over before this member tries again
+     */
+    void yieldLeadership(InterruptibleHazelcastRoutePolicy policy) {
+        worker(policy.getLockKey()).execute(() -> policy.yieldLeadership(System.currentTimeMillis()));
+    }
+
+    boolean isLocalOwner(String lockKey) {
+        String owner = ring.getOwner(lockKey);
+        return owner == null || owner.equals(localMember);
+    }
+
+    long getEvaluationIntervalMillis() {
+        return evaluationIntervalMillis;
+    }
+
+    /**
+     * @return assigned member per lock key registered on this member, sorted by key
+     */
+    public Map<String, String> getAssignments() {
+        Map<String, String> assignments = new TreeMap<>();
+        for (String lockKey : policies.keySet()) {
+            String owner = ring.getOwner(lockKey);
+            assignments.put(lockKey, owner != null ? memberNames.getOrDefault(owner, owner) : "");
+        }
+        return assignments;
+    }
+
+    /**
+     * @return all current cluster members, and whether each one is this member
+     */
+    public Map<String, Boolean> getMembers() {
+        Map<String, Boolean> members = new TreeMap<>();
+        memberNames.forEach((uuid, name) -> members.put(name, uuid.equals(localMember)));
+        return members;
+    }
+
+    private synchronized void start() {
+        if (workers != null) {
+            return;
+        }
+        workers = new ArrayList<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            workers.add(Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("anshar-leadership-" + i).setDaemon(true).build()));
+        }
+
+        Cluster cluster = hazelcastService.getHazelcastInstance().getCluster();
+        localMember = cluster.getLocalMember().getUuid().toString();
+        cluster.addMembershipListener(new MembershipListener() {
+            @Override
+            public void memberAdded(MembershipEvent membershipEvent) {
+                updateMembers(membershipEvent.getMembers());
+            }
+
+            @Override
+            public void memberRemoved(MembershipEvent membershipEvent) {
+                updateMembers(membershipEvent.getMembers());
+            }
+        });
+        updateMembers(cluster.getMembers());
+
+        for (int i = 0; i < poolSize; i++) {
+            final int stripe = i;
+            workers.get(i).scheduleWithFixedDelay(() -> evaluateStripe(stripe),
+                    evaluationIntervalMillis, evaluationIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        log.info("Started leadership coordinator with {} workers, evaluating every {} ms", poolSize, evaluationIntervalMillis);
+    }
+
+    private synchronized void updateMembers(Collection<Member> members) {
+        Map<String, String> names = new HashMap<>();
+        for (Member member : members) {
+            names.put(member.getUuid().toString(), member.getAddress().toString());
+        }
+        memberNames = names;
+        ring = new ConsistentHashRing(names.keySet(), VIRTUAL_NODES_PER_MEMBER);
+        log.info("Cluster members changed - rebalancing leadership over {} members: {}", names.size(), names.values());
+
+        // Re-evaluate immediately rather than waiting for the next scheduled evaluation
+        for (int i = 0; i < workers.size(); i++) {
+            final int stripe = i;
+            workers.get(i).execute(() -> evaluateStripe(stripe));
+        }
+    }
+
+    private void evaluateStripe(int stripe) {
+        long now = System.currentTimeMillis();
+        for (InterruptibleHazelcastRoutePolicy policy : policies.values()) {
+            if (stripe(policy.getLockKey()) == stripe) {
+                evaluate(policy, now);
+            }
+        }
+    }
+
+    private void evaluate(InterruptibleHazelcastRoutePolicy policy, long now) {
+        try {
+            policy.evaluate(isLocalOwner(policy.getLockKey()), now);
+        } catch (Exception e) {
+            log.warn("Failed to evaluate leadership for {}", policy.getLockKey(), e);
+        }
+    }
+
+    private ScheduledExecutorService worker(String lockKey) {
+        return workers.get(stripe(lockKey));
+    }
+
+    private int stripe(String lockKey) {
+        return Math.floorMod(lockKey.hashCode(), poolSize);
+    }
+
+    @PreDestroy
+    synchronized void shutdown() {
+        if (workers != null) {
+            workers.forEach(ScheduledExecutorService::shutdownNow);
+        }
+    }
+}
@@ -43,15 +43,20 @@ public class SingletonRoutePolicyFactory implements RoutePolicyFactory {
 
     private ExtendedHazelcastService hazelcastService;
 
+    private LeadershipCoordinator leadershipCoordinator;
+
     public SingletonRoutePolicyFactory(
         @Autowired
             ExtendedHazelcastService hazelcastService,
+        @Autowired
+            LeadershipCoordinator leadershipCoordinator,
         @Value("${anshar.route.singleton.policy.ignore:false}")
             boolean ignorePolicy,
         @Value("${anshar.route.singleton.policy.lockValue:}")
             String lockValue
     ) {
         this.hazelcastService = hazelcastService;
+        this.leadershipCoordinator = leadershipCoordinator;
         this.ignorePolicy = ignorePolicy;
         if (lockValue != null && !lockValue.isEmpty()) {
             log.info("using lockValue {}", lockValue);
@@ -66,7 +71,7 @@ public class SingletonRoutePolicyFactory implements RoutePolicyFactory {
      * Create policy ensuring only one route with 'key' is started in cluster.
      */
     private RoutePolicy build(String key) {
-        InterruptibleHazelcastRoutePolicy hazelcastRoutePolicy = new InterruptibleHazelcastRoutePolicy(hazelcastService.getHazelcastInstance());
+        InterruptibleHazelcastRoutePolicy hazelcastRoutePolicy = new InterruptibleHazelcastRoutePolicy(hazelcastService.getHazelcastInstance(), leadershipCoordinator);
         hazelcastRoutePolicy.setLockMapName("ansharRouteLockMap");
         hazelcastRoutePolicy.setLockKey(key);
         hazelcastRoutePolicy.setLockValue(lockValue);
@@ -0,0 +1,154 @@
+package no.rutebanken.anshar.routes.pubsub;
+
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer;
+import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
+import no.rutebanken.anshar.subscription.helpers.MappingAdapterPresets;
+import org.entur.protobuf.mapper.SiriMapper;
+import org.springframework.stereotype.Service;
+import uk.org.siri.siri20.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.EstimatedVersionFrameStructure;
+import uk.org.siri.siri20.ServiceDelivery;
+import uk.org.siri.siri20.Siri;
+import uk.org.siri.siri20.SituationExchangeDeliveryStructure;
+import uk.org.siri.siri20.VehicleActivityStructure;
+import uk.org.siri.siri20.VehicleMonitoringDeliveryStructure;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits outbound ServiceDeliveries into singular messages, and maps each message to protobuf for publishing to
+ * Cloud Pubsub.
+ *
+ * Messages are created directly from the SIRI-object. Each message is copied before outbound id-mapping is applied,
+ * as the original object is shared with outbound subscriptions.
+ */
+@Service
+public class PubsubSiriSplitter {
+
+    private static final String SIRI_VERSION = "2.0";
+
+    private final List<ValueAdapter> outboundAdapters = MappingAdapterPresets.getOutboundAdapters(OutboundIdMappingPolicy.DEFAULT);
+
+    /**
+     * One message per monitored or cancelled EstimatedVehicleJourney
+     */
+    public List<byte[]> splitEstimatedTimetables(Siri siri) {
+        return mapToPbf(splitEstimatedTimetablesToSiri(siri, true));
+    }
+
+    /**
+     * One message per VehicleActivity
+     */
+    public List<byte[]> splitVehicleActivities(Siri siri) {
+        return mapToPbf(splitVehicleActivitiesToSiri(siri));
+    }
+
+    /**
+     * One message per SituationExchangeDelivery
+     */
+    public List<byte[]> splitSituations(Siri siri) {
+        return mapToPbf(splitSituationsToSiri(siri));
+    }
+
+    private List<byte[]> mapToPbf(List<Siri> messages) {
+        List<byte[]> result = new ArrayList<>(messages.size());
+        for (Siri message : messages) {
+            Siri transformed = SiriValueTransformer.transform(SiriObjectFactory.deepCopy(message), outboundAdapters, false, false);
+            result.add(SiriMapper.mapToPbf(transformed).toByteArray());
+        }
+        return result;
+    }
+
+    static List<Siri> splitEstimatedTimetablesToSiri(Siri siri, boolean monitoredOrCancelledOnly) {
+        List<Siri> result = new ArrayList<>();
+        if (siri == null || siri.getServiceDelivery() == null) {
+            return result;
+        }
+        ServiceDelivery serviceDelivery = siri.getServiceDelivery();
+        for (EstimatedTimetableDeliveryStructure delivery : serviceDelivery.getEstimatedTimetableDeliveries()) {
+            for (EstimatedVersionFrameStructure frame : delivery.getEstimatedJourneyVersionFrames()) {
+                for (EstimatedVehicleJourney journey : frame.getEstimatedVehicleJourneies()) {
+                    if (monitoredOrCancelledOnly &&
+                            !Boolean.TRUE.equals(journey.isMonitored()) && !Boolean.TRUE.equals(journey.isCancellation())) {
+                        continue;
+                    }
+
+                    EstimatedVersionFrameStructure singleFrame = new EstimatedVersionFrameStructure();
+                    singleFrame.setRecordedAtTime(frame.getRecordedAtTime());
+                    singleFrame.getEstimatedVehicleJourneies().add(journey);
+
+                    EstimatedTimetableDeliveryStructure singleDelivery = new EstimatedTimetableDeliveryStructure();
+                    singleDelivery.setVersion(SIRI_VERSION);
+                    singleDelivery.setResponseTimestamp(delivery.getResponseTimestamp());
+                    singleDelivery.getEstimatedJourneyVersionFrames().add(singleFrame);
+
+                    ServiceDelivery singleServiceDelivery = createServiceDelivery(serviceDelivery);
+                    singleServiceDelivery.getEstimatedTimetableDeliveries().add(singleDelivery);
+                    result.add(createSiri(singleServiceDelivery));
+                }
+            }
+        }
+        return result;
+    }
+
+    static List<Siri> splitVehicleActivitiesToSiri(Siri siri) {
+        List<Siri> result = new ArrayList<>();
+        if (siri == null || siri.getServiceDelivery() == null) {
+            return result;
+        }
+        ServiceDelivery serviceDelivery = siri.getServiceDelivery();
+        for (VehicleMonitoringDeliveryStructure delivery : serviceDelivery.getVehicleMonitoringDeliveries()) {
+            for (VehicleActivityStructure activity : delivery.getVehicleActivities()) {
+                VehicleMonitoringDeliveryStructure singleDelivery = new VehicleMonitoringDeliveryStructure();
+                singleDelivery.setVersion(SIRI_VERSION);
+                singleDelivery.setResponseTimestamp(delivery.getResponseTimestamp());
+                singleDelivery.getVehicleActivities().add(activity);
+
+                ServiceDelivery singleServiceDelivery = createServiceDelivery(serviceDelivery);
+                singleServiceDelivery.getVehicleMonitoringDeliveries().add(singleDelivery);
+                result.add(createSiri(singleServiceDelivery));
+            }
+        }
+        return result;
+    }
+
+    static List<Siri> splitSituationsToSiri(Siri siri) {
+        List<Siri> result = new ArrayList<>();
+        if (siri == null || siri.getServiceDelivery() == null) {
+            return result;
+        }
+        ServiceDelivery serviceDelivery = siri.getServiceDelivery();
+        for (SituationExchangeDeliveryStructure delivery : serviceDelivery.getSituationExchangeDeliveries()) {
+            if (delivery.getSituations() == null) {
+                continue;
+            }
+            SituationExchangeDeliveryStructure singleDelivery = new SituationExchangeDeliveryStructure();
+            singleDelivery.setVersion(SIRI_VERSION);
+            singleDelivery.setResponseTimestamp(delivery.getResponseTimestamp());
+            singleDelivery.setSituations(delivery.getSituations());
+
+            ServiceDelivery singleServiceDelivery = createServiceDelivery(serviceDelivery);
+            singleServiceDelivery.getSituationExchangeDeliveries().add(singleDelivery);
+            result.add(createSiri(singleServiceDelivery));
+        }
+        return result;
+    }
+
+    private static ServiceDelivery createServiceDelivery(ServiceDelivery original) {
+        ServiceDelivery serviceDelivery = new ServiceDelivery();
+        serviceDelivery.setResponseTimestamp(original.getResponseTimestamp());
+        serviceDelivery.setProducerRef(original.getProducerRef());
+        return serviceDelivery;
+    }
+
+    private static Siri createSiri(ServiceDelivery serviceDelivery) {
+        Siri siri = new Siri();
+        siri.setVersion(SIRI_VERSION);
+        siri.setServiceDelivery(serviceDelivery);
+        return siri;
+    }
+}
@@ -1,6 +1,7 @@
 package no.rutebanken.anshar.routes.pubsub;
 
 import org.apache.camel.builder.RouteBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
@@ -21,6 +22,9 @@ public class PubsubTopicRoute extends RouteBuilder {
     @Value("${anshar.outbound.pubsub.topic.enabled}")
     private boolean pushToTopicEnabled;
 
+    @Autowired
+    private PubsubSiriSplitter pubsubSiriSplitter;
+
     private AtomicInteger etCounter = new AtomicInteger();
 
     private AtomicInteger vmCounter = new AtomicInteger();
@@ -33,13 +37,11 @@ public class PubsubTopicRoute extends RouteBuilder {
 
             /**
              * Splits SIRI ET-ServiceDelivery into singular messages (i.e. one ET-message per ServiceDelivery), converts
-             * message to protobuf, and posts to Cloud Pubsub
+             * message to protobuf, and posts to Cloud Pubsub. Only monitored or cancelled journeys are published
              */
             from("direct:send.to.pubsub.topic.estimated_timetable")
-                    .to("direct:siri.transform.data")
-                    .to("xslt-saxon:xsl/splitAndFilterNotMonitored.xsl")
-                    .split().tokenizeXML("Siri").streaming()
-                    .to("direct:map.jaxb.to.protobuf")
+                    .bean(pubsubSiriSplitter, "splitEstimatedTimetables")
+                    .split(body())
                     .wireTap("direct:log.pubsub.et.traffic")
                     .to(etTopic)
             ;
@@ -49,10 +51,8 @@ public class PubsubTopicRoute extends RouteBuilder {
              * message to protobuf, and posts to Cloud Pubsub
              */
             from("direct:send.to.pubsub.topic.vehicle_monitoring")
-                    .to("direct:siri.transform.data")
-                    .to("xslt-saxon:xsl/split.xsl")
-                    .split().tokenizeXML("Siri").streaming()
-                    .to("direct:map.jaxb.to.protobuf")
+                    .bean(pubsubSiriSplitter, "splitVehicleActivities")
+                    .split(body())
                     .wireTap("direct:log.pubsub.vm.traffic")
                     .to(vmTopic)
             ;
@@ -62,10 +62,8 @@ public class PubsubTopicRoute extends RouteBuilder {
              * message to protobuf, and posts to Cloud Pubsub
              */
             from("direct:send.to.pubsub.topic.situation_exchange")
-                    .to("direct:siri.transform.data")
-                    .to("xslt-saxon:xsl/split.xsl")
-                    .split().tokenizeXML("Siri").streaming()
-                    .to("direct:map.jaxb.to.protobuf")
+                    .bean(pubsubSiriSplitter, "splitSituations")
+                    .split(body())
                     .wireTap("direct:log.pubsub.sx.traffic")
                     .to(sxTopic)
             ;
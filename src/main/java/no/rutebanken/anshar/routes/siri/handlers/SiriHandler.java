@@ -24,7 +24,9 @@ import no.rutebanken.anshar.routes.health.HealthManager;
 import no.rutebanken.anshar.routes.outbound.ServerSubscriptionManager;
 import no.rutebanken.anshar.routes.outbound.SiriHelper;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.routes.siri.processor.PostProcessor;
 import no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer;
+import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
 import no.rutebanken.anshar.routes.validation.SiriXmlValidator;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import no.rutebanken.anshar.subscription.SubscriptionManager;
@@ -70,6 +72,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter.getOriginalId;
 
@@ -253,6 +257,23 @@ public class SiriHandler {
         return (list != null && !list.isEmpty());
     }
 
+    /**
+     * Applies mapping adapters to a delivery parsed by this handler. The parsed object is owned by the handler, and is
+     * transformed in place - unless it is still shared with asynchronous validation, in which case a copy is
+     * transformed to leave the original untouched.
+     */
+    private Siri transformIncoming(SubscriptionSetup subscriptionSetup, Siri parsed) {
+        if (parsed == null) {
+            return null;
+        }
+        List<ValueAdapter> mappingAdapters = subscriptionSetup.getMappingAdapters();
+
+        if (!configuration.isInPlaceIngestTransformEnabled() || siriXmlValidator.isShared(parsed)) {
+            return SiriValueTransformer.transform(parsed, mappingAdapters);
+        }
+        return SiriValueTransformer.transform(parsed, mappingAdapters, false, false);
+    }
+
     /**
      * Handling incoming requests from external servers
      *
@@ -274,9 +295,14 @@ public class SiriHandler {
                 receivedBytes = 0;
             }
 
+            if (isStreamingIngestApplicable(subscriptionSetup, xml) &&
+                    processSiriClientDeliveryInBatches(subscriptionSetup, xml, receivedBytes)) {
+                return;
+            }
+
             Siri originalInput = siriXmlValidator.parseXml(subscriptionSetup, xml);
 
-            Siri incoming = SiriValueTransformer.transform(originalInput, subscriptionSetup.getMappingAdapters());
+            Siri incoming = transformIncoming(subscriptionSetup, originalInput);
 
             if (incoming.getHeartbeatNotification() != null) {
                 subscriptionManager.touchSubscription(subscriptionId);
@@ -315,34 +341,7 @@ public class SiriHandler {
                                             logger.info(getErrorContents(sx.getErrorCondition()));
                                         } else {
                                             if (sx.getSituations() != null && sx.getSituations().getPtSituationElements() != null) {
-                                                if (subscriptionSetup.isUseCodespaceFromParticipantRef()) {
-                                                    Map<String, List<PtSituationElement>> situationsByCodespace = splitSituationsByCodespace(sx.getSituations().getPtSituationElements());
-                                                    for (String codespace : situationsByCodespace.keySet()) {
-
-                                                        // List containing added situations for current codespace
-                                                        List<PtSituationElement> addedSituations = new ArrayList();
-
-                                                        addedSituations.addAll(situations.addAll(
-                                                            codespace,
-                                                            situationsByCodespace.get(codespace)
-                                                        ));
-
-                                                        // Push updates to subscribers on this codespace
-                                                        serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedSituations, codespace);
-
-                                                        // Add to complete list of added situations
-                                                        addedOrUpdated.addAll(addedSituations);
-
-                                                    }
-
-                                                } else {
-
-                                                    addedOrUpdated.addAll(situations.addAll(
-                                                        subscriptionSetup.getDatasetId(),
-                                                        sx.getSituations().getPtSituationElements()
-                                                    ));
-                                                    serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedOrUpdated, subscriptionSetup.getDatasetId());
-                                                }
+                                                addedOrUpdated.addAll(addSituations(subscriptionSetup, sx.getSituations().getPtSituationElements()));
                                             }
                                         }
                                     }
@@ -443,6 +442,128 @@ public class SiriHandler {
         }
     }
 
+    /**
+     * Adds situations, and pushes updates to subscribers
+     *
+     * @return added or updated situations
+     */
+    private List<PtSituationElement> addSituations(SubscriptionSetup subscriptionSetup, List<PtSituationElement> ptSituationElements) {
+        List<PtSituationElement> addedOrUpdated = new ArrayList<>();
+        if (subscriptionSetup.isUseCodespaceFromParticipantRef()) {
+            Map<String, List<PtSituationElement>> situationsByCodespace = splitSituationsByCodespace(ptSituationElements);
+            for (String codespace : situationsByCodespace.keySet()) {
+
+                // List containing added situations for current codespace
+                List<PtSituationElement> addedSituations = new ArrayList();
+
+                addedSituations.addAll(situations.addAll(
+                    codespace,
+                    situationsByCodespace.get(codespace)
+                ));
+
+                // Push updates to subscribers on this codespace
+                serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedSituations, codespace);
+
+                // Add to complete list of added situations
+                addedOrUpdated.addAll(addedSituations);
+
+            }
+
+        } else {
+
+            addedOrUpdated.addAll(situations.addAll(
+                subscriptionSetup.getDatasetId(),
+                ptSituationElements
+            ));
+            serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedOrUpdated, subscriptionSetup.getDatasetId());
+        }
+        return addedOrUpdated;
+    }
+
+    /**
+     * Streaming is only used when the complete SIRI-object is not needed for validation, forwarding or PostProcessors
+     */
+    private boolean isStreamingIngestApplicable(SubscriptionSetup subscriptionSetup, InputStream xml) {
+        if (!configuration.isStreamingIngestEnabled() || !xml.markSupported()) {
+            return false;
+        }
+        if (configuration.isFullValidationEnabled() || subscriptionSetup.isValidation() || subscriptionSetup.forwardPositionData()) {
+            return false;
+        }
+        if (subscriptionSetup.getMappingAdapters() != null) {
+            for (ValueAdapter adapter : subscriptionSetup.getMappingAdapters()) {
+                if (adapter instanceof PostProcessor) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses, transforms and stores a ServiceDelivery in batches of data-elements
+     *
+     * @return false if the document is not a ServiceDelivery, and has not been processed
+     */
+    private boolean processSiriClientDeliveryInBatches(SubscriptionSetup subscriptionSetup, InputStream xml, int receivedBytes)
+        throws XMLStreamException {
+        final SiriDataType subscriptionType = subscriptionSetup.getSubscriptionType();
+        final String datasetId = subscriptionSetup.getDatasetId();
+        final List<ValueAdapter> mappingAdapters = subscriptionSetup.getMappingAdapters();
+        final int batchSize = configuration.getStreamingIngestBatchSize();
+        final Consumer<ServiceDeliveryErrorConditionElement> errorConsumer = errorCondition -> logger.info(getErrorContents(errorCondition));
+
+        final AtomicInteger addedOrUpdatedCount = new AtomicInteger();
+        final boolean isServiceDelivery;
+        final int activeElements;
+
+        switch (subscriptionType) {
+            case SITUATION_EXCHANGE:
+                isServiceDelivery = siriXmlValidator.parseXmlInBatches(subscriptionSetup, xml, PtSituationElement.class, batchSize, batch -> {
+                    SiriValueTransformer.transform(batch, mappingAdapters);
+                    addedOrUpdatedCount.addAndGet(addSituations(subscriptionSetup, batch).size());
+                }, errorConsumer);
+                activeElements = situations.getSize();
+                break;
+            case VEHICLE_MONITORING:
+                isServiceDelivery = siriXmlValidator.parseXmlInBatches(subscriptionSetup, xml, VehicleActivityStructure.class, batchSize, batch -> {
+                    SiriValueTransformer.transform(batch, mappingAdapters);
+                    List<VehicleActivityStructure> addedOrUpdated = new ArrayList<>(vehicleActivities.addAll(datasetId, batch));
+                    serverSubscriptionManager.pushUpdatesAsync(subscriptionType, addedOrUpdated, datasetId);
+                    addedOrUpdatedCount.addAndGet(addedOrUpdated.size());
+                }, errorConsumer);
+                activeElements = vehicleActivities.getSize();
+                break;
+            case ESTIMATED_TIMETABLE:
+                isServiceDelivery = siriXmlValidator.parseXmlInBatches(subscriptionSetup, xml, EstimatedVehicleJourney.class, batchSize, batch -> {
+                    SiriValueTransformer.transform(batch, mappingAdapters);
+                    List<EstimatedVehicleJourney> addedOrUpdated = new ArrayList<>(estimatedTimetables.addAll(datasetId, batch));
+                    serverSubscriptionManager.pushUpdatesAsync(subscriptionType, addedOrUpdated, datasetId);
+                    addedOrUpdatedCount.addAndGet(addedOrUpdated.size());
+                }, errorConsumer);
+                activeElements = estimatedTimetables.getSize();
+                break;
+            default:
+                return false;
+        }
+
+        if (!isServiceDelivery) {
+            return false;
+        }
+
+        healthManager.dataReceived();
+        subscriptionManager.incrementObjectCounter(subscriptionSetup, addedOrUpdatedCount.get());
+
+        logger.info("Active {}-elements: {}, current streamed delivery: {}, {}", subscriptionType, activeElements, addedOrUpdatedCount.get(), subscriptionSetup);
+
+        if (addedOrUpdatedCount.get() > 0) {
+            subscriptionManager.dataReceived(subscriptionSetup.getSubscriptionId(), receivedBytes);
+        } else {
+            subscriptionManager.touchSubscription(subscriptionSetup.getSubscriptionId());
+        }
+        return true;
+    }
+
     private Map<String, List<PtSituationElement>> splitSituationsByCodespace(
         List<PtSituationElement> ptSituationElements
     ) {
@@ -22,6 +22,7 @@ import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.pool.KryoFactory;
 import com.esotericsoftware.kryo.pool.KryoPool;
 import no.rutebanken.anshar.config.AnsharConfiguration;
+import no.rutebanken.anshar.data.collections.SiriKryoRegistry;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
 import org.apache.commons.lang3.NotImplementedException;
@@ -114,11 +115,11 @@ public class SiriObjectFactory {
                 }
             });
 
-          // configure kryo instance, customize settings
+          SiriKryoRegistry.register(kryo);
           return kryo;
         };
 
-    	kryoPool = new KryoPool.Builder(factory).softReferences().build();
+    	kryoPool = SiriKryoRegistry.createPool(factory);
 
     }
 
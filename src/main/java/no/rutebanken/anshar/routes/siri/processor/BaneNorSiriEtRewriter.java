@@ -44,9 +44,9 @@ import java.util.Map;
 import java.util.Set;
 
 import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.getPublicCode;
-import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.getServiceDates;
 import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.getServiceJourney;
 import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.getStopTimes;
+import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.hasServiceDate;
 import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.isKnownTrainNr;
 import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.isStopIdOrParentMatch;
 import static no.rutebanken.anshar.routes.siri.transformer.MappingNames.REMOVE_UNKNOWN_DEPARTURE;
@@ -130,8 +130,7 @@ public class BaneNorSiriEtRewriter extends ValueAdapter implements PostProcessor
                                     } else {
                                         Set<String> serviceJourneys = getServiceJourney(etTrainNumber);
                                         for (String serviceJourney : serviceJourneys) {
-                                            List<ServiceDate> serviceDates = getServiceDates(serviceJourney);
-                                            if (serviceDates.contains(serviceDate)) {
+                                            if (hasServiceDate(serviceJourney, serviceDate)) {
                                                 foundMatch = true;
                                                 break;
                                             }
@@ -359,8 +358,7 @@ public class BaneNorSiriEtRewriter extends ValueAdapter implements PostProcessor
             }
 
 
-            List<ServiceDate> serviceDates = getServiceDates(serviceJourneyId);
-            if (serviceDates.contains(serviceDate)) {
+            if (hasServiceDate(serviceJourneyId, serviceDate)) {
                 boolean matchStopIdOnly = false;
                 Set<EstimatedCall> visitedCalls = new HashSet<>();
                 for (StopTime stopTime : stopTimes) {
@@ -444,8 +442,7 @@ public class BaneNorSiriEtRewriter extends ValueAdapter implements PostProcessor
             }
 
 
-            List<ServiceDate> serviceDates = getServiceDates(serviceJourneyId);
-            if (serviceDates.contains(serviceDate)) {
+            if (hasServiceDate(serviceJourneyId, serviceDate)) {
                 boolean matchStopIdOnly = false;
                 Set<RecordedCall> visitedCall = new HashSet<>();
                 for (StopTime stopTime : stopTimes) {
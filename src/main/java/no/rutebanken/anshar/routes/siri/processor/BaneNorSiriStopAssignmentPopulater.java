@@ -15,6 +15,7 @@
 
 package no.rutebanken.anshar.routes.siri.processor;
 
+import no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService;
 import no.rutebanken.anshar.routes.siri.processor.routedata.ServiceDate;
 import no.rutebanken.anshar.routes.siri.processor.routedata.StopTime;
 import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
@@ -37,9 +38,9 @@ import java.time.ZonedDateTime;
 import java.util.List;
 import java.util.Set;
 
-import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.getServiceDates;
 import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.getServiceJourney;
 import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.getStopTimes;
+import static no.rutebanken.anshar.routes.siri.processor.routedata.NetexUpdaterService.hasServiceDate;
 import static no.rutebanken.anshar.routes.siri.transformer.MappingNames.POPULATE_STOP_ASSIGNMENTS;
 import static no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter.getMappedId;
 
@@ -188,10 +189,8 @@ public class BaneNorSiriStopAssignmentPopulater extends ValueAdapter implements
                 ServiceDate serviceDate = getServiceDate(estimatedVehicleJourney);
                 int departureTimeAsSecondsOfDay = getDepartureTimeAsSecondsOfDay(estimatedVehicleJourney);
                 for (String serviceJourneyId : serviceJourneyIds) {
-                    List<StopTime> stopTimes = getStopTimes(serviceJourneyId);
-
-                    if (getServiceDates(serviceJourneyId).contains(serviceDate) &&
-                            departureTimeAsSecondsOfDay == stopTimes.get(0).getArrivalTime()) {
+                    if (hasServiceDate(serviceJourneyId, serviceDate) &&
+                            departureTimeAsSecondsOfDay == NetexUpdaterService.getFirstDepartureTime(serviceJourneyId)) {
                         id = serviceJourneyId;
                     }
                 }
@@ -15,20 +15,23 @@
 
 package no.rutebanken.anshar.routes.siri.processor.routedata;
 
-import org.apache.commons.io.IOUtils;
 import org.rutebanken.netex.model.*;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -37,6 +40,9 @@ public class NetexProcessor {
 
     private static JAXBContext jaxbContext;
 
+    // Shared by all processors - zip-entries are unmarshalled in parallel, and merged one at a time
+    private static final ForkJoinPool parserPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
     private Map<String, DayTypeAssignment> dayTypeAssignmentByDayTypeId = new HashMap<>();
     private Map<String, ServiceJourney> serviceJourneyById = new HashMap<>();
     private Map<String, String> quayIdByStopPointRef = new HashMap<>();
@@ -47,7 +53,7 @@ public class NetexProcessor {
     private Map<String, List<StopTime>> tripStops = new HashMap<>();
     private Map<String, Set<String>> trainNumberTrips = new HashMap<>();
     private Map<String, List<ServiceDate>> tripDates = new HashMap<>();
-    private static Map<String, String> parentStops = new HashMap<>();
+    private Map<String, String> parentStops = new HashMap<>();
 
     static {
         try {
@@ -82,8 +88,26 @@ public class NetexProcessor {
     }
 
     public void loadFiles(File file) throws IOException {
-        ZipFile zipFile = new ZipFile(file, ZipFile.OPEN_READ);
-        zipFile.stream().forEach(entry -> loadFile(entry, zipFile));
+        loadFiles(file, parserPool);
+    }
+
+    /**
+     * Unmarshals all entries in the zip-file in parallel using the provided pool. Each entry is streamed directly from
+     * the zip-file, and its content is merged into this processor as soon as it has been unmarshalled.
+     */
+    public void loadFiles(File file, ForkJoinPool pool) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file, ZipFile.OPEN_READ)) {
+            List<? extends ZipEntry> entries = zipFile.stream()
+                    .filter(entry -> !entry.isDirectory())
+                    .collect(Collectors.toList());
+
+            pool.submit(() -> entries.parallelStream().forEach(entry -> loadFile(entry, zipFile))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + file, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not load " + file, e.getCause());
+        }
         populateTrips();
     }
 
@@ -136,40 +160,35 @@ public class NetexProcessor {
         return seconds;
     }
 
-    private byte[] entryAsBytes(ZipFile zipFile, ZipEntry entry) {
-        try {
-            return IOUtils.toByteArray(zipFile.getInputStream(entry));
-        } catch (IOException e) {
+    private void loadFile(ZipEntry entry, ZipFile zipFile) {
+        PublicationDeliveryStructure value;
+        try (InputStream stream = new BufferedInputStream(zipFile.getInputStream(entry))) {
+            value = parseXmlDoc(stream);
+        } catch (JAXBException | IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
+        loadFrames(value);
     }
 
-    private void loadFile(ZipEntry entry, ZipFile zipFile) {
-        try {
-            byte[] bytesArray = entryAsBytes(zipFile, entry);
-            PublicationDeliveryStructure value = parseXmlDoc(bytesArray);
-            List<JAXBElement<? extends Common_VersionFrameStructure>> compositeFrameOrCommonFrames = value.getDataObjects().getCompositeFrameOrCommonFrame();
-            for (JAXBElement frame : compositeFrameOrCommonFrames) {
-                if (frame.getValue() instanceof CompositeFrame) {
-                    CompositeFrame cf = (CompositeFrame) frame.getValue();
-                    List<JAXBElement<? extends Common_VersionFrameStructure>> commonFrames = cf.getFrames().getCommonFrame();
-                    for (JAXBElement commonFrame : commonFrames) {
-                        loadServiceFrames(commonFrame);
-                        loadServiceCalendarFrames(commonFrame);
-                        loadTimeTableFrames(commonFrame);
-                    }
-                } else {
-                    loadSiteFrames(frame);
+    private synchronized void loadFrames(PublicationDeliveryStructure value) {
+        List<JAXBElement<? extends Common_VersionFrameStructure>> compositeFrameOrCommonFrames = value.getDataObjects().getCompositeFrameOrCommonFrame();
+        for (JAXBElement frame : compositeFrameOrCommonFrames) {
+            if (frame.getValue() instanceof CompositeFrame) {
+                CompositeFrame cf = (CompositeFrame) frame.getValue();
+                List<JAXBElement<? extends Common_VersionFrameStructure>> commonFrames = cf.getFrames().getCommonFrame();
+                for (JAXBElement commonFrame : commonFrames) {
+                    loadServiceFrames(commonFrame);
+                    loadServiceCalendarFrames(commonFrame);
+                    loadTimeTableFrames(commonFrame);
                 }
+            } else {
+                loadSiteFrames(frame);
             }
-        } catch (JAXBException e) {
-            throw new RuntimeException(e.getMessage(), e);
         }
     }
 
-    private PublicationDeliveryStructure parseXmlDoc(byte[] bytesArray) throws JAXBException {
+    private PublicationDeliveryStructure parseXmlDoc(InputStream stream) throws JAXBException {
         JAXBElement<PublicationDeliveryStructure> root;
-        ByteArrayInputStream stream = new ByteArrayInputStream(bytesArray);
         //noinspection unchecked
         root = (JAXBElement<PublicationDeliveryStructure>) createUnmarshaller().unmarshal(stream);
         return root.getValue();
@@ -27,12 +27,23 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -57,49 +68,69 @@ public class NetexUpdaterService {
         "https://storage.googleapis.com/marduk-production/tiamat/CurrentAndFuture_latest.zip"
     };
 
-    private static Map<String, List<StopTime>> tripStops = new HashMap<>();
-    private static Map<String, Set<String>> trainNumberTrips = new HashMap<>();
-    private static Map<String, List<ServiceDate>> tripDates = new HashMap<>();
-    private static Map<String, String> parentStops = new HashMap<>();
-    private static Map<String, String> quayPublicCodes = new HashMap<>();
+    private static final int MAX_PARALLEL_DOWNLOADS = 4;
+
+    private static volatile RouteDataStore routeData = RouteDataStore.EMPTY;
+
+    // Most recent download per url - kept to detect, and avoid reloading, unchanged files
+    private static final Map<String, DownloadedFile> downloadedFiles = new ConcurrentHashMap<>();
+
+    // Content hash per url of the files current route data was built from
+    private static Map<String, byte[]> loadedContentHashes = new HashMap<>();
 
     public static boolean isStopIdOrParentMatch(String stop1, String stop2) {
+        Map<String, String> parentStops = routeData.getParentStops();
         return stop1.equals(stop2) || parentStops.get(stop2).equals(parentStops.get(stop1));
     }
 
     static Map<String, String> getParentStops() {
-        return parentStops;
+        return routeData.getParentStops();
     }
 
     public static List<StopTime> getStopTimes(String serviceJourneyId) {
-        return tripStops.get(serviceJourneyId);
+        return routeData.getStopTimes(serviceJourneyId);
     }
 
     public static List<ServiceDate> getServiceDates(String serviceJourneyId) {
-        return tripDates.get(serviceJourneyId);
+        return routeData.getServiceDates(serviceJourneyId);
+    }
+
+    public static boolean hasServiceDate(String serviceJourneyId, ServiceDate serviceDate) {
+        return routeData.hasServiceDate(serviceJourneyId, serviceDate);
+    }
+
+    public static int getFirstDepartureTime(String serviceJourneyId) {
+        return routeData.getFirstDepartureTime(serviceJourneyId);
     }
 
     public static Set<String> getServiceJourney(String trainNumber) {
-        return trainNumberTrips.get(trainNumber);
+        return routeData.getServiceJourney(trainNumber);
     }
 
     public static String getPublicCode(String quayRef) {
         if (quayRef != null) {
-            return quayPublicCodes.get(quayRef);
+            return routeData.getPublicCode(quayRef);
         }
         return null;
     }
 
     public static boolean isKnownTrainNr(String trainNumber) {
-        return trainNumberTrips.containsKey(trainNumber);
+        return routeData.getServiceJourney(trainNumber) != null;
     }
 
     static Set<String> getServiceJourneys() {
-        return tripStops.keySet();
+        return routeData.getServiceJourneys();
     }
 
     static Set<String> getTrainNumbers() {
-        return trainNumberTrips.keySet();
+        return routeData.getTrainNumbers();
+    }
+
+    /**
+     * @return estimated size in bytes of the route data currently in use
+     */
+    public static long getEstimatedSizeInBytes() {
+        return routeData.getEstimatedSizeInBytes();
     }
 
     @PostConstruct
@@ -110,29 +141,66 @@ public class NetexUpdaterService {
                     long t1 = System.currentTimeMillis();
                     logger.info("Updating NeTEx-data - start");
 
-                    String[] paths = new String[urls.length];
-
-                    try {
-                        for (int i = 0; i < urls.length; i++) {
-                            paths[i] = readUrl(urls[i]);
-                            if (paths[i] == null) {
-                                logger.error("Do not update NeTEx data as file could not be downloaded: {}", urls[i]);
-                                return;
-                            }
-                        }
-
-                        update(paths);
+                    boolean updated = updateFromUrls(urls);
 
-                    } finally {
-                        cleanup(paths);
-                    }
-                    logger.info("Updating NeTEx-data - done: {} ms", (System.currentTimeMillis() - t1));
+                    logger.info("Updating NeTEx-data - done: {} ms, updated: {}", (System.currentTimeMillis() - t1), updated);
                 },
                 0,
                 UPDATE_FREQUENCY,
                 FREQUENCY_TIME_UNIT);
     }
 
+    /**
+     * Downloads all urls in parallel, and rebuilds route data if any of them have changed since it was last built.
+     * Unchanged files are detected by ETag/Last-Modified when provided by the server, and by content hash otherwise.
+     *
+     * @return true if route data was rebuilt
+     */
+    static synchronized boolean updateFromUrls(String... urls) {
+        ExecutorService downloadExecutor = Executors.newFixedThreadPool(Math.min(urls.length, MAX_PARALLEL_DOWNLOADS));
+        try {
+            List<Future<Boolean>> downloads = new ArrayList<>();
+            for (String url : urls) {
+                downloads.add(downloadExecutor.submit(() -> download(url)));
+            }
+
+            for (int i = 0; i < urls.length; i++) {
+                if (!downloads.get(i).get()) {
+                    logger.error("Do not update NeTEx data as file could not be downloaded: {}", urls[i]);
+                    return false;
+                }
+            }
+
+            Map<String, byte[]> contentHashes = new HashMap<>();
+            String[] paths = new String[urls.length];
+            for (int i = 0; i < urls.length; i++) {
+                DownloadedFile downloaded = downloadedFiles.get(urls[i]);
+                contentHashes.put(urls[i], downloaded.contentHash);
+                paths[i] = downloaded.path;
+            }
+
+            if (isUnchanged(contentHashes)) {
+                logger.info("NeTEx files unchanged - keeping current data");
+                return false;
+            }
+
+            if (!update(paths)) {
+                return false;
+            }
+            loadedContentHashes = contentHashes;
+            return true;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            logger.error("Could not download NeTEx data", e.getCause());
+            return false;
+        } finally {
+            downloadExecutor.shutdown();
+        }
+    }
+
     private static void cleanup(String... paths) {
         for (String path : paths) {
             if (path != null) {
@@ -148,83 +216,142 @@ public class NetexUpdaterService {
         }
     }
 
-    public static void update(String... paths) {
+    /**
+     * Reads all files, and replaces current route data if all files were loaded
+     *
+     * @return false if any of the files could not be loaded - current route data is then kept
+     */
+    public static boolean update(String... paths) {
         long start = System.currentTimeMillis();
-        Map<String, List<StopTime>> tmpTripStops = new HashMap<>();
-        Map<String, Set<String>> tmpTrainNumberTrips = new HashMap<>();
-        Map<String, List<ServiceDate>> tmpTripDates = new HashMap<>();
-        Map<String, String> tmpParentStops = new HashMap<>();
-        Map<String, String> tmpQuayPublicCodes = new HashMap<>();
+        RouteDataStore.Builder builder = new RouteDataStore.Builder();
 
         for (String path : paths) {
-            readNeTEx(path, tmpTripStops, tmpTrainNumberTrips, tmpTripDates, tmpParentStops, tmpQuayPublicCodes);
+            if (!readNeTEx(path, builder)) {
+                logger.error("Do not update NeTEx data as file could not be loaded: {}", path);
+                return false;
+            }
         }
 
+        RouteDataStore updated = builder.build();
+
         // Swapping updated data
-        tripStops = tmpTripStops;
-        trainNumberTrips = tmpTrainNumberTrips;
-        tripDates = tmpTripDates;
-        parentStops = tmpParentStops;
-        quayPublicCodes = tmpQuayPublicCodes;
-        logger.info("Read and merged {} NeTEx files in {} ms", paths.length, (System.currentTimeMillis()-start));
+        routeData = updated;
+        logger.info("Read and merged {} NeTEx files in {} ms - {} ServiceJourneys, {} StopTimes, estimated size {} kB",
+                paths.length, (System.currentTimeMillis()-start), updated.getServiceJourneyCount(),
+                updated.getStopTimeCount(), updated.getEstimatedSizeInBytes() / 1024);
+        return true;
     }
 
-    private static String readUrl(String url) {
+    static RouteDataStore getRouteData() {
+        return routeData;
+    }
+
+    /**
+     * Replaces current route data - the next update will reload all files
+     */
+    static synchronized void setRouteData(RouteDataStore data) {
+        routeData = data;
+        loadedContentHashes = new HashMap<>();
+    }
+
+    private static boolean isUnchanged(Map<String, byte[]> contentHashes) {
+        if (!contentHashes.keySet().equals(loadedContentHashes.keySet())) {
+            return false;
+        }
+        for (Map.Entry<String, byte[]> entry : contentHashes.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), loadedContentHashes.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        InputStream httpIn = null;
-        OutputStream bufferedOut = null;
+    /**
+     * Downloads url to a local file kept until the next download. Conditional headers are sent when the file has
+     * previously been downloaded, and the previous file is kept if the server reports it as not modified.
+     *
+     * @return false if download failed
+     */
+    private static boolean download(String url) {
+        DownloadedFile previous = downloadedFiles.get(url);
+        File tmpFile = null;
         try {
             long start = System.currentTimeMillis();
-            File tmpFile = File.createTempFile("netex", ".zip");
-            // check the http connection before we do anything to the fs
-            httpIn = new BufferedInputStream(new URL(url).openStream());
-            bufferedOut = new BufferedOutputStream(new FileOutputStream(tmpFile), 1024);
-            byte[] data = new byte[1024];
-            boolean fileComplete = false;
-            int count;
-            while (!fileComplete) {
-                count = httpIn.read(data, 0, 1024);
-                if (count <= 0) {
-                    fileComplete = true;
-                } else {
-                    bufferedOut.write(data, 0, count);
+            URLConnection connection = new URL(url).openConnection();
+            if (previous != null) {
+                if (previous.etag != null) {
+                    connection.setRequestProperty("If-None-Match", previous.etag);
+                }
+                if (previous.lastModified > 0) {
+                    connection.setIfModifiedSince(previous.lastModified);
                 }
             }
-            logger.debug("Downloaded {} to temporary file {} in {} ms", url, tmpFile.getAbsolutePath(), (System.currentTimeMillis() - start));
-            return tmpFile.getAbsolutePath();
-        } catch (IOException e) {
-            logger.error("Could not download file", e);
-        } finally {
-            try {
-                if (httpIn != null) httpIn.close();
-            } catch (Exception e) {
-                logger.error("Could not close resource", e);
+
+            if (previous != null && connection instanceof HttpURLConnection &&
+                    ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                logger.debug("{} not modified", url);
+                return true;
+            }
+
+            tmpFile = File.createTempFile("netex", ".zip");
+            tmpFile.deleteOnExit();
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream httpIn = new DigestInputStream(new BufferedInputStream(connection.getInputStream()), digest);
+                 OutputStream bufferedOut = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+                httpIn.transferTo(bufferedOut);
+            }
+
+            DownloadedFile downloaded = new DownloadedFile(tmpFile.getAbsolutePath(), connection.getHeaderField("ETag"),
+                    connection.getLastModified(), digest.digest());
+            logger.debug("Downloaded {} to temporary file {} in {} ms", url, downloaded.path, (System.currentTimeMillis() - start));
+
+            if (previous != null && Arrays.equals(previous.contentHash, downloaded.contentHash)) {
+                logger.debug("{} has unchanged content", url);
+                cleanup(downloaded.path);
+                downloadedFiles.put(url, new DownloadedFile(previous.path, downloaded.etag, downloaded.lastModified, previous.contentHash));
+                return true;
+            }
+
+            downloadedFiles.put(url, downloaded);
+            if (previous != null) {
+                cleanup(previous.path);
             }
-            try {
-                if (bufferedOut != null) bufferedOut.close();
-            } catch (Exception e) {
-                logger.error("Could not close resource", e);
+            return true;
+
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.error("Could not download file", e);
+            if (tmpFile != null) {
+                cleanup(tmpFile.getAbsolutePath());
             }
         }
-        return null;
+        return false;
     }
 
-    private static void readNeTEx(String path, Map<String, List<StopTime>> tripStops, Map<String, Set<String>> trainNumberTrips,
-                                  Map<String, List<ServiceDate>> tripDates, Map<String, String> parentStops, Map<String, String> quayPublicCodes) {
+    private static boolean readNeTEx(String path, RouteDataStore.Builder builder) {
         try {
 
             NetexProcessor netexProcessor = new NetexProcessor();
             netexProcessor.loadFiles(new File(path));
-            tripStops.putAll(netexProcessor.getTripStops());
-            trainNumberTrips.putAll(netexProcessor.getTrainNumberTrips());
-            tripDates.putAll(netexProcessor.getTripDates());
-            parentStops.putAll(netexProcessor.getParentStops());
-            quayPublicCodes.putAll(netexProcessor.getPublicCodeByQuayId());
+            builder.add(netexProcessor);
+            return true;
         } catch (IOException e) {
-            logger.error("Could not load NeTEx file from path {}", path);
+            logger.error("Could not load NeTEx file from path {}", path, e);
         }
+        return false;
     }
 
-
-
+    private static class DownloadedFile {
+        private final String path;
+        private final String etag;
+        private final long lastModified;
+        private final byte[] contentHash;
+
+        private DownloadedFile(String path, String etag, long lastModified, byte[] contentHash) {
+            this.path = path;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+        }
+    }
 }
@@ -0,0 +1,382 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.processor.routedata;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, compact representation of the route data read from NeTEx.
+ *
+ * StopTimes are kept column-wise in primitive arrays, indexed by the position of the ServiceJourney in a sorted id-array,
+ * and with stop ids interned in a shared table. ServiceDates are packed as one bitset per ServiceJourney, relative to
+ * the first date of that ServiceJourney. StopTime and ServiceDate objects are only created on lookup.
+ *
+ * A new store is built for each update, and replaces the previous one as a single reference.
+ */
+final class RouteDataStore {
+
+    static final RouteDataStore EMPTY = new Builder().build();
+
+    // Approximate sizes used when estimating memory footprint
+    private static final int OBJECT_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 8;
+    private static final int MAP_ENTRY_BYTES = 48;
+
+    private final String[] serviceJourneyIds;
+
+    private final String[] stopIds;
+
+    // StopTimes for serviceJourneyIds[i] are stored in [stopTimeOffsets[i], stopTimeOffsets[i+1])
+    private final boolean[] hasStopTimes;
+    private final int[] stopTimeOffsets;
+    private final int[] stopIndexes;
+    private final int[] stopSequences;
+    private final int[] arrivalTimes;
+    private final int[] departureTimes;
+
+    // ServiceDates for serviceJourneyIds[i] are stored as bits in [dateWordOffsets[i], dateWordOffsets[i+1]), where
+    // bit n is set if firstEpochDay[i] + n is a ServiceDate. ServiceJourneys without dates have no entry in tripDates.
+    private final boolean[] hasServiceDates;
+    private final int[] firstEpochDays;
+    private final int[] dateWordOffsets;
+    private final long[] dateWords;
+
+    private final Map<String, Set<String>> trainNumberTrips;
+    private final Map<String, String> parentStops;
+    private final Map<String, String> quayPublicCodes;
+
+    private RouteDataStore(Builder builder) {
+        serviceJourneyIds = builder.serviceJourneyIds();
+
+        Map<String, Integer> stopIndexById = new HashMap<>();
+        List<String> stopIdTable = new ArrayList<>();
+
+        int stopTimeCount = 0;
+        int dateWordCount = 0;
+        for (String serviceJourneyId : serviceJourneyIds) {
+            List<StopTime> stopTimes = builder.tripStops.get(serviceJourneyId);
+            if (stopTimes != null) {
+                stopTimeCount += stopTimes.size();
+            }
+            List<ServiceDate> serviceDates = builder.tripDates.get(serviceJourneyId);
+            if (serviceDates != null && !serviceDates.isEmpty()) {
+                int[] range = getEpochDayRange(serviceDates);
+                dateWordCount += wordCount(range[1] - range[0] + 1);
+            }
+        }
+
+        hasStopTimes = new boolean[serviceJourneyIds.length];
+        stopTimeOffsets = new int[serviceJourneyIds.length + 1];
+        stopIndexes = new int[stopTimeCount];
+        stopSequences = new int[stopTimeCount];
+        arrivalTimes = new int[stopTimeCount];
+        departureTimes = new int[stopTimeCount];
+
+        hasServiceDates = new boolean[serviceJourneyIds.length];
+        firstEpochDays = new int[serviceJourneyIds.length];
+        dateWordOffsets = new int[serviceJourneyIds.length + 1];
+        dateWords = new long[dateWordCount];
+
+        int stopTimePos = 0;
+        int dateWordPos = 0;
+        for (int i = 0; i < serviceJourneyIds.length; i++) {
+            stopTimeOffsets[i] = stopTimePos;
+            List<StopTime> stopTimes = builder.tripStops.get(serviceJourneyIds[i]);
+            if (stopTimes != null) {
+                hasStopTimes[i] = true;
+                for (StopTime stopTime : stopTimes) {
+                    stopIndexes[stopTimePos] = intern(stopTime.getStopId(), stopIndexById, stopIdTable);
+                    stopSequences[stopTimePos] = stopTime.getStopSequence();
+                    arrivalTimes[stopTimePos] = stopTime.getArrivalTime();
+                    departureTimes[stopTimePos] = stopTime.getDepartureTime();
+                    stopTimePos++;
+                }
+            }
+
+            dateWordOffsets[i] = dateWordPos;
+            List<ServiceDate> serviceDates = builder.tripDates.get(serviceJourneyIds[i]);
+            if (serviceDates != null) {
+                hasServiceDates[i] = true;
+                if (!serviceDates.isEmpty()) {
+                    int[] range = getEpochDayRange(serviceDates);
+                    firstEpochDays[i] = range[0];
+                    for (ServiceDate serviceDate : serviceDates) {
+                        int bit = toEpochDay(serviceDate) - range[0];
+                        dateWords[dateWordPos + (bit >>> 6)] |= 1L << bit;
+                    }
+                    dateWordPos += wordCount(range[1] - range[0] + 1);
+                }
+            }
+        }
+        stopTimeOffsets[serviceJourneyIds.length] = stopTimePos;
+        dateWordOffsets[serviceJourneyIds.length] = dateWordPos;
+
+        Map<String, String> stops = new HashMap<>();
+        for (Map.Entry<String, String> entry : builder.parentStops.entrySet()) {
+            stops.put(internValue(entry.getKey(), stopIndexById, stopIdTable), entry.getValue());
+        }
+        parentStops = Collections.unmodifiableMap(stops);
+
+        Map<String, String> publicCodes = new HashMap<>();
+        for (Map.Entry<String, String> entry : builder.quayPublicCodes.entrySet()) {
+            publicCodes.put(internValue(entry.getKey(), stopIndexById, stopIdTable), entry.getValue());
+        }
+        quayPublicCodes = Collections.unmodifiableMap(publicCodes);
+
+        stopIds = stopIdTable.toArray(new String[0]);
+
+        Map<String, Set<String>> trains = new HashMap<>();
+        for (Map.Entry<String, Set<String>> entry : builder.trainNumberTrips.entrySet()) {
+            Set<String> trips = new HashSet<>();
+            for (String serviceJourneyId : entry.getValue()) {
+                int index = Arrays.binarySearch(serviceJourneyIds, serviceJourneyId);
+                trips.add(index >= 0 ? serviceJourneyIds[index] : serviceJourneyId);
+            }
+            trains.put(entry.getKey(), Collections.unmodifiableSet(trips));
+        }
+        trainNumberTrips = Collections.unmodifiableMap(trains);
+    }
+
+    /**
+     * @return StopTimes for the given ServiceJourney, or null if unknown
+     */
+    List<StopTime> getStopTimes(String serviceJourneyId) {
+        int index = indexOf(serviceJourneyId);
+        if (index < 0 || !hasStopTimes[index]) {
+            return null;
+        }
+        int from = stopTimeOffsets[index];
+        int to = stopTimeOffsets[index + 1];
+        List<StopTime> stopTimes = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            String stopId = stopIndexes[i] < 0 ? null : stopIds[stopIndexes[i]];
+            stopTimes.add(new StopTime(stopId, stopSequences[i], arrivalTimes[i], departureTimes[i]));
+        }
+        return stopTimes;
+    }
+
+    /**
+     * @return ServiceDates in chronological order for the given ServiceJourney, or null if unknown
+     */
+    List<ServiceDate> getServiceDates(String serviceJourneyId) {
+        int index = indexOf(serviceJourneyId);
+        if (index < 0 || !hasServiceDates[index]) {
+            return null;
+        }
+        List<ServiceDate> serviceDates = new ArrayList<>();
+        for (int word = dateWordOffsets[index]; word < dateWordOffsets[index + 1]; word++) {
+            long bits = dateWords[word];
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                int day = ((word - dateWordOffsets[index]) << 6) + bit;
+                LocalDate date = LocalDate.ofEpochDay(firstEpochDays[index] + day);
+                serviceDates.add(new ServiceDate(date.getYear(), date.getMonthValue(), date.getDayOfMonth()));
+                bits &= bits - 1;
+            }
+        }
+        return serviceDates;
+    }
+
+    /**
+     * @return true if the given ServiceJourney is known, and runs on the given date
+     */
+    boolean hasServiceDate(String serviceJourneyId, ServiceDate serviceDate) {
+        int index = indexOf(serviceJourneyId);
+        if (index < 0 || !hasServiceDates[index] || serviceDate == null) {
+            return false;
+        }
+        int bit = toEpochDay(serviceDate) - firstEpochDays[index];
+        if (bit < 0) {
+            return false;
+        }
+        int word = dateWordOffsets[index] + (bit >>> 6);
+        return word < dateWordOffsets[index + 1] && (dateWords[word] & (1L << bit)) != 0;
+    }
+
+    /**
+     * @return departure time, in seconds of day, from the first stop of the given ServiceJourney, or -1 if unknown
+     */
+    int getFirstDepartureTime(String serviceJourneyId) {
+        int index = indexOf(serviceJourneyId);
+        if (index < 0 || !hasStopTimes[index] || stopTimeOffsets[index] == stopTimeOffsets[index + 1]) {
+            return -1;
+        }
+        return departureTimes[stopTimeOffsets[index]];
+    }
+
+    Set<String> getServiceJourney(String trainNumber) {
+        return trainNumberTrips.get(trainNumber);
+    }
+
+    Set<String> getServiceJourneys() {
+        Set<String> serviceJourneys = new HashSet<>();
+        for (int i = 0; i < serviceJourneyIds.length; i++) {
+            if (hasStopTimes[i]) {
+                serviceJourneys.add(serviceJourneyIds[i]);
+            }
+        }
+        return Collections.unmodifiableSet(serviceJourneys);
+    }
+
+    Set<String> getTrainNumbers() {
+        return trainNumberTrips.keySet();
+    }
+
+    Map<String, String> getParentStops() {
+        return parentStops;
+    }
+
+    String getPublicCode(String quayRef) {
+        return quayPublicCodes.get(quayRef);
+    }
+
+    int getServiceJourneyCount() {
+        return serviceJourneyIds.length;
+    }
+
+    int getStopTimeCount() {
+        return stopIndexes.length;
+    }
+
+    /**
+     * Estimated retained size in bytes. Arrays are counted exactly, Strings and map-entries are approximated.
+     */
+    long getEstimatedSizeInBytes() {
+        long size = 0;
+        size += referenceArraySize(serviceJourneyIds) + stringsSize(Arrays.asList(serviceJourneyIds));
+        size += referenceArraySize(stopIds) + stringsSize(Arrays.asList(stopIds));
+        size += intArraySize(stopTimeOffsets) + intArraySize(stopIndexes) + intArraySize(stopSequences) +
+                intArraySize(arrivalTimes) + intArraySize(departureTimes);
+        size += 2 * OBJECT_HEADER_BYTES + hasStopTimes.length + hasServiceDates.length;
+        size += intArraySize(firstEpochDays) + intArraySize(dateWordOffsets);
+        size += OBJECT_HEADER_BYTES + 8L * dateWords.length;
+
+        size += mapSize(parentStops) + stringsSize(parentStops.values());
+        size += mapSize(quayPublicCodes) + stringsSize(quayPublicCodes.values());
+        size += mapSize(trainNumberTrips) + stringsSize(trainNumberTrips.keySet());
+        for (Set<String> trips : trainNumberTrips.values()) {
+            size += mapSize(trips);
+        }
+        return size;
+    }
+
+    private int indexOf(String serviceJourneyId) {
+        if (serviceJourneyId == null) {
+            return -1;
+        }
+        return Arrays.binarySearch(serviceJourneyIds, serviceJourneyId);
+    }
+
+    private static int intern(String stopId, Map<String, Integer> stopIndexById, List<String> stopIdTable) {
+        if (stopId == null) {
+            return -1;
+        }
+        return stopIndexById.computeIfAbsent(stopId, id -> {
+            stopIdTable.add(id);
+            return stopIdTable.size() - 1;
+        });
+    }
+
+    private static String internValue(String stopId, Map<String, Integer> stopIndexById, List<String> stopIdTable) {
+        Integer index = stopIndexById.get(stopId);
+        return index != null ? stopIdTable.get(index) : stopId;
+    }
+
+    private static int[] getEpochDayRange(List<ServiceDate> serviceDates) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (ServiceDate serviceDate : serviceDates) {
+            int epochDay = toEpochDay(serviceDate);
+            min = Math.min(min, epochDay);
+            max = Math.max(max, epochDay);
+        }
+        return new int[]{min, max};
+    }
+
+    private static int toEpochDay(ServiceDate serviceDate) {
+        return (int) LocalDate.of(serviceDate.getYear(), serviceDate.getMonth(), serviceDate.getDay()).toEpochDay();
+    }
+
+    private static int wordCount(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    private static long intArraySize(int[] array) {
+        return OBJECT_HEADER_BYTES + 4L * array.length;
+    }
+
+    private static long referenceArraySize(Object[] array) {
+        return OBJECT_HEADER_BYTES + (long) REFERENCE_BYTES * array.length;
+    }
+
+    private static long mapSize(Map<?, ?> map) {
+        return OBJECT_HEADER_BYTES + (long) (MAP_ENTRY_BYTES + REFERENCE_BYTES) * map.size();
+    }
+
+    private static long mapSize(Set<?> set) {
+        return OBJECT_HEADER_BYTES + (long) (MAP_ENTRY_BYTES + REFERENCE_BYTES) * set.size();
+    }
+
+    private static long stringsSize(Iterable<String> strings) {
+        long size = 0;
+        for (String s : strings) {
+            if (s != null) {
+                size += 2 * OBJECT_HEADER_BYTES + 8 + s.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Collects data read from NeTEx. Later additions replace earlier ones with the same key.
+     */
+    static class Builder {
+        private final Map<String, List<StopTime>> tripStops = new HashMap<>();
+        private final Map<String, Set<String>> trainNumberTrips = new HashMap<>();
+        private final Map<String, List<ServiceDate>> tripDates = new HashMap<>();
+        private final Map<String, String> parentStops = new HashMap<>();
+        private final Map<String, String> quayPublicCodes = new HashMap<>();
+
+        Builder add(NetexProcessor netexProcessor) {
+            tripStops.putAll(netexProcessor.getTripStops());
+            trainNumberTrips.putAll(netexProcessor.getTrainNumberTrips());
+            tripDates.putAll(netexProcessor.getTripDates());
+            parentStops.putAll(netexProcessor.getParentStops());
+            quayPublicCodes.putAll(netexProcessor.getPublicCodeByQuayId());
+            return this;
+        }
+
+        private String[] serviceJourneyIds() {
+            Set<String> ids = new HashSet<>(tripStops.keySet());
+            ids.addAll(tripDates.keySet());
+            String[] sorted = ids.toArray(new String[0]);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        RouteDataStore build() {
+            return new RouteDataStore(this);
+        }
+    }
+}
@@ -18,6 +18,18 @@ public class ServiceDate {
         this(departureTime.getYear(), departureTime.getMonthValue(), departureTime.getDayOfMonth());
     }
 
+    public int getYear() {
+        return year;
+    }
+
+    public int getMonth() {
+        return month;
+    }
+
+    public int getDay() {
+        return day;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
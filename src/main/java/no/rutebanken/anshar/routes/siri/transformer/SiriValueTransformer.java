@@ -15,9 +15,6 @@
 
 package no.rutebanken.anshar.routes.siri.transformer;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
 import no.rutebanken.anshar.routes.siri.processor.PostProcessor;
 import no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter;
@@ -29,15 +26,10 @@ import uk.org.siri.siri20.Siri;
 import javax.xml.bind.JAXBException;
 import javax.xml.stream.XMLStreamException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class SiriValueTransformer {
 
@@ -45,26 +37,6 @@ public class SiriValueTransformer {
 
     private static final Logger logger = LoggerFactory.getLogger(SiriValueTransformer.class);
 
-    private static final Map<GetterKey, Set<Method>> cachedGettersForAdapter = new HashMap<>();
-
-    private static final LoadingCache<Class, List<Method>> getterMethodsCache = CacheBuilder.newBuilder()
-            .build(
-                    new CacheLoader<Class, List<Method>>() {
-                        public List<Method> load(Class clazz) {
-                            Method[] methods = clazz.getMethods();
-                            List<Method> getterMethods = new ArrayList<>();
-                            for (Method method : methods) {
-                                if (method.getParameterCount() == 0 &&
-                                        !("void".equals(method.getReturnType().getName()))) {
-                                    getterMethods.add(method);
-                                }
-                            }
-                            return getterMethods;
-                        }
-                    });
-
-    private static final List<String> methodsToIgnore = Collections.singletonList("getMonitoringError");
-
     /**
      *
      * @param xml
@@ -123,15 +95,10 @@ public class SiriValueTransformer {
 
         if (transformed != null && adapters != null) {
 
-            List<ValueAdapter> valueAdapters = new ArrayList<>();
-            for (ValueAdapter adapter : adapters) {
-                if (!(adapter instanceof PostProcessor)) {
-                    valueAdapters.add(adapter);
-                }
-            }
+            Map<Class<?>, List<ValueAdapter>> valueAdapters = getValueAdaptersByType(adapters);
 
             if (detailedLogging) {
-                logger.info("SIRI Transform: {} valueAdapters added", valueAdapters.size());
+                logger.info("SIRI Transform: valueAdapters for {} types added", valueAdapters.size());
             }
             List<PostProcessor> postProcessors = new ArrayList<>();
             for (ValueAdapter valueAdapter : adapters) {
@@ -143,17 +110,7 @@ public class SiriValueTransformer {
             if (detailedLogging) {
                 logger.info("SIRI Transform: {} postProcessors added", postProcessors.size());
             }
-            for (ValueAdapter a : valueAdapters) {
-                try {
-                    applyAdapter(transformed, a);
-
-                    if (detailedLogging) {
-                        logger.info("SIRI Transform: valueAdapter {} processed", a.toString());
-                    }
-                } catch (Throwable t) {
-                    logger.warn("Caught exception while transforming SIRI-object.", t);
-                }
-            }
+            applyValueAdapters(transformed, valueAdapters);
             if (detailedLogging) {
                 logger.info("SIRI Transform: valueAdapters processed");
             }
@@ -179,113 +136,66 @@ public class SiriValueTransformer {
     }
 
     /**
-     * Recursively applies ValueAdapter to all fields of the specified type within SIRI-packages.
+     * Applies ValueAdapters to a list of SIRI-elements, e.g. EstimatedVehicleJourneys. PostProcessors are ignored, as
+     * they expect a complete SIRI-object.
      *
-     * Uses getValue()/setValue(...) apply adapters
+     * !! Note: Elements are altered !!
      *
-     * @param obj
-     * @param adapter
-     * @throws NoSuchMethodException
-     * @throws InvocationTargetException
-     * @throws IllegalAccessException
+     * @param elements SIRI-elements to transform
+     * @param adapters Adapters to apply
      */
-    private static void applyAdapter(Object obj, ValueAdapter adapter) throws Throwable {
-
-        //Only apply to Siri-classes
-        if (obj.getClass().getName().startsWith("uk.org.siri")) {
-
-            GetterKey getterKey = new GetterKey(obj.getClass(), adapter);
-            Set<Method> allMethods = cachedGettersForAdapter.get(getterKey);
+    public static void transform(List<?> elements, List<ValueAdapter> adapters) {
+        if (elements == null || adapters == null) {
+            return;
+        }
+        applyValueAdapters(elements, getValueAdaptersByType(adapters));
+    }
 
-            if (allMethods == null) {
-                allMethods = new HashSet<>();
-                allMethods.addAll(getterMethodsCache.get(obj.getClass()));
+    private static Map<Class<?>, List<ValueAdapter>> getValueAdaptersByType(List<ValueAdapter> adapters) {
+        Map<Class<?>, List<ValueAdapter>> valueAdapters = new LinkedHashMap<>();
+        for (ValueAdapter adapter : adapters) {
+            if (!(adapter instanceof PostProcessor)) {
+                valueAdapters.computeIfAbsent(adapter.getClassToApply(), clazz -> new ArrayList<>()).add(adapter);
             }
-            for (Method method : allMethods) {
-                if (methodsToIgnore.contains(method.getName())) {
-                    continue;
-                }
-
-
-                if (method.getReturnType().equals(adapter.getClassToApply())) {
-
-                    Set<Method> methods = cachedGettersForAdapter.getOrDefault(getterKey, new HashSet<>());
-                    methods.add(method);
-                    cachedGettersForAdapter.put(getterKey, methods);
-
-                    Object previousValue = method.invoke(obj);
-                    if (previousValue != null) {
-                        String value = (String) previousValue.getClass().getMethod("getValue").invoke(previousValue);
-                        String alteredValue;
-
-                        String originalId = value;
-
-                        if (adapter instanceof OutboundIdAdapter) {
-                            alteredValue = adapter.apply(value);
-                        } else {
-                            if (value.contains(SEPARATOR)) {
-                                originalId = value.substring(0, value.indexOf(SEPARATOR));
-                                alteredValue = adapter.apply(value.substring(value.indexOf(SEPARATOR) + SEPARATOR.length()));
-                            } else {
-                                alteredValue = adapter.apply(value);
-                            }
-                            if (!originalId.equals(alteredValue)) { //No need to map already correct ids
-                                alteredValue = originalId + SEPARATOR + alteredValue;
-                            }
-                        }
-
+        }
+        return valueAdapters;
+    }
 
-                        Method valueSetter = previousValue.getClass().getMethod("setValue", String.class);
-                        valueSetter.invoke(previousValue, alteredValue);
-                    }
-                } else {
-                    Object currentValue = method.invoke(obj);
-                    if (currentValue != null) {
-                        if (currentValue instanceof List) {
-                            List list = (List) currentValue;
-                            for (Object o : list) {
-                                applyAdapter(o, adapter);
-                            }
-                        } else {
-                            applyAdapter(currentValue, adapter);
-                        }
-                    }
-                }
+    private static void applyValueAdapters(Object obj, Map<Class<?>, List<ValueAdapter>> valueAdapters) {
+        if (!valueAdapters.isEmpty()) {
+            try {
+                ValueAdapterTraversal.forTargetTypes(valueAdapters.keySet()).apply(obj, valueAdapters);
+            } catch (Throwable t) {
+                logger.warn("Caught exception while transforming SIRI-object.", t);
             }
         }
     }
 
-    private static class GetterKey {
-        private final ValueAdapter adapter;
-        private final Class clazz;
-
-        public GetterKey(Class clazz, ValueAdapter adapter) {
-            this.clazz = clazz;
-            this.adapter = adapter;
+    /**
+     * Applies a single adapter to the value of a SIRI-field.
+     *
+     * Unless the adapter is an OutboundIdAdapter, the original value is kept as a prefix - separated by SEPARATOR.
+     *
+     * @param value current value
+     * @param adapter
+     * @return altered value
+     */
+    static String applyAdapter(String value, ValueAdapter adapter) {
+        if (adapter instanceof OutboundIdAdapter) {
+            return adapter.apply(value);
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (o == null || getClass() != o.getClass()) {
-                return false;
-            }
-
-            GetterKey getterKey = (GetterKey) o;
-
-            if (adapter != null ? !adapter.equals(getterKey.adapter) : getterKey.adapter != null) {
-                return false;
-            }
-            return clazz != null ? clazz.equals(getterKey.clazz) : getterKey.clazz == null;
+        String originalId = value;
+        String alteredValue;
+        if (value.contains(SEPARATOR)) {
+            originalId = value.substring(0, value.indexOf(SEPARATOR));
+            alteredValue = adapter.apply(value.substring(value.indexOf(SEPARATOR) + SEPARATOR.length()));
+        } else {
+            alteredValue = adapter.apply(value);
         }
-
-        @Override
-        public int hashCode() {
-            int result = adapter != null ? adapter.hashCode() : 0;
-            result = 31 * result + (clazz != null ? clazz.hashCode() : 0);
-            return result;
+        if (!originalId.equals(alteredValue)) { //No need to map already correct ids
+            alteredValue = originalId + SEPARATOR + alteredValue;
         }
+        return alteredValue;
     }
 }
@@ -0,0 +1,342 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.transformer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Applies ValueAdapters to all values of their target types in a single traversal of a SIRI-object.
+ *
+ * The getters leading to the target types are resolved once per SIRI-class, and invoked through generated accessors
+ * instead of reflection. Getters that cannot lead to any of the target types are never invoked.
+ *
+ * Instances are immutable after creation, except for the thread-safe accessor-caches, and may be shared between threads.
+ */
+final class ValueAdapterTraversal {
+
+    private static final Logger logger = LoggerFactory.getLogger(ValueAdapterTraversal.class);
+
+    private static final String SIRI_PACKAGE_PREFIX = "uk.org.siri";
+
+    private static final List<String> methodsToIgnore = Collections.singletonList("getMonitoringError");
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    private static final Map<Set<Class<?>>, ValueAdapterTraversal> traversalsByTargetTypes = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, ValueAccessor> valueAccessors;
+
+    private final Map<Class<?>, ClassAccessors> accessorsByClass = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, Boolean> leadsToTargetByClass = new ConcurrentHashMap<>();
+
+    private ValueAdapterTraversal(Set<Class<?>> targetTypes) {
+        Map<Class<?>, ValueAccessor> accessors = new HashMap<>();
+        for (Class<?> targetType : targetTypes) {
+            if (targetType == null) {
+                continue;
+            }
+            try {
+                accessors.put(targetType, new ValueAccessor(targetType));
+            } catch (NoSuchMethodException e) {
+                logger.warn("Adapters for {} are ignored - getValue/setValue not found", targetType);
+            }
+        }
+        this.valueAccessors = accessors;
+    }
+
+    /**
+     * Returns a shared traversal for the given set of target types
+     */
+    static ValueAdapterTraversal forTargetTypes(Set<Class<?>> targetTypes) {
+        ValueAdapterTraversal traversal = traversalsByTargetTypes.get(targetTypes);
+        if (traversal == null) {
+            Set<Class<?>> key = Collections.unmodifiableSet(new HashSet<>(targetTypes));
+            traversal = traversalsByTargetTypes.computeIfAbsent(key, ValueAdapterTraversal::new);
+        }
+        return traversal;
+    }
+
+    /**
+     * Recursively applies adapters to all values of the adapters' target types within SIRI-packages.
+     *
+     * @param obj object to alter
+     * @param adaptersByType adapters to apply - grouped by target type, and in the order they should be applied
+     */
+    void apply(Object obj, Map<Class<?>, List<ValueAdapter>> adaptersByType) {
+        if (obj == null) {
+            return;
+        }
+        if (obj instanceof List) {
+            for (Object o : (List<?>) obj) {
+                apply(o, adaptersByType);
+            }
+            return;
+        }
+
+        //Only apply to Siri-classes
+        if (!isSiriClass(obj.getClass())) {
+            return;
+        }
+
+        ClassAccessors accessors = getClassAccessors(obj.getClass());
+
+        for (TargetGetter targetGetter : accessors.targetGetters) {
+            Object target = targetGetter.getter.apply(obj);
+            if (target != null) {
+                targetGetter.valueAccessor.apply(target, adaptersByType.get(targetGetter.valueAccessor.targetType));
+            }
+        }
+        for (Function<Object, Object> childGetter : accessors.childGetters) {
+            apply(childGetter.apply(obj), adaptersByType);
+        }
+    }
+
+    private ClassAccessors getClassAccessors(Class<?> clazz) {
+        ClassAccessors accessors = accessorsByClass.get(clazz);
+        if (accessors == null) {
+            accessors = new ClassAccessors(clazz);
+            ClassAccessors existing = accessorsByClass.putIfAbsent(clazz, accessors);
+            if (existing != null) {
+                accessors = existing;
+            }
+        }
+        return accessors;
+    }
+
+    /**
+     * Resolves whether any of the target types may be reached from the given class
+     */
+    private boolean leadsToTarget(Class<?> clazz) {
+        Boolean leadsToTarget = leadsToTargetByClass.get(clazz);
+        if (leadsToTarget == null) {
+            leadsToTarget = resolveLeadsToTarget(clazz);
+            leadsToTargetByClass.put(clazz, leadsToTarget);
+        }
+        return leadsToTarget;
+    }
+
+    private boolean resolveLeadsToTarget(Class<?> clazz) {
+        Set<Class<?>> visited = new HashSet<>();
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        visited.add(clazz);
+        queue.add(clazz);
+
+        while (!queue.isEmpty()) {
+            for (Method getter : getGetters(queue.poll())) {
+                if (valueAccessors.containsKey(getter.getReturnType())) {
+                    return true;
+                }
+                Class<?> traversedType = getTraversedType(getter.getGenericReturnType());
+                if (traversedType == Object.class) {
+                    return true;
+                }
+                if (traversedType != null && visited.add(traversedType)) {
+                    queue.add(traversedType);
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSiriClass(Class<?> clazz) {
+        return clazz.getName().startsWith(SIRI_PACKAGE_PREFIX);
+    }
+
+    /**
+     * Returns the SIRI-class to traverse for values of the given type, Object.class when the actual class is only
+     * known at runtime, or null if the type cannot contain SIRI-data.
+     */
+    private static Class<?> getTraversedType(Type type) {
+        if (type instanceof ParameterizedType) {
+            Class<?> rawType = (Class<?>) ((ParameterizedType) type).getRawType();
+            if (Collection.class.isAssignableFrom(rawType)) {
+                return getTraversedType(((ParameterizedType) type).getActualTypeArguments()[0]);
+            }
+            return getTraversedType(rawType);
+        }
+        if (!(type instanceof Class)) {
+            // Type variables and wildcards
+            return Object.class;
+        }
+
+        Class<?> clazz = (Class<?>) type;
+        if (clazz.isPrimitive() || clazz.isArray() || clazz.isEnum()) {
+            return null;
+        }
+        if (Collection.class.isAssignableFrom(clazz) || clazz == Object.class || clazz.isInterface()) {
+            return Object.class;
+        }
+        if (isSiriClass(clazz)) {
+            // Subclasses of abstract types are only known at runtime
+            return Modifier.isAbstract(clazz.getModifiers()) ? Object.class : clazz;
+        }
+        return null;
+    }
+
+    private static List<Method> getGetters(Class<?> clazz) {
+        List<Method> getters = new ArrayList<>();
+        for (Method method : clazz.getMethods()) {
+            if (method.getParameterCount() == 0 &&
+                    method.getReturnType() != void.class &&
+                    !Modifier.isStatic(method.getModifiers()) &&
+                    method.getDeclaringClass() != Object.class &&
+                    !methodsToIgnore.contains(method.getName())) {
+                getters.add(method);
+            }
+        }
+        return getters;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> createGetter(Method method) {
+        try {
+            MethodHandle handle = lookup.unreflect(method);
+            CallSite callSite = LambdaMetafactory.metafactory(lookup,
+                    "apply",
+                    MethodType.methodType(Function.class),
+                    MethodType.methodType(Object.class, Object.class),
+                    handle,
+                    handle.type());
+            return (Function<Object, Object>) callSite.getTarget().invokeExact();
+        } catch (Throwable t) {
+            logger.info("Using reflection to access {}", method);
+            return obj -> {
+                try {
+                    return method.invoke(obj);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BiConsumer<Object, Object> createSetter(Method method) {
+        try {
+            MethodHandle handle = lookup.unreflect(method);
+            CallSite callSite = LambdaMetafactory.metafactory(lookup,
+                    "accept",
+                    MethodType.methodType(BiConsumer.class),
+                    MethodType.methodType(void.class, Object.class, Object.class),
+                    handle,
+                    handle.type());
+            return (BiConsumer<Object, Object>) callSite.getTarget().invokeExact();
+        } catch (Throwable t) {
+            logger.info("Using reflection to access {}", method);
+            return (obj, value) -> {
+                try {
+                    method.invoke(obj, value);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        }
+    }
+
+    /**
+     * Getters to follow for a single SIRI-class
+     */
+    private class ClassAccessors {
+        private final List<TargetGetter> targetGetters = new ArrayList<>();
+        private final List<Function<Object, Object>> childGetters = new ArrayList<>();
+
+        private ClassAccessors(Class<?> clazz) {
+            for (Method getter : getGetters(clazz)) {
+                ValueAccessor valueAccessor = valueAccessors.get(getter.getReturnType());
+                if (valueAccessor != null) {
+                    targetGetters.add(new TargetGetter(createGetter(getter), valueAccessor));
+                }
+
+                Class<?> traversedType = getTraversedType(getter.getGenericReturnType());
+                if (traversedType == Object.class || (traversedType != null && leadsToTarget(traversedType))) {
+                    childGetters.add(createGetter(getter));
+                }
+            }
+        }
+    }
+
+    private static class TargetGetter {
+        private final Function<Object, Object> getter;
+        private final ValueAccessor valueAccessor;
+
+        private TargetGetter(Function<Object, Object> getter, ValueAccessor valueAccessor) {
+            this.getter = getter;
+            this.valueAccessor = valueAccessor;
+        }
+    }
+
+    /**
+     * Uses getValue()/setValue(...) on target type to apply adapters
+     */
+    private static class ValueAccessor {
+        private final Class<?> targetType;
+        private final Function<Object, Object> valueGetter;
+        private final BiConsumer<Object, Object> valueSetter;
+
+        private ValueAccessor(Class<?> targetType) throws NoSuchMethodException {
+            this.targetType = targetType;
+            this.valueGetter = createGetter(targetType.getMethod("getValue"));
+            this.valueSetter = createSetter(targetType.getMethod("setValue", String.class));
+        }
+
+        private void apply(Object target, List<ValueAdapter> adapters) {
+            if (adapters == null) {
+                return;
+            }
+            String value = (String) valueGetter.apply(target);
+            String alteredValue = value;
+            for (ValueAdapter adapter : adapters) {
+                if (alteredValue == null) {
+                    break;
+                }
+                try {
+                    alteredValue = SiriValueTransformer.applyAdapter(alteredValue, adapter);
+                } catch (Exception e) {
+                    logger.warn("Caught exception while applying adapter {} to value {}.", adapter, alteredValue, e);
+                }
+            }
+            if (!Objects.equals(value, alteredValue)) {
+                valueSetter.accept(target, alteredValue);
+            }
+        }
+    }
+}
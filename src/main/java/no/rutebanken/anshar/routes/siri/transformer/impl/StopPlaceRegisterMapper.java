@@ -24,9 +24,9 @@ import no.rutebanken.anshar.subscription.SiriDataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static no.rutebanken.anshar.routes.siri.transformer.MappingNames.ORIGINAL_ID_TO_NSR;
 
@@ -39,7 +39,7 @@ public class StopPlaceRegisterMapper extends ValueAdapter {
     private final List<String> prefixes;
     private final String datatype;
 
-    private static final Set<String> unmappedAlreadyAdded = new HashSet<>();
+    private static final Set<String> unmappedAlreadyAdded = ConcurrentHashMap.newKeySet();
 
     private final String datasetId;
     private final SiriDataType type;
@@ -75,7 +75,7 @@ public class StopPlaceRegisterMapper extends ValueAdapter {
                 if (prefixes != null && !prefixes.isEmpty()) {
 
                     for (String prefix : prefixes) {
-                        mappedValue = stopPlaceService.get(createCompleteId(prefix, id, datatype));
+                        mappedValue = stopPlaceService.get(prefix, datatype, id);
                         if (mappedValue != null) {
                             if (metricsEnabled) {
                                 getMetricsService().registerDataMapping(type, datasetId, ORIGINAL_ID_TO_NSR, 1);
@@ -106,14 +106,6 @@ public class StopPlaceRegisterMapper extends ValueAdapter {
         return id;
     }
 
-    private String createCompleteId(String prefix, String id, String datatype) {
-        String nsrIdPrefix = new StringBuilder().append(prefix).append(":").append(datatype).append(":").toString();
-        if (id.startsWith(nsrIdPrefix)) {
-            return id;
-        }
-        return new StringBuilder().append(nsrIdPrefix).append(id).toString();
-    }
-
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,135 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.routes.validation;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static no.rutebanken.anshar.routes.validation.validators.CustomValidator.COLUMN_NUMBER_KEY;
+import static no.rutebanken.anshar.routes.validation.validators.CustomValidator.LINE_NUMBER_KEY;
+
+/**
+ * Builds a DOM-document from the SAX-events passing through, and forwards all events unchanged to the next handler.
+ *
+ * Elements and attributes are created by qualified name - as by a DocumentBuilder that is not namespace-aware - so
+ * that the XPaths of the profile-rules match the same nodes. Line- and columnnumber of each start-tag is set as user
+ * data on the element.
+ */
+class LineTrackingDocumentFilter extends XMLFilterImpl {
+
+    private final Document document;
+
+    private final Map<String, String> namespaceDeclarations = new LinkedHashMap<>();
+
+    private final StringBuilder text = new StringBuilder();
+
+    private Node current;
+
+    private Locator locator;
+
+    LineTrackingDocumentFilter(Document document) {
+        this.document = document;
+        this.current = document;
+    }
+
+    Document getDocument() {
+        return document;
+    }
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+        this.locator = locator;
+        super.setDocumentLocator(locator);
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        namespaceDeclarations.put(prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, uri);
+        super.startPrefixMapping(prefix, uri);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        appendText();
+
+        Element element = document.createElement(qName);
+        for (Map.Entry<String, String> declaration : namespaceDeclarations.entrySet()) {
+            element.setAttribute(declaration.getKey(), declaration.getValue());
+        }
+        namespaceDeclarations.clear();
+
+        for (int i = 0; i < atts.getLength(); i++) {
+            element.setAttribute(atts.getQName(i), atts.getValue(i));
+        }
+
+        if (locator != null) {
+            element.setUserData(LINE_NUMBER_KEY, locator.getLineNumber(), null);
+            element.setUserData(COLUMN_NUMBER_KEY, locator.getColumnNumber(), null);
+        }
+
+        current.appendChild(element);
+        current = element;
+
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        appendText();
+        current = current.getParentNode();
+        super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        text.append(ch, start, length);
+        super.characters(ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        text.append(ch, start, length);
+        super.ignorableWhitespace(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        appendText();
+        current.appendChild(document.createProcessingInstruction(target, data));
+        super.processingInstruction(target, data);
+    }
+
+    /**
+     * Text may be reported in several chunks - these are joined to a single node, as the validators only read the
+     * first child of an element.
+     */
+    private void appendText() {
+        if (text.length() > 0) {
+            // Text outside the root element is not part of the document
+            if (current != document) {
+                current.appendChild(document.createTextNode(text.toString()));
+            }
+            text.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.validation;
+
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.PtSituationElement;
+import uk.org.siri.siri20.ServiceDeliveryErrorConditionElement;
+import uk.org.siri.siri20.VehicleActivityStructure;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Reads a SIRI ServiceDelivery with StAX, and unmarshals one data-element at a time. Elements are passed on in batches,
+ * so that only the current batch - and not the complete SIRI-object - is kept in memory.
+ */
+class SiriDeliveryStreamReader<T> {
+
+    private static final Map<Class, String[]> elementNames = new HashMap<>();
+    static {
+        // Delivery-element, data-element
+        elementNames.put(EstimatedVehicleJourney.class, new String[]{"EstimatedTimetableDelivery", "EstimatedVehicleJourney"});
+        elementNames.put(VehicleActivityStructure.class, new String[]{"VehicleMonitoringDelivery", "VehicleActivity"});
+        elementNames.put(PtSituationElement.class, new String[]{"SituationExchangeDelivery", "PtSituationElement"});
+    }
+
+    private final Unmarshaller unmarshaller;
+    private final Class<T> elementClass;
+    private final String deliveryElementName;
+    private final String dataElementName;
+    private final int batchSize;
+
+    SiriDeliveryStreamReader(Unmarshaller unmarshaller, Class<T> elementClass, int batchSize) {
+        if (!elementNames.containsKey(elementClass)) {
+            throw new IllegalArgumentException("Streaming not supported for " + elementClass);
+        }
+        this.unmarshaller = unmarshaller;
+        this.elementClass = elementClass;
+        this.deliveryElementName = elementNames.get(elementClass)[0];
+        this.dataElementName = elementNames.get(elementClass)[1];
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     *
+     * @param reader
+     * @param batchConsumer receives data-elements in batches of at most batchSize elements
+     * @param errorConsumer receives ErrorCondition from deliveries with status=false - data in these deliveries is ignored
+     * @return false if document is not a ServiceDelivery - nothing is then read beyond the first element
+     */
+    boolean read(XMLStreamReader reader, Consumer<List<T>> batchConsumer, Consumer<ServiceDeliveryErrorConditionElement> errorConsumer) throws XMLStreamException, JAXBException {
+
+        // Siri root-element
+        reader.nextTag();
+        if (reader.nextTag() != XMLStreamConstants.START_ELEMENT || !"ServiceDelivery".equals(reader.getLocalName())) {
+            return false;
+        }
+
+        List<T> batch = new ArrayList<>(batchSize);
+        boolean insideDelivery = false;
+        boolean ignoreDelivery = false;
+
+        int event = reader.next();
+        while (true) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                final String localName = reader.getLocalName();
+
+                if (deliveryElementName.equals(localName)) {
+                    insideDelivery = true;
+                    ignoreDelivery = false;
+
+                } else if (insideDelivery && "Status".equals(localName)) {
+                    ignoreDelivery = "false".equals(reader.getElementText().trim());
+
+                } else if (insideDelivery && "ErrorCondition".equals(localName)) {
+                    errorConsumer.accept(unmarshaller.unmarshal(reader, ServiceDeliveryErrorConditionElement.class).getValue());
+                    // Reader is positioned after the unmarshalled element
+                    event = reader.getEventType();
+                    continue;
+
+                } else if (insideDelivery && dataElementName.equals(localName)) {
+                    if (ignoreDelivery) {
+                        skipElement(reader);
+                    } else {
+                        batch.add(unmarshaller.unmarshal(reader, elementClass).getValue());
+                        if (batch.size() >= batchSize) {
+                            batchConsumer.accept(batch);
+                            batch = new ArrayList<>(batchSize);
+                        }
+                        // Reader is positioned after the unmarshalled element
+                        event = reader.getEventType();
+                        continue;
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && deliveryElementName.equals(reader.getLocalName())) {
+                insideDelivery = false;
+            }
+
+            if (!reader.hasNext()) {
+                break;
+            }
+            event = reader.next();
+        }
+
+        if (!batch.isEmpty()) {
+            batchConsumer.accept(batch);
+        }
+        return true;
+    }
+
+    /**
+     * Skips current element - reader is positioned at its END_ELEMENT
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
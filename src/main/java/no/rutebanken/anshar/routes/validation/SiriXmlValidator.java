@@ -19,6 +19,7 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.hazelcast.map.IMap;
 import com.hazelcast.replicatedmap.ReplicatedMap;
 import no.rutebanken.anshar.config.AnsharConfiguration;
+import no.rutebanken.anshar.data.ChangeDetectionHasher;
 import no.rutebanken.anshar.metrics.PrometheusMetricsService;
 import no.rutebanken.anshar.routes.siri.transformer.ApplicationContextHolder;
 import no.rutebanken.anshar.routes.validation.validators.CustomValidator;
@@ -38,23 +39,33 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Component;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import uk.org.siri.siri20.ServiceDeliveryErrorConditionElement;
 import uk.org.siri.siri20.Siri;
 
 import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
+import javax.xml.bind.JAXBIntrospector;
 import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.UnmarshallerHandler;
 import javax.xml.bind.ValidationEvent;
-import javax.xml.parsers.DocumentBuilder;
+import javax.xml.bind.helpers.ValidationEventImpl;
+import javax.xml.bind.helpers.ValidationEventLocatorImpl;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
@@ -65,10 +76,11 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -77,6 +89,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
 
 import static no.rutebanken.anshar.routes.validation.ValidationType.PROFILE_VALIDATION;
@@ -93,6 +107,7 @@ public class SiriXmlValidator extends ApplicationContextHolder {
     private static Schema schema;
     private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
     private static final DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+    private static final SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
 
 
     @Autowired
@@ -131,6 +146,16 @@ public class SiriXmlValidator extends ApplicationContextHolder {
     @Autowired
     private PrometheusMetricsService metricsService;
 
+    @Autowired
+    private ChangeDetectionHasher changeDetectionHasher;
+
+    /**
+     * Parsed objects handed over to asynchronous validation - these must not be altered by the caller of parseXml
+     */
+    private final Set<Siri> sharedForValidation = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<>()));
+
+    private final AtomicLong sharedObjectModifications = new AtomicLong();
+
     private final Map<SiriDataType, Set<CustomValidator>> validationRules = new EnumMap(SiriDataType.class);
 
     private ExecutorService validationExecutorService;
@@ -152,6 +177,8 @@ public class SiriXmlValidator extends ApplicationContextHolder {
     }
 
     static {
+        saxParserFactory.setNamespaceAware(true);
+
         if (jaxbContext == null) {
             try {
                 jaxbContext = JAXBContext.newInstance(Siri.class);
@@ -191,36 +218,49 @@ public class SiriXmlValidator extends ApplicationContextHolder {
             boolean validated = false;
             Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
 
-            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(xml);
-
             SiriValidationEventHandler handler = new SiriValidationEventHandler();
 
+            final Siri siri;
+            final Document document;
             if (configuration.isFullValidationEnabled()) {
                 validated = true;
-                unmarshaller.setSchema(schema);
-                unmarshaller.setEventHandler(handler);
+                // Document for profile-validation is built from the same parse - only when profile-validation is enabled
+                document = configuration.isProfileValidation() ? builderFactory.newDocumentBuilder().newDocument() : null;
+                siri = parseAndValidate(new InputSource(xml), handler, unmarshaller, document);
+            } else {
+                document = null;
+                XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(xml);
+                siri = unmarshaller.unmarshal(reader, Siri.class).getValue();
             }
 
-            Siri siri = unmarshaller.unmarshal(reader, Siri.class).getValue();
-
             final String breadcrumbId = MDC.get("camel.breadcrumbId");
 
             if (siri.getServiceDelivery() != null && configuration.isFullValidationEnabled()) {
                 validated = true;
                 validationExecutorService.execute(() -> {
                     MDC.put("camel.breadcrumbId", breadcrumbId);
-                    performValidation(subscriptionSetup, xml, handler);
+                    performValidation(subscriptionSetup, document, handler);
                     MDC.remove("camel.breadcrumbId");
                 });
             }
 
             if (siri.getServiceDelivery() != null && subscriptionSetup.isValidation()) {
                 validated = true;
+                sharedForValidation.add(siri);
+                final Long checksum = configuration.isInPlaceIngestTransformVerified() ? changeDetectionHasher.hash(siri) : null;
                 // Validator is activated - produce complete report from formatted XML
                 validationReportExecutorService.execute(() -> {
                     MDC.put("camel.breadcrumbId", breadcrumbId);
-                    performValidation(subscriptionSetup, siri);
-                    MDC.remove("camel.breadcrumbId");
+                    try {
+                        performValidation(subscriptionSetup, siri);
+                        if (checksum != null && checksum != changeDetectionHasher.hash(siri)) {
+                            sharedObjectModifications.incrementAndGet();
+                            logger.error("Parsed SIRI was modified during validation - {}", subscriptionSetup);
+                        }
+                    } finally {
+                        sharedForValidation.remove(siri);
+                        MDC.remove("camel.breadcrumbId");
+                    }
                 });
             }
 
@@ -238,20 +278,158 @@ public class SiriXmlValidator extends ApplicationContextHolder {
         return null;
     }
 
+    /**
+     * Ownership of an object returned from parseXml is transferred to the caller, unless it is still shared with
+     * asynchronous validation.
+     *
+     * @param siri object returned from parseXml
+     * @return true if the object is still in use by validation, and must not be altered
+     */
+    public boolean isShared(Siri siri) {
+        return sharedForValidation.contains(siri);
+    }
+
+    /**
+     * @return true if any parsed object is still shared with asynchronous validation
+     */
+    public boolean hasPendingValidations() {
+        return !sharedForValidation.isEmpty();
+    }
+
+    /**
+     * Only tracked when 'anshar.ingest.transform.inplace.verify' is enabled
+     *
+     * @return number of parsed objects that were modified while being validated
+     */
+    public long getSharedObjectModifications() {
+        return sharedObjectModifications.get();
+    }
+
+    /**
+     * Streaming alternative to parseXml for ServiceDeliveries. Data-elements of the given type are unmarshalled one
+     * at a time, and passed on in batches. Validation is not performed.
+     *
+     * @param subscriptionSetup
+     * @param xml must support mark/reset
+     * @param elementClass EstimatedVehicleJourney, VehicleActivityStructure or PtSituationElement
+     * @param batchSize max number of elements per batch
+     * @param batchConsumer
+     * @param errorConsumer receives ErrorCondition from deliveries with status=false
+     * @return false if document is not a ServiceDelivery - the stream is then reset, and should be parsed with parseXml
+     * @throws XMLStreamException
+     */
+    public <T> boolean parseXmlInBatches(SubscriptionSetup subscriptionSetup, InputStream xml, Class<T> elementClass, int batchSize,
+                                         Consumer<List<T>> batchConsumer, Consumer<ServiceDeliveryErrorConditionElement> errorConsumer)
+        throws XMLStreamException {
+        long parseStart = System.currentTimeMillis();
+        xml.mark(Integer.MAX_VALUE);
+
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(xml);
+        try {
+            SiriDeliveryStreamReader<T> streamReader = new SiriDeliveryStreamReader<>(jaxbContext.createUnmarshaller(), elementClass, batchSize);
+
+            if (!streamReader.read(reader, batchConsumer, errorConsumer)) {
+                xml.reset();
+                return false;
+            }
+
+            logger.info("Streaming XML took {} ms, {}", System.currentTimeMillis() - parseStart, subscriptionSetup);
+            return true;
+        } catch (JAXBException | IOException e) {
+            logger.warn("Caught exception when parsing", e);
+            throw new XMLStreamException(e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parses XML in a single pass - schema-validation, unmarshalling and building of the document used for
+     * profile-validation are all fed by the same stream of SAX-events.
+     *
+     * @param xml
+     * @param schemaHandler receives schema-validation events
+     * @param unmarshaller null if the unmarshalled object is not needed
+     * @param document empty document to build for profile-validation, null if not needed
+     * @return unmarshalled object, or null if no unmarshaller is given
+     */
+    static Siri parseAndValidate(InputSource xml, SiriValidationEventHandler schemaHandler,
+                                         Unmarshaller unmarshaller, Document document)
+        throws ParserConfigurationException, SAXException, IOException, JAXBException {
+
+        XMLReader reader = saxParserFactory.newSAXParser().getXMLReader();
+
+        ValidatorHandler validatorHandler = schema.newValidatorHandler();
+        validatorHandler.setErrorHandler(new SchemaErrorHandler(schemaHandler));
+
+        UnmarshallerHandler unmarshallerHandler = null;
+        if (unmarshaller != null) {
+            unmarshaller.setEventHandler(schemaHandler);
+            unmarshallerHandler = unmarshaller.getUnmarshallerHandler();
+            validatorHandler.setContentHandler(unmarshallerHandler);
+        }
+
+        if (document != null) {
+            LineTrackingDocumentFilter documentFilter = new LineTrackingDocumentFilter(document);
+            documentFilter.setContentHandler(validatorHandler);
+            reader.setContentHandler(documentFilter);
+        } else {
+            reader.setContentHandler(validatorHandler);
+        }
+
+        reader.parse(xml);
+
+        if (unmarshallerHandler != null) {
+            return (Siri) JAXBIntrospector.getValue(unmarshallerHandler.getResult());
+        }
+        return null;
+    }
+
+    /**
+     * Reports schema-violations as ValidationEvents - equal to the events reported by an Unmarshaller with schema
+     */
+    private static class SchemaErrorHandler implements ErrorHandler {
+
+        private final SiriValidationEventHandler handler;
+
+        private SchemaErrorHandler(SiriValidationEventHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void warning(SAXParseException exception) {
+            handleEvent(ValidationEvent.WARNING, exception);
+        }
+
+        @Override
+        public void error(SAXParseException exception) {
+            handleEvent(ValidationEvent.ERROR, exception);
+        }
+
+        @Override
+        public void fatalError(SAXParseException exception) throws SAXException {
+            handleEvent(ValidationEvent.FATAL_ERROR, exception);
+            throw exception;
+        }
+
+        private void handleEvent(int severity, SAXParseException exception) {
+            handler.handleEvent(new ValidationEventImpl(severity, exception.getMessage(),
+                new ValidationEventLocatorImpl(exception), exception));
+        }
+    }
+
     private static AtomicInteger concurrentValidationThreads = new AtomicInteger();
     private boolean performValidation(
-        SubscriptionSetup subscriptionSetup, InputStream xml, SiriValidationEventHandler handler
+        SubscriptionSetup subscriptionSetup, Document document, SiriValidationEventHandler handler
     ) {
         concurrentValidationThreads.incrementAndGet();
         long validationStart = System.currentTimeMillis();
 
         try {
-            xml.reset();
-
-            String originalXml = new String(xml.readAllBytes());
-
             SiriValidationEventHandler profileHandler = new SiriValidationEventHandler();
-            validateAttributes(originalXml, subscriptionSetup.getSubscriptionType(), profileHandler);
+            if (document != null) {
+                validateAttributes(document, subscriptionSetup.getSubscriptionType(), profileHandler);
+            }
 
             addValidationMetrics(subscriptionSetup, handler, profileHandler);
 
@@ -297,8 +475,6 @@ public class SiriXmlValidator extends ApplicationContextHolder {
     private void performValidation(SubscriptionSetup subscriptionSetup, Siri siri) {
         try {
 
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-
             long t1 = System.currentTimeMillis();
 
             /*
@@ -311,7 +487,7 @@ public class SiriXmlValidator extends ApplicationContextHolder {
 
             /*
 
-               Re-marshalling - and unmarshalling - object to ensure correct line numbers in report.
+               Re-marshalling - and validating - object to ensure correct line numbers in report.
 
              */
             Marshaller marshaller = jaxbContext.createMarshaller();
@@ -329,20 +505,20 @@ public class SiriXmlValidator extends ApplicationContextHolder {
                 return;
             }
 
-            StringReader sr= new StringReader(originalXml);
-
             SiriValidationEventHandler handler = new SiriValidationEventHandler();
             SiriValidationEventHandler profileHandler = new SiriValidationEventHandler();
 
-            unmarshaller.setSchema(schema);
-            unmarshaller.setEventHandler(handler);
+            Document document = null;
+            if (configuration.isProfileValidation()) {
+                document = builderFactory.newDocumentBuilder().newDocument();
+            }
 
-            //Unmarshalling with schema-validation
-            unmarshaller.unmarshal(sr);
+            // Schema-validation - object is already unmarshalled, so only the document is built from the parse
+            parseAndValidate(new InputSource(new StringReader(originalXml)), handler, null, document);
 
-            if (configuration.isProfileValidation()) {
+            if (document != null) {
                 // Custom validation of attribute contents
-                validateAttributes(originalXml, type, profileHandler);
+                validateAttributes(document, type, profileHandler);
             }
 
             JSONObject schemaEvents = handler.toJSON();
@@ -364,17 +540,12 @@ public class SiriXmlValidator extends ApplicationContextHolder {
         return subscriptionSetup.getValidationFilter() != null && !subscriptionSetup.getValidationFilter().isEmpty();
     }
 
-    private void validateAttributes(String siri, SiriDataType type, SiriValidationEventHandler handler) throws XPathExpressionException, ParserConfigurationException, IOException, SAXException {
+    private void validateAttributes(Document xmlDocument, SiriDataType type, SiriValidationEventHandler handler) throws XPathExpressionException {
         if (validationRules.isEmpty()) {
             populateValidationRules();
         }
         XPathFactory xpathFactory = XPathFactory.newInstance();
         XPath xpath = xpathFactory.newXPath();
-        DocumentBuilder builder = builderFactory.newDocumentBuilder();
-
-        InputStream stream = new ByteArrayInputStream(siri.getBytes(StandardCharsets.UTF_8));
-
-        Document xmlDocument = builder.parse(stream);
 
         int errorCounter = 0;
         int ruleCounter = 0;
@@ -15,11 +15,13 @@
 
 package no.rutebanken.anshar.routes.validation.validators;
 
+import org.w3c.dom.Attr;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import javax.xml.bind.ValidationEvent;
+import javax.xml.bind.ValidationEventLocator;
 import javax.xml.bind.helpers.ValidationEventImpl;
 import javax.xml.bind.helpers.ValidationEventLocatorImpl;
 import java.text.MessageFormat;
@@ -33,6 +35,12 @@ public abstract class CustomValidator {
 
     protected static final String FIELD_DELIMITER = "/";
 
+    /**
+     * Keys for user data set on elements by parsers that track line- and columnnumber of each element
+     */
+    public static final String LINE_NUMBER_KEY = "lineNumber";
+    public static final String COLUMN_NUMBER_KEY = "columnNumber";
+
     protected ZonedDateTime parseDate(String time) {
         try {
             return ZonedDateTime.parse(time);
@@ -222,7 +230,7 @@ public abstract class CustomValidator {
      */
     protected ValidationEvent createEvent(Node node, String fieldname, Object expectedValues, String actualValue, int severity) {
         String message = MessageFormat.format("Value [{0}] is invalid for field [{1}], expected {2}", actualValue, fieldname, expectedValues);
-        return new ValidationEventImpl(severity, message, new ValidationEventLocatorImpl(node));
+        return new ValidationEventImpl(severity, message, createLocator(node));
     }
 
     /**
@@ -237,7 +245,7 @@ public abstract class CustomValidator {
         ProfileValidationEventOrList eventList = new ProfileValidationEventOrList();
         for (String missingField : missingFields) {
             String message = MessageFormat.format("Missing required attribute: {0} for field {1}", missingField, fieldname);
-            eventList.addEvent(new ValidationEventImpl(severity, message, new ValidationEventLocatorImpl(node)));
+            eventList.addEvent(new ValidationEventImpl(severity, message, createLocator(node)));
         }
         return eventList;
     }
@@ -254,7 +262,7 @@ public abstract class CustomValidator {
         ProfileValidationEventOrList eventList = new ProfileValidationEventOrList();
         for (String missingField : missingFields) {
             String message = MessageFormat.format("Invalid attribute: {0} for field {1}", missingField, fieldname);
-            eventList.addEvent(new ValidationEventImpl(severity, message, new ValidationEventLocatorImpl(node)));
+            eventList.addEvent(new ValidationEventImpl(severity, message, createLocator(node)));
         }
         return eventList;
     }
@@ -267,6 +275,26 @@ public abstract class CustomValidator {
      * @return
      */
     protected ValidationEvent createCustomFieldEvent(Node node, String message, int severity) {
-        return new ValidationEventImpl(severity, message, new ValidationEventLocatorImpl(node));
+        return new ValidationEventImpl(severity, message, createLocator(node));
+    }
+
+    /**
+     * Creates locator for the given node, with line- and columnnumber of the closest element they are tracked for
+     *
+     * @param node Node that is validated
+     * @return
+     */
+    protected ValidationEventLocator createLocator(Node node) {
+        ValidationEventLocatorImpl locator = new ValidationEventLocatorImpl(node);
+
+        Node element = node instanceof Attr ? ((Attr) node).getOwnerElement() : node;
+        while (element != null && element.getUserData(LINE_NUMBER_KEY) == null) {
+            element = element.getParentNode();
+        }
+        if (element != null) {
+            locator.setLineNumber((Integer) element.getUserData(LINE_NUMBER_KEY));
+            locator.setColumnNumber((Integer) element.getUserData(COLUMN_NUMBER_KEY));
+        }
+        return locator;
     }
 }
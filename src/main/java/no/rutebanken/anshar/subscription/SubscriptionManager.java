@@ -22,7 +22,6 @@ import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.data.EstimatedTimetables;
 import no.rutebanken.anshar.data.RequestorRefRepository;
 import no.rutebanken.anshar.data.RequestorRefStats;
-import no.rutebanken.anshar.data.SiriObjectStorageKey;
 import no.rutebanken.anshar.data.Situations;
 import no.rutebanken.anshar.data.VehicleActivities;
 import no.rutebanken.anshar.routes.health.HealthManager;
@@ -116,18 +115,6 @@ public class SubscriptionManager {
     @Autowired
     private VehicleActivities vm;
 
-    @Autowired
-    @Qualifier("getSituationChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> sxChanges;
-
-    @Autowired
-    @Qualifier("getEstimatedTimetableChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> etChanges;
-
-    @Autowired
-    @Qualifier("getVehicleChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> vmChanges;
-
     @Autowired
     private RequestorRefRepository requestorRefRepository;
 
@@ -406,15 +393,15 @@ public class SubscriptionManager {
 
         JSONObject etPolling = new JSONObject();
         etPolling.put("typeName", ""+ ESTIMATED_TIMETABLE);
-        etPolling.put("polling", getIdAndCount(etChanges, ESTIMATED_TIMETABLE));
+        etPolling.put("polling", getIdAndCount(et.getChangeTrackerBacklog(), ESTIMATED_TIMETABLE));
         logger.info("Built ET polling stats");
         JSONObject vmPolling = new JSONObject();
         vmPolling.put("typeName", ""+ VEHICLE_MONITORING);
-        vmPolling.put("polling", getIdAndCount(vmChanges, VEHICLE_MONITORING));
+        vmPolling.put("polling", getIdAndCount(vm.getChangeTrackerBacklog(), VEHICLE_MONITORING));
         logger.info("Built VM polling stats");
         JSONObject sxPolling = new JSONObject();
         sxPolling.put("typeName", ""+ SITUATION_EXCHANGE);
-        sxPolling.put("polling", getIdAndCount(sxChanges, SITUATION_EXCHANGE));
+        sxPolling.put("polling", getIdAndCount(sx.getChangeTrackerBacklog(), SITUATION_EXCHANGE));
         logger.info("Built SX polling stats");
 
         pollingClients.add(etPolling);
@@ -450,12 +437,12 @@ public class SubscriptionManager {
         return result;
     }
 
-    private JSONArray getIdAndCount(Map<String, Set<SiriObjectStorageKey>> map, SiriDataType dataType) {
+    private JSONArray getIdAndCount(Map<String, Long> map, SiriDataType dataType) {
         JSONArray count = new JSONArray();
         for (String key : map.keySet()) {
             JSONObject keyValue = new JSONObject();
             keyValue.put("id", key);
-            keyValue.put("count", map.getOrDefault(key, new HashSet<>()).size());
+            keyValue.put("count", map.getOrDefault(key, 0L));
 
             RequestorRefStats stats = requestorRefRepository.getStats(key, dataType);
             String clientTrackingName = "";
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import no.rutebanken.anshar.config.AnsharConfiguration;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared, bounded executor for fire-and-forget tasks.
+ *
+ * The MDC of the submitting thread is propagated to the task. When the queue is full the task is executed by the
+ * submitting thread, slowing down the producer instead of queueing without limit.
+ */
+@Component
+public class AsyncTaskExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncTaskExecutor.class);
+
+    static final String EXECUTOR_NAME = "anshar-async";
+
+    @Autowired
+    private AnsharConfiguration configuration;
+
+    @Autowired
+    private PrometheusMetricsService metrics;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    void init() {
+        final int threads = configuration.getAsyncExecutorThreads();
+        final int queueSize = configuration.getAsyncExecutorQueueSize();
+
+        RejectedExecutionHandler callerRunsPolicy = (task, executor) -> {
+            if (!executor.isShutdown()) {
+                metrics.registerAsyncTaskRejected(EXECUTOR_NAME);
+                task.run();
+            }
+        };
+
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat(EXECUTOR_NAME + "-%d").build(),
+                callerRunsPolicy);
+        executor.allowCoreThreadTimeOut(true);
+
+        metrics.registerAsyncExecutor(EXECUTOR_NAME, executor);
+
+        logger.info("Initialized async executor with {} threads and queue size {}", threads, queueSize);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Executes task asynchronously
+     *
+     * @param taskName used to tag metrics and logging
+     * @param task
+     */
+    public void execute(String taskName, Runnable task) {
+        final Map<String, String> callerContext = MDC.getCopyOfContextMap();
+        final long submitted = System.nanoTime();
+
+        executor.execute(() -> {
+            // Task may be executed by the submitting thread - restore context afterwards
+            final Map<String, String> previousContext = MDC.getCopyOfContextMap();
+            setContext(callerContext);
+
+            final long started = System.nanoTime();
+            try {
+                task.run();
+            } catch (Exception e) {
+                logger.warn("Async task {} failed", taskName, e);
+            } finally {
+                metrics.registerAsyncTask(EXECUTOR_NAME, taskName, started - submitted, System.nanoTime() - started);
+                setContext(previousContext);
+            }
+        });
+    }
+
+    private static void setContext(Map<String, String> context) {
+        if (context != null) {
+            MDC.setContextMap(context);
+        } else {
+            MDC.clear();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class DatasetSizeTrackerTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testEventsDuringRecountAreCountedOnce() {
+        AtomicReference<DatasetSizeTracker> tracker = new AtomicReference<>();
+
+        IMap<SiriObjectStorageKey, Object> map = Mockito.mock(IMap.class);
+        Mockito.when(map.localKeySet()).thenAnswer(invocation -> {
+            Set<SiriObjectStorageKey> keys = Set.of(createKey("1"), createKey("2"));
+            synchronized (tracker) {
+                // Entry added after the keys were read, but before recount is completed
+                tracker.get().entryAdded(createEvent(createKey("3")));
+                // Events already reflected by the keys that were read
+                tracker.get().entryAdded(createEvent(createKey("1")));
+                // Entry removed after the keys were read
+                tracker.get().entryRemoved(createEvent(createKey("2")));
+            }
+            return keys;
+        });
+
+        IMap<String, Map<String, Integer>> datasetSizes = Mockito.mock(IMap.class);
+        HazelcastInstance hazelcastInstance = Mockito.mock(HazelcastInstance.class, Mockito.RETURNS_DEEP_STUBS);
+
+        synchronized (tracker) {
+            tracker.set(new DatasetSizeTracker(SiriDataType.VEHICLE_MONITORING, map, datasetSizes, hazelcastInstance, 3600, 60));
+        }
+
+        // Published after the initial recount
+        verify(datasetSizes, timeout(5000)).set(anyString(), any(), anyLong(), any());
+
+        assertEquals(2, tracker.get().getLocalDatasetSize("TST"));
+    }
+
+    private static SiriObjectStorageKey createKey(String key) {
+        return new SiriObjectStorageKey("TST", "TST:Line:1", key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static EntryEvent<SiriObjectStorageKey, Object> createEvent(SiriObjectStorageKey key) {
+        EntryEvent<SiriObjectStorageKey, Object> event = Mockito.mock(EntryEvent.class);
+        Mockito.when(event.getKey()).thenReturn(key);
+        return event;
+    }
+}
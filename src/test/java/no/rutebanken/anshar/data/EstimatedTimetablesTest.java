@@ -15,6 +15,7 @@
 
 package no.rutebanken.anshar.data;
 
+import com.hazelcast.query.Predicates;
 import junit.framework.TestCase;
 import no.rutebanken.anshar.integration.SpringBootBaseTest;
 import org.junit.jupiter.api.BeforeEach;
@@ -31,17 +32,21 @@ import uk.org.siri.siri20.StopPointRef;
 import uk.org.siri.siri20.VehicleRef;
 
 import java.math.BigInteger;
+import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.TestCase.assertNotNull;
 import static no.rutebanken.anshar.helpers.SleepUtil.sleep;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 
@@ -232,6 +237,32 @@ public class EstimatedTimetablesTest extends SpringBootBaseTest {
         assertTrue("Did not check matching VehicleJourney", checkedMatchingJourney);
     }
 
+    @Test
+    public void testUpdatedJourneyWrongOrderInSameDelivery() {
+        int previousSize = estimatedTimetables.getAll().size();
+
+        ZonedDateTime departure = ZonedDateTime.now().plusHours(1);
+        String lineRefValue = "12345-wrongOrderSameDelivery";
+
+        EstimatedVehicleJourney newest = createEstimatedVehicleJourney(lineRefValue, "4321", 0, 20, departure, true);
+        final ZonedDateTime newestRecordedAtTime = ZonedDateTime.now().plusMinutes(1);
+        newest.setRecordedAtTime(newestRecordedAtTime);
+
+        EstimatedVehicleJourney oldest = createEstimatedVehicleJourney(lineRefValue, "4321", 0, 20, departure.plusMinutes(2), true);
+        oldest.setRecordedAtTime(ZonedDateTime.now());
+
+        Collection<EstimatedVehicleJourney> added = estimatedTimetables.addAll("test", Arrays.asList(newest, oldest));
+
+        assertEquals("Older element in same delivery should have been ignored.", 1, added.size());
+        assertEquals(previousSize + 1, estimatedTimetables.getAll().size());
+
+        for (EstimatedVehicleJourney vehicleJourney : estimatedTimetables.getAll()) {
+            if (lineRefValue.equals(vehicleJourney.getLineRef().getValue())) {
+                assertEquals("Older element in same delivery should have been ignored.", newestRecordedAtTime, vehicleJourney.getRecordedAtTime());
+            }
+        }
+    }
+
     @Test
     public void testMapEstimatedToRecordedCall() {
 
@@ -446,6 +477,101 @@ public class EstimatedTimetablesTest extends SpringBootBaseTest {
 
     }
 
+    @Test
+    public void testNewRequestorStartsAtBeginningOfChangeLog() {
+        String datasetId = "CursorInitTest";
+        // Changes are not committed by the test - data stored on this node should still be returned to a new requestor
+        estimatedTimetables.add(datasetId, createEstimatedVehicleJourney("1234", "1", 0, 30, ZonedDateTime.now().plusHours(1), true));
+        estimatedTimetables.add(datasetId, createEstimatedVehicleJourney("2345", "2", 0, 30, ZonedDateTime.now().plusHours(1), true));
+        estimatedTimetables.add(datasetId, createEstimatedVehicleJourney("3456", "3", 0, 30, ZonedDateTime.now().plusHours(1), true));
+
+        String requestorId = UUID.randomUUID().toString();
+        assertEquals(0, estimatedTimetables.initChangeCursor(requestorId));
+        assertNull("Cursor should not be stored before the first delivery", estimatedTimetables.getChangeCursor(requestorId));
+
+        Siri serviceDelivery = estimatedTimetables.createServiceDelivery(requestorId, datasetId, 10, -1);
+        assertEquals(3, getJourneyCount(serviceDelivery));
+        assertEquals(Long.valueOf(estimatedTimetables.getCommittedSequence()), estimatedTimetables.getChangeCursor(requestorId));
+    }
+
+    @Test
+    public void testChangeLogPagingAtMaxSize() {
+        String datasetId = "PagingTest";
+        for (int i = 0; i < 4; i++) {
+            estimatedTimetables.markIdsAsUpdated(Collections.singletonMap(createKey(datasetId, i), 60000L));
+            estimatedTimetables.commitChanges();
+        }
+
+        EstimatedTimetables.ChangeLogPage page = estimatedTimetables.getChanges(0, Predicates.alwaysTrue(), id -> true, 4);
+        assertEquals(4, page.keys.size());
+        assertFalse("Exactly maxSize changes should not flag moreData", page.moreData);
+        assertEquals(estimatedTimetables.getCommittedSequence(), page.cursor);
+
+        page = estimatedTimetables.getChanges(0, Predicates.alwaysTrue(), id -> true, 3);
+        assertEquals(3, page.keys.size());
+        assertTrue(page.moreData);
+        assertEquals(Arrays.asList(createKey(datasetId, 0), createKey(datasetId, 1), createKey(datasetId, 2)), new ArrayList<>(page.keys));
+
+        page = estimatedTimetables.getChanges(page.cursor, Predicates.alwaysTrue(), id -> true, 3);
+        assertEquals(Collections.singletonList(createKey(datasetId, 3)), new ArrayList<>(page.keys));
+        assertFalse(page.moreData);
+
+        page = estimatedTimetables.getChanges(page.cursor, Predicates.alwaysTrue(), id -> true, 3);
+        assertTrue("Cursor at committed sequence should return no changes", page.keys.isEmpty());
+        assertFalse(page.moreData);
+    }
+
+    @Test
+    public void testExpiredRequestorIsReinitialized() {
+        String datasetId = "CursorExpiryTest";
+        estimatedTimetables.add(datasetId, createEstimatedVehicleJourney("1234", "1", 0, 30, ZonedDateTime.now().plusHours(1), true));
+        estimatedTimetables.add(datasetId, createEstimatedVehicleJourney("2345", "2", 0, 30, ZonedDateTime.now().plusHours(1), true));
+        estimatedTimetables.commitChanges();
+
+        String requestorId = UUID.randomUUID().toString();
+        assertEquals(2, getJourneyCount(estimatedTimetables.createServiceDelivery(requestorId, datasetId, 10, -1)));
+        assertEquals(0, getJourneyCount(estimatedTimetables.createServiceDelivery(requestorId, datasetId, 10, -1)));
+
+        estimatedTimetables.updateChangeTracker(requestorId, estimatedTimetables.getChangeCursor(requestorId),
+                Instant.now(), 1, TimeUnit.SECONDS);
+        sleep(2000);
+
+        assertNull(estimatedTimetables.getChangeCursor(requestorId));
+        assertEquals("Expired requestor should get all data", 2,
+                getJourneyCount(estimatedTimetables.createServiceDelivery(requestorId, datasetId, 10, -1)));
+    }
+
+    @Test
+    public void testEnteredPreviewIntervalIsLimitedByMaxSize() {
+        String datasetId = "PreviewMaxSizeTest";
+        estimatedTimetables.add(datasetId, createEstimatedVehicleJourney("1234", "1", 0, 30, ZonedDateTime.now().plusMinutes(10), true));
+        estimatedTimetables.add(datasetId, createEstimatedVehicleJourney("2345", "2", 0, 30, ZonedDateTime.now().plusMinutes(11), true));
+        estimatedTimetables.add(datasetId, createEstimatedVehicleJourney("3456", "3", 0, 30, ZonedDateTime.now().plusMinutes(12), true));
+        estimatedTimetables.commitChanges();
+
+        String requestorId = UUID.randomUUID().toString();
+        Siri serviceDelivery = estimatedTimetables.createServiceDelivery(requestorId, datasetId, 2, 5*60*1000);
+        assertEquals("No journeys start within previewInterval", 0, getJourneyCount(serviceDelivery));
+
+        // Previous request 10 minutes ago - all journeys have entered a 15 minute previewInterval since then
+        estimatedTimetables.updateChangeTracker(requestorId, estimatedTimetables.getChangeCursor(requestorId),
+                Instant.now().minusSeconds(10*60), 10, TimeUnit.MINUTES);
+
+        serviceDelivery = estimatedTimetables.createServiceDelivery(requestorId, datasetId, 2, 15*60*1000);
+        assertEquals("Delivery should be limited by maxSize", 2, getJourneyCount(serviceDelivery));
+        assertTrue(serviceDelivery.getServiceDelivery().isMoreData());
+
+        serviceDelivery = estimatedTimetables.createServiceDelivery(requestorId, datasetId, 2, 15*60*1000);
+        assertEquals("Remaining journey should have been returned", 1, getJourneyCount(serviceDelivery));
+        assertEquals("3", serviceDelivery.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0).getVehicleRef().getValue());
+        assertFalse(serviceDelivery.getServiceDelivery().isMoreData());
+    }
+
+    private static SiriObjectStorageKey createKey(String datasetId, int id) {
+        return new SiriObjectStorageKey(datasetId, null, "PagingTest-" + id);
+    }
+
     @Test
     public void testExcludeDatasetIds() {
 
@@ -513,6 +639,20 @@ public class EstimatedTimetablesTest extends SpringBootBaseTest {
 
     }
 
+    @Test
+    public void testCreateServiceDeliveryByLineRef() {
+        estimatedTimetables.add("LineRefTest", createEstimatedVehicleJourney("ABC:Line:1$LRT:Line:1", UUID.randomUUID().toString(), 0, 10, ZonedDateTime.now().plusMinutes(10), true));
+        estimatedTimetables.add("LineRefTest", createEstimatedVehicleJourney("ABC:Line:2$LRT:Line:2", UUID.randomUUID().toString(), 0, 10, ZonedDateTime.now().plusMinutes(10), true));
+
+        assertEquals(1, getJourneyCount(estimatedTimetables.createServiceDelivery("ABC:Line:1")));
+        assertEquals(1, getJourneyCount(estimatedTimetables.createServiceDelivery("LRT:Line:1")));
+        assertEquals(1, getJourneyCount(estimatedTimetables.createServiceDelivery("lrt:line:2")));
+        assertEquals(0, getJourneyCount(estimatedTimetables.createServiceDelivery("LRT:Line:3")));
+    }
+
+    private int getJourneyCount(Siri serviceDelivery) {
+        return serviceDelivery.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().size();
+    }
 
 
     private void assertExcludedId(String excludedDatasetId) {
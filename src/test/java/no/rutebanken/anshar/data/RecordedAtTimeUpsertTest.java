@@ -0,0 +1,145 @@
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.IMap;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.VehicleActivityStructure;
+
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecordedAtTimeUpsertTest extends SpringBootBaseTest {
+
+    private static final SiriObjectStorageKey KEY = new SiriObjectStorageKey("TST", "TST:Line:1", "1234");
+
+    private static final ZonedDateTime NOW = ZonedDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+
+    @Autowired
+    private IMap<SiriObjectStorageKey, EstimatedVehicleJourney> timetableDeliveries;
+
+    @Autowired
+    private EstimatedTimetables estimatedTimetables;
+
+    @Autowired
+    @Qualifier("getEstimatedTimetableRecordedAtTimeMap")
+    private IMap<SiriObjectStorageKey, Long> etRecordedAtTimes;
+
+    @Autowired
+    private IMap<SiriObjectStorageKey, VehicleActivityStructure> monitoredVehicles;
+
+    @Autowired
+    @Qualifier("getVehicleRecordedAtTimeMap")
+    private IMap<SiriObjectStorageKey, Long> vmRecordedAtTimes;
+
+    @BeforeEach
+    public void init() {
+        timetableDeliveries.delete(KEY);
+        etRecordedAtTimes.delete(KEY);
+        monitoredVehicles.delete(KEY);
+        vmRecordedAtTimes.delete(KEY);
+    }
+
+    @Test
+    public void testStoreWhenNoExisting() {
+        assertTrue(upsert(createJourney(NOW), true, true));
+
+        assertEquals(NOW, timetableDeliveries.get(KEY).getRecordedAtTime());
+        assertTrue(timetableDeliveries.getEntryView(KEY).getTtl() > 0);
+    }
+
+    @Test
+    public void testIgnoreOlder() {
+        assertTrue(upsert(createJourney(NOW), true, true));
+
+        assertFalse(upsert(createJourney(NOW.minusSeconds(1)), true, true));
+        assertEquals(NOW, timetableDeliveries.get(KEY).getRecordedAtTime());
+    }
+
+    @Test
+    public void testReplaceNewer() {
+        assertTrue(upsert(createJourney(NOW), true, true));
+
+        assertTrue(upsert(createJourney(NOW.plusSeconds(1)), true, true));
+        assertEquals(NOW.plusSeconds(1), timetableDeliveries.get(KEY).getRecordedAtTime());
+    }
+
+    @Test
+    public void testReplaceEqual() {
+        assertTrue(upsert(createActivity(NOW), false, false));
+
+        assertFalse(upsert(createActivity(NOW), false, false));
+        assertTrue(upsert(createActivity(NOW), true, false));
+    }
+
+    @Test
+    public void testReplaceUnknown() {
+        assertTrue(upsert(createActivity(null), false, false));
+
+        assertFalse(upsert(createActivity(NOW), false, false));
+        assertTrue(upsert(createActivity(NOW), false, true));
+        assertEquals(NOW, monitoredVehicles.get(KEY).getRecordedAtTime());
+    }
+
+    @Test
+    public void testBackupOnlyWhenStored() {
+        timetableDeliveries.set(KEY, createJourney(NOW));
+
+        RecordedAtTimeUpsert<EstimatedVehicleJourney> older = new RecordedAtTimeUpsert<>(createJourney(NOW.minusSeconds(1)), 60000, true, true);
+        assertFalse(timetableDeliveries.executeOnKey(KEY, older));
+        assertNull(older.getBackupProcessor());
+
+        RecordedAtTimeUpsert<EstimatedVehicleJourney> newer = new RecordedAtTimeUpsert<>(createJourney(NOW.plusSeconds(1)), 60000, true, true);
+        assertTrue(timetableDeliveries.executeOnKey(KEY, newer));
+        assertNotNull(newer.getBackupProcessor());
+    }
+
+    @Test
+    public void testRecordedAtTimeIsKeptWhenStored() {
+        assertTrue(submit(createJourney(NOW)));
+        assertEquals(Long.valueOf(NOW.toInstant().toEpochMilli()), etRecordedAtTimes.get(KEY));
+        assertTrue(etRecordedAtTimes.getEntryView(KEY).getTtl() > 0);
+
+        assertFalse(submit(createJourney(NOW.minusSeconds(1))));
+        assertEquals(Long.valueOf(NOW.toInstant().toEpochMilli()), etRecordedAtTimes.get(KEY));
+    }
+
+    private boolean submit(EstimatedVehicleJourney et) {
+        SiriRepository.ConditionalWrite<EstimatedVehicleJourney> write = estimatedTimetables.submitIfNewer(etRecordedAtTimes,
+                timetableDeliveries, KEY, et, 60000, 0, true, true);
+        estimatedTimetables.awaitWrites(Collections.singletonList(write));
+        return write.isStored();
+    }
+
+    private boolean upsert(EstimatedVehicleJourney et, boolean replaceEqual, boolean replaceUnknown) {
+        return timetableDeliveries.submitToKey(KEY, new RecordedAtTimeUpsert<>(et, 60000, replaceEqual, replaceUnknown))
+                .toCompletableFuture().join();
+    }
+
+    private boolean upsert(VehicleActivityStructure activity, boolean replaceEqual, boolean replaceUnknown) {
+        return monitoredVehicles.submitToKey(KEY, new RecordedAtTimeUpsert<>(activity, 60000, replaceEqual, replaceUnknown))
+                .toCompletableFuture().join();
+    }
+
+    private static EstimatedVehicleJourney createJourney(ZonedDateTime recordedAtTime) {
+        EstimatedVehicleJourney et = new EstimatedVehicleJourney();
+        et.setRecordedAtTime(recordedAtTime);
+        return et;
+    }
+
+    private static VehicleActivityStructure createActivity(ZonedDateTime recordedAtTime) {
+        VehicleActivityStructure activity = new VehicleActivityStructure();
+        activity.setRecordedAtTime(recordedAtTime);
+        return activity;
+    }
+}
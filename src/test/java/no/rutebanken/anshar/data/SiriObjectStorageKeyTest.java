@@ -61,4 +61,20 @@ public class SiriObjectStorageKeyTest {
 
         assertFalse(keyA.equals(keyB));
     }
+
+    @Test
+    public void testLineRefAttributes() {
+        SiriObjectStorageKey key = new SiriObjectStorageKey("TST", "ABC:Line:1234$TST:Line:1234", UUID.randomUUID().toString());
+
+        assertEquals("abc:line:1234", key.getOriginalLineRef());
+        assertEquals("tst:line:1234", key.getMappedLineRef());
+    }
+
+    @Test
+    public void testUnmappedLineRefAttributes() {
+        SiriObjectStorageKey key = new SiriObjectStorageKey("TST", "Line:1234", UUID.randomUUID().toString());
+
+        assertEquals("line:1234", key.getOriginalLineRef());
+        assertEquals("line:1234", key.getMappedLineRef());
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri20.EstimatedCall;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.LineRef;
+import uk.org.siri.siri20.StopPointRef;
+
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+
+public class StructuralChangeDetectionHasherTest {
+
+    private final ChangeDetectionHasher hasher = new StructuralChangeDetectionHasher(Arrays.asList("EstimatedVehicleJourney.recordedAtTime"));
+
+    private final ZonedDateTime departure = ZonedDateTime.now().plusHours(1);
+
+    @Test
+    public void testEqualObjects() {
+        assertEquals(hasher.hash(createJourney("1234", departure)), hasher.hash(createJourney("1234", departure)));
+    }
+
+    @Test
+    public void testIgnoredField() {
+        EstimatedVehicleJourney journey = createJourney("1234", departure);
+        long checksum = hasher.hash(journey);
+
+        journey.setRecordedAtTime(ZonedDateTime.now().plusMinutes(10));
+
+        assertEquals(checksum, hasher.hash(journey));
+    }
+
+    @Test
+    public void testChangedNestedValue() {
+        EstimatedVehicleJourney journey = createJourney("1234", departure);
+        long checksum = hasher.hash(journey);
+
+        journey.getEstimatedCalls().getEstimatedCalls().get(0).setExpectedDepartureTime(departure.plusMinutes(1));
+
+        assertFalse(checksum == hasher.hash(journey));
+    }
+
+    @Test
+    public void testAddedListElement() {
+        EstimatedVehicleJourney journey = createJourney("1234", departure);
+        long checksum = hasher.hash(journey);
+
+        journey.getEstimatedCalls().getEstimatedCalls().add(new EstimatedCall());
+
+        assertFalse(checksum == hasher.hash(journey));
+    }
+
+    @Test
+    public void testNullAndEmptyStringDiffer() {
+        EstimatedVehicleJourney journey = createJourney("1234", departure);
+        journey.getLineRef().setValue(null);
+        long checksum = hasher.hash(journey);
+
+        journey.getLineRef().setValue("");
+
+        assertFalse(checksum == hasher.hash(journey));
+    }
+
+    private EstimatedVehicleJourney createJourney(String lineRefValue, ZonedDateTime departure) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setRecordedAtTime(ZonedDateTime.now());
+
+        LineRef lineRef = new LineRef();
+        lineRef.setValue(lineRefValue);
+        journey.setLineRef(lineRef);
+
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        for (int i = 0; i < 10; i++) {
+            StopPointRef stopPointRef = new StopPointRef();
+            stopPointRef.setValue("NSR:Quay:" + i);
+
+            EstimatedCall call = new EstimatedCall();
+            call.setStopPointRef(stopPointRef);
+            call.setAimedDepartureTime(departure.plusMinutes(i));
+            call.setExpectedDepartureTime(departure.plusMinutes(i));
+            estimatedCalls.getEstimatedCalls().add(call);
+        }
+        journey.setEstimatedCalls(estimatedCalls);
+        return journey;
+    }
+}
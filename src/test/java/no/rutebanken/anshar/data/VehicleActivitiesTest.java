@@ -208,6 +208,26 @@ public class VehicleActivitiesTest extends SpringBootBaseTest {
         assertEquals(previousSize+4, vehicleActivities.getAll().size());
     }
 
+    @Test
+    public void testDatasetSize() {
+        vehicleActivities.add("SIZE1", createVehicleActivityStructure(ZonedDateTime.now(), "size-1234"));
+        vehicleActivities.add("SIZE1", createVehicleActivityStructure(ZonedDateTime.now(), "size-2345"));
+        vehicleActivities.add("SIZE2", createVehicleActivityStructure(ZonedDateTime.now(), "size-3456"));
+
+        // Counted from entry-listeners, and published to the cluster
+        sleep(1000);
+
+        assertEquals(2, vehicleActivities.getLocalDatasetSize("SIZE1"));
+        assertEquals(Integer.valueOf(2), vehicleActivities.getDatasetSize("SIZE1"));
+        assertEquals(Integer.valueOf(1), vehicleActivities.getDatasetSize().get("SIZE2"));
+
+        vehicleActivities.clearAllByDatasetId("SIZE1");
+        sleep(1000);
+
+        assertEquals(Integer.valueOf(0), vehicleActivities.getDatasetSize("SIZE1"));
+        assertEquals(Integer.valueOf(1), vehicleActivities.getDatasetSize("SIZE2"));
+    }
+
     private VehicleActivityStructure createVehicleActivityStructure(ZonedDateTime recordedAtTime, String vehicleReference) {
         VehicleActivityStructure element = new VehicleActivityStructure();
         element.setRecordedAtTime(recordedAtTime);
@@ -0,0 +1,85 @@
+package no.rutebanken.anshar.data.collections;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.pool.KryoPool;
+import org.junit.jupiter.api.Test;
+import uk.org.acbs.siri20.AccessibilityAssessmentStructure;
+import uk.org.siri.siri20.EstimatedCall;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.PtSituationElement;
+import uk.org.siri.siri20.Siri;
+import uk.org.siri.siri20.VehicleActivityStructure;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SiriKryoRegistryTest {
+
+    @Test
+    public void testStoredTypesAreRegistered() {
+        Collection<Class<?>> classes = SiriKryoRegistry.getModelClasses();
+        assertTrue(classes.contains(Siri.class));
+        assertTrue(classes.contains(EstimatedVehicleJourney.class));
+        assertTrue(classes.contains(EstimatedCall.class));
+        assertTrue(classes.contains(VehicleActivityStructure.class));
+        assertTrue(classes.contains(VehicleActivityStructure.MonitoredVehicleJourney.class));
+        assertTrue(classes.contains(PtSituationElement.class));
+        assertTrue(classes.contains(AccessibilityAssessmentStructure.class));
+    }
+
+    @Test
+    public void testModelClassesAreRegistered() {
+        Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(true);
+        SiriKryoRegistry.register(kryo);
+
+        for (Class<?> type : SiriKryoRegistry.getModelClasses()) {
+            assertTrue(kryo.getRegistration(type).getId() >= 100);
+        }
+        assertEquals(23, kryo.getRegistration(Duration.class).getId());
+    }
+
+    @Test
+    public void testDurationRoundTrip() {
+        Kryo kryo = new Kryo();
+        SiriKryoRegistry.register(kryo);
+
+        for (Duration duration : new Duration[]{Duration.ZERO, Duration.ofMinutes(-5), Duration.ofSeconds(90, 1)}) {
+            Output output = new Output(64);
+            kryo.writeObject(output, duration);
+            assertEquals(duration, kryo.readObject(new Input(output.toBytes()), Duration.class));
+        }
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        int poolSize = Runtime.getRuntime().availableProcessors();
+        KryoPool pool = SiriKryoRegistry.createPool(Kryo::new);
+
+        // Never blocks - additional instances are created when the pool is empty
+        Set<Kryo> borrowed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < poolSize + 2; i++) {
+            borrowed.add(pool.borrow());
+        }
+        assertEquals(poolSize + 2, borrowed.size());
+        borrowed.forEach(pool::release);
+
+        // Only poolSize instances are kept
+        int reused = 0;
+        for (int i = 0; i < poolSize + 2; i++) {
+            if (borrowed.contains(pool.borrow())) {
+                reused++;
+            }
+        }
+        assertEquals(poolSize, reused);
+    }
+}
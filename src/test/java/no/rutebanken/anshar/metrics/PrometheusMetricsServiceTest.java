@@ -0,0 +1,75 @@
+package no.rutebanken.anshar.metrics;
+
+import no.rutebanken.anshar.routes.siri.transformer.MappingNames;
+import no.rutebanken.anshar.routes.validation.ValidationType;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PrometheusMetricsServiceTest {
+
+    private final PrometheusMetricsService metricsService = new PrometheusMetricsService();
+
+    @AfterEach
+    public void tearDown() {
+        metricsService.close();
+    }
+
+    @Test
+    public void testDataMappingCounts() {
+        for (int i = 0; i < 10; i++) {
+            metricsService.registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, "TST", MappingNames.ORIGINAL_ID_TO_NSR, 1);
+        }
+        metricsService.registerDataMapping(SiriDataType.ESTIMATED_TIMETABLE, "TST", MappingNames.REMOVE_FREIGHT_TRAIN, 5);
+        metricsService.registerDataMapping(SiriDataType.VEHICLE_MONITORING, "TST", MappingNames.ORIGINAL_ID_TO_NSR, 3);
+
+        assertEquals(10, getMappingCount(SiriDataType.ESTIMATED_TIMETABLE, MappingNames.ORIGINAL_ID_TO_NSR), 0);
+        assertEquals(5, getMappingCount(SiriDataType.ESTIMATED_TIMETABLE, MappingNames.REMOVE_FREIGHT_TRAIN), 0);
+        assertEquals(3, getMappingCount(SiriDataType.VEHICLE_MONITORING, MappingNames.ORIGINAL_ID_TO_NSR), 0);
+
+        // Only registered when used
+        assertNull(metricsService.find("app.anshar.data.mapping")
+                .tag("mappingName", MappingNames.APPEND_PREFIX.toString())
+                .functionCounter());
+    }
+
+    @Test
+    public void testCachedCounters() {
+        metricsService.registerIncomingData(SiriDataType.VEHICLE_MONITORING, "TST", 10, 7, 2, 1);
+        metricsService.registerIncomingData(SiriDataType.VEHICLE_MONITORING, "TST", 10, 7, 2, 1);
+        metricsService.addValidationMetrics(SiriDataType.VEHICLE_MONITORING, "TST", ValidationType.PROFILE_VALIDATION, "rule", 3);
+        metricsService.addValidationMetrics(SiriDataType.VEHICLE_MONITORING, "TST", ValidationType.PROFILE_VALIDATION, "rule", 3);
+
+        assertEquals(20, metricsService.find("app.anshar.data.total").tag("agency", "TST").counter().count(), 0);
+        assertEquals(14, metricsService.find("app.anshar.data.success").tag("agency", "TST").counter().count(), 0);
+        assertEquals(6, metricsService.find("app.anshar.data.validation").tag("category", "rule").counter().count(), 0);
+    }
+
+    @Test
+    public void testFunctionCounterKeepsSupplier() {
+        metricsService.registerMqttPublisher(() -> 1, createCountSupplier(42), () -> 0, () -> 0);
+
+        // Supplier is no longer referenced by the caller
+        System.gc();
+
+        assertEquals(42, metricsService.find("app.anshar.mqtt.published").functionCounter().count(), 0);
+    }
+
+    private static Supplier<Number> createCountSupplier(long count) {
+        return () -> count;
+    }
+
+    private double getMappingCount(SiriDataType dataType, MappingNames mappingName) {
+        return metricsService.find("app.anshar.data.mapping")
+                .tag("dataType", dataType.name())
+                .tag("agency", "TST")
+                .tag("mappingName", mappingName.toString())
+                .functionCounter()
+                .count();
+    }
+}
@@ -0,0 +1,45 @@
+package no.rutebanken.anshar.routes.health;
+
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.junit.jupiter.api.Test;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UnmappedIdMergerTest {
+
+    @Test
+    public void testMergeIntoNoExisting() {
+        Map.Entry<String, Map<SiriDataType, Set<String>>> entry = new AbstractMap.SimpleEntry<>("TST", null);
+
+        Map<SiriDataType, Map<String, Boolean>> changes = new HashMap<>();
+        changes.put(SiriDataType.VEHICLE_MONITORING, Map.of("1234", true, "4321", false));
+
+        new UnmappedIdMerger(changes).process(entry);
+
+        assertEquals(Set.of("1234"), entry.getValue().get(SiriDataType.VEHICLE_MONITORING));
+    }
+
+    @Test
+    public void testMergeKeepsChangesFromOtherNodes() {
+        Map<SiriDataType, Set<String>> existing = new HashMap<>();
+        existing.put(SiriDataType.VEHICLE_MONITORING, new HashSet<>(Set.of("1234", "5678")));
+        existing.put(SiriDataType.ESTIMATED_TIMETABLE, new HashSet<>(Set.of("1111")));
+        Map.Entry<String, Map<SiriDataType, Set<String>>> entry = new AbstractMap.SimpleEntry<>("TST", existing);
+
+        Map<SiriDataType, Map<String, Boolean>> changes = new HashMap<>();
+        changes.put(SiriDataType.VEHICLE_MONITORING, Map.of("1234", false, "9999", true));
+        changes.put(SiriDataType.ESTIMATED_TIMETABLE, Map.of("1111", false));
+
+        new UnmappedIdMerger(changes).process(entry);
+
+        assertEquals(Set.of("5678", "9999"), entry.getValue().get(SiriDataType.VEHICLE_MONITORING));
+        assertTrue(entry.getValue().get(SiriDataType.ESTIMATED_TIMETABLE).isEmpty());
+    }
+}
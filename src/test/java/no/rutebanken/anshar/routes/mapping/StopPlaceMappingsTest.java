@@ -0,0 +1,78 @@
+package no.rutebanken.anshar.routes.mapping;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StopPlaceMappingsTest {
+
+    @Test
+    public void testLookup() {
+        Map<String, String> map = new HashMap<>();
+        map.put("1234", "NSR:Quay:11223344");
+        map.put("ABC:Quay:1234", "NSR:Quay:22334455");
+        map.put("Tide_sjø_AS:StopPlace:Bergen", "NSR:StopPlace:1");
+
+        StopPlaceMappings mappings = StopPlaceMappings.of(map);
+
+        assertEquals(3, mappings.size());
+        assertEquals("NSR:Quay:11223344", mappings.get("1234"));
+        assertEquals("NSR:Quay:22334455", mappings.get("ABC:Quay:1234"));
+        assertEquals("NSR:StopPlace:1", mappings.get("Tide_sjø_AS:StopPlace:Bergen"));
+        assertNull(mappings.get("123"));
+        assertNull(mappings.get("12345"));
+        assertNull(mappings.get(null));
+    }
+
+    @Test
+    public void testQualifiedLookup() {
+        StopPlaceMappings mappings = StopPlaceMappings.of(Map.of("ABC:Quay:1234", "NSR:Quay:22334455"));
+
+        assertEquals("NSR:Quay:22334455", mappings.get("ABC", "Quay", "1234"));
+        // Already qualified
+        assertEquals("NSR:Quay:22334455", mappings.get("ABC", "Quay", "ABC:Quay:1234"));
+
+        assertNull(mappings.get("ABC", "Quay", "123"));
+        assertNull(mappings.get("ABC", "StopPlace", "1234"));
+        assertNull(mappings.get("AB", "C:Quay", "1234"));
+        assertNull(mappings.get("XYZ", "Quay", "1234"));
+    }
+
+    @Test
+    public void testCharactersOutsideLatin1() {
+        Map<String, String> map = new HashMap<>();
+        map.put("ABC:Quay:Ω", "NSR:Quay:1");
+        map.put("ABC:Quay:2", "NSR:Quay:Ω");
+
+        StopPlaceMappings mappings = StopPlaceMappings.of(map);
+
+        assertEquals(2, mappings.size());
+        assertEquals("NSR:Quay:1", mappings.get("ABC", "Quay", "Ω"));
+        assertEquals("NSR:Quay:Ω", mappings.get("ABC:Quay:2"));
+    }
+
+    @Test
+    public void testEqualToMap() {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            map.put("RUT:Quay:" + i, "NSR:Quay:" + (i * 7));
+        }
+
+        StopPlaceMappings mappings = StopPlaceMappings.of(map);
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(map.get("RUT:Quay:" + i), mappings.get("RUT", "Quay", Integer.toString(i)));
+        }
+
+        Map<String, String> copy = new HashMap<>();
+        mappings.forEach(copy::put);
+        assertEquals(map, copy);
+
+        assertTrue(StopPlaceMappings.EMPTY.isEmpty());
+        assertNull(StopPlaceMappings.EMPTY.get("RUT", "Quay", "1"));
+    }
+}
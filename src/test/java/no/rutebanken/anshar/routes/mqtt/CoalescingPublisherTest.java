@@ -0,0 +1,156 @@
+package no.rutebanken.anshar.routes.mqtt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingPublisherTest {
+
+    @Test
+    public void testLatestPositionWins() throws InterruptedException {
+        CountDownLatch publishing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> published = new CopyOnWriteArrayList<>();
+
+        CoalescingPublisher<Long> publisher = new CoalescingPublisher<>("test", 2, 0, value -> {
+            published.add(value);
+            publishing.countDown();
+            await(release);
+        });
+
+        publisher.offer("vehicle", 1, 1L);
+        assertTrue(publishing.await(5, TimeUnit.SECONDS));
+
+        // First position is being published - the following replace each other
+        for (long i = 2; i <= 11; i++) {
+            publisher.offer("vehicle", i, i);
+        }
+        release.countDown();
+        awaitEmpty(publisher);
+
+        assertEquals(List.of(1L, 11L), published);
+        assertEquals(2, publisher.getPublishedCount());
+        assertEquals(9, publisher.getCoalescedCount());
+        assertEquals(0, publisher.getDroppedCount());
+        publisher.shutdown();
+    }
+
+    @Test
+    public void testOutdatedPositionIsDropped() throws InterruptedException {
+        List<Long> published = new CopyOnWriteArrayList<>();
+        CoalescingPublisher<Long> publisher = new CoalescingPublisher<>("test", 1, 0, published::add);
+
+        assertTrue(publisher.offer("vehicle", 10, 10L));
+        awaitEmpty(publisher);
+
+        assertFalse(publisher.offer("vehicle", 5, 5L));
+        assertTrue(publisher.offer("other-vehicle", 5, 5L));
+        awaitEmpty(publisher);
+
+        assertEquals(List.of(10L, 5L), published);
+        assertEquals(1, publisher.getDroppedCount());
+        publisher.shutdown();
+    }
+
+    @Test
+    public void testMaxPublishRatePerVehicle() throws InterruptedException {
+        Map<Long, Long> publishedAt = new ConcurrentHashMap<>();
+        CoalescingPublisher<Long> publisher = new CoalescingPublisher<>("test", 2, 300,
+                value -> publishedAt.put(value, System.nanoTime()));
+
+        publisher.offer("vehicle", 1, 1L);
+        awaitEmpty(publisher);
+        publisher.offer("vehicle", 2, 2L);
+        publisher.offer("other-vehicle", 1, 3L);
+        awaitEmpty(publisher);
+
+        assertTrue(publishedAt.get(2L) - publishedAt.get(1L) >= TimeUnit.MILLISECONDS.toNanos(300));
+        // Other vehicles are not delayed
+        assertTrue(publishedAt.get(3L) < publishedAt.get(2L));
+        publisher.shutdown();
+    }
+
+    /**
+     * Publishes to a stand-in for the MQTT broker, verifying that positions of each vehicle arrive in order
+     */
+    @Test
+    public void testOrderingAndThroughput() throws InterruptedException {
+        final int vehicles = 1000;
+        final int positionsPerVehicle = 200;
+        final int producers = 4;
+
+        Map<String, Long> brokerLatest = new ConcurrentHashMap<>();
+        AtomicInteger outOfOrder = new AtomicInteger();
+        AtomicInteger concurrent = new AtomicInteger();
+        Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+        CoalescingPublisher<long[]> publisher = new CoalescingPublisher<>("test", 4, 0, position -> {
+            String vehicle = "vehicle-" + position[0];
+            AtomicInteger vehicleInFlight = inFlight.computeIfAbsent(vehicle, v -> new AtomicInteger());
+            if (vehicleInFlight.incrementAndGet() > 1) {
+                concurrent.incrementAndGet();
+            }
+            Long previous = brokerLatest.put(vehicle, position[1]);
+            if (previous != null && previous >= position[1]) {
+                outOfOrder.incrementAndGet();
+            }
+            vehicleInFlight.decrementAndGet();
+        });
+
+        long start = System.currentTimeMillis();
+        ExecutorService producerPool = Executors.newFixedThreadPool(producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            producerPool.execute(() -> {
+                // Each producer owns a subset of the vehicles
+                for (int t = 1; t <= positionsPerVehicle; t++) {
+                    for (int v = producer; v < vehicles; v += producers) {
+                        publisher.offer("vehicle-" + v, t, new long[]{v, t});
+                    }
+                }
+            });
+        }
+        producerPool.shutdown();
+        assertTrue(producerPool.awaitTermination(30, TimeUnit.SECONDS));
+        awaitEmpty(publisher);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(0, outOfOrder.get());
+        assertEquals(0, concurrent.get());
+        assertEquals(vehicles, brokerLatest.size());
+        for (Long latest : brokerLatest.values()) {
+            assertEquals(Long.valueOf(positionsPerVehicle), latest);
+        }
+        assertEquals((long) vehicles * positionsPerVehicle, publisher.getPublishedCount() + publisher.getCoalescedCount());
+        assertTrue("Offering " + vehicles * positionsPerVehicle + " positions took " + elapsed + " ms", elapsed < 20000);
+        publisher.shutdown();
+    }
+
+    private static void awaitEmpty(CoalescingPublisher<?> publisher) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (publisher.getQueueSize() > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, publisher.getQueueSize());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
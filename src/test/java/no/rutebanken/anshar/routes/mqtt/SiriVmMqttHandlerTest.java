@@ -102,6 +102,22 @@ public class SiriVmMqttHandlerTest {
         assertEquals("entur", obj.get(VehiclePosition.SOURCE));
     }
 
+    @Test
+    public void testMessageEscaping() throws JSONException {
+        ZonedDateTime dateTime = ZonedDateTime.of(2017, 12, 24, 9, 37, 4, 0, ZoneId.of("GMT"));
+        String datasetId = "RUT";
+        VehicleActivityStructure vehicle = createVehicle(dateTime, "78123", "RUT:Line:0037", "Nobina",
+                "RUT:ServiceJourney:1234-123", 2, "NSR:Quay:6201", 59.0, -10.5, 203, "\"Helsfyr\" \\ T\n",
+                "37", "Nydalen T", 18, datasetId);
+
+        String msg = new SiriVmMqttHandler().getMessage(datasetId, vehicle).getValue();
+
+        JSONObject obj = new JSONObject(msg).getJSONObject(VehiclePosition.ROOT);
+        assertEquals("\"Helsfyr\" \\ T\n", obj.get(VehiclePosition.JOURNEY));
+        assertEquals(59, obj.get(VehiclePosition.LATITUDE));
+        assertEquals(-10.5, obj.get(VehiclePosition.LONGITUDE));
+    }
+
     @Test
     public void testNullVehicleId() {
         ZonedDateTime dateTime = ZonedDateTime.of(2017, 12, 24, 9, 37, 4, 0, ZoneId.of("GMT"));
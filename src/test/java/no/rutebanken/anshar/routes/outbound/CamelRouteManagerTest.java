@@ -0,0 +1,153 @@
+package no.rutebanken.anshar.routes.outbound;
+
+import com.sun.net.httpserver.HttpServer;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.rutebanken.siri20.util.SiriXml;
+import org.springframework.beans.factory.annotation.Autowired;
+import uk.org.siri.siri20.DatedVehicleJourneyRef;
+import uk.org.siri.siri20.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.EstimatedVersionFrameStructure;
+import uk.org.siri.siri20.LineRef;
+import uk.org.siri.siri20.Siri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class CamelRouteManagerTest extends SpringBootBaseTest {
+
+    @Autowired
+    private CamelRouteManager camelRouteManager;
+
+    @Autowired
+    private ServerSubscriptionManager serverSubscriptionManager;
+
+    @Autowired
+    private SiriObjectFactory siriObjectFactory;
+
+    private HttpServer receiver;
+
+    // Received DatedVehicleJourneyRefs per subscription, in the order they were pushed
+    private final Map<String, BlockingQueue<String>> received = new ConcurrentHashMap<>();
+
+    private final List<OutboundSubscriptionSetup> subscriptions = new ArrayList<>();
+
+    @BeforeEach
+    public void init() throws IOException {
+        receiver = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        receiver.createContext("/", exchange -> {
+            String subscriptionId = exchange.getRequestURI().getPath().substring(1);
+            try (InputStream body = exchange.getRequestBody()) {
+                Siri siri = SiriXml.parseXml(body);
+                for (EstimatedTimetableDeliveryStructure delivery : siri.getServiceDelivery().getEstimatedTimetableDeliveries()) {
+                    for (EstimatedVersionFrameStructure frame : delivery.getEstimatedJourneyVersionFrames()) {
+                        for (EstimatedVehicleJourney journey : frame.getEstimatedVehicleJourneies()) {
+                            getReceived(subscriptionId).add(journey.getDatedVehicleJourneyRef().getValue());
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        receiver.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (OutboundSubscriptionSetup subscription : subscriptions) {
+            serverSubscriptionManager.subscriptions.delete(subscription.getSubscriptionId());
+        }
+        receiver.stop(0);
+    }
+
+    @Test
+    public void testGroupedDeliveriesPerSubscription() throws InterruptedException {
+        Map<Class, Set<String>> lineFilter = new HashMap<>();
+        lineFilter.put(LineRef.class, Set.of("TST:Line:2"));
+
+        // First two subscriptions are grouped, the third receives filtered data
+        List<OutboundSubscriptionSetup> recipients = Arrays.asList(
+                createSubscription("grouping-all-1", null),
+                createSubscription("grouping-all-2", null),
+                createSubscription("grouping-line-2", lineFilter));
+
+        for (int i = 0; i < 3; i++) {
+            Siri delivery = siriObjectFactory.createETServiceDelivery(Arrays.asList(
+                    createJourney("TST:Line:1", i + ":1"),
+                    createJourney("TST:Line:2", i + ":2")));
+            camelRouteManager.pushSiriData(delivery, recipients, serverSubscriptionManager);
+        }
+
+        List<String> all = Arrays.asList("0:1", "0:2", "1:1", "1:2", "2:1", "2:2");
+        List<String> line2 = Arrays.asList("0:2", "1:2", "2:2");
+
+        assertEquals(all, takeReceived("grouping-all-1", all.size()));
+        assertEquals(all, takeReceived("grouping-all-2", all.size()));
+        assertEquals(line2, takeReceived("grouping-line-2", line2.size()));
+    }
+
+    private BlockingQueue<String> getReceived(String subscriptionId) {
+        return received.computeIfAbsent(subscriptionId, id -> new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * Waits for the expected number of pushed journeys - stops at the first one that does not arrive in time
+     */
+    private List<String> takeReceived(String subscriptionId, int expectedSize) throws InterruptedException {
+        List<String> refs = new ArrayList<>();
+        while (refs.size() < expectedSize) {
+            String ref = getReceived(subscriptionId).poll(10, TimeUnit.SECONDS);
+            if (ref == null) {
+                break;
+            }
+            refs.add(ref);
+        }
+        return refs;
+    }
+
+    private OutboundSubscriptionSetup createSubscription(String subscriptionId, Map<Class, Set<String>> filterMap) {
+        OutboundSubscriptionSetup subscription = new OutboundSubscriptionSetup(ZonedDateTime.now(),
+                SiriDataType.ESTIMATED_TIMETABLE,
+                "http://localhost:" + receiver.getAddress().getPort() + "/" + subscriptionId,
+                60000, 0, filterMap, new ArrayList<>(), OutboundIdMappingPolicy.DEFAULT, subscriptionId,
+                "TST", ZonedDateTime.now().plusHours(1), null, null);
+
+        serverSubscriptionManager.subscriptions.set(subscriptionId, subscription);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    private static EstimatedVehicleJourney createJourney(String lineRefValue, String datedVehicleJourneyRefValue) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue(lineRefValue);
+        journey.setLineRef(lineRef);
+        DatedVehicleJourneyRef datedVehicleJourneyRef = new DatedVehicleJourneyRef();
+        datedVehicleJourneyRef.setValue(datedVehicleJourneyRefValue);
+        journey.setDatedVehicleJourneyRef(datedVehicleJourneyRef);
+        return journey;
+    }
+}
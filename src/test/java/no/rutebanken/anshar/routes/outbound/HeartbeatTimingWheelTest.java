@@ -0,0 +1,104 @@
+package no.rutebanken.anshar.routes.outbound;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeartbeatTimingWheelTest {
+
+    private static final long TICK = 1000;
+
+    @Test
+    public void testKeysAreDueAtDeadline() {
+        HeartbeatTimingWheel wheel = new HeartbeatTimingWheel(TICK, 8);
+        long start = 100 * TICK;
+        wheel.advance(start);
+
+        wheel.schedule("a", start + 2 * TICK);
+        wheel.schedule("b", start + 5 * TICK);
+
+        assertTrue(wheel.advance(start + TICK).isEmpty());
+        assertEquals(Arrays.asList("a"), wheel.advance(start + 2 * TICK));
+        assertTrue(wheel.advance(start + 4 * TICK).isEmpty());
+        assertEquals(Arrays.asList("b"), wheel.advance(start + 5 * TICK));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testNeverDueBeforeDeadline() {
+        HeartbeatTimingWheel wheel = new HeartbeatTimingWheel(TICK, 8);
+        long start = 100 * TICK;
+        wheel.advance(start);
+
+        wheel.schedule("a", start + TICK + 1);
+
+        assertTrue(wheel.advance(start + TICK).isEmpty());
+        assertTrue(wheel.advance(start + 2 * TICK - 1).isEmpty());
+        assertEquals(Arrays.asList("a"), wheel.advance(start + 2 * TICK));
+    }
+
+    @Test
+    public void testDeadlinesBeyondOneRevolution() {
+        HeartbeatTimingWheel wheel = new HeartbeatTimingWheel(TICK, 4);
+        long start = 100 * TICK;
+        wheel.advance(start);
+
+        wheel.schedule("a", start + TICK);
+        wheel.schedule("b", start + 9 * TICK);
+
+        assertEquals(Arrays.asList("a"), wheel.advance(start + TICK));
+        for (int i = 2; i < 9; i++) {
+            assertTrue(wheel.advance(start + i * TICK).isEmpty());
+        }
+        assertEquals(Arrays.asList("b"), wheel.advance(start + 9 * TICK));
+    }
+
+    @Test
+    public void testCatchUpAfterPause() {
+        HeartbeatTimingWheel wheel = new HeartbeatTimingWheel(TICK, 4);
+        long start = 100 * TICK;
+        wheel.advance(start);
+
+        wheel.schedule("a", start + TICK);
+        wheel.schedule("b", start + 3 * TICK);
+        wheel.schedule("c", start + 6 * TICK);
+        wheel.schedule("d", start + 20 * TICK);
+
+        List<String> due = wheel.advance(start + 10 * TICK);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), new HashSet<>(due));
+        assertTrue(wheel.contains("d"));
+    }
+
+    @Test
+    public void testRescheduleAndCancel() {
+        HeartbeatTimingWheel wheel = new HeartbeatTimingWheel(TICK, 8);
+        long start = 100 * TICK;
+        wheel.advance(start);
+
+        wheel.schedule("a", start + TICK);
+        wheel.schedule("a", start + 3 * TICK);
+        wheel.schedule("b", start + TICK);
+        wheel.cancel("b");
+
+        assertTrue(wheel.advance(start + TICK).isEmpty());
+        assertFalse(wheel.contains("b"));
+        assertEquals(Arrays.asList("a"), wheel.advance(start + 3 * TICK));
+    }
+
+    @Test
+    public void testPastDeadlinesDueOnFirstAdvance() {
+        HeartbeatTimingWheel wheel = new HeartbeatTimingWheel(TICK, 8);
+        long now = 100 * TICK;
+
+        wheel.schedule("a", now - 5 * TICK);
+        wheel.schedule("b", now);
+
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(wheel.advance(now)));
+    }
+}
@@ -0,0 +1,279 @@
+package no.rutebanken.anshar.routes.outbound;
+
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri20.DataFrameRefStructure;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.FramedVehicleJourneyRefStructure;
+import uk.org.siri.siri20.PtSituationElement;
+import uk.org.siri.siri20.ServiceDelivery;
+import uk.org.siri.siri20.SituationNumber;
+import uk.org.siri.siri20.VehicleActivityStructure;
+import uk.org.siri.siri20.VehicleRef;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundPushQueueTest {
+
+    private static final long MAX_LAG = 60000;
+
+    private static final long MAX_BYTES = 1024 * 1024;
+
+    private final SiriObjectFactory siriObjectFactory = new SiriObjectFactory(Instant.now());
+
+    @Test
+    public void testPushDirectlyWhileWindowIsOpen() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 2, MAX_LAG, MAX_BYTES);
+
+        assertTrue(queue.offer(etDelivery(journey("1", "v1")), 1000));
+        assertTrue(queue.offer(etDelivery(journey("2", "v1")), 1000));
+        assertEquals(2, queue.getInFlight());
+        assertTrue(queue.isEmpty());
+
+        assertFalse(queue.offer(etDelivery(journey("3", "v1")), 1000));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testJourneysAreCoalescedWhileWindowIsFull() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, MAX_LAG, MAX_BYTES);
+        assertTrue(queue.offer(etDelivery(journey("1", "v1")), 1000));
+
+        EstimatedVehicleJourney newest = journey("1", "v3");
+        assertFalse(queue.offer(etDelivery(journey("1", "v2"), journey("2", "v1")), 1000));
+        assertFalse(queue.offer(etDelivery(newest), 1100));
+        assertEquals(2, queue.size());
+
+        // Window still full
+        assertNull(queue.poll(100, 3000));
+
+        queue.release();
+        OutboundDelivery delivery = queue.poll(100, 3000);
+        assertNull(delivery.xml);
+
+        List<EstimatedVehicleJourney> journeys = delivery.siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+        assertEquals(2, journeys.size());
+        assertEquals("2", journeys.get(0).getFramedVehicleJourneyRef().getDatedVehicleJourneyRef());
+        assertSame(newest, journeys.get(1));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testVehiclesAreCoalescedWhileWindowIsFull() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, MAX_LAG, MAX_BYTES);
+        assertTrue(queue.offer(vmDelivery(vehicle("bus-1")), 1000));
+
+        assertFalse(queue.offer(vmDelivery(vehicle("bus-1"), vehicle("bus-2")), 1000));
+        assertFalse(queue.offer(vmDelivery(vehicle("bus-1")), 1000));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testPollRespectsMaxElements() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, MAX_LAG, MAX_BYTES);
+        assertTrue(queue.offer(etDelivery(journey("0", "v1")), 1000));
+        assertFalse(queue.offer(etDelivery(journey("1", "v1"), journey("2", "v1"), journey("3", "v1")), 1000));
+
+        queue.release();
+        OutboundDelivery first = queue.poll(2, 3000);
+        assertEquals(2, first.siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().size());
+        assertEquals(1, queue.size());
+
+        queue.release();
+        assertEquals(1, queue.poll(2, 3000).siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().size());
+    }
+
+    @Test
+    public void testOtherDeliveriesAreQueuedInOrder() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, MAX_LAG, MAX_BYTES);
+        OutboundDelivery notification1 = new OutboundDelivery(siriObjectFactory.createDataReadyNotification(), new byte[0]);
+        OutboundDelivery notification2 = new OutboundDelivery(siriObjectFactory.createDataReadyNotification(), new byte[0]);
+
+        assertTrue(queue.offer(etDelivery(journey("1", "v1")), 1000));
+        assertFalse(queue.offer(notification1, 1000));
+        assertFalse(queue.offer(notification2, 1000));
+
+        queue.release();
+        assertSame(notification1, queue.poll(100, 3000));
+        queue.release();
+        assertSame(notification2, queue.poll(100, 3000));
+    }
+
+    @Test
+    public void testOnlyLatestHeartbeatIsQueued() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, MAX_LAG, MAX_BYTES);
+        OutboundDelivery heartbeat1 = new OutboundDelivery(siriObjectFactory.createHeartbeatNotification("1"), new byte[0]);
+        OutboundDelivery heartbeat2 = new OutboundDelivery(siriObjectFactory.createHeartbeatNotification("1"), new byte[0]);
+
+        assertTrue(queue.offer(etDelivery(journey("1", "v1")), 1000));
+        assertFalse(queue.offer(heartbeat1, 1000));
+        assertFalse(queue.offer(heartbeat2, 1000));
+        assertEquals(1, queue.size());
+
+        queue.release();
+        assertSame(heartbeat2, queue.poll(100, 3000));
+    }
+
+    @Test
+    public void testSituationsAreCoalesced() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, MAX_LAG, MAX_BYTES);
+        assertTrue(queue.offer(etDelivery(journey("1", "v1")), 1000));
+
+        assertFalse(queue.offer(sxDelivery(situation("1"), situation("2")), 1000));
+        assertFalse(queue.offer(sxDelivery(situation("1")), 1000));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testAllDeliveriesAndFramesAreCoalesced() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, MAX_LAG, MAX_BYTES);
+        assertTrue(queue.offer(etDelivery(journey("1", "v1")), 1000));
+
+        // Two ET-deliveries, the first with two frames
+        OutboundDelivery et = etDelivery(journey("1", "v2"));
+        ServiceDelivery etServiceDelivery = et.siri.getServiceDelivery();
+        etServiceDelivery.getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().add(
+                etDelivery(journey("2", "v1")).siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                        .getEstimatedJourneyVersionFrames().get(0));
+        etServiceDelivery.getEstimatedTimetableDeliveries().add(
+                etDelivery(journey("3", "v1")).siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0));
+        assertFalse(queue.offer(et, 1000));
+
+        OutboundDelivery vm = vmDelivery(vehicle("bus-1"));
+        vm.siri.getServiceDelivery().getVehicleMonitoringDeliveries().add(
+                vmDelivery(vehicle("bus-2")).siri.getServiceDelivery().getVehicleMonitoringDeliveries().get(0));
+        assertFalse(queue.offer(vm, 1000));
+
+        OutboundDelivery sx = sxDelivery(situation("1"));
+        sx.siri.getServiceDelivery().getSituationExchangeDeliveries().add(
+                sxDelivery(situation("2")).siri.getServiceDelivery().getSituationExchangeDeliveries().get(0));
+        assertFalse(queue.offer(sx, 1000));
+
+        assertEquals(7, queue.size());
+    }
+
+    @Test
+    public void testOldestUpdatesAreSentFirst() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, MAX_LAG, MAX_BYTES);
+        assertTrue(queue.offer(etDelivery(journey("1", "v1")), 1000));
+
+        assertFalse(queue.offer(vmDelivery(vehicle("bus-1")), 1000));
+        assertFalse(queue.offer(etDelivery(journey("1", "v2")), 1100));
+
+        queue.release();
+        assertNotNull(queue.poll(100, 2000).siri.getServiceDelivery().getVehicleMonitoringDeliveries().get(0));
+        queue.release();
+        assertEquals(1, queue.poll(100, 2000).siri.getServiceDelivery().getEstimatedTimetableDeliveries().size());
+    }
+
+    @Test
+    public void testUpdatesOlderThanMaxLagAreDropped() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, 1000, MAX_BYTES);
+        assertTrue(queue.offer(etDelivery(journey("1", "v1")), 1000));
+
+        assertFalse(queue.offer(etDelivery(journey("2", "v1")), 1000));
+        assertFalse(queue.offer(etDelivery(journey("3", "v1")), 1500));
+        assertFalse(queue.offer(etDelivery(journey("2", "v2")), 1800));
+
+        queue.release();
+        // Journey 3 has expired - journey 2 was updated recently
+        List<EstimatedVehicleJourney> journeys = queue.poll(100, 2600).siri.getServiceDelivery()
+                .getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+        assertEquals(1, journeys.size());
+        assertEquals("2", journeys.get(0).getFramedVehicleJourneyRef().getDatedVehicleJourneyRef());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void testOldestUpdatesAreDroppedWhenMaxBytesIsExceeded() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, MAX_LAG, 2500);
+        assertTrue(queue.offer(etDelivery(journey("0", "v1")), 1000));
+
+        // 1000 bytes per journey
+        assertFalse(queue.offer(new OutboundDelivery(etDelivery(journey("1", "v1"), journey("2", "v1")).siri, new byte[2000]), 1000));
+        assertEquals(2000, queue.getPendingBytes());
+        assertFalse(queue.offer(new OutboundDelivery(etDelivery(journey("3", "v1")).siri, new byte[1000]), 1100));
+
+        assertEquals(2, queue.size());
+        assertEquals(2000, queue.getPendingBytes());
+        assertEquals(1, queue.getDroppedCount());
+
+        // Replacing a journey does not increase size
+        assertFalse(queue.offer(new OutboundDelivery(etDelivery(journey("2", "v2")).siri, new byte[1000]), 1200));
+        assertEquals(2000, queue.getPendingBytes());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void testLag() {
+        OutboundPushQueue queue = new OutboundPushQueue(siriObjectFactory, 1, MAX_LAG, MAX_BYTES);
+        assertTrue(queue.offer(etDelivery(journey("1", "v1")), 1000));
+        assertEquals(0, queue.getLagMillis(1500));
+
+        assertFalse(queue.offer(etDelivery(journey("2", "v1")), 2000));
+        assertFalse(queue.offer(etDelivery(journey("3", "v1")), 2500));
+        assertEquals(1000, queue.getLagMillis(3000));
+
+        queue.release();
+        queue.poll(100, 3000);
+        assertEquals(0, queue.getLagMillis(3000));
+    }
+
+    private OutboundDelivery etDelivery(EstimatedVehicleJourney... journeys) {
+        return new OutboundDelivery(siriObjectFactory.createETServiceDelivery(Arrays.asList(journeys)), new byte[0]);
+    }
+
+    private OutboundDelivery vmDelivery(VehicleActivityStructure... activities) {
+        return new OutboundDelivery(siriObjectFactory.createVMServiceDelivery(Arrays.asList(activities)), new byte[0]);
+    }
+
+    private OutboundDelivery sxDelivery(PtSituationElement... situations) {
+        return new OutboundDelivery(siriObjectFactory.createSXServiceDelivery(Arrays.asList(situations)), new byte[0]);
+    }
+
+    private static PtSituationElement situation(String situationNumber) {
+        PtSituationElement situation = new PtSituationElement();
+        SituationNumber number = new SituationNumber();
+        number.setValue(situationNumber);
+        situation.setSituationNumber(number);
+        return situation;
+    }
+
+    private static EstimatedVehicleJourney journey(String datedVehicleJourneyRef, String version) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setDataSource("TST");
+        FramedVehicleJourneyRefStructure framedRef = new FramedVehicleJourneyRefStructure();
+        DataFrameRefStructure dataFrameRef = new DataFrameRefStructure();
+        dataFrameRef.setValue("2020-01-01");
+        framedRef.setDataFrameRef(dataFrameRef);
+        framedRef.setDatedVehicleJourneyRef(datedVehicleJourneyRef);
+        journey.setFramedVehicleJourneyRef(framedRef);
+        journey.setRecordedAtTime(ZonedDateTime.now());
+        journey.setEstimatedVehicleJourneyCode(version);
+        return journey;
+    }
+
+    private static VehicleActivityStructure vehicle(String vehicleRefValue) {
+        VehicleActivityStructure activity = new VehicleActivityStructure();
+        VehicleActivityStructure.MonitoredVehicleJourney journey = new VehicleActivityStructure.MonitoredVehicleJourney();
+        journey.setDataSource("TST");
+        VehicleRef vehicleRef = new VehicleRef();
+        vehicleRef.setValue(vehicleRefValue);
+        journey.setVehicleRef(vehicleRef);
+        activity.setMonitoredVehicleJourney(journey);
+        return activity;
+    }
+}
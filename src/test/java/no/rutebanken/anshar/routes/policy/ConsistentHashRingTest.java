@@ -0,0 +1,92 @@
+package no.rutebanken.anshar.routes.policy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashRingTest {
+
+    private static final int VIRTUAL_NODES = 100;
+
+    private static final int KEY_COUNT = 1000;
+
+    @Test
+    public void testEmptyRing() {
+        ConsistentHashRing ring = new ConsistentHashRing(Collections.emptyList(), VIRTUAL_NODES);
+        assertTrue(ring.isEmpty());
+        assertNull(ring.getOwner("key"));
+    }
+
+    @Test
+    public void testSameOwnerRegardlessOfMemberOrder() {
+        ConsistentHashRing ring1 = new ConsistentHashRing(Arrays.asList("a", "b", "c"), VIRTUAL_NODES);
+        ConsistentHashRing ring2 = new ConsistentHashRing(Arrays.asList("c", "a", "b"), VIRTUAL_NODES);
+
+        for (String key : keys()) {
+            assertEquals(ring1.getOwner(key), ring2.getOwner(key));
+        }
+    }
+
+    @Test
+    public void testKeysAreBalanced() {
+        List<String> members = Arrays.asList("a", "b", "c", "d");
+        ConsistentHashRing ring = new ConsistentHashRing(members, VIRTUAL_NODES);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (String key : keys()) {
+            counts.merge(ring.getOwner(key), 1, Integer::sum);
+        }
+
+        int expected = KEY_COUNT / members.size();
+        for (String member : members) {
+            int count = counts.getOrDefault(member, 0);
+            assertTrue(member + " owns " + count + " keys", count > expected / 2 && count < expected * 3 / 2);
+        }
+    }
+
+    @Test
+    public void testOnlyKeysOfRemovedMemberAreMoved() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("a", "b", "c"), VIRTUAL_NODES);
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("a", "c"), VIRTUAL_NODES);
+
+        for (String key : keys()) {
+            String owner = before.getOwner(key);
+            if (!owner.equals("b")) {
+                assertEquals(owner, after.getOwner(key));
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyKeysForAddedMemberAreMoved() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("a", "b"), VIRTUAL_NODES);
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("a", "b", "c"), VIRTUAL_NODES);
+
+        int moved = 0;
+        for (String key : keys()) {
+            String owner = after.getOwner(key);
+            if (!owner.equals(before.getOwner(key))) {
+                assertEquals("c", owner);
+                moved++;
+            }
+        }
+        assertTrue(moved > 0);
+    }
+
+    private static List<String> keys() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys.add("anshar.et.rs.subscription-" + i);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,153 @@
+package no.rutebanken.anshar.routes.policy;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class InterruptibleHazelcastRoutePolicyTest {
+
+    private static final long INTERVAL = 1000;
+
+    private static final long START = 100000;
+
+    private static final String LOCK_KEY = "anshar.test.route";
+
+    // Lock shared by all policies - simulates the cluster-wide Hazelcast lock
+    private boolean lockHeld;
+
+    private LeadershipCoordinator coordinator;
+
+    @BeforeEach
+    public void init() {
+        lockHeld = false;
+        coordinator = Mockito.mock(LeadershipCoordinator.class);
+        Mockito.when(coordinator.getEvaluationIntervalMillis()).thenReturn(INTERVAL);
+    }
+
+    @Test
+    public void testOwnershipGainedAndLost() {
+        InterruptibleHazelcastRoutePolicy policy = createPolicy();
+
+        lockHeld = true;
+        policy.evaluate(false, START);
+        assertFalse(policy.isLeader());
+
+        // Lock released by previous holder, and ownership assigned to this member
+        lockHeld = false;
+        policy.evaluate(true, START + INTERVAL);
+        assertTrue(policy.isLeader());
+        assertTrue(lockHeld);
+
+        // Lock forcibly released
+        lockHeld = false;
+        policy.evaluate(true, START + 2 * INTERVAL);
+        assertFalse(policy.isLeader());
+
+        policy.evaluate(true, START + 3 * INTERVAL);
+        assertTrue(policy.isLeader());
+    }
+
+    @Test
+    public void testHandoverTimeout() {
+        InterruptibleHazelcastRoutePolicy policy = createPolicy();
+
+        policy.evaluate(true, START);
+        assertTrue(policy.isLeader());
+
+        // Ownership moved to another member - leadership is kept for a while before handing over
+        policy.evaluate(false, START + 11 * INTERVAL);
+        assertTrue(policy.isLeader());
+        assertTrue(lockHeld);
+
+        policy.evaluate(false, START + 12 * INTERVAL);
+        assertFalse(policy.isLeader());
+        assertFalse(lockHeld);
+    }
+
+    @Test
+    public void testFallbackWhenOwnerDisappears() {
+        InterruptibleHazelcastRoutePolicy policy = createPolicy();
+
+        policy.evaluate(false, START);
+        policy.evaluate(false, START + 2 * INTERVAL);
+        assertFalse(policy.isLeader());
+
+        // Owner takes the lock in time - waiting starts over when it is released
+        lockHeld = true;
+        policy.evaluate(false, START + 3 * INTERVAL);
+        assertFalse(policy.isLeader());
+
+        lockHeld = false;
+        policy.evaluate(false, START + 4 * INTERVAL);
+        policy.evaluate(false, START + 6 * INTERVAL);
+        assertFalse(policy.isLeader());
+
+        policy.evaluate(false, START + 7 * INTERVAL);
+        assertTrue("Member not owning the key should take over unlocked key", policy.isLeader());
+    }
+
+    @Test
+    public void testNoDoubleStart() {
+        IMap<String, String> locks = createLocks();
+        InterruptibleHazelcastRoutePolicy policy = createPolicy(locks);
+        InterruptibleHazelcastRoutePolicy otherMember = createPolicy();
+
+        // Both members consider themselves owner, e.g. while membership changes
+        policy.evaluate(true, START);
+        otherMember.evaluate(true, START);
+        assertTrue(policy.isLeader());
+        assertFalse(otherMember.isLeader());
+
+        for (int i = 1; i <= 20; i++) {
+            policy.evaluate(true, START + i * INTERVAL);
+            otherMember.evaluate(true, START + i * INTERVAL);
+        }
+        assertTrue(policy.isLeader());
+        assertFalse(otherMember.isLeader());
+
+        // Lock is only acquired once while leader
+        verify(locks, times(1)).tryLock(anyString());
+    }
+
+    private InterruptibleHazelcastRoutePolicy createPolicy() {
+        return createPolicy(createLocks());
+    }
+
+    private InterruptibleHazelcastRoutePolicy createPolicy(IMap<String, String> locks) {
+        HazelcastInstance instance = Mockito.mock(HazelcastInstance.class);
+        Mockito.when(instance.<String, String>getMap(anyString())).thenReturn(locks);
+
+        InterruptibleHazelcastRoutePolicy policy = new InterruptibleHazelcastRoutePolicy(instance, coordinator);
+        policy.setLockMapName("anshar.locks");
+        policy.setLockKey(LOCK_KEY);
+        policy.setLockValue("test");
+        policy.start();
+        return policy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private IMap<String, String> createLocks() {
+        IMap<String, String> locks = Mockito.mock(IMap.class);
+        Mockito.when(locks.isLocked(anyString())).thenAnswer(invocation -> lockHeld);
+        Mockito.when(locks.tryLock(anyString())).thenAnswer(invocation -> {
+            if (lockHeld) {
+                return false;
+            }
+            lockHeld = true;
+            return true;
+        });
+        Mockito.doAnswer(invocation -> {
+            lockHeld = false;
+            return null;
+        }).when(locks).unlock(anyString());
+        return locks;
+    }
+}
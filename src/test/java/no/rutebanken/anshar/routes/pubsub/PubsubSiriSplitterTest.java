@@ -0,0 +1,124 @@
+package no.rutebanken.anshar.routes.pubsub;
+
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri20.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.EstimatedVersionFrameStructure;
+import uk.org.siri.siri20.LineRef;
+import uk.org.siri.siri20.PtSituationElement;
+import uk.org.siri.siri20.RequestorRef;
+import uk.org.siri.siri20.ServiceDelivery;
+import uk.org.siri.siri20.Siri;
+import uk.org.siri.siri20.SituationExchangeDeliveryStructure;
+import uk.org.siri.siri20.VehicleActivityStructure;
+import uk.org.siri.siri20.VehicleMonitoringDeliveryStructure;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PubsubSiriSplitterTest {
+
+    private final ZonedDateTime responseTimestamp = ZonedDateTime.now();
+
+    @Test
+    public void testSplitMonitoredOrCancelledJourneys() {
+        EstimatedVersionFrameStructure frame = new EstimatedVersionFrameStructure();
+        frame.setRecordedAtTime(responseTimestamp);
+        frame.getEstimatedVehicleJourneies().add(createJourney("1", true, null));
+        frame.getEstimatedVehicleJourneies().add(createJourney("2", false, null));
+        frame.getEstimatedVehicleJourneies().add(createJourney("3", null, true));
+        frame.getEstimatedVehicleJourneies().add(createJourney("4", null, null));
+
+        EstimatedTimetableDeliveryStructure delivery = new EstimatedTimetableDeliveryStructure();
+        delivery.setResponseTimestamp(responseTimestamp);
+        delivery.getEstimatedJourneyVersionFrames().add(frame);
+
+        Siri siri = createSiri();
+        siri.getServiceDelivery().getEstimatedTimetableDeliveries().add(delivery);
+
+        List<Siri> monitoredOrCancelled = PubsubSiriSplitter.splitEstimatedTimetablesToSiri(siri, true);
+        assertEquals(2, monitoredOrCancelled.size());
+        assertEquals("1", getJourney(monitoredOrCancelled.get(0)).getLineRef().getValue());
+        assertEquals("3", getJourney(monitoredOrCancelled.get(1)).getLineRef().getValue());
+
+        Siri first = monitoredOrCancelled.get(0);
+        assertEquals(responseTimestamp, first.getServiceDelivery().getResponseTimestamp());
+        assertEquals("TST", first.getServiceDelivery().getProducerRef().getValue());
+        assertEquals(responseTimestamp, first.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getResponseTimestamp());
+        assertEquals(responseTimestamp, first.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getRecordedAtTime());
+
+        assertEquals(4, PubsubSiriSplitter.splitEstimatedTimetablesToSiri(siri, false).size());
+    }
+
+    @Test
+    public void testSplitVehicleActivities() {
+        VehicleMonitoringDeliveryStructure delivery = new VehicleMonitoringDeliveryStructure();
+        delivery.setResponseTimestamp(responseTimestamp);
+        VehicleActivityStructure first = new VehicleActivityStructure();
+        VehicleActivityStructure second = new VehicleActivityStructure();
+        delivery.getVehicleActivities().add(first);
+        delivery.getVehicleActivities().add(second);
+
+        Siri siri = createSiri();
+        siri.getServiceDelivery().getVehicleMonitoringDeliveries().add(delivery);
+
+        List<Siri> result = PubsubSiriSplitter.splitVehicleActivitiesToSiri(siri);
+
+        assertEquals(2, result.size());
+        assertSame(first, result.get(0).getServiceDelivery().getVehicleMonitoringDeliveries().get(0).getVehicleActivities().get(0));
+        assertSame(second, result.get(1).getServiceDelivery().getVehicleMonitoringDeliveries().get(0).getVehicleActivities().get(0));
+    }
+
+    @Test
+    public void testSplitSituationsPerDelivery() {
+        SituationExchangeDeliveryStructure delivery = new SituationExchangeDeliveryStructure();
+        delivery.setResponseTimestamp(responseTimestamp);
+        SituationExchangeDeliveryStructure.Situations situations = new SituationExchangeDeliveryStructure.Situations();
+        situations.getPtSituationElements().add(new PtSituationElement());
+        situations.getPtSituationElements().add(new PtSituationElement());
+        delivery.setSituations(situations);
+
+        Siri siri = createSiri();
+        siri.getServiceDelivery().getSituationExchangeDeliveries().add(delivery);
+        siri.getServiceDelivery().getSituationExchangeDeliveries().add(new SituationExchangeDeliveryStructure());
+
+        List<Siri> result = PubsubSiriSplitter.splitSituationsToSiri(siri);
+
+        assertEquals(1, result.size());
+        assertEquals(2, result.get(0).getServiceDelivery().getSituationExchangeDeliveries().get(0)
+                .getSituations().getPtSituationElements().size());
+    }
+
+    private Siri createSiri() {
+        RequestorRef producerRef = new RequestorRef();
+        producerRef.setValue("TST");
+
+        ServiceDelivery serviceDelivery = new ServiceDelivery();
+        serviceDelivery.setResponseTimestamp(responseTimestamp);
+        serviceDelivery.setProducerRef(producerRef);
+
+        Siri siri = new Siri();
+        siri.setServiceDelivery(serviceDelivery);
+        return siri;
+    }
+
+    private EstimatedVehicleJourney createJourney(String lineRefValue, Boolean monitored, Boolean cancellation) {
+        LineRef lineRef = new LineRef();
+        lineRef.setValue(lineRefValue);
+
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setLineRef(lineRef);
+        journey.setMonitored(monitored);
+        journey.setCancellation(cancellation);
+        return journey;
+    }
+
+    private EstimatedVehicleJourney getJourney(Siri siri) {
+        return siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0);
+    }
+}
@@ -0,0 +1,106 @@
+package no.rutebanken.anshar.routes.siri.processor.routedata;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads local NeTEx fixtures, and logs time spent - replaces the hardcoded GCS-urls used in production.
+ */
+public class NetexLoadingTimingTest {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final String[] FIXTURES = {
+            "src/test/resources/rb_gjb-aggregated-netex.zip",
+            "src/test/resources/rb_flt-aggregated-netex.zip"
+    };
+
+    private RouteDataStore previousRouteData;
+
+    @BeforeEach
+    public void saveRouteData() {
+        previousRouteData = NetexUpdaterService.getRouteData();
+    }
+
+    @AfterEach
+    public void restoreRouteData() {
+        // Route data is static - restored to avoid affecting other tests
+        NetexUpdaterService.setRouteData(previousRouteData);
+    }
+
+    @Test
+    public void testParallelLoadingMatchesSequential() throws IOException {
+        for (String fixture : FIXTURES) {
+            long start = System.currentTimeMillis();
+            NetexProcessor sequential = new NetexProcessor();
+            ForkJoinPool singleThreaded = new ForkJoinPool(1);
+            try {
+                sequential.loadFiles(new File(fixture), singleThreaded);
+            } finally {
+                singleThreaded.shutdown();
+            }
+            long sequentialTime = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            NetexProcessor parallel = new NetexProcessor();
+            parallel.loadFiles(new File(fixture));
+            long parallelTime = System.currentTimeMillis() - start;
+
+            logger.info("Loaded {} - sequential: {} ms, parallel: {} ms", fixture, sequentialTime, parallelTime);
+
+            assertEquals(sequential.getTripStops(), parallel.getTripStops());
+            assertEquals(sequential.getTripDates(), parallel.getTripDates());
+            assertEquals(sequential.getTrainNumberTrips(), parallel.getTrainNumberTrips());
+            assertEquals(sequential.getParentStops(), parallel.getParentStops());
+            assertEquals(sequential.getPublicCodeByQuayId(), parallel.getPublicCodeByQuayId());
+        }
+    }
+
+    @Test
+    public void testUnchangedFilesAreNotReloaded() {
+        String[] urls = new String[FIXTURES.length];
+        for (int i = 0; i < FIXTURES.length; i++) {
+            urls[i] = new File(FIXTURES[i]).toURI().toString();
+        }
+
+        long start = System.currentTimeMillis();
+        assertTrue(NetexUpdaterService.updateFromUrls(urls));
+        logger.info("Initial load of {} files: {} ms", urls.length, System.currentTimeMillis() - start);
+        assertTrue(NetexUpdaterService.getServiceJourneys().size() > 0);
+
+        start = System.currentTimeMillis();
+        assertFalse(NetexUpdaterService.updateFromUrls(urls));
+        logger.info("Reload of {} unchanged files: {} ms", urls.length, System.currentTimeMillis() - start);
+
+        assertTrue(NetexUpdaterService.updateFromUrls(urls[0]));
+    }
+
+    @Test
+    public void testFailedLoadKeepsCurrentData() {
+        String[] urls = new String[FIXTURES.length];
+        for (int i = 0; i < FIXTURES.length; i++) {
+            urls[i] = new File(FIXTURES[i]).toURI().toString();
+        }
+        String invalidUrl = new File("src/test/resources/application.properties").toURI().toString();
+
+        assertTrue(NetexUpdaterService.updateFromUrls(urls));
+        RouteDataStore loaded = NetexUpdaterService.getRouteData();
+
+        assertFalse(NetexUpdaterService.updateFromUrls(urls[0], invalidUrl));
+        assertSame("Route data from failed load should not be used", loaded, NetexUpdaterService.getRouteData());
+
+        assertTrue(NetexUpdaterService.updateFromUrls(urls[0]));
+    }
+}
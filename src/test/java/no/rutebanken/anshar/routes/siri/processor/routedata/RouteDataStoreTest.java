@@ -0,0 +1,108 @@
+package no.rutebanken.anshar.routes.siri.processor.routedata;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RouteDataStoreTest {
+
+    @Test
+    public void testSameLookupsAsNetexData() throws IOException {
+        NetexProcessor netexProcessor = new NetexProcessor();
+        netexProcessor.loadFiles(new File("src/test/resources/rb_gjb-aggregated-netex.zip"));
+
+        RouteDataStore store = new RouteDataStore.Builder().add(netexProcessor).build();
+
+        assertTrue(netexProcessor.getTripStops().size() > 0);
+        assertEquals(netexProcessor.getTripStops().keySet(), store.getServiceJourneys());
+
+        for (Map.Entry<String, List<StopTime>> entry : netexProcessor.getTripStops().entrySet()) {
+            assertEquals(entry.getValue(), store.getStopTimes(entry.getKey()));
+        }
+        for (Map.Entry<String, List<ServiceDate>> entry : netexProcessor.getTripDates().entrySet()) {
+            List<ServiceDate> serviceDates = store.getServiceDates(entry.getKey());
+            assertEquals(new HashSet<>(entry.getValue()), new HashSet<>(serviceDates));
+        }
+        for (Map.Entry<String, Set<String>> entry : netexProcessor.getTrainNumberTrips().entrySet()) {
+            assertEquals(entry.getValue(), store.getServiceJourney(entry.getKey()));
+        }
+        for (Map.Entry<String, String> entry : netexProcessor.getPublicCodeByQuayId().entrySet()) {
+            assertEquals(entry.getValue(), store.getPublicCode(entry.getKey()));
+        }
+
+        assertTrue(store.getEstimatedSizeInBytes() > 0);
+    }
+
+    @Test
+    public void testServiceDatesAcrossWords() {
+        List<ServiceDate> serviceDates = Arrays.asList(
+                new ServiceDate(2020, 12, 31),
+                new ServiceDate(2020, 1, 1),
+                new ServiceDate(2020, 3, 1),
+                new ServiceDate(2021, 2, 28)
+        );
+        NetexProcessor netexProcessor = new NetexProcessor();
+        netexProcessor.getTripDates().put("TST:ServiceJourney:1", serviceDates);
+        netexProcessor.getTripDates().put("TST:ServiceJourney:2", Collections.emptyList());
+        netexProcessor.getTripStops().put("TST:ServiceJourney:1", Arrays.asList(
+                new StopTime("NSR:Quay:1", 0, 0, 3600),
+                new StopTime(null, 1, 7200, 7260)
+        ));
+
+        RouteDataStore store = new RouteDataStore.Builder().add(netexProcessor).build();
+
+        assertEquals(Arrays.asList(
+                new ServiceDate(2020, 1, 1),
+                new ServiceDate(2020, 3, 1),
+                new ServiceDate(2020, 12, 31),
+                new ServiceDate(2021, 2, 28)
+        ), store.getServiceDates("TST:ServiceJourney:1"));
+        assertTrue(store.getServiceDates("TST:ServiceJourney:2").isEmpty());
+        assertNull(store.getServiceDates("TST:ServiceJourney:3"));
+
+        assertEquals(netexProcessor.getTripStops().get("TST:ServiceJourney:1"), store.getStopTimes("TST:ServiceJourney:1"));
+        assertNull(store.getStopTimes("TST:ServiceJourney:2"));
+        assertNull(store.getStopTimes(null));
+    }
+
+    @Test
+    public void testLookupWithoutAllocation() {
+        NetexProcessor netexProcessor = new NetexProcessor();
+        netexProcessor.getTripDates().put("TST:ServiceJourney:1", Arrays.asList(
+                new ServiceDate(2020, 1, 1),
+                new ServiceDate(2020, 3, 1)
+        ));
+        netexProcessor.getTripDates().put("TST:ServiceJourney:2", Collections.emptyList());
+        netexProcessor.getTripStops().put("TST:ServiceJourney:1", Arrays.asList(
+                new StopTime("NSR:Quay:1", 0, 3600, 3660),
+                new StopTime("NSR:Quay:2", 1, 7200, 7260)
+        ));
+        netexProcessor.getTripStops().put("TST:ServiceJourney:2", Collections.emptyList());
+
+        RouteDataStore store = new RouteDataStore.Builder().add(netexProcessor).build();
+
+        assertTrue(store.hasServiceDate("TST:ServiceJourney:1", new ServiceDate(2020, 1, 1)));
+        assertTrue(store.hasServiceDate("TST:ServiceJourney:1", new ServiceDate(2020, 3, 1)));
+        assertFalse(store.hasServiceDate("TST:ServiceJourney:1", new ServiceDate(2020, 2, 1)));
+        assertFalse(store.hasServiceDate("TST:ServiceJourney:1", new ServiceDate(2019, 12, 31)));
+        assertFalse(store.hasServiceDate("TST:ServiceJourney:1", new ServiceDate(2021, 3, 1)));
+        assertFalse(store.hasServiceDate("TST:ServiceJourney:2", new ServiceDate(2020, 1, 1)));
+        assertFalse(store.hasServiceDate("TST:ServiceJourney:3", new ServiceDate(2020, 1, 1)));
+
+        assertEquals(3660, store.getFirstDepartureTime("TST:ServiceJourney:1"));
+        assertEquals(-1, store.getFirstDepartureTime("TST:ServiceJourney:2"));
+        assertEquals(-1, store.getFirstDepartureTime("TST:ServiceJourney:3"));
+    }
+}
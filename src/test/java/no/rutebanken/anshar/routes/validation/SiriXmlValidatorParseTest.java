@@ -0,0 +1,88 @@
+package no.rutebanken.anshar.routes.validation;
+
+import org.junit.jupiter.api.Test;
+import org.rutebanken.siri20.util.SiriXml;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import uk.org.siri.siri20.Siri;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.ValidationEvent;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static no.rutebanken.anshar.routes.validation.validators.CustomValidator.LINE_NUMBER_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SiriXmlValidatorParseTest {
+
+    private static final String ESTIMATED_VEHICLE_JOURNEY = "Siri/ServiceDelivery/EstimatedTimetableDelivery/EstimatedJourneyVersionFrame/EstimatedVehicleJourney";
+
+    private final XPath xpath = XPathFactory.newInstance().newXPath();
+
+    @Test
+    public void testSinglePassEqualsSeparateParsing() throws Exception {
+        byte[] xml = Files.readAllBytes(Paths.get("src/test/resources/siri-et-from-bnr.xml"));
+
+        SiriValidationEventHandler handler = new SiriValidationEventHandler();
+        Document document = newDocument();
+        Siri siri = SiriXmlValidator.parseAndValidate(new InputSource(new ByteArrayInputStream(xml)), handler,
+                JAXBContext.newInstance(Siri.class).createUnmarshaller(), document);
+
+        assertEquals(SiriXml.toXml(SiriXml.parseXml(new ByteArrayInputStream(xml))), SiriXml.toXml(siri));
+
+        // Same document as parsed by a DocumentBuilder
+        Document expected = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        NodeList expectedJourneys = (NodeList) xpath.evaluate(ESTIMATED_VEHICLE_JOURNEY, expected, XPathConstants.NODESET);
+        NodeList journeys = (NodeList) xpath.evaluate(ESTIMATED_VEHICLE_JOURNEY, document, XPathConstants.NODESET);
+
+        assertTrue(expectedJourneys.getLength() > 0);
+        assertEquals(expectedJourneys.getLength(), journeys.getLength());
+        for (int i = 0; i < journeys.getLength(); i++) {
+            assertEquals(expectedJourneys.item(i).getTextContent(), journeys.item(i).getTextContent());
+            assertEquals(expectedJourneys.item(i).getChildNodes().getLength(), journeys.item(i).getChildNodes().getLength());
+        }
+        assertEquals(expected.getDocumentElement().getAttribute("xmlns"), document.getDocumentElement().getAttribute("xmlns"));
+    }
+
+    @Test
+    public void testSchemaEventsAndElementLineNumbers() throws Exception {
+        String xml = "<Siri version=\"2.0\" xmlns=\"http://www.siri.org.uk/siri\">\n" +
+                "  <HeartbeatNotification>\n" +
+                "    <RequestTimestamp>2018-08-28T09:08:35.867+02:00</RequestTimestamp>\n" +
+                "    <Unknown>value</Unknown>\n" +
+                "  </HeartbeatNotification>\n" +
+                "</Siri>";
+
+        SiriValidationEventHandler handler = new SiriValidationEventHandler();
+        Document document = newDocument();
+        Siri siri = SiriXmlValidator.parseAndValidate(new InputSource(new StringReader(xml)), handler, null, document);
+
+        assertNull(siri);
+        assertEquals(1, handler.categorizedEvents.size());
+        ValidationEvent event = handler.categorizedEvents.values().iterator().next().values().iterator().next();
+        assertEquals(ValidationEvent.ERROR, event.getSeverity());
+        assertEquals(4, event.getLocator().getLineNumber());
+
+        Element unknown = (Element) xpath.evaluate("Siri/HeartbeatNotification/Unknown", document, XPathConstants.NODE);
+        assertNotNull(unknown);
+        assertEquals("value", unknown.getFirstChild().getNodeValue());
+        assertEquals(4, unknown.getUserData(LINE_NUMBER_KEY));
+        assertEquals(2, document.getDocumentElement().getFirstChild().getNextSibling().getUserData(LINE_NUMBER_KEY));
+    }
+
+    private static Document newDocument() throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+    }
+}
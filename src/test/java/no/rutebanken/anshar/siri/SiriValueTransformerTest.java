@@ -25,9 +25,11 @@ import no.rutebanken.anshar.routes.siri.transformer.impl.RuterSubstringAdapter;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
 import no.rutebanken.anshar.subscription.helpers.MappingAdapterPresets;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Test;
 import uk.org.siri.siri20.BlockRefStructure;
 import uk.org.siri.siri20.DestinationRef;
+import uk.org.siri.siri20.EstimatedCall;
 import uk.org.siri.siri20.EstimatedTimetableDeliveryStructure;
 import uk.org.siri.siri20.EstimatedVehicleJourney;
 import uk.org.siri.siri20.EstimatedVersionFrameStructure;
@@ -35,12 +37,17 @@ import uk.org.siri.siri20.JourneyPlaceRefStructure;
 import uk.org.siri.siri20.LineRef;
 import uk.org.siri.siri20.ServiceDelivery;
 import uk.org.siri.siri20.Siri;
+import uk.org.siri.siri20.StopPointRef;
 
 import javax.xml.bind.JAXBException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertNull;
@@ -262,6 +269,61 @@ public class SiriValueTransformerTest extends SpringBootBaseTest {
 
     }
 
+    @Test
+    public void testNestedStopPointRefsAndNullValues() {
+        Siri siri = createSiriObject("99", null);
+        EstimatedVehicleJourney journey = getJourneyFromSiriObj(siri);
+
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        for (int i = 0; i < 3; i++) {
+            StopPointRef stopPointRef = new StopPointRef();
+            if (i != 1) {
+                stopPointRef.setValue("" + i);
+            }
+            EstimatedCall call = new EstimatedCall();
+            call.setStopPointRef(stopPointRef);
+            estimatedCalls.getEstimatedCalls().add(call);
+        }
+        journey.setEstimatedCalls(estimatedCalls);
+
+        List<ValueAdapter> mappingAdapters = new ArrayList<>();
+        mappingAdapters.add(new LeftPaddingAdapter(StopPointRef.class, 4, '0'));
+        mappingAdapters.add(new LeftPaddingAdapter(LineRef.class, 4, '0'));
+
+        Siri transformed = SiriValueTransformer.transform(siri, mappingAdapters);
+
+        List<EstimatedCall> calls = getJourneyFromSiriObj(transformed).getEstimatedCalls().getEstimatedCalls();
+        assertEquals("0" + SiriValueTransformer.SEPARATOR + "0000", calls.get(0).getStopPointRef().getValue());
+        assertNull(calls.get(1).getStopPointRef().getValue());
+        assertEquals("2" + SiriValueTransformer.SEPARATOR + "0002", calls.get(2).getStopPointRef().getValue());
+        assertEquals("99" + SiriValueTransformer.SEPARATOR + "0099", getLineRefFromSiriObj(transformed));
+    }
+
+    @Test
+    public void testConcurrentTransform() throws Exception {
+        List<ValueAdapter> mappingAdapters = new ArrayList<>();
+        mappingAdapters.add(new LeftPaddingAdapter(BlockRefStructure.class, 4, '0'));
+        mappingAdapters.add(new LeftPaddingAdapter(LineRef.class, 4, '0'));
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Siri>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                Siri siri = createSiriObject("" + i, "" + i);
+                results.add(executorService.submit(() -> SiriValueTransformer.transform(siri, mappingAdapters, false, false)));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                Siri transformed = results.get(i).get(10, TimeUnit.SECONDS);
+                String expected = i + SiriValueTransformer.SEPARATOR + StringUtils.leftPad("" + i, 4, '0');
+                assertEquals(expected, getLineRefFromSiriObj(transformed));
+                assertEquals(expected, getBlockRefFromSiriObj(transformed));
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
     private Siri createSiriObject(String lineRefValue, String blockRefValue) {
         return createSiriObject(lineRefValue, blockRefValue, null, null);
     }
@@ -307,6 +369,10 @@ public class SiriValueTransformerTest extends SpringBootBaseTest {
     }
 
 
+    private EstimatedVehicleJourney getJourneyFromSiriObj(Siri siri) {
+        return siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0);
+    }
+
     private String getBlockRefFromSiriObj(Siri siri) {
         return siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0).getBlockRef().getValue();
     }
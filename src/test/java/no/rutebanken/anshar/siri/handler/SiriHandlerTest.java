@@ -15,29 +15,55 @@
 
 package no.rutebanken.anshar.siri.handler;
 
+import no.rutebanken.anshar.data.EstimatedTimetables;
 import no.rutebanken.anshar.integration.SpringBootBaseTest;
 import no.rutebanken.anshar.routes.siri.handlers.SiriHandler;
+import no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer;
+import no.rutebanken.anshar.routes.siri.transformer.impl.LeftPaddingAdapter;
+import no.rutebanken.anshar.routes.validation.SiriXmlValidator;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import no.rutebanken.anshar.subscription.SubscriptionManager;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
+import org.apache.commons.lang3.StringUtils;
 import org.junit.jupiter.api.Test;
+import org.rutebanken.siri20.util.SiriXml;
 import org.springframework.beans.factory.annotation.Autowired;
+import uk.org.siri.siri20.EstimatedCall;
+import uk.org.siri.siri20.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.EstimatedVersionFrameStructure;
+import uk.org.siri.siri20.LineRef;
+import uk.org.siri.siri20.ServiceDelivery;
 import uk.org.siri.siri20.Siri;
+import uk.org.siri.siri20.StopPointRef;
+import uk.org.siri.siri20.VehicleRef;
 
 import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
 import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
 import java.time.Duration;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.UUID;
 
 import static junit.framework.TestCase.fail;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 
 public class SiriHandlerTest extends SpringBootBaseTest {
 
     @Autowired
     private SubscriptionManager subscriptionManager;
 
+    @Autowired
+    private EstimatedTimetables estimatedTimetables;
+
+    @Autowired
+    private SiriXmlValidator siriXmlValidator;
+
     @Autowired
     private SiriHandler handler;
 
@@ -131,6 +157,84 @@ public class SiriHandlerTest extends SpringBootBaseTest {
 
 
 
+    @Test
+    public void testMappingAdaptersAppliedToParsedDelivery() throws JAXBException, XMLStreamException, InterruptedException {
+        assertMappedLineRef(false);
+    }
+
+    @Test
+    public void testMappingAdaptersAppliedWhenDeliveryIsValidated() throws JAXBException, XMLStreamException, InterruptedException {
+        assertMappedLineRef(true);
+    }
+
+    private void assertMappedLineRef(boolean validation) throws JAXBException, XMLStreamException, InterruptedException {
+        String lineRefValue = String.valueOf(System.nanoTime() % 100000);
+        String vehicleRefValue = UUID.randomUUID().toString();
+
+        SubscriptionSetup etSubscription = getEtSubscription();
+        etSubscription.getMappingAdapters().add(new LeftPaddingAdapter(LineRef.class, 8, '0'));
+        etSubscription.setValidation(validation);
+        subscriptionManager.addSubscription(etSubscription.getSubscriptionId(), etSubscription);
+
+        handler.handleIncomingSiri(etSubscription.getSubscriptionId(),
+                new ByteArrayInputStream(createEtDelivery(lineRefValue, vehicleRefValue).getBytes()));
+
+        EstimatedVehicleJourney stored = estimatedTimetables.getAll(etSubscription.getDatasetId()).stream()
+                .filter(et -> vehicleRefValue.equals(et.getVehicleRef().getValue()))
+                .findFirst()
+                .orElse(null);
+
+        assertNotNull(stored);
+        String expectedLineRef = StringUtils.leftPad(lineRefValue, 8, '0');
+        assertEquals(lineRefValue + SiriValueTransformer.SEPARATOR + expectedLineRef, stored.getLineRef().getValue());
+
+        // Modifications are detected when the asynchronous validation completes
+        long timeout = System.currentTimeMillis() + 10000;
+        while (siriXmlValidator.hasPendingValidations() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        assertFalse("Validation did not complete", siriXmlValidator.hasPendingValidations());
+        assertEquals(0, siriXmlValidator.getSharedObjectModifications());
+    }
+
+    private String createEtDelivery(String lineRefValue, String vehicleRefValue) throws JAXBException {
+        ZonedDateTime departure = ZonedDateTime.now().plusHours(1);
+
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue(lineRefValue);
+        journey.setLineRef(lineRef);
+        VehicleRef vehicleRef = new VehicleRef();
+        vehicleRef.setValue(vehicleRefValue);
+        journey.setVehicleRef(vehicleRef);
+        journey.setRecordedAtTime(ZonedDateTime.now());
+
+        EstimatedVehicleJourney.EstimatedCalls estimatedCalls = new EstimatedVehicleJourney.EstimatedCalls();
+        for (int i = 1; i <= 2; i++) {
+            StopPointRef stopPointRef = new StopPointRef();
+            stopPointRef.setValue("NSR:TEST:" + i);
+            EstimatedCall call = new EstimatedCall();
+            call.setStopPointRef(stopPointRef);
+            call.setOrder(BigInteger.valueOf(i));
+            call.setAimedDepartureTime(departure);
+            call.setExpectedDepartureTime(departure);
+            estimatedCalls.getEstimatedCalls().add(call);
+        }
+        journey.setEstimatedCalls(estimatedCalls);
+
+        EstimatedVersionFrameStructure frame = new EstimatedVersionFrameStructure();
+        frame.getEstimatedVehicleJourneies().add(journey);
+        EstimatedTimetableDeliveryStructure delivery = new EstimatedTimetableDeliveryStructure();
+        delivery.getEstimatedJourneyVersionFrames().add(frame);
+        ServiceDelivery serviceDelivery = new ServiceDelivery();
+        serviceDelivery.setResponseTimestamp(ZonedDateTime.now());
+        serviceDelivery.getEstimatedTimetableDeliveries().add(delivery);
+        Siri siri = new Siri();
+        siri.setServiceDelivery(serviceDelivery);
+
+        return SiriXml.toXml(siri);
+    }
+
     private SubscriptionSetup getSxSubscription() {
         return getSubscriptionSetup(SiriDataType.SITUATION_EXCHANGE);
     }
@@ -0,0 +1,69 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.util;
+
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncTaskExecutorTest extends SpringBootBaseTest {
+
+    @Autowired
+    private AsyncTaskExecutor asyncTaskExecutor;
+
+    @Test
+    public void testBreadcrumbIsPropagated() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicReference<String> breadcrumbId = new AtomicReference<>();
+        AtomicReference<String> threadName = new AtomicReference<>();
+
+        MDC.put("camel.breadcrumbId", "testBreadcrumbIsPropagated");
+        try {
+            asyncTaskExecutor.execute("test", () -> {
+                breadcrumbId.set(MDC.get("camel.breadcrumbId"));
+                threadName.set(Thread.currentThread().getName());
+                latch.countDown();
+            });
+        } finally {
+            MDC.remove("camel.breadcrumbId");
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("testBreadcrumbIsPropagated", breadcrumbId.get());
+        assertNotEquals(Thread.currentThread().getName(), threadName.get());
+    }
+
+    @Test
+    public void testFailingTaskDoesNotAffectExecutor() throws InterruptedException {
+        asyncTaskExecutor.execute("test", () -> {
+            throw new IllegalStateException("Expected failure");
+        });
+
+        CountDownLatch latch = new CountDownLatch(1);
+        asyncTaskExecutor.execute("test", latch::countDown);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.validation;
+
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import no.rutebanken.anshar.routes.validation.SiriXmlValidator;
+import no.rutebanken.anshar.subscription.SubscriptionSetup;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import uk.org.siri.siri20.EstimatedVehicleJourney;
+import uk.org.siri.siri20.ServiceDeliveryErrorConditionElement;
+import uk.org.siri.siri20.Siri;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class SiriXmlStreamingParseTest extends SpringBootBaseTest {
+
+    @Autowired
+    private SiriXmlValidator siriXmlValidator;
+
+    @Test
+    public void testStreamedElementsInBatches() throws IOException, XMLStreamException {
+        byte[] xml = Files.readAllBytes(Paths.get("src/test/resources/siri-et-from-bnr.xml"));
+
+        Siri siri = siriXmlValidator.parseXml(new SubscriptionSetup(), new ByteArrayInputStream(xml));
+        List<EstimatedVehicleJourney> expected = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+
+        List<Integer> batchSizes = new ArrayList<>();
+        List<EstimatedVehicleJourney> streamed = new ArrayList<>();
+
+        boolean isServiceDelivery = siriXmlValidator.parseXmlInBatches(new SubscriptionSetup(), new ByteArrayInputStream(xml),
+                EstimatedVehicleJourney.class, 100, batch -> {
+                    batchSizes.add(batch.size());
+                    streamed.addAll(batch);
+                }, errorCondition -> {});
+
+        assertTrue(isServiceDelivery);
+        assertEquals(expected.size(), streamed.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getDatedVehicleJourneyRef().getValue(), streamed.get(i).getDatedVehicleJourneyRef().getValue());
+            assertEquals(expected.get(i).getEstimatedCalls().getEstimatedCalls().size(), streamed.get(i).getEstimatedCalls().getEstimatedCalls().size());
+        }
+        for (Integer batchSize : batchSizes) {
+            assertTrue(batchSize <= 100);
+        }
+    }
+
+    @Test
+    public void testNonDeliveryIsReset() throws XMLStreamException {
+        String xml = "<Siri version=\"2.0\" xmlns=\"http://www.siri.org.uk/siri\">" +
+                "<HeartbeatNotification><RequestTimestamp>2018-08-28T09:08:35.867+02:00</RequestTimestamp></HeartbeatNotification>" +
+                "</Siri>";
+
+        ByteArrayInputStream stream = new ByteArrayInputStream(xml.getBytes());
+        boolean isServiceDelivery = siriXmlValidator.parseXmlInBatches(new SubscriptionSetup(), stream,
+                EstimatedVehicleJourney.class, 100, batch -> {}, errorCondition -> {});
+
+        assertFalse(isServiceDelivery);
+
+        Siri siri = siriXmlValidator.parseXml(new SubscriptionSetup(), stream);
+        assertNotNull(siri.getHeartbeatNotification());
+    }
+
+    @Test
+    public void testDeliveryWithErrorIsIgnored() throws XMLStreamException {
+        String xml = "<Siri version=\"2.0\" xmlns=\"http://www.siri.org.uk/siri\"><ServiceDelivery>" +
+                "<ResponseTimestamp>2018-08-28T09:08:35.867+02:00</ResponseTimestamp>" +
+                "<EstimatedTimetableDelivery version=\"2.0\">" +
+                "<ResponseTimestamp>2018-08-28T09:08:35.867+02:00</ResponseTimestamp>" +
+                "<Status>false</Status>" +
+                "<ErrorCondition><OtherError><ErrorText>Failed</ErrorText></OtherError></ErrorCondition>" +
+                "<EstimatedJourneyVersionFrame><RecordedAtTime>2018-08-28T09:08:35.867+02:00</RecordedAtTime>" +
+                "<EstimatedVehicleJourney><LineRef>1234</LineRef></EstimatedVehicleJourney>" +
+                "</EstimatedJourneyVersionFrame>" +
+                "</EstimatedTimetableDelivery>" +
+                "</ServiceDelivery></Siri>";
+
+        List<EstimatedVehicleJourney> streamed = new ArrayList<>();
+        List<ServiceDeliveryErrorConditionElement> errors = new ArrayList<>();
+
+        boolean isServiceDelivery = siriXmlValidator.parseXmlInBatches(new SubscriptionSetup(), new ByteArrayInputStream(xml.getBytes()),
+                EstimatedVehicleJourney.class, 100, streamed::addAll, errors::add);
+
+        assertTrue(isServiceDelivery);
+        assertTrue(streamed.isEmpty());
+        assertEquals(1, errors.size());
+        assertEquals("Failed", errors.get(0).getOtherError().getErrorText());
+    }
+}